@@ -1,2 +1,2 @@
-APP_ABI := armeabi-v7a arm64-v8a x86 mips
+APP_ABI := armeabi-v7a arm64-v8a x86
 APP_PLATFORM := android-21
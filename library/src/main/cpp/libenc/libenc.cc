@@ -1,5 +1,6 @@
 #include <jni.h>
 #include <string.h>
+#include <pthread.h>
 #include <libyuv.h>
 #include <x264.h>
 
@@ -23,6 +24,24 @@ struct YuvFrame {
     uint8_t *v;
 };
 
+// Destination planes of a conversion, I420 or, with u only, the interleaved NV12 chroma.
+struct YuvPlanes {
+    uint8_t *y;
+    int y_stride;
+    uint8_t *u;
+    int u_stride;
+    uint8_t *v;
+    int v_stride;
+};
+
+// Source of a direct conversion: a direct ByteBuffer, or a primitive array pinned with
+// GetPrimitiveArrayCritical so it is never copied. No JNI call may be made while it is held.
+struct DirectSource {
+    jobject object;
+    uint8_t *data;
+    bool critical;
+};
+
 typedef struct x264_context {
     // encode parameter
     x264_param_t params;
@@ -36,57 +55,140 @@ typedef struct x264_context {
     int fps;
     int gop;
     char preset[16];
+    // soft encoder config, applied when the encoder opens
+    int threads;
+    bool sliced_threads;
+    int lookahead;
+    int bframes;
+    bool zerolatency;
+    bool intra_refresh;
+    float crf;
+    float vbv_max_factor;
+    float vbv_buffer_seconds;
     // output
     int64_t pts;
-    int dts;
+    int64_t dts;
     bool is_key_frame;
 } x264_context;
 
-static JavaVM *jvm;
-static JNIEnv *jenv;
-
-static struct x264_context x264_ctx;
-static uint8_t h264_es[1024 * 1024];
+static jclass buffer_class;
+static jfieldID context_field;
 
 static const int SRC_COLOR_FMT = FOURCC_RGBA;
-static const int DST_COLOR_FMT = FOURCC_NV12;
 
-static struct YuvFrame i420_rotated_frame;
-static struct YuvFrame i420_scaled_frame;
-static struct YuvFrame nv12_frame;
+// Record written by RGBASoftEncodeDirect for every access unit, all fields in native byte order:
+// int32 record size, padded to 8 bytes; int32 flags; int64 pts; int64 dts; int32 payload size;
+// int32 NAL count; an int32 payload offset per NAL; then the Annex B payload.
+#define SOFT_RECORD_HEADER 32
+#define SOFT_FLAG_KEY_FRAME 1
+#define SOFT_FLAG_CODEC_CONFIG 2
 
-static bool convert_to_i420(uint8_t *src_frame, jint src_width, jint src_height,
-                            jboolean need_flip, jint rotate_degree, int format) {
+struct OutputRecords {
+    uint8_t *data;
+    jlong capacity;
+    jlong position;
+    int count;
+};
+
+// Native state of one SrsEncoder, owned through its mNativeContext field. The lock serializes the
+// calls into the encoder, none of which calls back into Java.
+typedef struct libenc_context {
+    pthread_mutex_t lock;
+    // the calls using the context, guarded by contexts_lock.
+    int users;
+    struct x264_context x264;
+    struct YuvFrame i420_rotated_frame;
+    struct YuvFrame i420_scaled_frame;
+} libenc_context;
+
+// Guards reading the mNativeContext fields and the users of every context, so that a release
+// waits for the calls which got the context before it was cleared.
+static pthread_mutex_t contexts_lock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t contexts_idle = PTHREAD_COND_INITIALIZER;
+
+// Holds the lock of a context acquired by get_context, and gives it back at the end of the scope.
+class ContextLock {
+public:
+    explicit ContextLock(libenc_context *ctx) : ctx_(ctx) {
+        pthread_mutex_lock(&ctx_->lock);
+    }
+
+    ~ContextLock() {
+        pthread_mutex_unlock(&ctx_->lock);
+        pthread_mutex_lock(&contexts_lock);
+        if (--ctx_->users == 0) {
+            pthread_cond_broadcast(&contexts_idle);
+        }
+        pthread_mutex_unlock(&contexts_lock);
+    }
+
+private:
+    libenc_context *ctx_;
+};
+
+// Returns the context with one more user, or NULL once the encoder cleared its field.
+static libenc_context *get_context(JNIEnv *env, jobject thiz) {
+    pthread_mutex_lock(&contexts_lock);
+    libenc_context *ctx = (libenc_context *) (intptr_t) env->GetLongField(thiz, context_field);
+    if (ctx != NULL) {
+        ctx->users++;
+    }
+    pthread_mutex_unlock(&contexts_lock);
+    return ctx;
+}
+
+// Binds ctx to the encoder and holds its lock until the end of the scope, or returns ret when the
+// encoder has been released.
+#define LIBENC_CONTEXT(env, thiz, ret) \
+    libenc_context *ctx = get_context(env, thiz); \
+    if (ctx == NULL) { \
+        LIBENC_LOGE("encoder context released"); \
+        return ret; \
+    } \
+    ContextLock ctx_lock(ctx)
+
+static YuvPlanes planes_of(const YuvFrame &frame) {
+    YuvPlanes planes = {frame.y, frame.width, frame.u, frame.width / 2, frame.v, frame.width / 2};
+    return planes;
+}
+
+// src_stride is in pixels, the frame is scaled into dst at the size of the scaled frame of ctx.
+static bool convert_to_i420(libenc_context *ctx,
+                            uint8_t *src_frame, jint src_width, jint src_height, jint src_stride,
+                            jboolean need_flip, jint rotate_degree, int format,
+                            const YuvPlanes &dst) {
     int y_size = src_width * src_height;
 
     if (rotate_degree % 180 == 0) {
-        if (i420_rotated_frame.width != src_width || i420_rotated_frame.height != src_height) {
-            free(i420_rotated_frame.data);
-            i420_rotated_frame.width = src_width;
-            i420_rotated_frame.height = src_height;
-            i420_rotated_frame.data = (uint8_t *) malloc(y_size * 4 / 2);
-            i420_rotated_frame.y = i420_rotated_frame.data;
-            i420_rotated_frame.u = i420_rotated_frame.y + y_size;
-            i420_rotated_frame.v = i420_rotated_frame.u + y_size / 4;
+        if (ctx->i420_rotated_frame.width != src_width ||
+            ctx->i420_rotated_frame.height != src_height) {
+            free(ctx->i420_rotated_frame.data);
+            ctx->i420_rotated_frame.width = src_width;
+            ctx->i420_rotated_frame.height = src_height;
+            ctx->i420_rotated_frame.data = (uint8_t *) malloc(y_size * 4 / 2);
+            ctx->i420_rotated_frame.y = ctx->i420_rotated_frame.data;
+            ctx->i420_rotated_frame.u = ctx->i420_rotated_frame.y + y_size;
+            ctx->i420_rotated_frame.v = ctx->i420_rotated_frame.u + y_size / 4;
         }
     } else {
-        if (i420_rotated_frame.width != src_height || i420_rotated_frame.height != src_width) {
-            free(i420_rotated_frame.data);
-            i420_rotated_frame.width = src_height;
-            i420_rotated_frame.height = src_width;
-            i420_rotated_frame.data = (uint8_t *) malloc(y_size * 4 / 2);
-            i420_rotated_frame.y = i420_rotated_frame.data;
-            i420_rotated_frame.u = i420_rotated_frame.y + y_size;
-            i420_rotated_frame.v = i420_rotated_frame.u + y_size / 4;
+        if (ctx->i420_rotated_frame.width != src_height ||
+            ctx->i420_rotated_frame.height != src_width) {
+            free(ctx->i420_rotated_frame.data);
+            ctx->i420_rotated_frame.width = src_height;
+            ctx->i420_rotated_frame.height = src_width;
+            ctx->i420_rotated_frame.data = (uint8_t *) malloc(y_size * 4 / 2);
+            ctx->i420_rotated_frame.y = ctx->i420_rotated_frame.data;
+            ctx->i420_rotated_frame.u = ctx->i420_rotated_frame.y + y_size;
+            ctx->i420_rotated_frame.v = ctx->i420_rotated_frame.u + y_size / 4;
         }
     }
 
     jint ret = ConvertToI420(src_frame, y_size,
-                             i420_rotated_frame.y, i420_rotated_frame.width,
-                             i420_rotated_frame.u, i420_rotated_frame.width / 2,
-                             i420_rotated_frame.v, i420_rotated_frame.width / 2,
+                             ctx->i420_rotated_frame.y, ctx->i420_rotated_frame.width,
+                             ctx->i420_rotated_frame.u, ctx->i420_rotated_frame.width / 2,
+                             ctx->i420_rotated_frame.v, ctx->i420_rotated_frame.width / 2,
                              0, 0,
-                             src_width, src_height,
+                             src_stride, src_height,
                              src_width, src_height,
                              (RotationMode) rotate_degree, format);
     if (ret < 0) {
@@ -94,15 +196,15 @@ static bool convert_to_i420(uint8_t *src_frame, jint src_width, jint src_height,
         return false;
     }
 
-    ret = I420Scale(i420_rotated_frame.y, i420_rotated_frame.width,
-                    i420_rotated_frame.u, i420_rotated_frame.width / 2,
-                    i420_rotated_frame.v, i420_rotated_frame.width / 2,
-                    need_flip ? -i420_rotated_frame.width : i420_rotated_frame.width,
-                    i420_rotated_frame.height,
-                    i420_scaled_frame.y, i420_scaled_frame.width,
-                    i420_scaled_frame.u, i420_scaled_frame.width / 2,
-                    i420_scaled_frame.v, i420_scaled_frame.width / 2,
-                    i420_scaled_frame.width, i420_scaled_frame.height,
+    ret = I420Scale(ctx->i420_rotated_frame.y, ctx->i420_rotated_frame.width,
+                    ctx->i420_rotated_frame.u, ctx->i420_rotated_frame.width / 2,
+                    ctx->i420_rotated_frame.v, ctx->i420_rotated_frame.width / 2,
+                    need_flip ? -ctx->i420_rotated_frame.width : ctx->i420_rotated_frame.width,
+                    ctx->i420_rotated_frame.height,
+                    dst.y, dst.y_stride,
+                    dst.u, dst.u_stride,
+                    dst.v, dst.v_stride,
+                    ctx->i420_scaled_frame.width, ctx->i420_scaled_frame.height,
                     kFilterNone);
 
     if (ret < 0) {
@@ -113,43 +215,55 @@ static bool convert_to_i420(uint8_t *src_frame, jint src_width, jint src_height,
     return true;
 }
 
-static bool convert_to_i420_with_crop_scale(uint8_t *src_frame, jint src_width, jint src_height,
+static bool convert_to_i420(libenc_context *ctx,
+                            uint8_t *src_frame, jint src_width, jint src_height,
+                            jboolean need_flip, jint rotate_degree, int format) {
+    return convert_to_i420(ctx, src_frame, src_width, src_height, src_width, need_flip,
+                           rotate_degree, format, planes_of(ctx->i420_scaled_frame));
+}
+
+static bool convert_to_i420_with_crop_scale(libenc_context *ctx,
+                                            uint8_t *src_frame, jint src_width, jint src_height,
+                                            jint src_stride,
                                             jint crop_x, jint crop_y, jint crop_width,
                                             jint crop_height,
-                                            jboolean need_flip, jint rotate_degree, int format) {
+                                            jboolean need_flip, jint rotate_degree, int format,
+                                            const YuvPlanes &dst) {
     int y_size = src_width * src_height;
 
     if (rotate_degree % 180 == 0) {
-        if (i420_rotated_frame.width != src_width || i420_rotated_frame.height != src_height) {
-            free(i420_rotated_frame.data);
-            i420_rotated_frame.data = (uint8_t *) malloc(y_size * 3 / 2);
-            i420_rotated_frame.y = i420_rotated_frame.data;
-            i420_rotated_frame.u = i420_rotated_frame.y + y_size;
-            i420_rotated_frame.v = i420_rotated_frame.u + y_size / 4;
+        if (ctx->i420_rotated_frame.width != src_width ||
+            ctx->i420_rotated_frame.height != src_height) {
+            free(ctx->i420_rotated_frame.data);
+            ctx->i420_rotated_frame.data = (uint8_t *) malloc(y_size * 3 / 2);
+            ctx->i420_rotated_frame.y = ctx->i420_rotated_frame.data;
+            ctx->i420_rotated_frame.u = ctx->i420_rotated_frame.y + y_size;
+            ctx->i420_rotated_frame.v = ctx->i420_rotated_frame.u + y_size / 4;
         }
 
-        i420_rotated_frame.width = crop_width;
-        i420_rotated_frame.height = crop_height;
+        ctx->i420_rotated_frame.width = crop_width;
+        ctx->i420_rotated_frame.height = crop_height;
 
     } else {
-        if (i420_rotated_frame.width != src_height || i420_rotated_frame.height != src_width) {
-            free(i420_rotated_frame.data);
-            i420_rotated_frame.data = (uint8_t *) malloc(y_size * 3 / 2);
-            i420_rotated_frame.y = i420_rotated_frame.data;
-            i420_rotated_frame.u = i420_rotated_frame.y + y_size;
-            i420_rotated_frame.v = i420_rotated_frame.u + y_size / 4;
+        if (ctx->i420_rotated_frame.width != src_height ||
+            ctx->i420_rotated_frame.height != src_width) {
+            free(ctx->i420_rotated_frame.data);
+            ctx->i420_rotated_frame.data = (uint8_t *) malloc(y_size * 3 / 2);
+            ctx->i420_rotated_frame.y = ctx->i420_rotated_frame.data;
+            ctx->i420_rotated_frame.u = ctx->i420_rotated_frame.y + y_size;
+            ctx->i420_rotated_frame.v = ctx->i420_rotated_frame.u + y_size / 4;
         }
 
-        i420_rotated_frame.width = crop_height;
-        i420_rotated_frame.height = crop_width;
+        ctx->i420_rotated_frame.width = crop_height;
+        ctx->i420_rotated_frame.height = crop_width;
     }
 
     jint ret = ConvertToI420(src_frame, y_size,
-                             i420_rotated_frame.y, i420_rotated_frame.width,
-                             i420_rotated_frame.u, i420_rotated_frame.width / 2,
-                             i420_rotated_frame.v, i420_rotated_frame.width / 2,
+                             ctx->i420_rotated_frame.y, ctx->i420_rotated_frame.width,
+                             ctx->i420_rotated_frame.u, ctx->i420_rotated_frame.width / 2,
+                             ctx->i420_rotated_frame.v, ctx->i420_rotated_frame.width / 2,
                              crop_x, crop_y,
-                             src_width, need_flip ? -src_height : src_height,
+                             src_stride, need_flip ? -src_height : src_height,
                              crop_width, crop_height,
                              (RotationMode) rotate_degree, format);
     if (ret < 0) {
@@ -157,14 +271,14 @@ static bool convert_to_i420_with_crop_scale(uint8_t *src_frame, jint src_width,
         return false;
     }
 
-    ret = I420Scale(i420_rotated_frame.y, i420_rotated_frame.width,
-                    i420_rotated_frame.u, i420_rotated_frame.width / 2,
-                    i420_rotated_frame.v, i420_rotated_frame.width / 2,
-                    i420_rotated_frame.width, i420_rotated_frame.height,
-                    i420_scaled_frame.y, i420_scaled_frame.width,
-                    i420_scaled_frame.u, i420_scaled_frame.width / 2,
-                    i420_scaled_frame.v, i420_scaled_frame.width / 2,
-                    i420_scaled_frame.width, i420_scaled_frame.height,
+    ret = I420Scale(ctx->i420_rotated_frame.y, ctx->i420_rotated_frame.width,
+                    ctx->i420_rotated_frame.u, ctx->i420_rotated_frame.width / 2,
+                    ctx->i420_rotated_frame.v, ctx->i420_rotated_frame.width / 2,
+                    ctx->i420_rotated_frame.width, ctx->i420_rotated_frame.height,
+                    dst.y, dst.y_stride,
+                    dst.u, dst.u_stride,
+                    dst.v, dst.v_stride,
+                    ctx->i420_scaled_frame.width, ctx->i420_scaled_frame.height,
                     kFilterNone);
 
     if (ret < 0) {
@@ -175,373 +289,471 @@ static bool convert_to_i420_with_crop_scale(uint8_t *src_frame, jint src_width,
     return true;
 }
 
-static void libenc_setEncoderBitrate(JNIEnv *env, jobject thiz, jint bitrate) {
-    x264_ctx.bitrate = bitrate / 1024;  // kbps
-}
-
-static void libenc_setEncoderFps(JNIEnv *env, jobject thiz, jint fps) {
-    x264_ctx.fps = fps;
-}
-
-static void libenc_setEncoderGop(JNIEnv *env, jobject thiz, jint gop_size) {
-    x264_ctx.gop = gop_size;
+static bool acquire_source(JNIEnv *env, jobject frame, DirectSource *source) {
+    source->object = frame;
+    source->critical = !env->IsInstanceOf(frame, buffer_class);
+    if (source->critical) {
+        source->data = (uint8_t *) env->GetPrimitiveArrayCritical((jarray) frame, NULL);
+    } else {
+        source->data = (uint8_t *) env->GetDirectBufferAddress(frame);
+    }
+    if (source->data == NULL) {
+        LIBENC_LOGE("source frame not accessible, a heap ByteBuffer?");
+        return false;
+    }
+    return true;
 }
 
-static void libenc_setEncoderPreset(JNIEnv *env, jobject thiz, jstring preset) {
-    const char *enc_preset = env->GetStringUTFChars(preset, NULL);
-    strcpy(x264_ctx.preset, enc_preset);
-    env->ReleaseStringUTFChars(preset, enc_preset);
+static void release_source(JNIEnv *env, DirectSource *source) {
+    if (source->critical) {
+        env->ReleasePrimitiveArrayCritical((jarray) source->object, source->data, JNI_ABORT);
+    }
 }
 
-static void
-libenc_setEncoderResolution(JNIEnv *env, jobject thiz, jint out_width, jint out_height) {
-    int y_size = out_width * out_height;
-
-    if (i420_scaled_frame.width != out_width || i420_scaled_frame.height != out_height) {
-        free(i420_scaled_frame.data);
-        i420_scaled_frame.width = out_width;
-        i420_scaled_frame.height = out_height;
-        i420_scaled_frame.data = (uint8_t *) malloc(y_size * 3 / 2);
-        i420_scaled_frame.y = i420_scaled_frame.data;
-        i420_scaled_frame.u = i420_scaled_frame.y + y_size;
-        i420_scaled_frame.v = i420_scaled_frame.u + y_size / 4;
+// The planes of a frame of the scaled size in a direct ByteBuffer, e.g. a MediaCodec input buffer.
+static bool direct_planes(libenc_context *ctx,
+                          JNIEnv *env, jobject dst, jint stride, jint slice_height, bool nv12,
+                          YuvPlanes *planes) {
+    uint8_t *data = (uint8_t *) env->GetDirectBufferAddress(dst);
+    if (data == NULL) {
+        LIBENC_LOGE("destination is not a direct ByteBuffer");
+        return false;
     }
-
-    if (nv12_frame.width != out_width || nv12_frame.height != out_height) {
-        free(nv12_frame.data);
-        nv12_frame.width = out_width;
-        nv12_frame.height = out_height;
-        nv12_frame.data = (uint8_t *) malloc(y_size * 3 / 2);
-        nv12_frame.y = nv12_frame.data;
-        nv12_frame.u = nv12_frame.y + y_size;
-        nv12_frame.v = nv12_frame.u + y_size / 4;
+    if (stride < ctx->i420_scaled_frame.width || slice_height < ctx->i420_scaled_frame.height ||
+        env->GetDirectBufferCapacity(dst) < (jlong) stride * slice_height * 3 / 2) {
+        LIBENC_LOGE("destination too small for %dx%d", ctx->i420_scaled_frame.width,
+                    ctx->i420_scaled_frame.height);
+        return false;
     }
 
-    x264_ctx.width = out_width;
-    x264_ctx.height = out_height;
+    planes->y = data;
+    planes->y_stride = stride;
+    planes->u = data + stride * slice_height;
+    if (nv12) {
+        planes->u_stride = stride;
+        planes->v = NULL;
+        planes->v_stride = 0;
+    } else {
+        planes->u_stride = stride / 2;
+        planes->v = planes->u + (stride / 2) * (slice_height / 2);
+        planes->v_stride = stride / 2;
+    }
+    return true;
 }
 
-// For COLOR_FormatYUV420Planar
-static jbyteArray libenc_RGBAToI420(JNIEnv *env, jobject thiz, jbyteArray frame, jint src_width,
-                                    jint src_height, jboolean need_flip, jint rotate_degree) {
-    jbyte *rgba_frame = env->GetByteArrayElements(frame, NULL);
-
-    if (!convert_to_i420((uint8_t *) rgba_frame, src_width, src_height, need_flip, rotate_degree,
-                         FOURCC_RGBA)) {
-        return NULL;
+// Convert without any Java allocation or copy of the source. I420 is scaled straight into the
+// destination, NV12 is interleaved into it from the scaled frame.
+// Returns the number of bytes of the destination frame, or JNI_ERR.
+static jint convert_direct(libenc_context *ctx,
+                           JNIEnv *env, jobject frame, jint src_width, jint src_height,
+                           jint src_stride, jboolean need_flip, jint rotate_degree,
+                           const jint *crop, int format, jobject dst, jint dst_stride,
+                           jint dst_slice_height, bool nv12) {
+    YuvPlanes planes;
+    if (!direct_planes(ctx, env, dst, dst_stride, dst_slice_height, nv12, &planes)) {
+        return JNI_ERR;
     }
+    YuvPlanes scaled = nv12 ? planes_of(ctx->i420_scaled_frame) : planes;
+    // strides are in bytes, the conversions take them in pixels.
+    int pixel_stride = format == FOURCC_NV21 ? src_stride : src_stride / 4;
 
-    int y_size = i420_scaled_frame.width * i420_scaled_frame.height;
-    jbyteArray i420Frame = env->NewByteArray(y_size * 3 / 2);
-    env->SetByteArrayRegion(i420Frame, 0, y_size * 3 / 2, (jbyte *) i420_scaled_frame.data);
+    DirectSource source;
+    if (!acquire_source(env, frame, &source)) {
+        return JNI_ERR;
+    }
+    bool converted = crop == NULL ?
+                     convert_to_i420(ctx, source.data, src_width, src_height, pixel_stride,
+                                     need_flip, rotate_degree, format, scaled) :
+                     convert_to_i420_with_crop_scale(ctx, source.data, src_width, src_height,
+                                                     pixel_stride,
+                                                     crop[0], crop[1], crop[2], crop[3],
+                                                     need_flip, rotate_degree, format, scaled);
+    release_source(env, &source);
+    if (!converted) {
+        return JNI_ERR;
+    }
 
-    env->ReleaseByteArrayElements(frame, rgba_frame, JNI_ABORT);
-    return i420Frame;
+    if (nv12) {
+        int ret = I420ToNV12(ctx->i420_scaled_frame.y, ctx->i420_scaled_frame.width,
+                             ctx->i420_scaled_frame.u, ctx->i420_scaled_frame.width / 2,
+                             ctx->i420_scaled_frame.v, ctx->i420_scaled_frame.width / 2,
+                             planes.y, planes.y_stride,
+                             planes.u, planes.u_stride,
+                             ctx->i420_scaled_frame.width, ctx->i420_scaled_frame.height);
+        if (ret < 0) {
+            LIBENC_LOGE("I420ToNV12 failure");
+            return JNI_ERR;
+        }
+    }
+    return dst_stride * dst_slice_height * 3 / 2;
 }
 
-static jbyteArray
-libenc_NV21ToNV12Scaled(JNIEnv *env, jobject thiz, jbyteArray frame, jint src_width,
-                        jint src_height, jboolean need_flip, jint rotate_degree,
-                        jint crop_x, jint crop_y, jint crop_width, jint crop_height) {
-    jbyte *rgba_frame = env->GetByteArrayElements(frame, NULL);
-
-    if (!convert_to_i420_with_crop_scale((uint8_t *) rgba_frame, src_width, src_height,
-                                         crop_x, crop_y, crop_width, crop_height,
-                                         need_flip, rotate_degree, FOURCC_NV21)) {
-        return NULL;
+// ABR at the bitrate or CRF, either capped by a VBV which follows the bitrate, so it can be
+// reconfigured live.
+static void apply_rate_control(x264_context *x264) {
+    if (x264->crf > 0) {
+        x264->params.rc.i_rc_method = X264_RC_CRF;
+        x264->params.rc.f_rf_constant = x264->crf;
+    } else {
+        x264->params.rc.i_rc_method = X264_RC_ABR;
+        x264->params.rc.i_bitrate = x264->bitrate;  // kbps
     }
+    x264->params.rc.i_vbv_max_bitrate = (int) (x264->bitrate * x264->vbv_max_factor);
+    x264->params.rc.i_vbv_buffer_size =
+            (int) (x264->params.rc.i_vbv_max_bitrate * x264->vbv_buffer_seconds);
+}
 
-    int ret = ConvertFromI420(i420_scaled_frame.y, i420_scaled_frame.width,
-                              i420_scaled_frame.u, i420_scaled_frame.width / 2,
-                              i420_scaled_frame.v, i420_scaled_frame.width / 2,
-                              nv12_frame.data, nv12_frame.width,
-                              nv12_frame.width, nv12_frame.height,
-                              FOURCC_NV12);
-    if (ret < 0) {
-        LIBENC_LOGE("ConvertFromI420 failure");
-        return NULL;
+static void libenc_setEncoderBitrate(JNIEnv *env, jobject thiz, jint bitrate) {
+    LIBENC_CONTEXT(env, thiz, );
+    ctx->x264.bitrate = bitrate / 1024;  // kbps
+
+    // retune a running encoder, x264 applies it from the next frame as VBV is in use.
+    if (ctx->x264.encoder != NULL) {
+        apply_rate_control(&ctx->x264);
+        if (x264_encoder_reconfig(ctx->x264.encoder, &ctx->x264.params) < 0) {
+            LIBENC_LOGE("Fail to reconfig x264 bitrate");
+        }
     }
-
-    int y_size = nv12_frame.width * nv12_frame.height;
-    jbyteArray nv12Frame = env->NewByteArray(y_size * 3 / 2);
-    env->SetByteArrayRegion(nv12Frame, 0, y_size * 3 / 2, (jbyte *) nv12_frame.data);
-
-    env->ReleaseByteArrayElements(frame, rgba_frame, JNI_ABORT);
-    return nv12Frame;
 }
 
-static jbyteArray
-libenc_NV21ToI420Scaled(JNIEnv *env, jobject thiz, jbyteArray frame, jint src_width,
-                        jint src_height, jboolean need_flip, jint rotate_degree,
-                        jint crop_x, jint crop_y, jint crop_width, jint crop_height) {
-    jbyte *argb_frame = env->GetByteArrayElements(frame, NULL);
+static void
+libenc_setSoftEncoderConfig(JNIEnv *env, jobject thiz, jint threads, jboolean sliced_threads,
+                            jint lookahead, jint bframes, jboolean zerolatency,
+                            jboolean intra_refresh, jfloat crf, jfloat vbv_max_factor,
+                            jfloat vbv_buffer_seconds) {
+    LIBENC_CONTEXT(env, thiz, );
+    ctx->x264.threads = threads;
+    ctx->x264.sliced_threads = sliced_threads;
+    ctx->x264.lookahead = lookahead;
+    ctx->x264.bframes = bframes;
+    ctx->x264.zerolatency = zerolatency;
+    ctx->x264.intra_refresh = intra_refresh;
+    ctx->x264.crf = crf;
+    ctx->x264.vbv_max_factor = vbv_max_factor;
+    ctx->x264.vbv_buffer_seconds = vbv_buffer_seconds;
+}
 
-    if (!convert_to_i420_with_crop_scale((uint8_t *) argb_frame, src_width, src_height,
-                                         crop_x, crop_y, crop_width, crop_height,
-                                         need_flip, rotate_degree, FOURCC_NV21)) {
-        return NULL;
-    }
+static void libenc_setEncoderFps(JNIEnv *env, jobject thiz, jint fps) {
+    LIBENC_CONTEXT(env, thiz, );
+    ctx->x264.fps = fps;
+}
 
-    int y_size = i420_scaled_frame.width * i420_scaled_frame.height;
-    jbyteArray i420Frame = env->NewByteArray(y_size * 3 / 2);
-    env->SetByteArrayRegion(i420Frame, 0, y_size * 3 / 2, (jbyte *) i420_scaled_frame.data);
+static void libenc_setEncoderGop(JNIEnv *env, jobject thiz, jint gop_size) {
+    LIBENC_CONTEXT(env, thiz, );
+    ctx->x264.gop = gop_size;
+}
 
-    env->ReleaseByteArrayElements(frame, argb_frame, JNI_ABORT);
-    return i420Frame;
+static void libenc_setEncoderPreset(JNIEnv *env, jobject thiz, jstring preset) {
+    LIBENC_CONTEXT(env, thiz, );
+    const char *enc_preset = env->GetStringUTFChars(preset, NULL);
+    strcpy(ctx->x264.preset, enc_preset);
+    env->ReleaseStringUTFChars(preset, enc_preset);
 }
 
-// For Bitmap.getPixels() ARGB_8888
-static jbyteArray libenc_ARGBToI420(JNIEnv *env, jobject thiz, jintArray frame, jint src_width,
-                                    jint src_height, jboolean need_flip, jint rotate_degree) {
-    jint *argb_frame = env->GetIntArrayElements(frame, NULL);
+static void
+libenc_setEncoderResolution(JNIEnv *env, jobject thiz, jint out_width, jint out_height) {
+    LIBENC_CONTEXT(env, thiz, );
+    int y_size = out_width * out_height;
 
-    if (!convert_to_i420((uint8_t *) argb_frame, src_width, src_height, need_flip, rotate_degree,
-                         FOURCC_ARGB)) {
-        return NULL;
+    if (ctx->i420_scaled_frame.width != out_width || ctx->i420_scaled_frame.height != out_height) {
+        free(ctx->i420_scaled_frame.data);
+        ctx->i420_scaled_frame.width = out_width;
+        ctx->i420_scaled_frame.height = out_height;
+        ctx->i420_scaled_frame.data = (uint8_t *) malloc(y_size * 3 / 2);
+        ctx->i420_scaled_frame.y = ctx->i420_scaled_frame.data;
+        ctx->i420_scaled_frame.u = ctx->i420_scaled_frame.y + y_size;
+        ctx->i420_scaled_frame.v = ctx->i420_scaled_frame.u + y_size / 4;
     }
 
-    int y_size = i420_scaled_frame.width * i420_scaled_frame.height;
-    jbyteArray i420Frame = env->NewByteArray(y_size * 3 / 2);
-    env->SetByteArrayRegion(i420Frame, 0, y_size * 3 / 2, (jbyte *) i420_scaled_frame.data);
-
-    env->ReleaseIntArrayElements(frame, argb_frame, JNI_ABORT);
-    return i420Frame;
+    ctx->x264.width = out_width;
+    ctx->x264.height = out_height;
 }
 
-// For Bitmap.getPixels() ARGB_8888
-static jbyteArray
-libenc_ARGBToI420Scaled(JNIEnv *env, jobject thiz, jintArray frame, jint src_width,
-                        jint src_height, jboolean need_flip, jint rotate_degree,
-                        jint crop_x, jint crop_y, jint crop_width, jint crop_height) {
-    jint *argb_frame = env->GetIntArrayElements(frame, NULL);
-
-    if (!convert_to_i420_with_crop_scale((uint8_t *) argb_frame, src_width, src_height,
-                                         crop_x, crop_y, crop_width, crop_height,
-                                         need_flip, rotate_degree, FOURCC_ARGB)) {
-        return NULL;
-    }
-
-    int y_size = i420_scaled_frame.width * i420_scaled_frame.height;
-    jbyteArray i420Frame = env->NewByteArray(y_size * 3 / 2);
-    env->SetByteArrayRegion(i420Frame, 0, y_size * 3 / 2, (jbyte *) i420_scaled_frame.data);
+// Conversions into a direct buffer, the frame is a primitive array or a direct ByteBuffer, the
+// destination a direct ByteBuffer and the strides are in bytes.
 
-    env->ReleaseIntArrayElements(frame, argb_frame, JNI_ABORT);
-    return i420Frame;
+// For COLOR_FormatYUV420Planar
+static jint libenc_RGBAToI420Direct(JNIEnv *env, jobject thiz, jobject frame, jint src_width,
+                                    jint src_height, jint src_stride, jboolean need_flip,
+                                    jint rotate_degree, jobject dst, jint dst_stride,
+                                    jint dst_slice_height) {
+    LIBENC_CONTEXT(env, thiz, JNI_ERR);
+    return convert_direct(ctx, env, frame, src_width, src_height, src_stride, need_flip,
+                          rotate_degree, NULL, FOURCC_RGBA, dst, dst_stride, dst_slice_height,
+                          false);
 }
 
 // For COLOR_FormatYUV420SemiPlanar
-static jbyteArray libenc_RGBAToNV12(JNIEnv *env, jobject thiz, jbyteArray frame, jint src_width,
-                                    jint src_height, jboolean need_flip, jint rotate_degree) {
-    jbyte *rgba_frame = env->GetByteArrayElements(frame, NULL);
-
-    if (!convert_to_i420((uint8_t *) rgba_frame, src_width, src_height, need_flip, rotate_degree,
-                         FOURCC_RGBA)) {
-        return NULL;
-    }
-
-    int ret = ConvertFromI420(i420_scaled_frame.y, i420_scaled_frame.width,
-                              i420_scaled_frame.u, i420_scaled_frame.width / 2,
-                              i420_scaled_frame.v, i420_scaled_frame.width / 2,
-                              nv12_frame.data, nv12_frame.width,
-                              nv12_frame.width, nv12_frame.height,
-                              DST_COLOR_FMT);
-    if (ret < 0) {
-        LIBENC_LOGE("ConvertFromI420 failure");
-        return NULL;
-    }
-
-    int y_size = nv12_frame.width * nv12_frame.height;
-    jbyteArray nv12Frame = env->NewByteArray(y_size * 3 / 2);
-    env->SetByteArrayRegion(nv12Frame, 0, y_size * 3 / 2, (jbyte *) nv12_frame.data);
-
-    env->ReleaseByteArrayElements(frame, rgba_frame, JNI_ABORT);
-    return nv12Frame;
+static jint libenc_RGBAToNV12Direct(JNIEnv *env, jobject thiz, jobject frame, jint src_width,
+                                    jint src_height, jint src_stride, jboolean need_flip,
+                                    jint rotate_degree, jobject dst, jint dst_stride,
+                                    jint dst_slice_height) {
+    LIBENC_CONTEXT(env, thiz, JNI_ERR);
+    return convert_direct(ctx, env, frame, src_width, src_height, src_stride, need_flip,
+                          rotate_degree, NULL, FOURCC_RGBA, dst, dst_stride, dst_slice_height,
+                          true);
 }
 
 // For Bitmap.getPixels() ARGB_8888
-static jbyteArray libenc_ARGBToNV12(JNIEnv *env, jobject thiz, jintArray frame, jint src_width,
-                                    jint src_height, jboolean need_flip, jint rotate_degree) {
-    jint *argb_frame = env->GetIntArrayElements(frame, NULL);
-
-    if (!convert_to_i420((uint8_t *) argb_frame, src_width, src_height, need_flip, rotate_degree,
-                         FOURCC_ARGB)) {
-        return NULL;
-    }
-
-    int ret = ConvertFromI420(i420_scaled_frame.y, i420_scaled_frame.width,
-                              i420_scaled_frame.u, i420_scaled_frame.width / 2,
-                              i420_scaled_frame.v, i420_scaled_frame.width / 2,
-                              nv12_frame.data, nv12_frame.width,
-                              nv12_frame.width, nv12_frame.height,
-                              DST_COLOR_FMT);
-    if (ret < 0) {
-        LIBENC_LOGE("ConvertFromI420 failure");
-        return NULL;
-    }
-
-    int y_size = nv12_frame.width * nv12_frame.height;
-    jbyteArray nv12Frame = env->NewByteArray(y_size * 3 / 2);
-    env->SetByteArrayRegion(nv12Frame, 0, y_size * 3 / 2, (jbyte *) nv12_frame.data);
-
-    env->ReleaseIntArrayElements(frame, argb_frame, JNI_ABORT);
-    return nv12Frame;
+static jint libenc_ARGBToI420Direct(JNIEnv *env, jobject thiz, jobject frame, jint src_width,
+                                    jint src_height, jint src_stride, jboolean need_flip,
+                                    jint rotate_degree, jobject dst, jint dst_stride,
+                                    jint dst_slice_height) {
+    LIBENC_CONTEXT(env, thiz, JNI_ERR);
+    return convert_direct(ctx, env, frame, src_width, src_height, src_stride, need_flip,
+                          rotate_degree, NULL, FOURCC_ARGB, dst, dst_stride, dst_slice_height,
+                          false);
 }
 
 // For Bitmap.getPixels() ARGB_8888
-static jbyteArray
-libenc_ARGBToNV12Scaled(JNIEnv *env, jobject thiz, jintArray frame, jint src_width,
-                        jint src_height, jboolean need_flip, jint rotate_degree,
-                        jint crop_x, jint crop_y, jint crop_width, jint crop_height) {
-    jint *argb_frame = env->GetIntArrayElements(frame, NULL);
-
-    if (!convert_to_i420_with_crop_scale((uint8_t *) argb_frame, src_width, src_height,
-                                         crop_x, crop_y, crop_width, crop_height,
-                                         need_flip, rotate_degree, FOURCC_ARGB)) {
-        return NULL;
-    }
-
-    int ret = ConvertFromI420(i420_scaled_frame.y, i420_scaled_frame.width,
-                              i420_scaled_frame.u, i420_scaled_frame.width / 2,
-                              i420_scaled_frame.v, i420_scaled_frame.width / 2,
-                              nv12_frame.data, nv12_frame.width,
-                              nv12_frame.width, nv12_frame.height,
-                              DST_COLOR_FMT);
-    if (ret < 0) {
-        LIBENC_LOGE("ConvertFromI420 failure");
-        return NULL;
-    }
-
-    int y_size = nv12_frame.width * nv12_frame.height;
-    jbyteArray nv12Frame = env->NewByteArray(y_size * 3 / 2);
-    env->SetByteArrayRegion(nv12Frame, 0, y_size * 3 / 2, (jbyte *) nv12_frame.data);
+static jint libenc_ARGBToNV12Direct(JNIEnv *env, jobject thiz, jobject frame, jint src_width,
+                                    jint src_height, jint src_stride, jboolean need_flip,
+                                    jint rotate_degree, jobject dst, jint dst_stride,
+                                    jint dst_slice_height) {
+    LIBENC_CONTEXT(env, thiz, JNI_ERR);
+    return convert_direct(ctx, env, frame, src_width, src_height, src_stride, need_flip,
+                          rotate_degree, NULL, FOURCC_ARGB, dst, dst_stride, dst_slice_height,
+                          true);
+}
 
-    env->ReleaseIntArrayElements(frame, argb_frame, JNI_ABORT);
-    return nv12Frame;
+static jint
+libenc_ARGBToI420ScaledDirect(JNIEnv *env, jobject thiz, jobject frame, jint src_width,
+                              jint src_height, jint src_stride, jboolean need_flip,
+                              jint rotate_degree, jint crop_x, jint crop_y, jint crop_width,
+                              jint crop_height, jobject dst, jint dst_stride,
+                              jint dst_slice_height) {
+    LIBENC_CONTEXT(env, thiz, JNI_ERR);
+    jint crop[] = {crop_x, crop_y, crop_width, crop_height};
+    return convert_direct(ctx, env, frame, src_width, src_height, src_stride, need_flip,
+                          rotate_degree, crop, FOURCC_ARGB, dst, dst_stride, dst_slice_height,
+                          false);
 }
 
-static int encode_nals(const x264_nal_t *nals, int nnal) {
-    int i;
-    uint8_t *p = h264_es;
+static jint
+libenc_ARGBToNV12ScaledDirect(JNIEnv *env, jobject thiz, jobject frame, jint src_width,
+                              jint src_height, jint src_stride, jboolean need_flip,
+                              jint rotate_degree, jint crop_x, jint crop_y, jint crop_width,
+                              jint crop_height, jobject dst, jint dst_stride,
+                              jint dst_slice_height) {
+    LIBENC_CONTEXT(env, thiz, JNI_ERR);
+    jint crop[] = {crop_x, crop_y, crop_width, crop_height};
+    return convert_direct(ctx, env, frame, src_width, src_height, src_stride, need_flip,
+                          rotate_degree, crop, FOURCC_ARGB, dst, dst_stride, dst_slice_height,
+                          true);
+}
 
-    for (i = 0; i < nnal; i++) {
-        memcpy(p, nals[i].p_payload, nals[i].i_payload);
-        p += nals[i].i_payload;
-    }
+static jint
+libenc_NV21ToI420ScaledDirect(JNIEnv *env, jobject thiz, jobject frame, jint src_width,
+                              jint src_height, jint src_stride, jboolean need_flip,
+                              jint rotate_degree, jint crop_x, jint crop_y, jint crop_width,
+                              jint crop_height, jobject dst, jint dst_stride,
+                              jint dst_slice_height) {
+    LIBENC_CONTEXT(env, thiz, JNI_ERR);
+    jint crop[] = {crop_x, crop_y, crop_width, crop_height};
+    return convert_direct(ctx, env, frame, src_width, src_height, src_stride, need_flip,
+                          rotate_degree, crop, FOURCC_NV21, dst, dst_stride, dst_slice_height,
+                          false);
+}
 
-    return p - h264_es;
+static jint
+libenc_NV21ToNV12ScaledDirect(JNIEnv *env, jobject thiz, jobject frame, jint src_width,
+                              jint src_height, jint src_stride, jboolean need_flip,
+                              jint rotate_degree, jint crop_x, jint crop_y, jint crop_width,
+                              jint crop_height, jobject dst, jint dst_stride,
+                              jint dst_slice_height) {
+    LIBENC_CONTEXT(env, thiz, JNI_ERR);
+    jint crop[] = {crop_x, crop_y, crop_width, crop_height};
+    return convert_direct(ctx, env, frame, src_width, src_height, src_stride, need_flip,
+                          rotate_degree, crop, FOURCC_NV21, dst, dst_stride, dst_slice_height,
+                          true);
 }
 
-static int encode_global_nal_header() {
+static int encoder_headers(libenc_context *ctx, x264_nal_t **nals) {
     int nnal;
-    x264_nal_t *nals;
 
-    x264_ctx.global_nal_header = false;
-    x264_encoder_headers(x264_ctx.encoder, &nals, &nnal);
-    return encode_nals(nals, nnal);
+    ctx->x264.global_nal_header = false;
+    if (x264_encoder_headers(ctx->x264.encoder, nals, &nnal) < 0) {
+        LIBENC_LOGE("Fail to get x264 headers");
+        return -1;
+    }
+    return nnal;
 }
 
-static int x264_encode(struct YuvFrame *i420_frame, int64_t pts) {
-    int out_len, nnal;
-    x264_nal_t *nal;
+// Returns the number of NALs of the encoded frame, 0 while x264 holds it back, or -1.
+// The NALs stay valid until the next call into the encoder.
+static int x264_encode_frame(libenc_context *ctx, struct YuvFrame *i420_frame, int64_t pts,
+                             x264_nal_t **nals) {
+    int nnal;
     x264_picture_t pic_out;
-    int y_size = i420_frame->width * i420_frame->height;
-
-    x264_ctx.picture.img.i_csp = X264_CSP_I420;
-    x264_ctx.picture.img.i_plane = 3;
-    x264_ctx.picture.img.plane[0] = i420_frame->y;
-    x264_ctx.picture.img.i_stride[0] = i420_frame->width;
-    x264_ctx.picture.img.plane[1] = i420_frame->u;
-    x264_ctx.picture.img.i_stride[1] = i420_frame->width / 2;
-    x264_ctx.picture.img.plane[2] = i420_frame->v;
-    x264_ctx.picture.img.i_stride[2] = i420_frame->width / 2;
-    x264_ctx.picture.i_pts = pts;
-    x264_ctx.picture.i_type = X264_TYPE_AUTO;
-
-    if (x264_encoder_encode(x264_ctx.encoder, &nal, &nnal, &x264_ctx.picture, &pic_out) < 0) {
+
+    ctx->x264.picture.img.i_csp = X264_CSP_I420;
+    ctx->x264.picture.img.i_plane = 3;
+    ctx->x264.picture.img.plane[0] = i420_frame->y;
+    ctx->x264.picture.img.i_stride[0] = i420_frame->width;
+    ctx->x264.picture.img.plane[1] = i420_frame->u;
+    ctx->x264.picture.img.i_stride[1] = i420_frame->width / 2;
+    ctx->x264.picture.img.plane[2] = i420_frame->v;
+    ctx->x264.picture.img.i_stride[2] = i420_frame->width / 2;
+    ctx->x264.picture.i_pts = pts;
+    ctx->x264.picture.i_type = X264_TYPE_AUTO;
+
+    if (x264_encoder_encode(ctx->x264.encoder, nals, &nnal, &ctx->x264.picture, &pic_out) < 0) {
         LIBENC_LOGE("Fail to encode in x264");
         return -1;
     }
 
-    x264_ctx.pts = pic_out.i_pts;
-    x264_ctx.dts = pic_out.i_dts;
-    x264_ctx.is_key_frame = pic_out.i_type == X264_TYPE_IDR;
+    ctx->x264.pts = pic_out.i_pts;
+    ctx->x264.dts = pic_out.i_dts;
+    // b_keyframe also marks the recovery points of intra refresh, which are sync points without an IDR.
+    ctx->x264.is_key_frame = pic_out.b_keyframe;
 
-    return encode_nals(nal, nnal);
+    return nnal;
 }
 
-static jint libenc_RGBASoftEncode(JNIEnv *env, jobject thiz, jbyteArray frame, jint src_width,
-                                  jint src_height, jboolean need_flip, jint rotate_degree,
-                                  jlong pts) {
-    jbyte *rgba_frame = env->GetByteArrayElements(frame, NULL);
+static bool write_record(OutputRecords *out, const x264_nal_t *nals, int nnal, int32_t flags,
+                         int64_t pts, int64_t dts) {
+    int32_t payload_size = 0;
+    for (int i = 0; i < nnal; i++) {
+        payload_size += nals[i].i_payload;
+    }
+    int32_t header_size = SOFT_RECORD_HEADER + nnal * 4;
+    int32_t record_size = (header_size + payload_size + 7) & ~7;
+    if (out->position + record_size > out->capacity) {
+        LIBENC_LOGE("output buffer too small for a %d bytes access unit", payload_size);
+        return false;
+    }
+
+    uint8_t *p = out->data + out->position;
+    memcpy(p, &record_size, 4);
+    memcpy(p + 4, &flags, 4);
+    memcpy(p + 8, &pts, 8);
+    memcpy(p + 16, &dts, 8);
+    memcpy(p + 24, &payload_size, 4);
+    memcpy(p + 28, &nnal, 4);
+
+    int32_t offset = 0;
+    for (int i = 0; i < nnal; i++) {
+        memcpy(p + SOFT_RECORD_HEADER + i * 4, &offset, 4);
+        memcpy(p + header_size + offset, nals[i].p_payload, nals[i].i_payload);
+        offset += nals[i].i_payload;
+    }
+
+    out->position += record_size;
+    out->count++;
+    return true;
+}
 
-    if (!convert_to_i420((uint8_t *) rgba_frame, src_width, src_height, need_flip, rotate_degree,
-                         FOURCC_RGBA)) {
+// Encode the frame into out, a direct ByteBuffer, without any Java allocation or upcall.
+// The sequence headers come first in their own record, then the encoded frame if x264 output one.
+// Returns the number of records written from the start of out, or JNI_ERR.
+static jint libenc_RGBASoftEncodeDirect(JNIEnv *env, jobject thiz, jobject frame, jint src_width,
+                                        jint src_height, jboolean need_flip, jint rotate_degree,
+                                        jlong pts, jobject out) {
+    LIBENC_CONTEXT(env, thiz, JNI_ERR);
+    OutputRecords records;
+    records.data = (uint8_t *) env->GetDirectBufferAddress(out);
+    if (records.data == NULL) {
+        LIBENC_LOGE("output is not a direct ByteBuffer");
         return JNI_ERR;
     }
+    records.capacity = env->GetDirectBufferCapacity(out);
+    records.position = 0;
+    records.count = 0;
 
-    int es_len = x264_ctx.global_nal_header ? encode_global_nal_header() : x264_encode(
-            &i420_scaled_frame, pts);
-    if (es_len <= 0) {
-        LIBENC_LOGE("Fail to encode nalu");
+    DirectSource source;
+    if (!acquire_source(env, frame, &source)) {
+        return JNI_ERR;
+    }
+    bool converted = convert_to_i420(ctx, source.data, src_width, src_height, need_flip,
+                                     rotate_degree, FOURCC_RGBA);
+    release_source(env, &source);
+    if (!converted) {
         return JNI_ERR;
     }
 
-    jbyteArray outputFrame = env->NewByteArray(es_len);
-    env->SetByteArrayRegion(outputFrame, 0, es_len, (jbyte *) h264_es);
-
-    jclass clz = env->GetObjectClass(thiz);
-    jmethodID mid = env->GetMethodID(clz, "onSoftEncodedData", "([BJZ)V");
-    env->CallVoidMethod(thiz, mid, outputFrame, x264_ctx.pts, x264_ctx.is_key_frame);
+    x264_nal_t *nals;
+    int nnal;
+    if (ctx->x264.global_nal_header) {
+        nnal = encoder_headers(ctx, &nals);
+        if (nnal < 0 || !write_record(&records, nals, nnal, SOFT_FLAG_CODEC_CONFIG, pts, pts)) {
+            return JNI_ERR;
+        }
+    }
 
-    env->ReleaseByteArrayElements(frame, rgba_frame, JNI_ABORT);
-    return JNI_OK;
+    nnal = x264_encode_frame(ctx, &ctx->i420_scaled_frame, pts, &nals);
+    if (nnal < 0) {
+        return JNI_ERR;
+    }
+    if (nnal > 0 && !write_record(&records, nals, nnal,
+                                  ctx->x264.is_key_frame ? SOFT_FLAG_KEY_FRAME : 0,
+                                  ctx->x264.pts, ctx->x264.dts)) {
+        return JNI_ERR;
+    }
+    return records.count;
 }
 
-static void libenc_closeSoftEncoder(JNIEnv *env, jobject thiz) {
+static void close_encoder(libenc_context *ctx) {
     int nnal;
     x264_nal_t *nal;
     x264_picture_t pic_out;
 
-    if (x264_ctx.encoder != NULL) {
-        while (x264_encoder_delayed_frames(x264_ctx.encoder)) {
-            x264_encoder_encode(x264_ctx.encoder, &nal, &nnal, NULL, &pic_out);
+    if (ctx->x264.encoder != NULL) {
+        while (x264_encoder_delayed_frames(ctx->x264.encoder)) {
+            x264_encoder_encode(ctx->x264.encoder, &nal, &nnal, NULL, &pic_out);
         }
-        x264_encoder_close(x264_ctx.encoder);
-        x264_ctx.encoder = NULL;
+        x264_encoder_close(ctx->x264.encoder);
+        ctx->x264.encoder = NULL;
     }
 }
 
-static jboolean libenc_openSoftEncoder(JNIEnv *env, jobject thiz) {
-    // presetting
-    x264_param_default_preset(&x264_ctx.params, x264_ctx.preset, "zerolatency");
+static void libenc_closeSoftEncoder(JNIEnv *env, jobject thiz) {
+    LIBENC_CONTEXT(env, thiz, );
+    close_encoder(ctx);
+}
 
-    x264_ctx.params.b_repeat_headers = 0;
-    // for iOS HW decoding
-    x264_ctx.params.b_sliced_threads = 0;
-    x264_ctx.global_nal_header = true;
+static jboolean libenc_openSoftEncoder(JNIEnv *env, jobject thiz) {
+    LIBENC_CONTEXT(env, thiz, JNI_FALSE);
+    // presetting, zerolatency drops the lookahead, frame threads and B-frames.
+    x264_param_default_preset(&ctx->x264.params, ctx->x264.preset,
+                              ctx->x264.zerolatency ? "zerolatency" : NULL);
+
+    ctx->x264.params.b_repeat_headers = 0;
+    ctx->x264.global_nal_header = true;
+
+    // threads, 0 for one per core. Sliced threads add no latency but iOS HW decoding rejects them.
+    ctx->x264.params.i_threads = ctx->x264.threads;
+    ctx->x264.params.b_sliced_threads = ctx->x264.sliced_threads;
+    // -1 keeps the lookahead of the preset and tune.
+    if (ctx->x264.lookahead >= 0) {
+        ctx->x264.params.rc.i_lookahead = ctx->x264.lookahead;
+    }
+    // B-frames, dts then differs from pts and the muxers carry the composition time.
+    ctx->x264.params.i_bframe = ctx->x264.bframes;
 
     // resolution
-    x264_ctx.params.i_width = x264_ctx.width;
-    x264_ctx.params.i_height = x264_ctx.height;
+    ctx->x264.params.i_width = ctx->x264.width;
+    ctx->x264.params.i_height = ctx->x264.height;
 
     // bitrate
-    x264_ctx.params.rc.i_bitrate = x264_ctx.bitrate;  // kbps
-    x264_ctx.params.rc.i_rc_method = X264_RC_ABR;
+    apply_rate_control(&ctx->x264);
 
     // fps
-    x264_ctx.params.i_fps_num = x264_ctx.fps;
-    x264_ctx.params.i_fps_den = 1;
+    ctx->x264.params.i_fps_num = ctx->x264.fps;
+    ctx->x264.params.i_fps_den = 1;
 
-    // gop
-    x264_ctx.params.i_keyint_max = x264_ctx.gop;
+    // gop, or the period of the refresh wave with intra refresh which sends a single IDR.
+    ctx->x264.params.i_keyint_max = ctx->x264.gop;
+    ctx->x264.params.b_intra_refresh = ctx->x264.intra_refresh;
 
-    if (x264_param_apply_profile(&x264_ctx.params, "baseline") < 0) {
+    // baseline has no B-frames.
+    if (x264_param_apply_profile(&ctx->x264.params,
+                                 ctx->x264.bframes > 0 ? "main" : "baseline") < 0) {
         LIBENC_LOGE("Fail to apply profile");
         return JNI_FALSE;
     }
 
-    x264_ctx.encoder = x264_encoder_open(&x264_ctx.params);
-    if (x264_ctx.encoder == NULL) {
+    ctx->x264.encoder = x264_encoder_open(&ctx->x264.params);
+    if (ctx->x264.encoder == NULL) {
         LIBENC_LOGE("Fail to open x264 encoder!");
         return JNI_FALSE;
     }
@@ -549,40 +761,96 @@ static jboolean libenc_openSoftEncoder(JNIEnv *env, jobject thiz) {
     return JNI_TRUE;
 }
 
+static jlong libenc_createNativeContext(JNIEnv *env, jobject thiz) {
+    libenc_context *ctx = (libenc_context *) calloc(1, sizeof(libenc_context));
+    if (ctx == NULL) {
+        return 0;
+    }
+
+    // the defaults of SrsEncoder, a low latency ABR with one second of VBV.
+    ctx->x264.sliced_threads = false;
+    ctx->x264.lookahead = -1;
+    ctx->x264.zerolatency = true;
+    ctx->x264.vbv_max_factor = 1.0f;
+    ctx->x264.vbv_buffer_seconds = 1.0f;
+
+    pthread_mutex_init(&ctx->lock, NULL);
+    return (jlong) (intptr_t) ctx;
+}
+
+// The caller must have cleared mNativeContext, so no new call gets the context. The calls which got
+// it before are waited for, the release must not come from one of them.
+static void libenc_releaseNativeContext(JNIEnv *env, jobject thiz, jlong handle) {
+    libenc_context *ctx = (libenc_context *) (intptr_t) handle;
+    if (ctx == NULL) {
+        return;
+    }
+
+    pthread_mutex_lock(&contexts_lock);
+    while (ctx->users > 0) {
+        pthread_cond_wait(&contexts_idle, &contexts_lock);
+    }
+    pthread_mutex_unlock(&contexts_lock);
+
+    pthread_mutex_lock(&ctx->lock);
+    close_encoder(ctx);
+    free(ctx->i420_rotated_frame.data);
+    free(ctx->i420_scaled_frame.data);
+    pthread_mutex_unlock(&ctx->lock);
+
+    pthread_mutex_destroy(&ctx->lock);
+    free(ctx);
+}
+
 static JNINativeMethod libenc_methods[] = {
+        {"createNativeContext",  "()J",                   (void *) libenc_createNativeContext},
+        {"releaseNativeContext", "(J)V",                  (void *) libenc_releaseNativeContext},
         {"setEncoderResolution", "(II)V",                 (void *) libenc_setEncoderResolution},
         {"setEncoderFps",        "(I)V",                  (void *) libenc_setEncoderFps},
         {"setEncoderGop",        "(I)V",                  (void *) libenc_setEncoderGop},
         {"setEncoderBitrate",    "(I)V",                  (void *) libenc_setEncoderBitrate},
         {"setEncoderPreset",     "(Ljava/lang/String;)V", (void *) libenc_setEncoderPreset},
-        {"RGBAToI420",           "([BIIZI)[B",            (void *) libenc_RGBAToI420},
-        {"RGBAToNV12",           "([BIIZI)[B",            (void *) libenc_RGBAToNV12},
-        {"ARGBToI420Scaled",     "([IIIZIIIII)[B",        (void *) libenc_ARGBToI420Scaled},
-        {"ARGBToNV12Scaled",     "([IIIZIIIII)[B",        (void *) libenc_ARGBToNV12Scaled},
-        {"ARGBToI420",           "([IIIZI)[B",            (void *) libenc_ARGBToI420},
-        {"ARGBToNV12",           "([IIIZI)[B",            (void *) libenc_ARGBToNV12},
-        {"NV21ToNV12Scaled",     "([BIIZIIIII)[B",        (void *) libenc_NV21ToNV12Scaled},
-        {"NV21ToI420Scaled",     "([BIIZIIIII)[B",        (void *) libenc_NV21ToI420Scaled},
+        {"setSoftEncoderConfig", "(IZIIZZFFF)V",          (void *) libenc_setSoftEncoderConfig},
         {"openSoftEncoder",      "()Z",                   (void *) libenc_openSoftEncoder},
         {"closeSoftEncoder",     "()V",                   (void *) libenc_closeSoftEncoder},
-        {"RGBASoftEncode",       "([BIIZIJ)I",            (void *) libenc_RGBASoftEncode},
+        {"RGBAToI420Direct",       "([BIIIZILjava/nio/ByteBuffer;II)I",                    (void *) libenc_RGBAToI420Direct},
+        {"RGBAToI420Direct",       "(Ljava/nio/ByteBuffer;IIIZILjava/nio/ByteBuffer;II)I", (void *) libenc_RGBAToI420Direct},
+        {"RGBAToNV12Direct",       "([BIIIZILjava/nio/ByteBuffer;II)I",                    (void *) libenc_RGBAToNV12Direct},
+        {"RGBAToNV12Direct",       "(Ljava/nio/ByteBuffer;IIIZILjava/nio/ByteBuffer;II)I", (void *) libenc_RGBAToNV12Direct},
+        {"ARGBToI420Direct",       "([IIIIZILjava/nio/ByteBuffer;II)I",                    (void *) libenc_ARGBToI420Direct},
+        {"ARGBToNV12Direct",       "([IIIIZILjava/nio/ByteBuffer;II)I",                    (void *) libenc_ARGBToNV12Direct},
+        {"ARGBToI420ScaledDirect", "([IIIIZIIIIILjava/nio/ByteBuffer;II)I",                (void *) libenc_ARGBToI420ScaledDirect},
+        {"ARGBToNV12ScaledDirect", "([IIIIZIIIIILjava/nio/ByteBuffer;II)I",                (void *) libenc_ARGBToNV12ScaledDirect},
+        {"NV21ToI420ScaledDirect", "([BIIIZIIIIILjava/nio/ByteBuffer;II)I",                (void *) libenc_NV21ToI420ScaledDirect},
+        {"NV21ToI420ScaledDirect", "(Ljava/nio/ByteBuffer;IIIZIIIIILjava/nio/ByteBuffer;II)I", (void *) libenc_NV21ToI420ScaledDirect},
+        {"NV21ToNV12ScaledDirect", "([BIIIZIIIIILjava/nio/ByteBuffer;II)I",                (void *) libenc_NV21ToNV12ScaledDirect},
+        {"NV21ToNV12ScaledDirect", "(Ljava/nio/ByteBuffer;IIIZIIIIILjava/nio/ByteBuffer;II)I", (void *) libenc_NV21ToNV12ScaledDirect},
+        {"RGBASoftEncodeDirect",   "([BIIZIJLjava/nio/ByteBuffer;)I",                      (void *) libenc_RGBASoftEncodeDirect},
 };
 
 jint JNI_OnLoad(JavaVM *vm, void *reserved) {
-    jvm = vm;
+    JNIEnv *env;
 
-    if (jvm->GetEnv((void **) &jenv, JNI_VERSION_1_6) != JNI_OK) {
+    if (vm->GetEnv((void **) &env, JNI_VERSION_1_6) != JNI_OK) {
         LIBENC_LOGE("Env not got");
         return JNI_ERR;
     }
 
-    jclass clz = jenv->FindClass("net/ossrs/yasea/SrsEncoder");
+    jclass clz = env->FindClass("net/ossrs/yasea/SrsEncoder");
     if (clz == NULL) {
         LIBENC_LOGE("Class \"net/ossrs/yasea/SrsEncoder\" not found");
         return JNI_ERR;
     }
 
-    if (jenv->RegisterNatives(clz, libenc_methods, LIBENC_ARRAY_ELEMS(libenc_methods))) {
+    context_field = env->GetFieldID(clz, "mNativeContext", "J");
+    if (context_field == NULL) {
+        LIBENC_LOGE("Field \"mNativeContext\" not found");
+        return JNI_ERR;
+    }
+
+    buffer_class = (jclass) env->NewGlobalRef(env->FindClass("java/nio/Buffer"));
+
+    if (env->RegisterNatives(clz, libenc_methods, LIBENC_ARRAY_ELEMS(libenc_methods))) {
         LIBENC_LOGE("methods not registered");
         return JNI_ERR;
     }
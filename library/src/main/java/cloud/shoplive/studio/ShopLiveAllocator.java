@@ -1,19 +1,39 @@
 package cloud.shoplive.studio;
 
-import java.util.Arrays;
-
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free pool of {@link Allocation}s.
+ * <p>
+ * Allocations are grouped in power-of-two size classes starting at the individual allocation
+ * size. Each class keeps a bounded array of free slots which is claimed and refilled with
+ * compare-and-set, so the muxer thread and the sender thread never block each other.
+ * Requests larger than the biggest class are served unpooled and dropped on release.
+ * An allocation shared by several holders goes back to its class once all of them released it.
+ */
 public final class ShopLiveAllocator {
 
     public static class Allocation {
 
         private byte[] data;
         private int size;
+        // the holders left to release it, an allocation may be shared.
+        private final AtomicInteger references = new AtomicInteger(1);
 
         public Allocation(int size) {
             this.data = new byte[size];
             this.size = 0;
         }
 
+        /**
+         * add holders, each of which calls {@link ShopLiveAllocator#release(Allocation)} once.
+         */
+        public void retain(int count) {
+            references.addAndGet(count);
+        }
+
         public byte[] array() {
             return data;
         }
@@ -57,9 +77,15 @@ public final class ShopLiveAllocator {
         }
     }
 
-    private final int individualAllocationSize;
-    private volatile int availableSentinel;
-    private Allocation[] availableAllocations;
+    private static final int SIZE_CLASS_COUNT = 5;
+    private static final int DEFAULT_ALLOCATIONS_PER_CLASS = 32;
+
+    private final int minClassShift;
+    private final AtomicReferenceArray<Allocation>[] availableAllocations;
+    private final AtomicInteger outstanding = new AtomicInteger(0);
+    private final AtomicInteger highWater = new AtomicInteger(0);
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
 
     /**
      * Constructs an instance without creating any {@link Allocation}s up front.
@@ -78,39 +104,105 @@ public final class ShopLiveAllocator {
      * @param initialAllocationCount The number of allocations to create up front.
      */
     public ShopLiveAllocator(int individualAllocationSize, int initialAllocationCount) {
-        this.individualAllocationSize = individualAllocationSize;
-        this.availableSentinel = initialAllocationCount + 10;
-        this.availableAllocations = new Allocation[availableSentinel];
-        for (int i = 0; i < availableSentinel; i++) {
-            availableAllocations[i] = new Allocation(individualAllocationSize);
+        this(individualAllocationSize, initialAllocationCount, DEFAULT_ALLOCATIONS_PER_CLASS);
+    }
+
+    /**
+     * Constructs an instance with some {@link Allocation}s created up front.
+     *
+     * @param individualAllocationSize The length of the smallest size class, rounded up to a power of two.
+     * @param initialAllocationCount The number of allocations of the smallest class to create up front.
+     * @param maxAllocationsPerClass The number of free allocations kept by each size class.
+     */
+    @SuppressWarnings("unchecked")
+    public ShopLiveAllocator(int individualAllocationSize, int initialAllocationCount, int maxAllocationsPerClass) {
+        this.minClassShift = 32 - Integer.numberOfLeadingZeros(Math.max(individualAllocationSize, 2) - 1);
+        this.availableAllocations = new AtomicReferenceArray[SIZE_CLASS_COUNT];
+        for (int i = 0; i < SIZE_CLASS_COUNT; i++) {
+            availableAllocations[i] = new AtomicReferenceArray<>(maxAllocationsPerClass);
+        }
+        int count = Math.min(initialAllocationCount, maxAllocationsPerClass);
+        for (int i = 0; i < count; i++) {
+            availableAllocations[0].set(i, new Allocation(1 << minClassShift));
         }
     }
 
-    public synchronized Allocation allocate(int size) {
-        for (int i = 0; i < availableSentinel; i++) {
-            if (availableAllocations[i].size() >= size) {
-                Allocation ret = availableAllocations[i];
-                availableAllocations[i] = null;
-                return ret;
+    public Allocation allocate(int size) {
+        int sizeClass = sizeClassOf(size);
+        int inUse = outstanding.incrementAndGet();
+        int peak;
+        while (inUse > (peak = highWater.get()) && !highWater.compareAndSet(peak, inUse)) {
+            // retry until the high-water mark covers us.
+        }
+
+        if (sizeClass < SIZE_CLASS_COUNT) {
+            AtomicReferenceArray<Allocation> slots = availableAllocations[sizeClass];
+            for (int i = 0; i < slots.length(); i++) {
+                if (slots.get(i) != null) {
+                    Allocation ret = slots.getAndSet(i, null);
+                    if (ret != null) {
+                        ret.references.set(1);
+                        hits.incrementAndGet();
+                        return ret;
+                    }
+                }
             }
+            misses.incrementAndGet();
+            return new Allocation(1 << (minClassShift + sizeClass));
         }
 
-        return new Allocation(size > individualAllocationSize ? size : individualAllocationSize);
+        misses.incrementAndGet();
+        return new Allocation(size);
     }
 
-    public synchronized void release(Allocation allocation) {
+    public void release(Allocation allocation) {
+        if (allocation.references.decrementAndGet() > 0) {
+            return;
+        }
         allocation.clear();
+        outstanding.decrementAndGet();
 
-        for (int i = 0; i < availableSentinel; i++) {
-            if (availableAllocations[i].size() == 0) {
-                availableAllocations[i] = allocation;
+        int length = allocation.array().length;
+        if (Integer.bitCount(length) != 1) {
+            return;
+        }
+        int sizeClass = sizeClassOf(length);
+        if (sizeClass >= SIZE_CLASS_COUNT) {
+            return;
+        }
+
+        AtomicReferenceArray<Allocation> slots = availableAllocations[sizeClass];
+        for (int i = 0; i < slots.length(); i++) {
+            if (slots.get(i) == null && slots.compareAndSet(i, null, allocation)) {
                 return;
             }
         }
+        // The class is full, let the allocation be collected.
+    }
 
-        if (availableSentinel + 1 > availableAllocations.length) {
-            availableAllocations = Arrays.copyOf(availableAllocations, availableAllocations.length * 2);
-        }
-        availableAllocations[availableSentinel++] = allocation;
+    /**
+     * @return the number of allocations served from a free list.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of allocations which had to create a new buffer.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the highest number of allocations handed out at the same time.
+     */
+    public int getHighWaterMark() {
+        return highWater.get();
+    }
+
+    private int sizeClassOf(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return shift <= minClassShift ? 0 : shift - minClassShift;
     }
 }
@@ -0,0 +1,234 @@
+package cloud.shoplive.studio;
+
+import android.util.Log;
+
+/**
+ * Closed-loop video bitrate controller for the RTMP uplink.
+ * <p>
+ * Once per interval the encoder feeds it the number of queued video frames, the byte counters of
+ * the connection and the time the sender spent blocked in socket writes. The controller backs off
+ * quickly towards the measured throughput when the uplink is congested and probes upwards slowly
+ * once it has been clear for a while. When the bitrate is already at its floor and the uplink is
+ * still congested it asks the encoder to step the resolution down, as a last resort.
+ * <p>
+ * All inputs are passed in explicitly, so the controller has no clock or socket of its own and can
+ * be driven by any sampled connection, including a simulated bandwidth-limited one.
+ */
+public class ShopLiveBitrateController {
+
+    private static final String TAG = "ShopLiveBitrateController";
+
+    /**
+     * Where the controller reports its decisions, android.util.Log unless one is injected.
+     */
+    public interface Logger {
+        Logger ANDROID = new Logger() {
+            @Override
+            public void info(String message) {
+                Log.i(TAG, message);
+            }
+
+            @Override
+            public void warn(String message) {
+                Log.w(TAG, message);
+            }
+        };
+
+        void info(String message);
+
+        void warn(String message);
+    }
+
+    public static final int MAX_RESOLUTION_LEVEL = 2;
+
+    private static final long SAMPLE_INTERVAL_MS = 1000;
+    // leave headroom below the measured throughput for audio and protocol overhead.
+    private static final double BACKOFF_HEADROOM = 0.85;
+    private static final double BACKOFF_FACTOR = 0.75;
+    private static final double PROBE_FACTOR = 1.10;
+    private static final double STALL_CONGESTED_RATIO = 0.7;
+    private static final double STALL_CLEAR_RATIO = 0.2;
+    // consecutive clear intervals needed before probing up.
+    private static final int CLEAR_INTERVALS_TO_PROBE = 5;
+    // consecutive congested intervals at the floor before the resolution steps down.
+    private static final int CONGESTED_INTERVALS_TO_STEP_DOWN = 3;
+    // consecutive clear intervals at the ceiling before the resolution steps back up.
+    private static final int CLEAR_INTERVALS_TO_STEP_UP = 10;
+    // no probing for this long after a back off.
+    private static final long HOLD_AFTER_BACKOFF_MS = 5000;
+
+    private final int minBitrate;
+    private final int maxBitrate;
+    private final int queueHighWater;
+    private final int queueLowWater;
+    private final Logger logger;
+
+    private int targetBitrate;
+    private int resolutionLevel;
+    private int clearIntervals;
+    private int congestedIntervals;
+    private long lastBackoffMs;
+    private long lastSampleMs = -1;
+    private long lastBytesSent;
+    private long lastBytesAcked;
+    private long lastStallMs;
+    private double throughputBps;
+
+    /**
+     * @param minBitrate     The lowest video bitrate in bps, before the resolution is stepped down.
+     * @param maxBitrate     The configured video bitrate in bps, never exceeded.
+     * @param queueHighWater Queued video frames above which the uplink is considered congested.
+     * @param queueLowWater  Queued video frames at or below which the uplink is considered clear.
+     */
+    public ShopLiveBitrateController(int minBitrate, int maxBitrate, int queueHighWater, int queueLowWater) {
+        this(minBitrate, maxBitrate, queueHighWater, queueLowWater, Logger.ANDROID);
+    }
+
+    /**
+     * @param logger Receives the back off, probe and resolution decisions.
+     */
+    public ShopLiveBitrateController(int minBitrate, int maxBitrate, int queueHighWater, int queueLowWater,
+                                     Logger logger) {
+        this.logger = logger;
+        this.minBitrate = minBitrate;
+        this.maxBitrate = maxBitrate;
+        this.queueHighWater = queueHighWater;
+        this.queueLowWater = queueLowWater;
+        this.targetBitrate = maxBitrate;
+    }
+
+    /**
+     * Feed one sample of the uplink state.
+     *
+     * @param nowMs             A monotonic clock in milliseconds.
+     * @param queuedVideoFrames The number of video frames waiting to be sent.
+     * @param bytesSent         The total number of bytes written to the socket.
+     * @param bytesAcked        The total number of bytes acknowledged by the peer, 0 if it never acknowledges.
+     * @param writeStallMs      The total time the sender spent blocked in socket writes.
+     * @return true if the target bitrate or the resolution level changed.
+     */
+    public boolean update(long nowMs, int queuedVideoFrames, long bytesSent, long bytesAcked, long writeStallMs) {
+        if (lastSampleMs < 0) {
+            resetSample(nowMs, bytesSent, bytesAcked, writeStallMs);
+            return false;
+        }
+        if (bytesSent < lastBytesSent) {
+            // the connection was reset, start measuring again.
+            resetSample(nowMs, bytesSent, bytesAcked, writeStallMs);
+            return false;
+        }
+        long elapsedMs = nowMs - lastSampleMs;
+        if (elapsedMs < SAMPLE_INTERVAL_MS) {
+            return false;
+        }
+
+        // prefer the acknowledged bytes, they measure what actually left the network path.
+        long deliveredBytes = bytesAcked > lastBytesAcked ? bytesAcked - lastBytesAcked : bytesSent - lastBytesSent;
+        throughputBps = (double) deliveredBytes * 8 * 1000 / elapsedMs;
+        double stallRatio = (double) (writeStallMs - lastStallMs) / elapsedMs;
+        resetSample(nowMs, bytesSent, bytesAcked, writeStallMs);
+
+        boolean congested = queuedVideoFrames > queueHighWater || stallRatio > STALL_CONGESTED_RATIO;
+        boolean clear = queuedVideoFrames <= queueLowWater && stallRatio < STALL_CLEAR_RATIO;
+        if (congested) {
+            congestedIntervals++;
+            clearIntervals = 0;
+            return backoff(nowMs);
+        }
+        congestedIntervals = 0;
+        if (!clear) {
+            clearIntervals = 0;
+            return false;
+        }
+        clearIntervals++;
+        return probe(nowMs);
+    }
+
+    private boolean backoff(long nowMs) {
+        lastBackoffMs = nowMs;
+        if (targetBitrate <= minBitrate) {
+            if (congestedIntervals >= CONGESTED_INTERVALS_TO_STEP_DOWN && resolutionLevel < MAX_RESOLUTION_LEVEL) {
+                resolutionLevel++;
+                congestedIntervals = 0;
+                logger.warn(String.format("uplink congested at %dbps, step resolution down to level %d",
+                        targetBitrate, resolutionLevel));
+                return true;
+            }
+            return false;
+        }
+
+        int bitrate = (int) Math.min(targetBitrate * BACKOFF_FACTOR, throughputBps * BACKOFF_HEADROOM);
+        bitrate = Math.max(bitrate, minBitrate);
+        logger.info(String.format("uplink congested, throughput %.0fbps, bitrate %d -> %d",
+                throughputBps, targetBitrate, bitrate));
+        targetBitrate = bitrate;
+        return true;
+    }
+
+    private boolean probe(long nowMs) {
+        if (nowMs - lastBackoffMs < HOLD_AFTER_BACKOFF_MS) {
+            return false;
+        }
+        if (targetBitrate >= maxBitrate) {
+            if (clearIntervals >= CLEAR_INTERVALS_TO_STEP_UP && resolutionLevel > 0) {
+                resolutionLevel--;
+                clearIntervals = 0;
+                // the uplink carried this bitrate for a while, so the higher resolution keeps it.
+                logger.info(String.format("uplink clear, step resolution up to level %d at %dbps",
+                        resolutionLevel, targetBitrate));
+                return true;
+            }
+            return false;
+        }
+        if (clearIntervals < CLEAR_INTERVALS_TO_PROBE) {
+            return false;
+        }
+
+        int bitrate = (int) Math.min(targetBitrate * PROBE_FACTOR, maxBitrate);
+        logger.info(String.format("uplink clear, bitrate %d -> %d", targetBitrate, bitrate));
+        targetBitrate = bitrate;
+        clearIntervals = 0;
+        return true;
+    }
+
+    private void resetSample(long nowMs, long bytesSent, long bytesAcked, long writeStallMs) {
+        lastSampleMs = nowMs;
+        lastBytesSent = bytesSent;
+        lastBytesAcked = bytesAcked;
+        lastStallMs = writeStallMs;
+    }
+
+    /**
+     * Forget the measurements, e.g. after reconnecting, and restart from the configured bitrate.
+     */
+    public void reset() {
+        targetBitrate = maxBitrate;
+        resolutionLevel = 0;
+        clearIntervals = 0;
+        congestedIntervals = 0;
+        lastBackoffMs = 0;
+        lastSampleMs = -1;
+        throughputBps = 0;
+    }
+
+    /**
+     * @return the video bitrate in bps the encoder should use.
+     */
+    public int getTargetBitrate() {
+        return targetBitrate;
+    }
+
+    /**
+     * @return 0 for the configured resolution, up to {@link #MAX_RESOLUTION_LEVEL} for the smallest.
+     */
+    public int getResolutionLevel() {
+        return resolutionLevel;
+    }
+
+    /**
+     * @return the throughput measured over the last interval in bps.
+     */
+    public double getThroughput() {
+        return throughputBps;
+    }
+}
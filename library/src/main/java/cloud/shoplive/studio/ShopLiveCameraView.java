@@ -28,19 +28,25 @@ import androidx.lifecycle.LifecycleOwner;
 
 import com.google.common.util.concurrent.ListenableFuture;
 import com.seu.magicfilter.base.gpuimage.GPUImageFilter;
+import com.seu.magicfilter.base.gpuimage.GPUImageReadback;
+import com.seu.magicfilter.base.gpuimage.GPUImageYuvConverter;
 import com.seu.magicfilter.utils.MagicFilterFactory;
 import com.seu.magicfilter.utils.MagicFilterType;
 import com.seu.magicfilter.utils.OpenGLUtils;
+import com.seu.magicfilter.utils.YuvConversion;
 
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
+import java.nio.ByteOrder;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
 import javax.microedition.khronos.opengles.GL10;
 
 @Keep
@@ -65,6 +71,8 @@ public class ShopLiveCameraView extends GLSurfaceView implements GLSurfaceView.R
 
     @Nullable
     private ByteBuffer bufferGLPreview = null;
+    @Nullable
+    private ByteBuffer bufferYuv = null;
     @CameraSelector.LensFacing
     private int camFacingId = CameraSelector.LENS_FACING_BACK;
     private int previewOrientation = Configuration.ORIENTATION_PORTRAIT;
@@ -76,9 +84,25 @@ public class ShopLiveCameraView extends GLSurfaceView implements GLSurfaceView.R
     @Nullable
     private Future<Void> worker = null;
     private final Object writeLock = new Object();
-    private final ConcurrentLinkedQueue<IntBuffer> bufferCache = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<GPUImageReadback.Frame> bufferCache = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<GPUImageReadback.Frame> yuvCache = new ConcurrentLinkedQueue<>();
     @Nullable
     private PreviewCallback previewCallback = null;
+    @Nullable
+    private ShopLiveSurfaceInput surfaceInput = null;
+    // GL thread only.
+    @Nullable
+    private ShopLiveEncoderSurface encoderSurface = null;
+    @Nullable
+    private ShopLiveYuvInput yuvInput = null;
+    // GL thread only.
+    @Nullable
+    private GPUImageYuvConverter yuvConverter = null;
+    // GL thread only, the transform yuvConverter has, so it only changes with the encoder's.
+    private int yuvRotation;
+    private boolean yuvFlipped;
+    // a new camera or converter, the transform is given again on the next frame.
+    private volatile boolean yuvTransformStale = true;
     private CameraCallbacksHandler cameraCallbacksHandler = new CameraCallbacksHandler();
 
     public ShopLiveCameraView(Context context) {
@@ -89,7 +113,8 @@ public class ShopLiveCameraView extends GLSurfaceView implements GLSurfaceView.R
     public ShopLiveCameraView(Context context, AttributeSet attrs) {
         super(context, attrs);
 
-        setEGLContextClientVersion(2);
+        setEGLContextFactory(new ContextFactory());
+        setEGLConfigChooser(new RecordableConfigChooser());
         setRenderer(this);
         setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
         setOnTouchListener((v, event) -> {
@@ -116,6 +141,10 @@ public class ShopLiveCameraView extends GLSurfaceView implements GLSurfaceView.R
         magicFilter = new GPUImageFilter(MagicFilterType.NONE);
         magicFilter.init(getContext().getApplicationContext());
         magicFilter.onInputSizeChanged(previewWidth, previewHeight);
+        // the previous context and its surfaces are gone.
+        encoderSurface = new ShopLiveEncoderSurface(getContext().getApplicationContext());
+        yuvConverter = new GPUImageYuvConverter(getContext().getApplicationContext());
+        yuvTransformStale = true;
 
         textureId = OpenGLUtils.getExternalOESTextureID();
         surfaceTexture = new SurfaceTexture(textureId);
@@ -200,23 +229,85 @@ public class ShopLiveCameraView extends GLSurfaceView implements GLSurfaceView.R
         surfaceTexture.updateTexImage();
         surfaceTexture.getTransformMatrix(surfaceMatrix);
         Matrix.multiplyMM(transformMatrix, 0, surfaceMatrix, 0, projectionMatrix, 0);
+        // with a surface input the filtered texture goes to the encoder on the GPU.
+        ShopLiveSurfaceInput input = surfaceInput;
+        Surface inputSurface = input == null ? null : input.getInputSurface();
+        // otherwise the frame may be converted to the encoder YUV layout before the readback.
+        ShopLiveYuvInput yuv = yuvInput;
+        int yuvLayout = yuv == null || inputSurface != null ? YuvConversion.NONE : yuv.getYuvLayout();
+        int yuvWidth = yuv == null ? 0 : yuv.getYuvWidth();
+        int yuvHeight = yuv == null ? 0 : yuv.getYuvHeight();
+        if (!YuvConversion.isSupported(yuvWidth, yuvHeight)) {
+            yuvLayout = YuvConversion.NONE;
+        }
         if (magicFilter != null) {
+            magicFilter.setReadbackEnabled(isEncoding.get() && inputSurface == null && yuvLayout == YuvConversion.NONE);
             magicFilter.setTextureTransformMatrix(transformMatrix);
             magicFilter.onDrawFrame(textureId);
         }
 
-        if (isEncoding.get()) {
-            bufferCache.add(magicFilter.getGLFboBuffer());
-            synchronized (writeLock) {
-                writeLock.notifyAll();
+        if (isEncoding.get() && magicFilter != null) {
+            if (inputSurface != null) {
+                long ptsNs = input.onSurfaceFrame();
+                if (ptsNs >= 0 && encoderSurface != null) {
+                    encoderSurface.draw(inputSurface, magicFilter.getGLFboTexture(), ptsNs);
+                }
+            } else if (yuvLayout != YuvConversion.NONE) {
+                updateYuvTransform(yuv);
+                GPUImageReadback.Frame frame = yuvConverter == null ? null :
+                        yuvConverter.convert(magicFilter.getGLFboTexture(), yuvLayout, yuvWidth, yuvHeight);
+                if (frame != null) {
+                    yuvCache.add(frame);
+                    synchronized (writeLock) {
+                        writeLock.notifyAll();
+                    }
+                }
+            } else {
+                GPUImageReadback.Frame frame = magicFilter.takeReadbackFrame();
+                if (frame != null) {
+                    bufferCache.add(frame);
+                    synchronized (writeLock) {
+                        writeLock.notifyAll();
+                    }
+                }
             }
         }
     }
 
+    // the GPU conversion turns the frame upright like the libyuv path of the encoder does.
+    private void updateYuvTransform(ShopLiveYuvInput yuv) {
+        int rotation = yuv.getYuvRotation();
+        boolean flipped = yuv.isYuvFlipped();
+        if (yuvConverter == null || (!yuvTransformStale && rotation == yuvRotation && flipped == yuvFlipped)) {
+            return;
+        }
+        yuvTransformStale = false;
+        yuvConverter.setTransform(rotation, flipped);
+        yuvRotation = rotation;
+        yuvFlipped = flipped;
+    }
+
     public void setPreviewCallback(@Nullable PreviewCallback callback) {
         previewCallback = callback;
     }
 
+    /**
+     * draw the encoded frames straight into the encoder input surface when it offers one,
+     * instead of reading them back for the preview callback.
+     */
+    public void setSurfaceInput(@Nullable ShopLiveSurfaceInput input) {
+        surfaceInput = input;
+    }
+
+    /**
+     * convert the encoded frames to the YUV layout of the encoder on the GPU when it asks for it,
+     * instead of reading RGBA frames back for the preview callback.
+     */
+    public void setYuvInput(@Nullable ShopLiveYuvInput input) {
+        yuvInput = input;
+        yuvTransformStale = true;
+    }
+
     @Nullable
     public Camera getCamera() {
         return this.camera;
@@ -271,11 +362,13 @@ public class ShopLiveCameraView extends GLSurfaceView implements GLSurfaceView.R
         } else {
             camFacingId = CameraSelector.LENS_FACING_FRONT;
         }
+        yuvTransformStale = true;
         return camFacingId;
     }
 
     public void setCameraId(@CameraSelector.LensFacing int id) {
         camFacingId = id;
+        yuvTransformStale = true;
     }
 
     protected int getRotateDegree() {
@@ -309,11 +402,27 @@ public class ShopLiveCameraView extends GLSurfaceView implements GLSurfaceView.R
         }
         worker = Executors.newCachedThreadPool().submit((Callable<Void>) () -> {
             while (worker != null && !worker.isDone()) {
-                while (!bufferCache.isEmpty()) {
+                while (!bufferCache.isEmpty() || !yuvCache.isEmpty()) {
                     try {
-                        IntBuffer picture = bufferCache.poll();
-                        bufferGLPreview.asIntBuffer().put(picture.array());
-                        previewCallback.onGetRgbaFrame(bufferGLPreview.array(), previewWidth, previewHeight);
+                        GPUImageReadback.Frame picture = bufferCache.poll();
+                        if (picture != null) {
+                            bufferGLPreview.asIntBuffer().put(picture.pixels());
+                            picture.release();
+                            previewCallback.onGetRgbaFrame(bufferGLPreview.array(), previewWidth, previewHeight);
+                        }
+                        picture = yuvCache.poll();
+                        if (picture != null) {
+                            // the ints hold the frame bytes in GL order, keep it by copying in native order.
+                            int size = picture.pixels().length * 4;
+                            if (bufferYuv == null || bufferYuv.capacity() != size) {
+                                bufferYuv = ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+                            }
+                            bufferYuv.asIntBuffer().put(picture.pixels());
+                            int width = picture.width() * 4;
+                            int height = picture.height() * 2 / 3;
+                            picture.release();
+                            previewCallback.onGetYuvFrame(bufferYuv.array(), width, height);
+                        }
                     } catch (Exception e) {
                         Log.e(TAG, e.toString());
                         cameraCallbacksHandler.onError(e);
@@ -338,7 +447,18 @@ public class ShopLiveCameraView extends GLSurfaceView implements GLSurfaceView.R
 
     public void disableEncoding() {
         isEncoding.set(false);
-        bufferCache.clear();
+        GPUImageReadback.Frame frame;
+        while ((frame = bufferCache.poll()) != null) {
+            frame.release();
+        }
+        while ((frame = yuvCache.poll()) != null) {
+            frame.release();
+        }
+        queueEvent(() -> {
+            if (encoderSurface != null) {
+                encoderSurface.releaseSurface();
+            }
+        });
         if (bufferGLPreview != null) {
             bufferGLPreview.clear();
         }
@@ -357,9 +477,86 @@ public class ShopLiveCameraView extends GLSurfaceView implements GLSurfaceView.R
         }
     }
 
+    // Ask for a GLES 3 context, so the filter can read the pixels back through pixel buffer objects.
+    private static class ContextFactory implements GLSurfaceView.EGLContextFactory {
+        private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
+
+        @Override
+        public EGLContext createContext(EGL10 egl, EGLDisplay display, EGLConfig config) {
+            int[] attribs = {EGL_CONTEXT_CLIENT_VERSION, 3, EGL10.EGL_NONE};
+            EGLContext context = egl.eglCreateContext(display, config, EGL10.EGL_NO_CONTEXT, attribs);
+            if (context == null || context == EGL10.EGL_NO_CONTEXT) {
+                // GLES 2 only, the filter falls back to a synchronous glReadPixels.
+                attribs[1] = 2;
+                context = egl.eglCreateContext(display, config, EGL10.EGL_NO_CONTEXT, attribs);
+            }
+            return context;
+        }
+
+        @Override
+        public void destroyContext(EGL10 egl, EGLDisplay display, EGLContext context) {
+            if (!egl.eglDestroyContext(display, context)) {
+                Log.e("ContextFactory", String.format("eglDestroyContext failed: 0x%x", egl.eglGetError()));
+            }
+        }
+    }
+
+    // A recordable RGB888 config, so the encoder input surface can use the preview EGL context.
+    private static class RecordableConfigChooser implements GLSurfaceView.EGLConfigChooser {
+        private static final int EGL_RECORDABLE_ANDROID = 0x3142;
+        private static final int EGL_OPENGL_ES2_BIT = 4;
+
+        @Override
+        public EGLConfig chooseConfig(EGL10 egl, EGLDisplay display) {
+            EGLConfig config = chooseConfig(egl, display, true);
+            if (config == null) {
+                // the encoder surface will not be created, the RGBA path still works.
+                config = chooseConfig(egl, display, false);
+            }
+            if (config == null) {
+                throw new IllegalArgumentException("No EGL config chosen");
+            }
+            return config;
+        }
+
+        @Nullable
+        private EGLConfig chooseConfig(EGL10 egl, EGLDisplay display, boolean recordable) {
+            int[] attribs = {
+                    EGL10.EGL_RED_SIZE, 8,
+                    EGL10.EGL_GREEN_SIZE, 8,
+                    EGL10.EGL_BLUE_SIZE, 8,
+                    EGL10.EGL_DEPTH_SIZE, 16,
+                    EGL10.EGL_RENDERABLE_TYPE, EGL_OPENGL_ES2_BIT,
+                    recordable ? EGL_RECORDABLE_ANDROID : EGL10.EGL_NONE, 1,
+                    EGL10.EGL_NONE
+            };
+            int[] numConfigs = new int[1];
+            if (!egl.eglChooseConfig(display, attribs, null, 0, numConfigs) || numConfigs[0] <= 0) {
+                return null;
+            }
+            EGLConfig[] configs = new EGLConfig[numConfigs[0]];
+            egl.eglChooseConfig(display, attribs, configs, configs.length, numConfigs);
+            // like the default chooser, prefer exactly RGB888 without alpha.
+            int[] value = new int[1];
+            for (EGLConfig config : configs) {
+                egl.eglGetConfigAttrib(display, config, EGL10.EGL_ALPHA_SIZE, value);
+                if (value[0] == 0) {
+                    return config;
+                }
+            }
+            return configs.length > 0 ? configs[0] : null;
+        }
+    }
+
     public interface PreviewCallback {
 
         void onGetRgbaFrame(byte[] data, int width, int height);
+
+        /**
+         * a frame converted on the GPU for the {@link ShopLiveYuvInput}, valid until the call returns.
+         */
+        default void onGetYuvFrame(byte[] data, int width, int height) {
+        }
     }
 
     public static class CameraCallbacksHandler implements CameraCallbacks {
@@ -0,0 +1,178 @@
+package cloud.shoplive.studio;
+
+import android.media.MediaCodec;
+
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of reference-counted encoded frames shared by every muxer.
+ * <p>
+ * The encoder copies each codec output buffer exactly once into a pooled {@link Frame} and
+ * hands the same frame to all sinks. A sink which keeps the frame beyond the call (for instance
+ * the MP4 writer thread) must {@link Frame#retain()} it and {@link Frame#release()} it when done.
+ * The frame goes back to the pool when the last reference is released, so the codec buffer can
+ * be returned to MediaCodec right after the fan-out.
+ * <p>
+ * A pool of Annex B video frames also splits each frame into its NAL units while copying it, so
+ * the muxers share that single scan instead of searching the start codes again.
+ */
+public final class ShopLiveEncodedFramePool {
+
+    public static final class Frame {
+
+        private final ShopLiveEncodedFramePool pool;
+        private final AtomicInteger refCount = new AtomicInteger(0);
+        private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        private final ShopLiveNalSplitter nals;
+        private long decodeTimeUs;
+        private ByteBuffer data;
+
+        private Frame(ShopLiveEncodedFramePool pool, int capacity) {
+            this.pool = pool;
+            this.data = ByteBuffer.allocateDirect(capacity);
+            this.nals = pool.splitNals ? new ShopLiveNalSplitter() : null;
+        }
+
+        /**
+         * @return a view on the encoded bytes with its own position and limit, starting at 0.
+         */
+        public ByteBuffer data() {
+            ByteBuffer view = data.duplicate();
+            view.position(0);
+            view.limit(info.size);
+            return view;
+        }
+
+        /**
+         * @return the buffer information of this frame, offset is always 0.
+         */
+        public MediaCodec.BufferInfo info() {
+            return info;
+        }
+
+        /**
+         * @return the decode timestamp, before the presentation timestamp of the info when the
+         * encoder reorders frames, equal to it otherwise.
+         */
+        public long decodeTimeUs() {
+            return decodeTimeUs;
+        }
+
+        /**
+         * @return the NAL units of the frame, indexed like {@link #data()}, or null if the pool
+         * does not split its frames. They must not be split again.
+         */
+        @Nullable
+        public ShopLiveNalSplitter nals() {
+            return nals;
+        }
+
+        public boolean isKeyFrame() {
+            return (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        }
+
+        public Frame retain() {
+            // never bring a recycled frame back to life, another thread may be refilling it.
+            for (;;) {
+                int refs = refCount.get();
+                if (refs <= 0) {
+                    throw new IllegalStateException("retain on a recycled frame");
+                }
+                if (refCount.compareAndSet(refs, refs + 1)) {
+                    return this;
+                }
+            }
+        }
+
+        public void release() {
+            int refs = refCount.decrementAndGet();
+            if (refs == 0) {
+                pool.recycle(this);
+            } else if (refs < 0) {
+                throw new IllegalStateException("frame released too many times");
+            }
+        }
+
+        private void copyFrom(ByteBuffer src, MediaCodec.BufferInfo bi, long dtsUs) {
+            if (data.capacity() < bi.size) {
+                data = ByteBuffer.allocateDirect(bi.size);
+            }
+            ByteBuffer in = src.duplicate();
+            in.limit(bi.offset + bi.size);
+            in.position(bi.offset);
+            data.clear();
+            data.put(in);
+            info.set(0, bi.size, bi.presentationTimeUs, bi.flags);
+            decodeTimeUs = dtsUs;
+            if (nals != null) {
+                nals.split(data, 0, bi.size);
+            }
+        }
+    }
+
+    private final int individualFrameSize;
+    private final int maxPooledFrames;
+    private final boolean splitNals;
+    private final AtomicInteger pooledFrames = new AtomicInteger(0);
+    private final ConcurrentLinkedQueue<Frame> availableFrames = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param individualFrameSize The initial capacity of each pooled frame.
+     * @param maxPooledFrames     The number of idle frames kept for reuse.
+     */
+    public ShopLiveEncodedFramePool(int individualFrameSize, int maxPooledFrames) {
+        this(individualFrameSize, maxPooledFrames, false);
+    }
+
+    /**
+     * @param individualFrameSize The initial capacity of each pooled frame.
+     * @param maxPooledFrames     The number of idle frames kept for reuse.
+     * @param splitNals           Split each frame into its NAL units, for Annex B video.
+     */
+    public ShopLiveEncodedFramePool(int individualFrameSize, int maxPooledFrames, boolean splitNals) {
+        this.individualFrameSize = individualFrameSize;
+        this.maxPooledFrames = maxPooledFrames;
+        this.splitNals = splitNals;
+    }
+
+    /**
+     * Copy the encoded bytes described by {@code bi} out of {@code src} into a pooled frame,
+     * decoded at its presentation time.
+     *
+     * @return the frame holding one reference owned by the caller.
+     */
+    public Frame obtain(ByteBuffer src, MediaCodec.BufferInfo bi) {
+        return obtain(src, bi, bi.presentationTimeUs);
+    }
+
+    /**
+     * Copy the encoded bytes described by {@code bi} out of {@code src} into a pooled frame.
+     *
+     * @param dtsUs the decode timestamp of the frame, which precedes its presentation timestamp
+     *              when the encoder emits B-frames.
+     * @return the frame holding one reference owned by the caller.
+     */
+    public Frame obtain(ByteBuffer src, MediaCodec.BufferInfo bi, long dtsUs) {
+        Frame frame = availableFrames.poll();
+        if (frame != null) {
+            pooledFrames.decrementAndGet();
+        } else {
+            frame = new Frame(this, Math.max(bi.size, individualFrameSize));
+        }
+        frame.copyFrom(src, bi, dtsUs);
+        frame.refCount.set(1);
+        return frame;
+    }
+
+    private void recycle(Frame frame) {
+        if (pooledFrames.incrementAndGet() <= maxPooledFrames) {
+            availableFrames.offer(frame);
+        } else {
+            pooledFrames.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package cloud.shoplive.studio;
+
+import android.content.Context;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.util.Log;
+import android.view.Surface;
+
+import androidx.annotation.Nullable;
+
+import com.seu.magicfilter.utils.OpenGLUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Draws the filtered camera texture into the input surface of the hardware encoder.
+ * <p>
+ * The window surface is created on the EGL context of the GL thread, so the frame reaches the
+ * encoder as a texture: no glReadPixels, no colour conversion on the CPU and no copy into a codec
+ * buffer. The context must use a recordable config. All methods run on the GL thread.
+ */
+class ShopLiveEncoderSurface {
+
+    private static final String TAG = "ShopLiveEncoderSurface";
+
+    private static final float[] VEX_CUBE = {
+            -1.0f, -1.0f, // Bottom left.
+            1.0f, -1.0f, // Bottom right.
+            -1.0f, 1.0f, // Top left.
+            1.0f, 1.0f, // Top right.
+    };
+
+    private static final float[] TEX_COORD = {
+            0.0f, 0.0f, // Bottom left.
+            1.0f, 0.0f, // Bottom right.
+            0.0f, 1.0f, // Top left.
+            1.0f, 1.0f // Top right.
+    };
+
+    private final Context context;
+    private final FloatBuffer cubeBuffer;
+    private final FloatBuffer textureBuffer;
+
+    private EGLDisplay eglDisplay = EGL14.EGL_NO_DISPLAY;
+    private EGLContext eglContext = EGL14.EGL_NO_CONTEXT;
+    private EGLSurface eglSurface = EGL14.EGL_NO_SURFACE;
+    @Nullable
+    private Surface surface;
+    // a surface which could not be drawn, e.g. because its encoder was released.
+    @Nullable
+    private Surface failedSurface;
+    private int width;
+    private int height;
+
+    private int program;
+    private int positionIndex;
+    private int textureCoordinateIndex;
+    private int inputImageTextureIndex;
+
+    ShopLiveEncoderSurface(Context context) {
+        this.context = context;
+        cubeBuffer = ByteBuffer.allocateDirect(VEX_CUBE.length * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        cubeBuffer.put(VEX_CUBE).position(0);
+        textureBuffer = ByteBuffer.allocateDirect(TEX_COORD.length * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        textureBuffer.put(TEX_COORD).position(0);
+    }
+
+    /**
+     * Draw the texture into the encoder surface, scaled to the encoder resolution.
+     *
+     * @param target  the encoder input surface.
+     * @param texture the GL_TEXTURE_2D to encode.
+     * @param ptsNs   the presentation time of the frame in nanoseconds.
+     * @return true if the frame was handed to the encoder.
+     */
+    boolean draw(Surface target, int texture, long ptsNs) {
+        if (texture == OpenGLUtils.NO_TEXTURE || target == failedSurface) {
+            return false;
+        }
+        if (target != surface) {
+            releaseSurface();
+            if (!createSurface(target)) {
+                failedSurface = target;
+                return false;
+            }
+        }
+
+        EGLSurface drawSurface = EGL14.eglGetCurrentSurface(EGL14.EGL_DRAW);
+        EGLSurface readSurface = EGL14.eglGetCurrentSurface(EGL14.EGL_READ);
+        if (!EGL14.eglMakeCurrent(eglDisplay, eglSurface, eglSurface, eglContext)) {
+            Log.w(TAG, String.format("eglMakeCurrent failed: 0x%x", EGL14.eglGetError()));
+            failedSurface = target;
+            releaseSurface();
+            return false;
+        }
+
+        GLES20.glViewport(0, 0, width, height);
+        blit(texture);
+        EGLExt.eglPresentationTimeANDROID(eglDisplay, eglSurface, ptsNs);
+        boolean swapped = EGL14.eglSwapBuffers(eglDisplay, eglSurface);
+        int error = EGL14.eglGetError();
+        EGL14.eglMakeCurrent(eglDisplay, drawSurface, readSurface, eglContext);
+
+        if (!swapped) {
+            // the encoder is gone, wait for the next input surface.
+            Log.w(TAG, String.format("eglSwapBuffers failed: 0x%x", error));
+            failedSurface = target;
+            releaseSurface();
+        }
+        return swapped;
+    }
+
+    private boolean createSurface(Surface target) {
+        eglDisplay = EGL14.eglGetCurrentDisplay();
+        eglContext = EGL14.eglGetCurrentContext();
+        if (eglDisplay == EGL14.EGL_NO_DISPLAY || eglContext == EGL14.EGL_NO_CONTEXT) {
+            Log.e(TAG, "no current EGL context");
+            return false;
+        }
+
+        // use the config of the preview context, so both surfaces can share it.
+        int[] value = new int[1];
+        EGL14.eglQueryContext(eglDisplay, eglContext, EGL14.EGL_CONFIG_ID, value, 0);
+        int[] configAttribs = {EGL14.EGL_CONFIG_ID, value[0], EGL14.EGL_NONE};
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] numConfigs = new int[1];
+        if (!EGL14.eglChooseConfig(eglDisplay, configAttribs, 0, configs, 0, 1, numConfigs, 0) || numConfigs[0] == 0) {
+            Log.e(TAG, "EGL config of the preview context not found");
+            return false;
+        }
+
+        int[] surfaceAttribs = {EGL14.EGL_NONE};
+        eglSurface = EGL14.eglCreateWindowSurface(eglDisplay, configs[0], target, surfaceAttribs, 0);
+        if (eglSurface == null || eglSurface == EGL14.EGL_NO_SURFACE) {
+            Log.e(TAG, String.format("eglCreateWindowSurface failed: 0x%x", EGL14.eglGetError()));
+            eglSurface = EGL14.EGL_NO_SURFACE;
+            return false;
+        }
+        EGL14.eglQuerySurface(eglDisplay, eglSurface, EGL14.EGL_WIDTH, value, 0);
+        width = value[0];
+        EGL14.eglQuerySurface(eglDisplay, eglSurface, EGL14.EGL_HEIGHT, value, 0);
+        height = value[0];
+        surface = target;
+
+        if (program == 0) {
+            loadProgram();
+        }
+        Log.i(TAG, String.format("encoder surface created %dx%d", width, height));
+        return true;
+    }
+
+    private void loadProgram() {
+        program = OpenGLUtils.loadProgram(OpenGLUtils.readShaderFromRawResource(context, R.raw.vertex_blit),
+                OpenGLUtils.readShaderFromRawResource(context, R.raw.fragment_blit));
+        positionIndex = GLES20.glGetAttribLocation(program, "position");
+        textureCoordinateIndex = GLES20.glGetAttribLocation(program, "inputTextureCoordinate");
+        inputImageTextureIndex = GLES20.glGetUniformLocation(program, "inputImageTexture");
+    }
+
+    private void blit(int texture) {
+        GLES20.glUseProgram(program);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+        GLES20.glEnableVertexAttribArray(positionIndex);
+        GLES20.glVertexAttribPointer(positionIndex, 2, GLES20.GL_FLOAT, false, 4 * 2, cubeBuffer);
+        GLES20.glEnableVertexAttribArray(textureCoordinateIndex);
+        GLES20.glVertexAttribPointer(textureCoordinateIndex, 2, GLES20.GL_FLOAT, false, 4 * 2, textureBuffer);
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        GLES20.glUniform1i(inputImageTextureIndex, 0);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+
+        GLES20.glDisableVertexAttribArray(positionIndex);
+        GLES20.glDisableVertexAttribArray(textureCoordinateIndex);
+    }
+
+    /**
+     * Release the window surface, the encoder surface itself belongs to the encoder.
+     */
+    void releaseSurface() {
+        if (eglSurface != EGL14.EGL_NO_SURFACE) {
+            EGL14.eglDestroySurface(eglDisplay, eglSurface);
+            eglSurface = EGL14.EGL_NO_SURFACE;
+        }
+        surface = null;
+    }
+
+    void release() {
+        releaseSurface();
+        failedSurface = null;
+        if (program != 0) {
+            GLES20.glDeleteProgram(program);
+            program = 0;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package cloud.shoplive.studio;
+
+/**
+ * Decides which video tags the FLV sender drops when the RTMP uplink falls behind.
+ * <p>
+ * The policy only sees video frames: audio tags and sequence headers are always sent.
+ * When it returns {@link #DROP_GOP} the muxer drops the frame and every following video
+ * frame until the next key frame, so the stream stays decodable. A key frame itself is never
+ * dropped, for one the muxer sends it and drops the rest of its GOP.
+ */
+public interface ShopLiveFlvDropPolicy {
+
+    int KEEP = 0;
+    // drop the frame only if no other picture references it.
+    int DROP_DISPOSABLE = 1;
+    // drop the rest of the group of pictures, up to the next key frame.
+    int DROP_GOP = 2;
+
+    /**
+     * @param isKeyFrame        whether the frame is a sync point, an IDR or a flagged recovery point.
+     * @param isDisposable      whether the frame is a non-reference picture.
+     * @param queuedVideoFrames the number of video frames waiting to be sent, this one included.
+     * @param bytesInFlight     the bytes written to the socket but not acknowledged by the server,
+     *                          which grows before the frames queue up. 0 until the server acknowledges.
+     * @return one of {@link #KEEP}, {@link #DROP_DISPOSABLE} or {@link #DROP_GOP}.
+     */
+    int onVideoFrame(boolean isKeyFrame, boolean isDisposable, int queuedVideoFrames, long bytesInFlight);
+}
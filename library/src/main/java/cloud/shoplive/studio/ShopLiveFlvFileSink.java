@@ -0,0 +1,208 @@
+package cloud.shoplive.studio;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records the FLV tags to a local file, the url being the file path.
+ * <p>
+ * The tags are copied into a buffer and the file grows by whole blocks at block aligned offsets,
+ * so the storage sees few large writes. They go through the stream rather than a FileChannel,
+ * whose writes an interrupt would abort by closing the file. The tail is written at least every second, and
+ * an FLV file has no index to finish, so a crash loses at most that last second.
+ */
+public class ShopLiveFlvFileSink implements ShopLiveFlvTagSink {
+
+    private static final String TAG = "ShopLiveFlvFileSink";
+    private static final int WRITE_BLOCK_SIZE = 64 * 1024;
+    private static final int BUFFER_SIZE = 8 * WRITE_BLOCK_SIZE;
+    private static final long MAX_WRITE_DELAY_NS = 1000L * 1000000;
+
+    private final ShopLiveRecordHandler mHandler;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final byte[] header = new byte[ShopLiveFlvFraming.TAG_HEADER_SIZE];
+    private final AtomicInteger videoFrameCacheNumber = new AtomicInteger(0);
+    @Nullable
+    private FileOutputStream file;
+    @Nullable
+    private String path;
+    // the file size, the buffered bytes excluded.
+    private volatile long bytesWritten;
+    private long lastWriteNanos;
+
+    /**
+     * @param handler notified when the recording starts, finishes or fails.
+     */
+    public ShopLiveFlvFileSink(ShopLiveRecordHandler handler) {
+        mHandler = handler;
+    }
+
+    @Override
+    public synchronized boolean open(String url) {
+        try {
+            file = new FileOutputStream(url);
+        } catch (IOException e) {
+            Log.e(TAG, "open(): " + e.getMessage());
+            release();
+            mHandler.notifyRecordIOException(e);
+            return false;
+        }
+        path = url;
+        bytesWritten = 0;
+        lastWriteNanos = System.nanoTime();
+        buffer.clear();
+        buffer.put(ShopLiveFlvFraming.fileHeader(true, true));
+        mHandler.notifyRecordStarted(url);
+        return true;
+    }
+
+    @Override
+    public void writeVideoTag(byte[] data, int size, int dts) {
+        writeTag(ShopLiveFlvFraming.TAG_TYPE_VIDEO, data, size, dts);
+        videoFrameCacheNumber.decrementAndGet();
+    }
+
+    @Override
+    public void writeAudioTag(byte[] data, int size, int dts) {
+        writeTag(ShopLiveFlvFraming.TAG_TYPE_AUDIO, data, size, dts);
+    }
+
+    private synchronized void writeTag(int type, byte[] data, int size, int dts) {
+        if (file == null) {
+            return;
+        }
+        try {
+            ShopLiveFlvFraming.tagHeader(header, type, size, dts);
+            put(header, 0, ShopLiveFlvFraming.TAG_HEADER_SIZE);
+            put(data, 0, size);
+            ShopLiveFlvFraming.previousTagSize(header, size);
+            put(header, 0, ShopLiveFlvFraming.PREVIOUS_TAG_SIZE);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void put(byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (!buffer.hasRemaining()) {
+                writeBlocks();
+            }
+            int n = Math.min(length, buffer.remaining());
+            buffer.put(data, offset, n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * write the buffered bytes up to the last block boundary of the file.
+     */
+    private void writeBlocks() throws IOException {
+        long end = (bytesWritten + buffer.position()) / WRITE_BLOCK_SIZE * WRITE_BLOCK_SIZE;
+        write((int) (end - bytesWritten));
+    }
+
+    private void write(int length) throws IOException {
+        if (length <= 0) {
+            return;
+        }
+        file.write(buffer.array(), 0, length);
+        buffer.flip();
+        buffer.position(length);
+        buffer.compact();
+        bytesWritten += length;
+        lastWriteNanos = System.nanoTime();
+    }
+
+    @Override
+    public synchronized void flush() {
+        if (file == null) {
+            return;
+        }
+        try {
+            if (System.nanoTime() - lastWriteNanos >= MAX_WRITE_DELAY_NS) {
+                write(buffer.position());
+            } else if (buffer.position() >= WRITE_BLOCK_SIZE) {
+                writeBlocks();
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (file == null) {
+            // never opened, or a failure already closed and notified it.
+            return;
+        }
+        try {
+            write(buffer.position());
+            file.getFD().sync();
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+        release();
+        Log.i(TAG, String.format("close(): %dB recorded to %s", bytesWritten, path));
+        mHandler.notifyRecordFinished(path);
+    }
+
+    private void fail(IOException e) {
+        release();
+        Log.e(TAG, "recording failed: " + e.getMessage());
+        mHandler.notifyRecordIOException(e);
+    }
+
+    private void release() {
+        try {
+            if (file != null) {
+                file.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "release(): failed to close " + path, e);
+        }
+        file = null;
+        buffer.clear();
+    }
+
+    @Override
+    public AtomicInteger getVideoFrameCacheNumber() {
+        return videoFrameCacheNumber;
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesWritten;
+    }
+
+    @Override
+    public long getBytesInFlight() {
+        return 0;
+    }
+
+    @Override
+    public void setAutoReconnect(boolean autoReconnect) {
+        // a failed file is not reopened, that would overwrite it.
+    }
+
+    @Override
+    public boolean isConnectionLost() {
+        return false;
+    }
+
+    @Override
+    public boolean reconnect() {
+        return false;
+    }
+
+    @Override
+    public void abandonReconnect() {
+    }
+}
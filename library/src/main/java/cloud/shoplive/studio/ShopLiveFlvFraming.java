@@ -0,0 +1,77 @@
+package cloud.shoplive.studio;
+
+/**
+ * The FLV file framing around the tag bodies of the muxer.
+ * <p>
+ * A file starts with the 9 bytes header and PreviousTagSize0, then every tag is an 11 bytes
+ * header, the body and the PreviousTagSize of the tag.
+ *
+ * @see <a href="https://www.adobe.com/content/dam/acom/en/devnet/flv/video_file_format_spec_v10.pdf">E.2 and E.3, FLV File Format</a>
+ */
+final class ShopLiveFlvFraming {
+
+    // the header and PreviousTagSize0.
+    static final int FILE_HEADER_SIZE = 9 + 4;
+    static final int TAG_HEADER_SIZE = 11;
+    static final int PREVIOUS_TAG_SIZE = 4;
+
+    static final int TAG_TYPE_AUDIO = 8;
+    static final int TAG_TYPE_VIDEO = 9;
+
+    private ShopLiveFlvFraming() {
+    }
+
+    /**
+     * @param hasAudio whether audio tags follow.
+     * @param hasVideo whether video tags follow.
+     * @return the file header and PreviousTagSize0.
+     */
+    static byte[] fileHeader(boolean hasAudio, boolean hasVideo) {
+        byte[] header = new byte[FILE_HEADER_SIZE];
+        header[0] = 'F';
+        header[1] = 'L';
+        header[2] = 'V';
+        header[3] = 1;
+        header[4] = (byte) ((hasAudio ? 0x04 : 0) | (hasVideo ? 0x01 : 0));
+        // DataOffset, the header size.
+        header[8] = 9;
+        return header;
+    }
+
+    /**
+     * write the tag header.
+     *
+     * @param dst  at least {@link #TAG_HEADER_SIZE} bytes.
+     * @param type {@link #TAG_TYPE_AUDIO} or {@link #TAG_TYPE_VIDEO}.
+     * @param size the body size.
+     * @param dts  the timestamp in ms, its upper byte goes to TimestampExtended.
+     */
+    static void tagHeader(byte[] dst, int type, int size, int dts) {
+        dst[0] = (byte) type;
+        dst[1] = (byte) (size >>> 16);
+        dst[2] = (byte) (size >>> 8);
+        dst[3] = (byte) size;
+        dst[4] = (byte) (dts >>> 16);
+        dst[5] = (byte) (dts >>> 8);
+        dst[6] = (byte) dts;
+        dst[7] = (byte) (dts >>> 24);
+        // StreamID, always 0.
+        dst[8] = 0;
+        dst[9] = 0;
+        dst[10] = 0;
+    }
+
+    /**
+     * write the PreviousTagSize following a tag.
+     *
+     * @param dst  at least {@link #PREVIOUS_TAG_SIZE} bytes.
+     * @param size the body size of the tag.
+     */
+    static void previousTagSize(byte[] dst, int size) {
+        int tagSize = TAG_HEADER_SIZE + size;
+        dst[0] = (byte) (tagSize >>> 24);
+        dst[1] = (byte) (tagSize >>> 16);
+        dst[2] = (byte) (tagSize >>> 8);
+        dst[3] = (byte) tagSize;
+    }
+}
@@ -12,19 +12,27 @@ import com.github.faucamp.simplertmp.RtmpHandler;
 import net.ossrs.yasea.SrsEncoder;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Created by winlin on 5/2/15.
  * Updated by leoma on 4/1/16.
  * to POST the h.264/avc annexb frame over RTMP.
+ * <p>
+ * The tags are muxed once and handed to every started {@link Destination}, each with its own
+ * {@link ShopLiveFlvTagSink} and worker: an RTMP server, an FLV file or an HTTP-FLV server. The
+ * muxer methods without a destination act on the primary one.
  *
  * @see android.media.MediaMuxer https://developer.android.com/reference/android/media/MediaMuxer.html
  */
@@ -32,21 +40,34 @@ public class ShopLiveFlvMuxer {
 
     private static final int VIDEO_ALLOC_SIZE = 128 * 1024;
     private static final int AUDIO_ALLOC_SIZE = 4 * 1024;
-
-    private final AtomicBoolean started = new AtomicBoolean(false);
-    private final DefaultRtmpPublisher publisher;
-
-    @Nullable
-    private Future<Void> worker = null;
-    private final Object txFrameLock = new Object();
+    // About 5 seconds of audio and video tags, the encoder throttles far below that.
+    private static final int FLV_TAG_CACHE_SIZE = 512;
+    // a few ack windows, well below the socket send buffer sized from the server window.
+    private static final long MAX_BYTES_IN_FLIGHT = 1024 * 1024;
+    // the reconnect backoff doubles from the min to the max.
+    private static final int RECONNECT_MIN_BACKOFF_MS = 250;
+    private static final int RECONNECT_MAX_BACKOFF_MS = 4000;
+    private static final int DEFAULT_RECONNECT_ATTEMPTS = 10;
+    // bounds the GOPs kept while disconnected, about 16 seconds at 4 Mbps.
+    private static final int MAX_GOP_CACHE_BYTES = 8 * 1024 * 1024;
+
+    // runs the workers and the disconnections, one thread per destination and a spare one so a
+    // disconnection never waits behind the workers. Idle threads time out.
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
 
     private final SrsFlv flv = new SrsFlv();
     private boolean needToFindKeyFrame = true;
-    private ShopLiveFlvFrame mVideoSequenceHeader;
-    private ShopLiveFlvFrame mAudioSequenceHeader;
     private final ShopLiveAllocator mVideoAllocator = new ShopLiveAllocator(VIDEO_ALLOC_SIZE);
     private final ShopLiveAllocator mAudioAllocator = new ShopLiveAllocator(AUDIO_ALLOC_SIZE);
-    private final ConcurrentLinkedQueue<ShopLiveFlvFrame> mFlvTagCache = new ConcurrentLinkedQueue<>();
+    // guarded by the flv lock like the destinations, for a destination starting mid-stream.
+    private final ShopLiveFlvFrame mVideoSequenceHeader = new ShopLiveFlvFrame();
+    private final ShopLiveFlvFrame mAudioSequenceHeader = new ShopLiveFlvFrame();
+    private final ArrayList<Destination> mDestinations = new ArrayList<>();
+    // the encoder paces itself on the primary destination only.
+    private final Destination mPrimary;
+    private int mVideoWidth;
+    private int mVideoHeight;
 
     private static final int VIDEO_TRACK = 100;
     private static final int AUDIO_TRACK = 101;
@@ -58,28 +79,165 @@ public class ShopLiveFlvMuxer {
      * @param handler the rtmp event handler.
      */
     public ShopLiveFlvMuxer(RtmpHandler handler) {
-        publisher = new DefaultRtmpPublisher(handler);
+        this(handler, false);
+    }
+
+    /**
+     * constructor.
+     *
+     * @param handler      the rtmp event handler.
+     * @param nioTransport publish on a non-blocking socket served by one selector thread, so a
+     *                     stalled uplink queues in the publisher instead of blocking the worker.
+     */
+    public ShopLiveFlvMuxer(RtmpHandler handler, boolean nioTransport) {
+        mPrimary = addDestination(handler, nioTransport);
+    }
+
+    /**
+     * constructor.
+     *
+     * @param sink where the primary destination writes the tags.
+     */
+    public ShopLiveFlvMuxer(ShopLiveFlvTagSink sink) {
+        mPrimary = addDestination(sink);
+    }
+
+    /**
+     * add one more RTMP server to publish the same tags to. It gets its own connection, tag
+     * cache, drop policy and reconnects, so a slow destination drops its own frames instead of
+     * holding back the others. Start it once the url is known.
+     *
+     * @param handler      the rtmp event handler of this destination.
+     * @param nioTransport publish on a non-blocking socket, see {@link #ShopLiveFlvMuxer(RtmpHandler, boolean)}.
+     * @return the new destination.
+     */
+    public Destination addDestination(RtmpHandler handler, boolean nioTransport) {
+        return addDestination(new ShopLiveRtmpSink(handler, nioTransport));
+    }
+
+    /**
+     * add one more output for the same tags, like {@link #addDestination(RtmpHandler, boolean)}.
+     * A {@link ShopLiveFlvFileSink} records them without parsing the encoded frames again.
+     *
+     * @param sink where the destination writes the tags, used by this destination only.
+     * @return the new destination.
+     */
+    public Destination addDestination(ShopLiveFlvTagSink sink) {
+        synchronized (flv) {
+            Destination destination = new Destination(sink);
+            mDestinations.add(destination);
+            resizeExecutor();
+            return destination;
+        }
+    }
+
+    /**
+     * stop an added destination and forget it.
+     *
+     * @param destination an added destination, not the primary one.
+     */
+    public void removeDestination(Destination destination) {
+        if (destination == mPrimary) {
+            throw new IllegalArgumentException("The primary destination cannot be removed");
+        }
+        destination.stop();
+        synchronized (flv) {
+            mDestinations.remove(destination);
+            resizeExecutor();
+        }
+    }
+
+    /**
+     * bound the worker threads to the destinations, with the flv lock held.
+     */
+    private void resizeExecutor() {
+        int threads = mDestinations.size() + 1;
+        // the core size may never exceed the maximum, grow the maximum first and shrink it last.
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @see Destination#setAutoReconnect(int, int)
+     */
+    public void setAutoReconnect(int maxAttempts, int bufferedGops) {
+        mPrimary.setAutoReconnect(maxAttempts, bufferedGops);
     }
 
     /**
      * get cached video frame number in publisher
      */
     public AtomicInteger getVideoFrameCacheNumber() {
-        return publisher == null ? null : publisher.getVideoFrameCacheNumber();
+        return mPrimary.getVideoFrameCacheNumber();
+    }
+
+    /**
+     * get the number of bytes written to the rtmp socket
+     */
+    public long getBytesSent() {
+        return mPrimary.getBytesSent();
+    }
+
+    /**
+     * get the number of bytes acknowledged by the rtmp server
+     */
+    public long getBytesAcknowledged() {
+        return mPrimary.getBytesAcknowledged();
+    }
+
+    /**
+     * get the number of bytes written but not acknowledged by the rtmp server yet
+     */
+    public long getBytesInFlight() {
+        return mPrimary.getBytesInFlight();
+    }
+
+    /**
+     * get the time from writing to the rtmp socket to the server acknowledgement in milliseconds
+     */
+    public long getAckRttMillis() {
+        return mPrimary.getAckRttMillis();
+    }
+
+    /**
+     * get the time spent blocked in rtmp socket writes in milliseconds
+     */
+    public long getWriteStallMillis() {
+        return mPrimary.getWriteStallMillis();
     }
 
     /**
-     * set video resolution for publisher
+     * set video resolution for every RTMP publisher
      *
      * @param width  width
      * @param height height
      */
     public void setVideoResolution(int width, int height) {
-        if (publisher != null) {
-            publisher.setVideoResolution(width, height);
+        synchronized (flv) {
+            mVideoWidth = width;
+            mVideoHeight = height;
+            for (int i = 0; i < mDestinations.size(); i++) {
+                DefaultRtmpPublisher publisher = mDestinations.get(i).publisher;
+                if (publisher != null) {
+                    publisher.setVideoResolution(width, height);
+                }
+            }
         }
     }
 
+    /**
+     * @see Destination#setChunkSize(int)
+     */
+    public void setChunkSize(int chunkSize) {
+        mPrimary.setChunkSize(chunkSize);
+    }
+
     /**
      * Adds a track with the specified format.
      *
@@ -96,107 +254,35 @@ public class ShopLiveFlvMuxer {
         }
     }
 
-    private void disconnect() {
-        try {
-            publisher.close();
-        } catch (IllegalStateException e) {
-            // Ignore illegal state.
-        }
-        mVideoSequenceHeader = null;
-        mAudioSequenceHeader = null;
-        Log.i(TAG, "worker: disconnect ok.");
-    }
-
-    private boolean connect(String url) {
-        boolean connected = false;
-        Log.i(TAG, String.format("worker: connecting to RTMP server by url=%s\n", url));
-        if (publisher.connect(url)) {
-            connected = publisher.publish("live");
-        }
-        mVideoSequenceHeader = null;
-        mAudioSequenceHeader = null;
-        return connected;
-    }
-
-    private void sendFlvTag(ShopLiveFlvFrame frame) {
-        if (frame == null) {
-            return;
-        }
-
+    private void releaseFlvTag(ShopLiveFlvFrame frame) {
         if (frame.isVideo()) {
-            if (frame.isKeyFrame()) {
-                Log.i(TAG, String.format("worker: send frame type=%d, dts=%d, size=%dB",
-                        frame.type, frame.dts, frame.flvTag.array().length));
-            }
-            publisher.publishVideoData(frame.flvTag.array(), frame.flvTag.size(), frame.dts);
             mVideoAllocator.release(frame.flvTag);
         } else if (frame.isAudio()) {
-            publisher.publishAudioData(frame.flvTag.array(), frame.flvTag.size(), frame.dts);
             mAudioAllocator.release(frame.flvTag);
         }
     }
 
     /**
-     * start to the remote server for remux.
+     * start the primary destination to the remote server for remux.
      */
     public void start(final String rtmpUrl) {
-        started.set(true);
-        worker = Executors.newCachedThreadPool().submit((Callable<Void>) () -> {
-            if (!connect(rtmpUrl)) {
-                return null;
-            }
-
-            while (worker != null && !worker.isDone()) {
-                while (!mFlvTagCache.isEmpty()) {
-                    ShopLiveFlvFrame frame = mFlvTagCache.poll();
-                    if (frame.isSequenceHeader()) {
-                        if (frame.isVideo()) {
-                            mVideoSequenceHeader = frame;
-                            sendFlvTag(mVideoSequenceHeader);
-                        } else if (frame.isAudio()) {
-                            mAudioSequenceHeader = frame;
-                            sendFlvTag(mAudioSequenceHeader);
-                        }
-                    } else {
-                        if (frame.isVideo() && mVideoSequenceHeader != null) {
-                            sendFlvTag(frame);
-                        } else if (frame.isAudio() && mAudioSequenceHeader != null) {
-                            sendFlvTag(frame);
-                        }
-                    }
-                }
-                // Waiting for next frame
-                synchronized (txFrameLock) {
-                    try {
-                        // isEmpty() may take some time, so we set timeout to detect next frame
-                        txFrameLock.wait(500);
-                    } catch (InterruptedException ie) {
-                        worker.cancel(true);
-                    }
-                }
-            }
-            return null;
-        });
+        mPrimary.start(rtmpUrl);
     }
 
     /**
-     * stop the muxer, disconnect RTMP connection.
+     * stop the muxer, disconnect every RTMP connection.
      */
     public void stop() {
-        started.set(false);
-        mFlvTagCache.clear();
-        if (worker != null && !worker.isDone()) {
-            worker.cancel(true);
-            worker = null;
-        }
-        flv.reset();
-        needToFindKeyFrame = true;
+        synchronized (flv) {
+            for (int i = 0; i < mDestinations.size(); i++) {
+                mDestinations.get(i).stop();
+            }
+            flv.reset();
+            needToFindKeyFrame = true;
+            mVideoSequenceHeader.flvTag = null;
+            mAudioSequenceHeader.flvTag = null;
+        }
         Log.i(TAG, "SrsFlvMuxer closed");
-        // We should not block the main thread
-        Executors.newCachedThreadPool().submit((Callable<Void>) () -> {
-            disconnect();
-            return null;
-        });
     }
 
     /**
@@ -207,19 +293,87 @@ public class ShopLiveFlvMuxer {
      * @param bufferInfo The buffer information related to this sample.
      */
     public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        writeSampleData(trackIndex, byteBuf, bufferInfo, bufferInfo.presentationTimeUs);
+    }
+
+    /**
+     * send the annexb frame over RTMP, with the composition time of a reordered video frame.
+     *
+     * @param trackIndex The track index for this sample.
+     * @param byteBuf    The encoded sample.
+     * @param bufferInfo The buffer information related to this sample.
+     * @param dtsUs      The decode timestamp of the sample.
+     */
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo, long dtsUs) {
+        writeSample(trackIndex, byteBuf, bufferInfo, dtsUs, null);
+    }
+
+    private void writeSample(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo, long dtsUs,
+                             @Nullable ShopLiveNalSplitter nals) {
         if (bufferInfo.offset > 0) {
             Log.w(TAG, String.format("encoded frame %dB, offset=%d pts=%dms",
                     bufferInfo.size, bufferInfo.offset, bufferInfo.presentationTimeUs / 1000
             ));
         }
 
-        if (VIDEO_TRACK == trackIndex) {
-            flv.writeVideoSample(byteBuf, bufferInfo);
-        } else {
-            flv.writeAudioSample(byteBuf, bufferInfo);
+        // Audio and video are muxed from different threads, serialize them so that the
+        // tag cache only ever sees a single producer.
+        synchronized (flv) {
+            if (VIDEO_TRACK == trackIndex) {
+                flv.writeVideoSample(byteBuf, bufferInfo, dtsUs, nals);
+            } else {
+                flv.writeAudioSample(byteBuf, bufferInfo);
+            }
         }
     }
 
+    /**
+     * @see Destination#setDropPolicy(ShopLiveFlvDropPolicy)
+     */
+    public void setDropPolicy(@Nullable ShopLiveFlvDropPolicy policy) {
+        mPrimary.setDropPolicy(policy);
+    }
+
+    /**
+     * @return the number of non-reference video frames dropped by the drop policy.
+     */
+    public long getDisposableDropCount() {
+        return mPrimary.getDisposableDropCount();
+    }
+
+    /**
+     * @return the number of video frames dropped while skipping to the next key frame.
+     */
+    public long getGopDropCount() {
+        return mPrimary.getGopDropCount();
+    }
+
+    /**
+     * @return the number of tags dropped because the tag cache was full.
+     */
+    public long getTagCacheOverflowCount() {
+        return mPrimary.getTagCacheOverflowCount();
+    }
+
+    /**
+     * @return the deepest the tag cache has been since the muxer started.
+     */
+    public int getTagCacheHighWaterMark() {
+        return mPrimary.getTagCacheHighWaterMark();
+    }
+
+    /**
+     * send a pooled encoded frame over RTMP.
+     * The frame is muxed into an FLV tag before returning, so no reference is kept, and its NAL
+     * units are not searched again when the pool already split them.
+     *
+     * @param trackIndex The track index for this sample.
+     * @param frame      The encoded sample shared with the other muxers.
+     */
+    public void writeSampleData(int trackIndex, ShopLiveEncodedFramePool.Frame frame) {
+        writeSample(trackIndex, frame.data(), frame.info(), frame.decodeTimeUs(), frame.nals());
+    }
+
     // E.4.3.1 VIDEODATA
     // Frame Type UB [4]
     // Type of video frame. The following values are defined:
@@ -393,14 +547,6 @@ public class ShopLiveFlvMuxer {
         public final static int CodedSliceExt = 20;
     }
 
-    /**
-     * the search result for annexb.
-     */
-    private class SrsAnnexbSearch {
-        public int nb_start_code = 0;
-        public boolean match = false;
-    }
-
     /**
      * the demuxed tag frame.
      */
@@ -416,7 +562,7 @@ public class ShopLiveFlvMuxer {
         SrsFlvFrameBytes(ByteBuffer buff) {
             int size = buff.capacity();
             byte[] bytes = new byte[size];
-            buff.get(bytes);
+            buff.duplicate().get(bytes);
             this.data = ByteBuffer.wrap(bytes);
             this.size = size;
         }
@@ -442,6 +588,11 @@ public class ShopLiveFlvMuxer {
             return isVideo() && frame_type == SrsCodecVideoAVCFrame.KeyFrame;
         }
 
+        // a non-reference picture, which the drop policy may skip without breaking decoding.
+        public boolean isDisposable() {
+            return isVideo() && frame_type == SrsCodecVideoAVCFrame.DisposableInterFrame;
+        }
+
         public boolean isSequenceHeader() {
             return avc_aac_type == 0;
         }
@@ -453,6 +604,775 @@ public class ShopLiveFlvMuxer {
         public boolean isAudio() {
             return type == SrsCodecFlvTag.Audio;
         }
+
+        /**
+         * keep a copy of a tag, in an allocation of its own which is never released.
+         */
+        public void copyOf(ShopLiveAllocator.Allocation tag, int type, int dts, int frame_type, int avc_aac_type) {
+            int size = tag.size();
+            if (flvTag == null || flvTag.array().length < size) {
+                flvTag = new ShopLiveAllocator.Allocation(size);
+            }
+            flvTag.clear();
+            System.arraycopy(tag.array(), 0, flvTag.array(), 0, size);
+            flvTag.appendOffset(size);
+            this.type = type;
+            this.dts = dts;
+            this.frame_type = frame_type;
+            this.avc_aac_type = avc_aac_type;
+        }
+    }
+
+    /**
+     * An output the muxed tags go to. Each destination has its own sink, worker, tag cache, drop
+     * policy, reconnects and statistics; the tags themselves are shared. The RTMP settings and
+     * statistics only apply to a {@link ShopLiveRtmpSink}.
+     */
+    public class Destination {
+        private final ShopLiveFlvTagSink sink;
+        @Nullable
+        private final DefaultRtmpPublisher publisher;
+        // the running flag of the last started worker, guarded by the flv lock. Each start gets
+        // its own flag, so a stopped worker never mistakes the next one for itself.
+        @Nullable
+        private AtomicBoolean mWorkerRunning;
+        // counted down once the last worker exited and, after a stop, the sink is closed.
+        @Nullable
+        private CountDownLatch mSinkReleased;
+
+        private boolean mVideoSequenceHeaderSent;
+        private boolean mAudioSequenceHeaderSent;
+        @Nullable
+        private volatile ShopLiveFlvDropPolicy mDropPolicy = new ShopLiveGopDropPolicy(SrsEncoder.VGOP / 4, SrsEncoder.VGOP / 2, MAX_BYTES_IN_FLIGHT);
+        private boolean mDroppingGop;
+        private final AtomicLong mDisposableDropCount = new AtomicLong(0);
+        private final AtomicLong mGopDropCount = new AtomicLong(0);
+        // Each worker owns its ring, so a stopping worker can drain it while a new one starts.
+        private volatile FlvTagRing mFlvTagCache = new FlvTagRing(FLV_TAG_CACHE_SIZE);
+        private volatile int mReconnectAttempts = DEFAULT_RECONNECT_ATTEMPTS;
+        private volatile int mReconnectGops = 1;
+        // the muxer side, guarded by the flv lock.
+        private boolean started;
+        private boolean needToFindKeyFrame = true;
+        @Nullable
+        private ShopLiveFlvFrame mClaimedFrame;
+
+        private Destination(ShopLiveFlvTagSink sink) {
+            this.sink = sink;
+            publisher = sink instanceof ShopLiveRtmpSink ? ((ShopLiveRtmpSink) sink).getPublisher() : null;
+            sink.setAutoReconnect(true);
+            if (publisher != null && mVideoWidth > 0) {
+                publisher.setVideoResolution(mVideoWidth, mVideoHeight);
+            }
+        }
+
+        /**
+         * reconnect by itself when the connection drops while publishing. The encoder keeps running,
+         * the tags queued meanwhile are kept up to a few GOPs, and the new connection gets the sequence
+         * headers again and resumes from a key frame.
+         *
+         * @param maxAttempts  reconnect attempts before the socket exception is notified, 0 to notify
+         *                     it right away.
+         * @param bufferedGops the GOPs kept while disconnected, at least the last one.
+         */
+        public void setAutoReconnect(int maxAttempts, int bufferedGops) {
+            mReconnectAttempts = maxAttempts;
+            mReconnectGops = Math.max(1, bufferedGops);
+            sink.setAutoReconnect(maxAttempts > 0);
+        }
+
+        /**
+         * get cached video frame number in the sink
+         */
+        public AtomicInteger getVideoFrameCacheNumber() {
+            return sink.getVideoFrameCacheNumber();
+        }
+
+        /**
+         * get the number of bytes written by the sink
+         */
+        public long getBytesSent() {
+            return sink.getBytesSent();
+        }
+
+        /**
+         * get the number of bytes acknowledged by the rtmp server
+         */
+        public long getBytesAcknowledged() {
+            return publisher == null ? 0 : publisher.getBytesAcknowledged();
+        }
+
+        /**
+         * get the number of bytes written but not confirmed by the receiver yet
+         */
+        public long getBytesInFlight() {
+            return sink.getBytesInFlight();
+        }
+
+        /**
+         * get the time from writing to the rtmp socket to the server acknowledgement in milliseconds
+         */
+        public long getAckRttMillis() {
+            return publisher == null ? 0 : publisher.getAckRttMillis();
+        }
+
+        /**
+         * get the time spent blocked in rtmp socket writes in milliseconds
+         */
+        public long getWriteStallMillis() {
+            return publisher == null ? 0 : publisher.getWriteStallMillis();
+        }
+
+        /**
+         * set the rtmp chunk size announced on the next connection, from 128 to 65536 bytes.
+         * Larger chunks split a video frame into fewer chunks, each with its own header.
+         *
+         * @param chunkSize the chunk size in bytes.
+         */
+        public void setChunkSize(int chunkSize) {
+            if (publisher != null) {
+                publisher.setChunkSize(chunkSize);
+            }
+        }
+
+        /**
+         * set the policy deciding which video frames to drop when the uplink is congested.
+         *
+         * @param policy the drop policy, or null to never drop queued frames.
+         */
+        public void setDropPolicy(@Nullable ShopLiveFlvDropPolicy policy) {
+            mDropPolicy = policy;
+        }
+
+        /**
+         * @return the number of non-reference video frames dropped by the drop policy.
+         */
+        public long getDisposableDropCount() {
+            return mDisposableDropCount.get();
+        }
+
+        /**
+         * @return the number of video frames dropped while skipping to the next key frame.
+         */
+        public long getGopDropCount() {
+            return mGopDropCount.get();
+        }
+
+        /**
+         * @return the number of tags dropped because the tag cache was full.
+         */
+        public long getTagCacheOverflowCount() {
+            return mFlvTagCache.getOverflowCount();
+        }
+
+        /**
+         * @return the deepest the tag cache has been since the muxer started.
+         */
+        public int getTagCacheHighWaterMark() {
+            return mFlvTagCache.getHighWaterMark();
+        }
+
+        private void disconnect() {
+            try {
+                sink.close();
+            } catch (IllegalStateException e) {
+                // Ignore illegal state.
+            }
+            mVideoSequenceHeaderSent = false;
+            mAudioSequenceHeaderSent = false;
+            Log.i(TAG, "worker: disconnect ok.");
+        }
+
+        private boolean connect(String url) {
+            Log.i(TAG, String.format("worker: connecting to %s\n", url));
+            boolean connected = sink.open(url);
+            mVideoSequenceHeaderSent = false;
+            mAudioSequenceHeaderSent = false;
+            return connected;
+        }
+
+        private void sendFlvTag(ShopLiveFlvFrame frame, SentFlvTags sentTags) {
+            if (frame == null) {
+                return;
+            }
+
+            if (frame.isVideo()) {
+                if (frame.isKeyFrame()) {
+                    Log.i(TAG, String.format("worker: send frame type=%d, dts=%d, size=%dB",
+                            frame.type, frame.dts, frame.flvTag.array().length));
+                }
+                sink.writeVideoTag(frame.flvTag.array(), frame.flvTag.size(), frame.dts);
+            } else if (frame.isAudio()) {
+                sink.writeAudioTag(frame.flvTag.array(), frame.flvTag.size(), frame.dts);
+            }
+            // the sink may write the tag in place, it is only released after the flush.
+            sentTags.add(frame);
+        }
+
+        /**
+         * Ask the drop policy whether a video frame should be skipped, worker thread only.
+         */
+        private boolean shouldDropVideo(ShopLiveFlvFrame frame) {
+            if (mDroppingGop) {
+                if (!frame.isKeyFrame()) {
+                    mGopDropCount.incrementAndGet();
+                    return true;
+                }
+                mDroppingGop = false;
+                Log.i(TAG, String.format("worker: resume video at key frame dts=%d, dropped %d disposable and %d gop frames",
+                        frame.dts, mDisposableDropCount.get(), mGopDropCount.get()));
+            }
+
+            ShopLiveFlvDropPolicy policy = mDropPolicy;
+            if (policy == null) {
+                return false;
+            }
+            int queued = getVideoFrameCacheNumber().get();
+            long inFlight = sink.getBytesInFlight();
+            switch (policy.onVideoFrame(frame.isKeyFrame(), frame.isDisposable(), queued, inFlight)) {
+                case ShopLiveFlvDropPolicy.DROP_DISPOSABLE:
+                    if (frame.isDisposable()) {
+                        mDisposableDropCount.incrementAndGet();
+                        return true;
+                    }
+                    return false;
+                case ShopLiveFlvDropPolicy.DROP_GOP:
+                    Log.w(TAG, String.format("worker: %d video frames queued, %dB in flight, drop gop from dts=%d",
+                            queued, inFlight, frame.dts));
+                    mDroppingGop = true;
+                    // the key frame still goes out, else the video could stay black GOP after GOP.
+                    if (frame.isKeyFrame()) {
+                        return false;
+                    }
+                    mGopDropCount.incrementAndGet();
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private void dropFlvTag(ShopLiveFlvFrame frame) {
+            if (frame.isVideo()) {
+                getVideoFrameCacheNumber().decrementAndGet();
+            }
+            releaseFlvTag(frame);
+        }
+
+        /**
+         * Reconnect with exponential backoff, keeping the tags queued meanwhile in the GOP cache.
+         * Worker thread only.
+         *
+         * @param running the flag of this worker, cleared when the destination stops.
+         * @return false if every attempt failed or the destination stopped.
+         */
+        private boolean reconnect(AtomicBoolean running, FlvTagRing cache, SentFlvTags sentTags, GopCache gops)
+                throws InterruptedException {
+            // the tags handed to the lost connection go back to the allocators.
+            sentTags.flush();
+            int attempts = mReconnectAttempts;
+            long backoffMs = RECONNECT_MIN_BACKOFF_MS;
+            for (int attempt = 1; attempt <= attempts; attempt++) {
+                long deadline = System.nanoTime() + backoffMs * 1000000L;
+                long waitNs;
+                while ((waitNs = deadline - System.nanoTime()) > 0) {
+                    if (!running.get()) {
+                        return false;
+                    }
+                    gops.addAll(cache);
+                    cache.await(Math.max(1, waitNs / 1000000));
+                }
+                gops.addAll(cache);
+                if (!running.get()) {
+                    return false;
+                }
+                Log.i(TAG, String.format("worker: reconnect attempt %d/%d", attempt, attempts));
+                if (sink.reconnect()) {
+                    // and the tags queued while connecting.
+                    gops.addAll(cache);
+                    mVideoSequenceHeaderSent = false;
+                    mAudioSequenceHeaderSent = false;
+                    // with no key frame to resume from, the live video waits for the next one.
+                    mDroppingGop = !gops.replay(sentTags);
+                    Log.i(TAG, String.format("worker: reconnected after %d attempts", attempt));
+                    return true;
+                }
+                backoffMs = Math.min(backoffMs * 2, RECONNECT_MAX_BACKOFF_MS);
+            }
+            return false;
+        }
+
+        /**
+         * start to the remote server or file for remux. Once streaming, the destination first gets the
+         * last sequence headers and then the tags from the next key frame.
+         */
+        public void start(final String rtmpUrl) {
+            final FlvTagRing cache = new FlvTagRing(FLV_TAG_CACHE_SIZE);
+            final SentFlvTags sentTags = new SentFlvTags();
+            final GopCache gops = new GopCache();
+            final AtomicBoolean running = new AtomicBoolean(true);
+            final CountDownLatch exited = new CountDownLatch(1);
+            synchronized (flv) {
+                final CountDownLatch previous = mSinkReleased;
+                // woken through its own ring, before the new one replaces it.
+                stopWorker();
+                mFlvTagCache = cache;
+                started = true;
+                needToFindKeyFrame = true;
+                queueSequenceHeader(mVideoSequenceHeader);
+                queueSequenceHeader(mAudioSequenceHeader);
+                mWorkerRunning = running;
+                mSinkReleased = exited;
+                executor.submit((Callable<Void>) () -> {
+                    try {
+                        // the stopped worker still owns the sink until it has flushed and closed it.
+                        if (previous != null) {
+                            previous.await();
+                        }
+                        mDroppingGop = false;
+                        runWorker(rtmpUrl, running, cache, sentTags, gops);
+                    } catch (InterruptedException e) {
+                        // stopped.
+                    } finally {
+                        ShopLiveFlvFrame frame;
+                        while ((frame = cache.peek()) != null) {
+                            releaseFlvTag(frame);
+                            cache.consume();
+                        }
+                        exited.countDown();
+                    }
+                    return null;
+                });
+            }
+        }
+
+        /**
+         * Send the queued tags until the running flag is cleared.
+         */
+        private void runWorker(String rtmpUrl, AtomicBoolean running, FlvTagRing cache, SentFlvTags sentTags,
+                               GopCache gops) throws InterruptedException {
+            try {
+                // stopped while it waited for the previous worker.
+                if (!running.get() || !connect(rtmpUrl)) {
+                    return;
+                }
+
+                while (running.get()) {
+                    if (sink.isConnectionLost() && mReconnectAttempts > 0) {
+                        if (!reconnect(running, cache, sentTags, gops)) {
+                            if (running.get()) {
+                                Log.e(TAG, "worker: reconnect failed, give up");
+                                sink.abandonReconnect();
+                            }
+                            return;
+                        }
+                    }
+                    ShopLiveFlvFrame frame;
+                    while ((frame = cache.peek()) != null) {
+                        if (frame.isSequenceHeader()) {
+                            if (frame.isVideo()) {
+                                mVideoSequenceHeaderSent = true;
+                            } else if (frame.isAudio()) {
+                                mAudioSequenceHeaderSent = true;
+                            }
+                            gops.setSequenceHeader(frame);
+                            sendFlvTag(frame, sentTags);
+                        } else if (frame.isVideo() && mVideoSequenceHeaderSent) {
+                            if (shouldDropVideo(frame)) {
+                                dropFlvTag(frame);
+                            } else {
+                                sendFlvTag(frame, sentTags);
+                            }
+                        } else if (frame.isAudio() && mAudioSequenceHeaderSent) {
+                            sendFlvTag(frame, sentTags);
+                        } else {
+                            dropFlvTag(frame);
+                        }
+                        cache.consume();
+                    }
+                    // everything queued so far goes out in one batch.
+                    sentTags.flush();
+                    // Waiting for next frame, the muxer unparks us as soon as a tag is queued or
+                    // the destination stops.
+                    cache.await(500);
+                }
+            } finally {
+                sentTags.flush();
+                gops.clear();
+            }
+        }
+
+        /**
+         * stop the destination, close its sink. The muxer keeps feeding the others.
+         */
+        public void stop() {
+            final CountDownLatch closed = new CountDownLatch(1);
+            synchronized (flv) {
+                started = false;
+                stopWorker();
+                final CountDownLatch exited = mSinkReleased;
+                mSinkReleased = closed;
+                // We should not block the main thread
+                executor.submit((Callable<Void>) () -> {
+                    try {
+                        // the worker flushes the sink on its way out, close it only after that.
+                        if (exited != null) {
+                            exited.await();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    try {
+                        disconnect();
+                    } finally {
+                        closed.countDown();
+                    }
+                    return null;
+                });
+            }
+        }
+
+        /**
+         * clear the running flag of the last worker and wake it, with the flv lock held. The worker
+         * is never interrupted: that would close the socket or file channel under a write, so a
+         * blocked write finishes and the worker notices the flag right after.
+         */
+        private void stopWorker() {
+            if (mWorkerRunning != null) {
+                mWorkerRunning.set(false);
+                mWorkerRunning = null;
+                mFlvTagCache.close();
+            }
+        }
+
+        /**
+         * muxer: copy a stored sequence header into the ring of a starting destination.
+         */
+        private void queueSequenceHeader(ShopLiveFlvFrame header) {
+            if (header.flvTag == null || !claimFlvTag(header.type, header.frame_type, header.avc_aac_type)) {
+                return;
+            }
+            ShopLiveAllocator allocator = header.isVideo() ? mVideoAllocator : mAudioAllocator;
+            ShopLiveAllocator.Allocation tag = allocator.allocate(header.flvTag.size());
+            System.arraycopy(header.flvTag.array(), 0, tag.array(), 0, header.flvTag.size());
+            tag.appendOffset(header.flvTag.size());
+            publishFlvTag(tag, header.type, header.dts, header.frame_type, header.avc_aac_type);
+        }
+
+        /**
+         * muxer: reserve a ring slot for the next tag.
+         *
+         * @return false if this destination skips the tag.
+         */
+        private boolean claimFlvTag(int type, int frame_type, int avc_aac_type) {
+            if (!started) {
+                return false;
+            }
+            boolean video = type == SrsCodecFlvTag.Video;
+            if (video && needToFindKeyFrame && avc_aac_type != 0 && frame_type != SrsCodecVideoAVCFrame.KeyFrame) {
+                return false;
+            }
+            mClaimedFrame = mFlvTagCache.claim(avc_aac_type == 0);
+            if (mClaimedFrame == null) {
+                if (video) {
+                    // The dropped picture may be referenced, restart from the next key frame.
+                    needToFindKeyFrame = true;
+                }
+                return false;
+            }
+            if (video && avc_aac_type != 0) {
+                needToFindKeyFrame = false;
+            }
+            return true;
+        }
+
+        /**
+         * muxer: fill the claimed slot and wake the worker.
+         */
+        private void publishFlvTag(ShopLiveAllocator.Allocation tag, int type, int dts, int frame_type, int avc_aac_type) {
+            ShopLiveFlvFrame frame = mClaimedFrame;
+            mClaimedFrame = null;
+            frame.flvTag = tag;
+            frame.type = type;
+            frame.dts = dts;
+            frame.frame_type = frame_type;
+            frame.avc_aac_type = avc_aac_type;
+            if (frame.isVideo()) {
+                getVideoFrameCacheNumber().incrementAndGet();
+            }
+            mFlvTagCache.publish();
+        }
+
+        /**
+         * The tags a worker handed to the sink since its last flush. The sink may write them in
+         * place, so they go back to the allocators only once flushed.
+         */
+        private class SentFlvTags {
+            private final ArrayList<ShopLiveAllocator.Allocation> videoTags = new ArrayList<>();
+            private final ArrayList<ShopLiveAllocator.Allocation> audioTags = new ArrayList<>();
+
+            public void add(ShopLiveFlvFrame frame) {
+                if (frame.isVideo()) {
+                    videoTags.add(frame.flvTag);
+                } else if (frame.isAudio()) {
+                    audioTags.add(frame.flvTag);
+                }
+            }
+
+            /**
+             * write the sent tags in one batch and release them.
+             */
+            public void flush() {
+                if (videoTags.isEmpty() && audioTags.isEmpty()) {
+                    return;
+                }
+                sink.flush();
+                for (int i = 0; i < videoTags.size(); i++) {
+                    mVideoAllocator.release(videoTags.get(i));
+                }
+                for (int i = 0; i < audioTags.size(); i++) {
+                    mAudioAllocator.release(audioTags.get(i));
+                }
+                videoTags.clear();
+                audioTags.clear();
+            }
+        }
+
+        /**
+         * The tags a reconnect replays, worker thread only: the last sequence headers, then the GOPs
+         * queued while disconnected. It always starts at a key frame and keeps at most the
+         * configured number of GOPs, the oldest go first.
+         */
+        private class GopCache {
+            private final ArrayDeque<ShopLiveFlvFrame> tags = new ArrayDeque<>();
+            private final ShopLiveFlvFrame videoHeader = new ShopLiveFlvFrame();
+            private final ShopLiveFlvFrame audioHeader = new ShopLiveFlvFrame();
+            private int gopCount;
+            private long bytes;
+
+            /**
+             * remember a sequence header, its bytes are copied.
+             */
+            public void setSequenceHeader(ShopLiveFlvFrame frame) {
+                ShopLiveFlvFrame header = frame.isVideo() ? videoHeader : audioHeader;
+                header.copyOf(frame.flvTag, frame.type, frame.dts, frame.frame_type, frame.avc_aac_type);
+            }
+
+            /**
+             * move the queued tags in, they leave the video frame count of the sink.
+             */
+            public void addAll(FlvTagRing cache) {
+                ShopLiveFlvFrame frame;
+                while ((frame = cache.peek()) != null) {
+                    if (frame.isVideo()) {
+                        getVideoFrameCacheNumber().decrementAndGet();
+                    }
+                    add(frame);
+                    cache.consume();
+                }
+            }
+
+            private void add(ShopLiveFlvFrame frame) {
+                if (frame.isSequenceHeader()) {
+                    setSequenceHeader(frame);
+                    if (frame.isVideo()) {
+                        // the older pictures do not decode with the new header.
+                        clear();
+                    }
+                    releaseFlvTag(frame);
+                    return;
+                }
+                if (frame.isKeyFrame()) {
+                    gopCount++;
+                    while (gopCount > mReconnectGops) {
+                        dropOldestGop();
+                    }
+                } else if (gopCount == 0) {
+                    releaseFlvTag(frame);
+                    return;
+                }
+
+                ShopLiveFlvFrame tag = new ShopLiveFlvFrame();
+                tag.flvTag = frame.flvTag;
+                tag.type = frame.type;
+                tag.dts = frame.dts;
+                tag.frame_type = frame.frame_type;
+                tag.avc_aac_type = frame.avc_aac_type;
+                tags.add(tag);
+                bytes += tag.flvTag.size();
+                while (bytes > MAX_GOP_CACHE_BYTES && gopCount > 1) {
+                    dropOldestGop();
+                }
+                if (bytes > MAX_GOP_CACHE_BYTES) {
+                    // a single GOP too large to keep, start over at the next key frame.
+                    clear();
+                }
+            }
+
+            private void dropOldestGop() {
+                ShopLiveFlvFrame tag = tags.poll();
+                while (tag != null) {
+                    bytes -= tag.flvTag.size();
+                    releaseFlvTag(tag);
+                    tag = tags.peek();
+                    if (tag != null && tag.isKeyFrame()) {
+                        break;
+                    }
+                    tags.poll();
+                }
+                gopCount--;
+            }
+
+            /**
+             * send the sequence headers and the cached GOPs on the new connection.
+             *
+             * @return false if no key frame was cached to resume from.
+             */
+            public boolean replay(SentFlvTags sentTags) {
+                boolean resumed = gopCount > 0;
+                if (videoHeader.flvTag != null) {
+                    getVideoFrameCacheNumber().incrementAndGet();
+                    sink.writeVideoTag(videoHeader.flvTag.array(), videoHeader.flvTag.size(), videoHeader.dts);
+                    mVideoSequenceHeaderSent = true;
+                }
+                if (audioHeader.flvTag != null) {
+                    sink.writeAudioTag(audioHeader.flvTag.array(), audioHeader.flvTag.size(), audioHeader.dts);
+                    mAudioSequenceHeaderSent = true;
+                }
+                ShopLiveFlvFrame tag;
+                while ((tag = tags.poll()) != null) {
+                    if (tag.isVideo()) {
+                        getVideoFrameCacheNumber().incrementAndGet();
+                    }
+                    sendFlvTag(tag, sentTags);
+                }
+                Log.i(TAG, String.format("worker: replayed %d GOPs, %dB", gopCount, bytes));
+                gopCount = 0;
+                bytes = 0;
+                sentTags.flush();
+                return resumed;
+            }
+
+            public void clear() {
+                ShopLiveFlvFrame tag;
+                while ((tag = tags.poll()) != null) {
+                    releaseFlvTag(tag);
+                }
+                gopCount = 0;
+                bytes = 0;
+            }
+        }
+    }
+
+    /**
+     * Bounded single-producer/single-consumer ring of preallocated flv frames.
+     * The producer is the muxer, serialized by the flv lock, and the consumer is the
+     * sender worker. When the ring is full the incoming tag is dropped and counted; a few
+     * slots are reserved for sequence headers so they are never lost to audio/video.
+     */
+    private class FlvTagRing {
+        private static final int RESERVED_SLOTS = 2;
+
+        private final ShopLiveFlvFrame[] slots;
+        private final int mask;
+        private final AtomicLong head = new AtomicLong(0);
+        private final AtomicLong tail = new AtomicLong(0);
+        private volatile Thread waiter;
+        private volatile boolean closed;
+        private volatile long overflowCount;
+        private volatile int highWaterMark;
+
+        FlvTagRing(int capacity) {
+            int size = Integer.highestOneBit(capacity - 1) << 1;
+            slots = new ShopLiveFlvFrame[size];
+            for (int i = 0; i < size; i++) {
+                slots[i] = new ShopLiveFlvFrame();
+            }
+            mask = size - 1;
+        }
+
+        /**
+         * producer: obtain the next free slot, or null when the ring is full.
+         */
+        public ShopLiveFlvFrame claim(boolean isSequenceHeader) {
+            long t = tail.get();
+            int depth = (int) (t - head.get());
+            int free = slots.length - depth;
+            if (free <= 0 || (!isSequenceHeader && free <= RESERVED_SLOTS)) {
+                overflowCount++;
+                return null;
+            }
+            if (depth + 1 > highWaterMark) {
+                highWaterMark = depth + 1;
+            }
+            return slots[(int) t & mask];
+        }
+
+        /**
+         * producer: make the claimed slot visible and wake the consumer if it is parked.
+         */
+        public void publish() {
+            tail.set(tail.get() + 1);
+            Thread t = waiter;
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
+
+        /**
+         * consumer: the oldest queued frame, or null when empty.
+         */
+        public ShopLiveFlvFrame peek() {
+            long h = head.get();
+            return h == tail.get() ? null : slots[(int) h & mask];
+        }
+
+        /**
+         * consumer: give the peeked slot back to the producer.
+         */
+        public void consume() {
+            ShopLiveFlvFrame frame = slots[(int) head.get() & mask];
+            frame.flvTag = null;
+            head.lazySet(head.get() + 1);
+        }
+
+        /**
+         * the consumer was stopped: wake it, and it never parks again.
+         */
+        public void close() {
+            closed = true;
+            Thread t = waiter;
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
+
+        /**
+         * consumer: park until a frame is published or the timeout elapses.
+         *
+         * @throws InterruptedException if the consumer was interrupted.
+         */
+        public void await(long timeoutMs) throws InterruptedException {
+            // parkNanos returns at once while interrupted, a stopped worker must not spin on it.
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            waiter = Thread.currentThread();
+            if (head.get() == tail.get() && !closed) {
+                LockSupport.parkNanos(this, timeoutMs * 1000000L);
+            }
+            waiter = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+
+        public long getOverflowCount() {
+            return overflowCount;
+        }
+
+        public int getHighWaterMark() {
+            return highWaterMark;
+        }
     }
 
     /**
@@ -461,21 +1381,13 @@ public class ShopLiveFlvMuxer {
     private class SrsRawH264Stream {
         private final static String TAG = "SrsFlvMuxer";
 
-        private SrsAnnexbSearch annexb = new SrsAnnexbSearch();
+        private final ShopLiveNalSplitter nals = new ShopLiveNalSplitter();
         private SrsFlvFrameBytes seq_hdr = new SrsFlvFrameBytes();
         private SrsFlvFrameBytes sps_hdr = new SrsFlvFrameBytes();
         private SrsFlvFrameBytes sps_bb = new SrsFlvFrameBytes();
         private SrsFlvFrameBytes pps_hdr = new SrsFlvFrameBytes();
         private SrsFlvFrameBytes pps_bb = new SrsFlvFrameBytes();
 
-        public boolean isSps(SrsFlvFrameBytes frame) {
-            return frame.size >= 1 && (frame.data.get(0) & 0x1f) == SrsAvcNaluType.SPS;
-        }
-
-        public boolean isPps(SrsFlvFrameBytes frame) {
-            return frame.size >= 1 && (frame.data.get(0) & 0x1f) == SrsAvcNaluType.PPS;
-        }
-
         public SrsFlvFrameBytes muxNaluHeader(SrsFlvFrameBytes frame) {
             SrsFlvFrameBytes nalu_hdr = new SrsFlvFrameBytes();
             nalu_hdr.data = ByteBuffer.allocate(4);
@@ -623,67 +1535,16 @@ public class ShopLiveFlvMuxer {
             return allocation;
         }
 
-        private SrsAnnexbSearch searchStartcode(ByteBuffer bb, MediaCodec.BufferInfo bi) {
-            annexb.match = false;
-            annexb.nb_start_code = 0;
-            if (bi.size - 4 > 0) {
-                if (bb.get(0) == 0x00 && bb.get(1) == 0x00 && bb.get(2) == 0x00 && bb.get(3) == 0x01) {
-                    // match N[00] 00 00 00 01, where N>=0
-                    annexb.match = true;
-                    annexb.nb_start_code = 4;
-                } else if (bb.get(0) == 0x00 && bb.get(1) == 0x00 && bb.get(2) == 0x01) {
-                    // match N[00] 00 00 01, where N>=0
-                    annexb.match = true;
-                    annexb.nb_start_code = 3;
-                }
-            }
-            return annexb;
-        }
-
-        private SrsAnnexbSearch searchAnnexb(ByteBuffer bb, MediaCodec.BufferInfo bi) {
-            annexb.match = false;
-            annexb.nb_start_code = 0;
-            for (int i = bb.position(); i < bi.size - 4; i++) {
-                // not match.
-                if (bb.get(i) != 0x00 || bb.get(i + 1) != 0x00) {
-                    continue;
-                }
-                // match N[00] 00 00 01, where N>=0
-                if (bb.get(i + 2) == 0x01) {
-                    annexb.match = true;
-                    annexb.nb_start_code = i + 3 - bb.position();
-                    break;
-                }
-                // match N[00] 00 00 00 01, where N>=0
-                if (bb.get(i + 2) == 0x00 && bb.get(i + 3) == 0x01) {
-                    annexb.match = true;
-                    annexb.nb_start_code = i + 4 - bb.position();
-                    break;
-                }
-            }
-            return annexb;
-        }
-
-        public SrsFlvFrameBytes demuxAnnexb(ByteBuffer bb, MediaCodec.BufferInfo bi, boolean isOnlyChkHeader) {
+        /**
+         * @return a view on the i-th NAL unit of the split access unit, without its start code.
+         */
+        public SrsFlvFrameBytes demuxNalu(ByteBuffer bb, ShopLiveNalSplitter nals, int i) {
             SrsFlvFrameBytes tbb = new SrsFlvFrameBytes();
-            if (bb.position() < bi.size - 4) {
-                // each frame must prefixed by annexb format.
-                // about annexb, @see H.264-AVC-ISO_IEC_14496-10.pdf, page 211.
-                SrsAnnexbSearch tbbsc = isOnlyChkHeader ? searchStartcode(bb, bi) : searchAnnexb(bb, bi);
-                // tbbsc.nb_start_code always 4 , after 00 00 00 01
-                if (!tbbsc.match || tbbsc.nb_start_code < 3) {
-                    Log.e(TAG, "annexb not match.");
-                } else {
-                    // the start codes.
-                    for (int i = 0; i < tbbsc.nb_start_code; i++) {
-                        bb.get();
-                    }
-
-                    // find out the frame size.
-                    tbb.data = bb.slice();
-                    tbb.size = bi.size - bb.position();
-                }
-            }
+            ByteBuffer nalu = bb.duplicate();
+            nalu.limit(nals.offset(i) + nals.length(i));
+            nalu.position(nals.offset(i));
+            tbb.data = nalu.slice();
+            tbb.size = nals.length(i);
             return tbb;
         }
     }
@@ -878,70 +1739,87 @@ public class ShopLiveFlvMuxer {
             frame[offset + 6] |= 0x0;
         }
 
-        public void writeVideoSample(final ByteBuffer bb, MediaCodec.BufferInfo bi) {
+        /**
+         * @param nals the NAL units of the access unit if the caller already split it, or null to
+         *             split it here.
+         */
+        public void writeVideoSample(final ByteBuffer bb, MediaCodec.BufferInfo bi, long dtsUs,
+                                     @Nullable ShopLiveNalSplitter nals) {
             if (bi.size < 4) return;
+            if (nals == null) {
+                nals = avc.nals;
+                nals.split(bb, bi.offset, bi.size);
+            }
 
+            // the tag carries pts - dts as its composition time.
             int pts = (int) (bi.presentationTimeUs / 1000);
-            int dts = pts;
-            int type = SrsCodecVideoAVCFrame.InterFrame;
-            SrsFlvFrameBytes frame = avc.demuxAnnexb(bb, bi, true);
-            int nal_unit_type = frame.data.get(0) & 0x1f;
-            if (nal_unit_type == SrsAvcNaluType.IDR) {
-                type = SrsCodecVideoAVCFrame.KeyFrame;
-            } else if (nal_unit_type == SrsAvcNaluType.SPS || nal_unit_type == SrsAvcNaluType.PPS) {
-                SrsFlvFrameBytes frame_pps = avc.demuxAnnexb(bb, bi, false);
-                frame.size = frame.size - frame_pps.size - 4;  // 4 ---> 00 00 00 01 pps
-                if (!frame.data.equals(h264_sps)) {
-                    byte[] sps = new byte[frame.size];
-                    frame.data.get(sps);
-                    h264_sps_changed = true;
-                    h264_sps = ByteBuffer.wrap(sps);
-//                    writeH264SpsPps(dts, pts);
-                }
-
-                SrsFlvFrameBytes frame_sei = avc.demuxAnnexb(bb, bi, false);
-                if (frame_sei.size > 0) {
-                    if (SrsAvcNaluType.SEI == (int) (frame_sei.data.get(0) & 0x1f))
-                        frame_pps.size = frame_pps.size - frame_sei.size - 3;// 3 ---> 00 00 01 SEI
-                }
-
-                if (!frame_pps.data.equals(h264_pps)) {
-                    byte[] pps = new byte[frame_pps.size];
-                    frame_pps.data.get(pps);
-                    h264_pps_changed = true;
-                    h264_pps = ByteBuffer.wrap(pps);
-                    //writeH264SpsPps(dts, pts);
-                }
-
-
-                if (h264_sps_changed || h264_pps_changed) {
-                    writeH264SpsPps(dts, pts);
-                    h264_sps_pps_changed = true;
+            int dts = (int) (dtsUs / 1000);
+            // the encoder flags the recovery points of intra refresh as keyframes too, they are sync points without an IDR.
+            int type = (bi.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0
+                    ? SrsCodecVideoAVCFrame.KeyFrame : SrsCodecVideoAVCFrame.InterFrame;
+            boolean disposable = true;
+            int slices = 0;
+            int size = 0;
+            for (int i = 0; i < nals.count(); i++) {
+                int nal_unit_type = nals.type(i);
+                if (nal_unit_type == SrsAvcNaluType.SPS) {
+                    SrsFlvFrameBytes frame = avc.demuxNalu(bb, nals, i);
+                    if (!frame.data.equals(h264_sps)) {
+                        byte[] sps = new byte[frame.size];
+                        frame.data.get(sps);
+                        h264_sps_changed = true;
+                        h264_sps = ByteBuffer.wrap(sps);
+                    }
+                } else if (nal_unit_type == SrsAvcNaluType.PPS) {
+                    SrsFlvFrameBytes frame = avc.demuxNalu(bb, nals, i);
+                    if (!frame.data.equals(h264_pps)) {
+                        byte[] pps = new byte[frame.size];
+                        frame.data.get(pps);
+                        h264_pps_changed = true;
+                        h264_pps = ByteBuffer.wrap(pps);
+                    }
+                } else if (nal_unit_type == SrsAvcNaluType.IDR || nal_unit_type == SrsAvcNaluType.NonIDR
+                        || nal_unit_type == SrsAvcNaluType.SEI) {
+                    // every slice of the picture goes in the tag, with the SEI ahead of them.
+                    SrsFlvFrameBytes frame = avc.demuxNalu(bb, nals, i);
+                    ipbs.add(avc.muxNaluHeader(frame));
+                    ipbs.add(frame);
+                    size += frame.size;
+                    if (nal_unit_type != SrsAvcNaluType.SEI) {
+                        if (nal_unit_type == SrsAvcNaluType.IDR) {
+                            type = SrsCodecVideoAVCFrame.KeyFrame;
+                        }
+                        // nal_ref_idc 0 means no other picture references this one, it can be dropped safely.
+                        disposable &= nals.refIdc(i) == 0;
+                        slices++;
+                    }
                 }
+            }
 
-                return;
-            } else if (nal_unit_type != SrsAvcNaluType.NonIDR) {
+            if (h264_sps_changed || h264_pps_changed) {
+                writeH264SpsPps(dts, pts);
+                h264_sps_pps_changed = true;
+            }
+            if (slices == 0) {
+                ipbs.clear();
                 return;
             }
+            disposable &= type == SrsCodecVideoAVCFrame.InterFrame;
 
             if (type == SrsCodecVideoAVCFrame.KeyFrame && h264_sps_pps_changed) {
                 //prepend SPS\PPS to IDR
                 SrsFlvFrameBytes sps_frame = new SrsFlvFrameBytes(h264_sps);
                 SrsFlvFrameBytes pps_frame = new SrsFlvFrameBytes(h264_pps);
 
-                ipbs.add(avc.muxNaluHeader(sps_frame));
-                ipbs.add(sps_frame);
-                ipbs.add(avc.muxNaluHeader(pps_frame));
-                ipbs.add(pps_frame);
+                ipbs.add(0, pps_frame);
+                ipbs.add(0, avc.muxNaluHeader(pps_frame));
+                ipbs.add(0, sps_frame);
+                ipbs.add(0, avc.muxNaluHeader(sps_frame));
                 h264_sps_pps_changed = false;
-                Log.i(TAG, String.format("prepend key frame SPS/PPS. DTS: %d, SPS/PPS size: %d/%d, IDR size: %d", dts, sps_frame.size, pps_frame.size, frame.size));
+                Log.i(TAG, String.format("prepend key frame SPS/PPS. DTS: %d, SPS/PPS size: %d/%d, IDR size: %d", dts, sps_frame.size, pps_frame.size, size));
             }
 
-            ipbs.add(avc.muxNaluHeader(frame));
-            ipbs.add(frame);
-
-            //writeH264SpsPps(dts, pts);
-            writeH264IpbFrame(ipbs, type, dts, pts);
+            writeH264IpbFrame(ipbs, type, disposable, dts, pts);
             ipbs.clear();
         }
 
@@ -978,7 +1856,7 @@ public class ShopLiveFlvMuxer {
                     h264_sps.array().length, h264_pps.array().length));
         }
 
-        private void writeH264IpbFrame(ArrayList<SrsFlvFrameBytes> frames, int type, int dts, int pts) {
+        private void writeH264IpbFrame(ArrayList<SrsFlvFrameBytes> frames, int type, boolean disposable, int dts, int pts) {
             // when sps or pps not sent, ignore the packet.
             // @see https://github.com/simple-rtmp-server/srs/issues/203
             if (!h264_sps_pps_sent) {
@@ -988,40 +1866,57 @@ public class ShopLiveFlvMuxer {
             video_tag = avc.muxFlvTag(frames, type, SrsCodecVideoAVCType.NALU, dts, pts);
 
             // the timestamp in rtmp message header is dts.
-            writeRtmpPacket(SrsCodecFlvTag.Video, dts, type, SrsCodecVideoAVCType.NALU, video_tag);
+            // the tag keeps the AVC inter frame type, only the queued frame is marked disposable.
+            writeRtmpPacket(SrsCodecFlvTag.Video, dts,
+                    disposable ? SrsCodecVideoAVCFrame.DisposableInterFrame : type,
+                    SrsCodecVideoAVCType.NALU, video_tag);
         }
 
         private void writeRtmpPacket(int type, int dts, int frame_type, int avc_aac_type, ShopLiveAllocator.Allocation tag) {
-            ShopLiveFlvFrame frame = new ShopLiveFlvFrame();
-            frame.flvTag = tag;
-            frame.type = type;
-            frame.dts = dts;
-            frame.frame_type = frame_type;
-            frame.avc_aac_type = avc_aac_type;
-
-            if (frame.isVideo()) {
+            if (type == SrsCodecFlvTag.Video) {
                 if (needToFindKeyFrame) {
-                    if (frame.isKeyFrame()) {
+                    if (frame_type == SrsCodecVideoAVCFrame.KeyFrame) {
                         needToFindKeyFrame = false;
-                        flvTagCacheAdd(frame);
+                        flvTagCacheAdd(type, dts, frame_type, avc_aac_type, tag);
+                    } else {
+                        mVideoAllocator.release(tag);
                     }
                 } else {
-                    flvTagCacheAdd(frame);
+                    flvTagCacheAdd(type, dts, frame_type, avc_aac_type, tag);
                 }
-            } else if (frame.isAudio()) {
-                flvTagCacheAdd(frame);
+            } else if (type == SrsCodecFlvTag.Audio) {
+                flvTagCacheAdd(type, dts, frame_type, avc_aac_type, tag);
             }
         }
 
-        private void flvTagCacheAdd(ShopLiveFlvFrame frame) {
-            if (started.get()) {
-                mFlvTagCache.add(frame);
-                if (frame.isVideo()) {
-                    getVideoFrameCacheNumber().incrementAndGet();
+        private void flvTagCacheAdd(int type, int dts, int frame_type, int avc_aac_type, ShopLiveAllocator.Allocation tag) {
+            if (avc_aac_type == 0) {
+                ShopLiveFlvFrame header = type == SrsCodecFlvTag.Video ? mVideoSequenceHeader : mAudioSequenceHeader;
+                header.copyOf(tag, type, dts, frame_type, avc_aac_type);
+            }
+
+            int claimed = 0;
+            for (int i = 0; i < mDestinations.size(); i++) {
+                if (mDestinations.get(i).claimFlvTag(type, frame_type, avc_aac_type)) {
+                    claimed++;
                 }
             }
-            synchronized (txFrameLock) {
-                txFrameLock.notifyAll();
+            if (claimed == 0) {
+                if (type == SrsCodecFlvTag.Video) {
+                    mVideoAllocator.release(tag);
+                } else {
+                    mAudioAllocator.release(tag);
+                }
+                return;
+            }
+
+            // every destination sends the same bytes and releases its own reference.
+            tag.retain(claimed - 1);
+            for (int i = 0; i < mDestinations.size(); i++) {
+                Destination destination = mDestinations.get(i);
+                if (destination.mClaimedFrame != null) {
+                    destination.publishFlvTag(tag, type, dts, frame_type, avc_aac_type);
+                }
             }
         }
     }
@@ -0,0 +1,64 @@
+package cloud.shoplive.studio;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Where a {@link ShopLiveFlvMuxer.Destination} writes the muxed FLV tags.
+ * <p>
+ * The tags are FLV tag bodies, the AUDIODATA and VIDEODATA an RTMP message carries. A file or
+ * HTTP-FLV sink frames them with the tag header and PreviousTagSize, see {@link ShopLiveFlvFraming}.
+ * Every method but the statistics is called from the destination worker, and a tag body stays
+ * unchanged until the next {@link #flush()}.
+ */
+public interface ShopLiveFlvTagSink {
+
+    /**
+     * @param url where the tags go, the sink decides the format.
+     * @return false if it failed, the handler has been notified.
+     */
+    boolean open(String url);
+
+    void writeVideoTag(byte[] data, int size, int dts);
+
+    void writeAudioTag(byte[] data, int size, int dts);
+
+    /**
+     * the worker handed in everything queued so far, write it as the sink sees fit.
+     */
+    void flush();
+
+    void close();
+
+    /**
+     * @return the video tags queued but not written yet. The destination counts a tag up when it
+     * queues it, the sink counts it down once written or dropped.
+     */
+    AtomicInteger getVideoFrameCacheNumber();
+
+    long getBytesSent();
+
+    /**
+     * @return the bytes written but not confirmed by the receiver yet, 0 if it never confirms.
+     */
+    long getBytesInFlight();
+
+    /**
+     * @param autoReconnect keep an output failure for {@link #abandonReconnect()} instead of
+     *                      notifying it, so the destination can {@link #reconnect()}.
+     */
+    void setAutoReconnect(boolean autoReconnect);
+
+    boolean isConnectionLost();
+
+    /**
+     * open the last url again after the output failed.
+     *
+     * @return false if it failed or the sink cannot reconnect.
+     */
+    boolean reconnect();
+
+    /**
+     * notify the failure kept since the output was lost, the destination stops reconnecting.
+     */
+    void abandonReconnect();
+}
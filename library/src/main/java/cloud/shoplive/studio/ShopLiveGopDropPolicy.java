@@ -0,0 +1,48 @@
+package cloud.shoplive.studio;
+
+/**
+ * Default drop policy driven by the number of queued video frames and the bytes in flight.
+ * Non-reference pictures go first, whole GOPs only when the queue keeps growing. A key frame is
+ * always kept: the bytes in flight do not fall by dropping queued frames, so dropping key frames
+ * could starve the video for GOP after GOP. The GOP is dropped from the frame after it instead.
+ */
+public class ShopLiveGopDropPolicy implements ShopLiveFlvDropPolicy {
+
+    private final int disposableThreshold;
+    private final int gopThreshold;
+    private final long maxBytesInFlight;
+
+    /**
+     * @param disposableThreshold queued video frames above which non-reference pictures are dropped.
+     * @param gopThreshold        queued video frames above which the rest of the GOP is dropped.
+     */
+    public ShopLiveGopDropPolicy(int disposableThreshold, int gopThreshold) {
+        this(disposableThreshold, gopThreshold, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param disposableThreshold queued video frames above which non-reference pictures are dropped.
+     * @param gopThreshold        queued video frames above which the rest of the GOP is dropped.
+     * @param maxBytesInFlight    unacknowledged bytes above which non-reference pictures are dropped,
+     *                            and twice that the rest of the GOP.
+     */
+    public ShopLiveGopDropPolicy(int disposableThreshold, int gopThreshold, long maxBytesInFlight) {
+        this.disposableThreshold = disposableThreshold;
+        this.gopThreshold = gopThreshold;
+        this.maxBytesInFlight = maxBytesInFlight;
+    }
+
+    @Override
+    public int onVideoFrame(boolean isKeyFrame, boolean isDisposable, int queuedVideoFrames, long bytesInFlight) {
+        if (isKeyFrame) {
+            return KEEP;
+        }
+        if (queuedVideoFrames > gopThreshold || bytesInFlight / 2 > maxBytesInFlight) {
+            return DROP_GOP;
+        }
+        if ((queuedVideoFrames > disposableThreshold || bytesInFlight > maxBytesInFlight) && isDisposable) {
+            return DROP_DISPOSABLE;
+        }
+        return KEEP;
+    }
+}
@@ -0,0 +1,233 @@
+package cloud.shoplive.studio;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.github.faucamp.simplertmp.RtmpHandler;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams the FLV tags as the chunked body of an HTTP POST, the HTTP-FLV a local server or
+ * relay ingests. Each flush of the worker goes out as one chunk or a few, so the server sees the
+ * tags as soon as the RTMP sink would send them. The events are reported to an {@link RtmpHandler}
+ * like those of an RTMP connection.
+ */
+public class ShopLiveHttpFlvSink implements ShopLiveFlvTagSink {
+
+    private static final String TAG = "ShopLiveHttpFlvSink";
+    // the largest chunk, smaller ones go out on every flush.
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int TIMEOUT_MS = 3000;
+
+    private final RtmpHandler mHandler;
+    private final byte[] header = new byte[ShopLiveFlvFraming.TAG_HEADER_SIZE];
+    private final AtomicInteger videoFrameCacheNumber = new AtomicInteger(0);
+    @Nullable
+    private HttpURLConnection connection;
+    @Nullable
+    private OutputStream out;
+    @Nullable
+    private String url;
+    private volatile long bytesSent;
+    private volatile boolean autoReconnect;
+    private volatile boolean connectionLost;
+    private boolean reconnecting;
+    @Nullable
+    private IOException lostCause;
+
+    /**
+     * @param handler the event handler, as for an RTMP destination.
+     */
+    public ShopLiveHttpFlvSink(RtmpHandler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * @param url the http url to POST the stream to.
+     */
+    @Override
+    public synchronized boolean open(String url) {
+        this.url = url;
+        mHandler.notifyRtmpConnecting("Connecting");
+        try {
+            URLConnection urlConnection = new URL(url).openConnection();
+            if (!(urlConnection instanceof HttpURLConnection)) {
+                mHandler.notifyRtmpIllegalArgumentException(new IllegalArgumentException(
+                        "Invalid HTTP-FLV URL. Must be in format: http://host[:port]/path"));
+                return false;
+            }
+            connection = (HttpURLConnection) urlConnection;
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "video/x-flv");
+            connection.setChunkedStreamingMode(CHUNK_SIZE);
+            out = new BufferedOutputStream(connection.getOutputStream(), CHUNK_SIZE);
+            byte[] fileHeader = ShopLiveFlvFraming.fileHeader(true, true);
+            out.write(fileHeader);
+            bytesSent = fileHeader.length;
+        } catch (IOException e) {
+            fail(e);
+            return false;
+        }
+        mHandler.notifyRtmpConnected("Connected");
+        return true;
+    }
+
+    @Override
+    public void writeVideoTag(byte[] data, int size, int dts) {
+        writeTag(ShopLiveFlvFraming.TAG_TYPE_VIDEO, data, size, dts);
+        videoFrameCacheNumber.decrementAndGet();
+    }
+
+    @Override
+    public void writeAudioTag(byte[] data, int size, int dts) {
+        writeTag(ShopLiveFlvFraming.TAG_TYPE_AUDIO, data, size, dts);
+    }
+
+    private synchronized void writeTag(int type, byte[] data, int size, int dts) {
+        if (out == null) {
+            return;
+        }
+        try {
+            ShopLiveFlvFraming.tagHeader(header, type, size, dts);
+            out.write(header, 0, ShopLiveFlvFraming.TAG_HEADER_SIZE);
+            out.write(data, 0, size);
+            ShopLiveFlvFraming.previousTagSize(header, size);
+            out.write(header, 0, ShopLiveFlvFraming.PREVIOUS_TAG_SIZE);
+            bytesSent += ShopLiveFlvFraming.TAG_HEADER_SIZE + size + ShopLiveFlvFraming.PREVIOUS_TAG_SIZE;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public synchronized void flush() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.flush();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (url == null) {
+            return;
+        }
+        if (out != null) {
+            try {
+                // the last chunk ends the body, then the server answers.
+                out.close();
+                Log.i(TAG, "close(): server answered " + connection.getResponseCode());
+            } catch (IOException e) {
+                Log.w(TAG, "close(): " + e.getMessage());
+            }
+        }
+        disconnect();
+        url = null;
+        connectionLost = false;
+        lostCause = null;
+        mHandler.notifyRtmpStopped();
+        mHandler.notifyRtmpDisconnected();
+    }
+
+    /**
+     * the request failed, notify it unless a reconnect may follow, the first open is not retried.
+     */
+    private void fail(IOException e) {
+        boolean streaming = out != null;
+        disconnect();
+        if (autoReconnect && (streaming || reconnecting)) {
+            connectionLost = true;
+            if (lostCause == null) {
+                lostCause = e;
+                Log.w(TAG, "connection lost: " + e + ", waiting for reconnect");
+            }
+            return;
+        }
+        Log.e(TAG, "Caught IOException, shutting down: " + e.getMessage());
+        notifyException(e);
+    }
+
+    private void notifyException(IOException e) {
+        if (e instanceof SocketException) {
+            mHandler.notifyRtmpSocketException((SocketException) e);
+        } else {
+            mHandler.notifyRtmpIOException(e);
+        }
+    }
+
+    private void disconnect() {
+        if (connection != null) {
+            connection.disconnect();
+        }
+        connection = null;
+        out = null;
+    }
+
+    @Override
+    public AtomicInteger getVideoFrameCacheNumber() {
+        return videoFrameCacheNumber;
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    @Override
+    public long getBytesInFlight() {
+        return 0;
+    }
+
+    @Override
+    public void setAutoReconnect(boolean autoReconnect) {
+        this.autoReconnect = autoReconnect;
+    }
+
+    @Override
+    public boolean isConnectionLost() {
+        return connectionLost;
+    }
+
+    @Override
+    public synchronized boolean reconnect() {
+        if (url == null) {
+            return false;
+        }
+        reconnecting = true;
+        try {
+            if (!open(url)) {
+                return false;
+            }
+        } finally {
+            reconnecting = false;
+        }
+        connectionLost = false;
+        lostCause = null;
+        return true;
+    }
+
+    @Override
+    public synchronized void abandonReconnect() {
+        IOException cause = lostCause;
+        lostCause = null;
+        if (cause != null) {
+            notifyException(cause);
+        }
+    }
+}
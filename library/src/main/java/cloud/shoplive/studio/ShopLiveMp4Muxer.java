@@ -11,6 +11,7 @@ import com.coremedia.iso.IsoFile;
 import com.coremedia.iso.IsoTypeWriter;
 import com.coremedia.iso.boxes.AbstractMediaHeaderBox;
 import com.coremedia.iso.boxes.Box;
+import com.coremedia.iso.boxes.CompositionTimeToSample;
 import com.coremedia.iso.boxes.ContainerBox;
 import com.coremedia.iso.boxes.DataEntryUrlBox;
 import com.coremedia.iso.boxes.DataInformationBox;
@@ -33,6 +34,15 @@ import com.coremedia.iso.boxes.TimeToSampleBox;
 import com.coremedia.iso.boxes.TrackBox;
 import com.coremedia.iso.boxes.TrackHeaderBox;
 import com.coremedia.iso.boxes.VideoMediaHeaderBox;
+import com.coremedia.iso.boxes.fragment.MovieExtendsBox;
+import com.coremedia.iso.boxes.fragment.MovieFragmentBox;
+import com.coremedia.iso.boxes.fragment.MovieFragmentHeaderBox;
+import com.coremedia.iso.boxes.fragment.SampleFlags;
+import com.coremedia.iso.boxes.fragment.TrackExtendsBox;
+import com.coremedia.iso.boxes.fragment.TrackFragmentBaseMediaDecodeTimeBox;
+import com.coremedia.iso.boxes.fragment.TrackFragmentBox;
+import com.coremedia.iso.boxes.fragment.TrackFragmentHeaderBox;
+import com.coremedia.iso.boxes.fragment.TrackRunBox;
 import com.coremedia.iso.boxes.h264.AvcConfigurationBox;
 import com.coremedia.iso.boxes.sampleentry.AudioSampleEntry;
 import com.coremedia.iso.boxes.sampleentry.VisualSampleEntry;
@@ -72,6 +82,8 @@ public class ShopLiveMp4Muxer {
     private static final String TAG = "ShopLiveMp4Muxer";
     private static final int VIDEO_TRACK = 100;
     private static final int AUDIO_TRACK = 101;
+    // a keyframe this early still ends the fragment, the frame times do not add up to the duration.
+    private static final long FRAGMENT_DURATION_TOLERANCE_US = 20 * 1000;
 
     private File mRecFile;
     private ShopLiveRecordHandler mHandler;
@@ -79,7 +91,10 @@ public class ShopLiveMp4Muxer {
     private MediaFormat videoFormat = null;
     private MediaFormat audioFormat = null;
 
-    private ShopLiveRawH264Stream avc = new ShopLiveRawH264Stream();
+    // the NAL units of frames the pool did not split, one splitter per thread.
+    private final ShopLiveNalSplitter avc = new ShopLiveNalSplitter();
+    private final ShopLiveNalSplitter writerAvc = new ShopLiveNalSplitter();
+    private final ByteBuffer nalLength = ByteBuffer.allocate(4);
     private Mp4Movie mp4Movie = new Mp4Movie();
 
     private boolean aacSpecConfig = false;
@@ -98,6 +113,16 @@ public class ShopLiveMp4Muxer {
 
     private static Map<Integer, Integer> samplingFrequencyIndexMap = new HashMap<>();
 
+    // the trun sample flags of keyframes and audio samples, and of the other video samples.
+    private static final SampleFlags SYNC_SAMPLE_FLAGS = new SampleFlags();
+    private static final SampleFlags NON_SYNC_SAMPLE_FLAGS = new SampleFlags();
+
+    static {
+        SYNC_SAMPLE_FLAGS.setSampleDependsOn(2);
+        NON_SYNC_SAMPLE_FLAGS.setSampleDependsOn(1);
+        NON_SYNC_SAMPLE_FLAGS.setSampleIsDifferenceSample(true);
+    }
+
     static {
         samplingFrequencyIndexMap.put(96000, 0x0);
         samplingFrequencyIndexMap.put(88200, 0x1);
@@ -118,13 +143,30 @@ public class ShopLiveMp4Muxer {
     }
     
     /**
-     * start recording.
+     * start recording, the sample tables are written at stop.
      */
     public boolean record(File outputFile) {
+        return record(outputFile, false, 0);
+    }
+
+    /**
+     * start a fragmented recording. The moov only describes the tracks and the samples go out as
+     * a moof and mdat at the first keyframe after every fragment duration, so the memory holds
+     * one fragment, stop writes the last one and the file plays up to the last fragment written.
+     *
+     * @param fragmentDurationMs the least fragment duration, 0 for a fragment at every keyframe.
+     */
+    public boolean recordFragmented(File outputFile, int fragmentDurationMs) {
+        return record(outputFile, true, fragmentDurationMs);
+    }
+
+    private boolean record(File outputFile, boolean fragmented, int fragmentDurationMs) {
         if (videoFormat == null && audioFormat == null) {
             return false;
         }
 
+        this.fragmented = fragmented;
+        fragmentDurationUs = fragmentDurationMs * 1000L;
         mRecFile = outputFile;
         createMovie(mRecFile);
         mHandler.notifyRecordStarted(mRecFile.getPath());
@@ -133,14 +175,18 @@ public class ShopLiveMp4Muxer {
             mp4Movie.addTrack(videoFormat, false);
         }
         mp4Movie.addTrack(audioFormat, true);
+        if (fragmented) {
+            writeFragmentedMovieBox();
+        }
 
         worker = Executors.newCachedThreadPool().submit((Callable<Void>) () -> {
                 bRecording = true;
                 while (bRecording) {
                     // Keep at least one audio and video frame in cache to ensure monotonically increasing.
-                    while (!frameCache.isEmpty()) {
-                        SrsEsFrame frame = frameCache.poll();
-                        writeSampleData(frame.bb, frame.bi, frame.is_audio());
+                    SrsEsFrame frame;
+                    while ((frame = frameCache.poll()) != null) {
+                        writeSampleData(frame.frame, frame.is_audio(), frame.isKeyFrame);
+                        frame.frame.release();
                     }
                     // Waiting for next frame
                     synchronized (writeLock) {
@@ -189,7 +235,7 @@ public class ShopLiveMp4Muxer {
         bPaused = false;
         needToFindKeyFrame = true;
         aacSpecConfig = false;
-        frameCache.clear();
+        clearFrameCache();
 
         if (worker != null && !worker.isDone()) {
             worker.cancel(true);
@@ -201,6 +247,20 @@ public class ShopLiveMp4Muxer {
         Log.i(TAG, "SrsMp4Muxer closed");
     }
 
+    /**
+     * @return true while a recording is in progress, even when paused.
+     */
+    public boolean isRecording() {
+        return bRecording;
+    }
+
+    private void clearFrameCache() {
+        SrsEsFrame frame;
+        while ((frame = frameCache.poll()) != null) {
+            frame.frame.release();
+        }
+    }
+
     /**
      * Adds a track with the specified format.
      *
@@ -218,17 +278,17 @@ public class ShopLiveMp4Muxer {
     }
 
     /**
-     * send the annexb frame to SRS over RTMP.
+     * queue the annexb frame for the mp4 writer thread.
+     * The frame is retained while it waits in the cache and released once written.
      *
      * @param trackIndex The track index for this sample.
-     * @param byteBuf    The encoded sample.
-     * @param bufferInfo The buffer information related to this sample.
+     * @param frame      The encoded sample shared with the other muxers.
      */
-    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+    public void writeSampleData(int trackIndex, ShopLiveEncodedFramePool.Frame frame) {
         if (VIDEO_TRACK == trackIndex) {
-            writeVideoSample(byteBuf, bufferInfo);
+            writeVideoSample(frame);
         } else {
-            writeAudioSample(byteBuf, bufferInfo);
+            writeAudioSample(frame);
         }
     }
 
@@ -277,51 +337,77 @@ public class ShopLiveMp4Muxer {
         public final static int CodedSliceExt = 20;
     }
 
-    private void writeVideoSample(final ByteBuffer bb, MediaCodec.BufferInfo bi) {
-        int nal_unit_type = bb.get(4) & 0x1f;
-        if (nal_unit_type == SrsAvcNaluType.IDR || nal_unit_type == SrsAvcNaluType.NonIDR) {
-            writeFrameByte(VIDEO_TRACK, bb, bi, nal_unit_type == SrsAvcNaluType.IDR);
-        } else {
-            while (bb.position() < bi.size) {
-                SrsEsFrameBytes frame = avc.annexb_demux(bb, bi);
-
-                if (avc.is_sps(frame)) {
-                    if (!frame.data.equals(h264_sps)) {
-                        byte[] sps = new byte[frame.size];
-                        frame.data.get(sps);
-                        h264_sps = ByteBuffer.wrap(sps);
-                        spsList.clear();
-                        spsList.add(sps);
-                    }
-                    continue;
+    private void writeVideoSample(ShopLiveEncodedFramePool.Frame esFrame) {
+        final ByteBuffer bb = esFrame.data();
+        ShopLiveNalSplitter nals = splitNalus(esFrame, avc);
+        boolean hasSlice = false;
+        // only an IDR is a sync sample: a recovery point of intra refresh, though flagged as a key
+        // frame, decodes garbage until the sweep completes and mp4 would need a roll group for it.
+        boolean isKeyFrame = false;
+        for (int i = 0; i < nals.count(); i++) {
+            int nal_unit_type = nals.type(i);
+            if (nal_unit_type == SrsAvcNaluType.SPS) {
+                ByteBuffer frame = nalu(bb, nals, i);
+                if (!frame.equals(h264_sps)) {
+                    byte[] sps = new byte[nals.length(i)];
+                    frame.get(sps);
+                    h264_sps = ByteBuffer.wrap(sps);
+                    spsList.clear();
+                    spsList.add(sps);
                 }
-
-                if (avc.is_pps(frame)) {
-                    if (!frame.data.equals(h264_pps)) {
-                        byte[] pps = new byte[frame.size];
-                        frame.data.get(pps);
-                        h264_pps = ByteBuffer.wrap(pps);
-                        ppsList.clear();
-                        ppsList.add(pps);
-                    }
-                    continue;
+            } else if (nal_unit_type == SrsAvcNaluType.PPS) {
+                ByteBuffer frame = nalu(bb, nals, i);
+                if (!frame.equals(h264_pps)) {
+                    byte[] pps = new byte[nals.length(i)];
+                    frame.get(pps);
+                    h264_pps = ByteBuffer.wrap(pps);
+                    ppsList.clear();
+                    ppsList.add(pps);
                 }
+            } else if (nals.isSlice(i)) {
+                hasSlice = true;
+                isKeyFrame |= nal_unit_type == SrsAvcNaluType.IDR;
             }
         }
+        if (hasSlice) {
+            writeFrameByte(VIDEO_TRACK, esFrame, isKeyFrame);
+        }
+    }
+
+    private static ShopLiveNalSplitter splitNalus(ShopLiveEncodedFramePool.Frame esFrame, ShopLiveNalSplitter splitter) {
+        ShopLiveNalSplitter nals = esFrame.nals();
+        if (nals == null) {
+            nals = splitter;
+            nals.split(esFrame.data(), 0, esFrame.info().size);
+        }
+        return nals;
+    }
+
+    private static ByteBuffer nalu(ByteBuffer bb, ShopLiveNalSplitter nals, int i) {
+        ByteBuffer nalu = bb.duplicate();
+        nalu.limit(nals.offset(i) + nals.length(i));
+        nalu.position(nals.offset(i));
+        return nalu.slice();
     }
 
-    private void writeAudioSample(final ByteBuffer bb, MediaCodec.BufferInfo bi) {
+    // the parameter sets are in the avcC box, the other NAL units of the access unit are the sample.
+    private static boolean isSampleNalu(ShopLiveNalSplitter nals, int i) {
+        int nal_unit_type = nals.type(i);
+        return nal_unit_type != SrsAvcNaluType.SPS && nal_unit_type != SrsAvcNaluType.PPS
+                && nal_unit_type != SrsAvcNaluType.AccessUnitDelimiter;
+    }
+
+    private void writeAudioSample(ShopLiveEncodedFramePool.Frame esFrame) {
         if (!aacSpecConfig) {
             aacSpecConfig = true;
         } else {
-            writeFrameByte(AUDIO_TRACK, bb, bi, false);
+            writeFrameByte(AUDIO_TRACK, esFrame, false);
         }
     }
 
-    private void writeFrameByte(int track, ByteBuffer bb, MediaCodec.BufferInfo bi, boolean isKeyFrame) {
+    private void writeFrameByte(int track, ShopLiveEncodedFramePool.Frame esFrame, boolean isKeyFrame) {
         SrsEsFrame frame = new SrsEsFrame();
-        frame.bb = bb;
-        frame.bi = bi;
+        frame.frame = esFrame;
         frame.isKeyFrame = isKeyFrame;
         frame.track = track;
 
@@ -329,12 +415,14 @@ public class ShopLiveMp4Muxer {
             if (needToFindKeyFrame) {
                 if (frame.isKeyFrame) {
                     needToFindKeyFrame = false;
+                    esFrame.retain();
                     frameCache.add(frame);
                     synchronized (writeLock) {
                         writeLock.notifyAll();
                     }
                 }
             } else {
+                esFrame.retain();
                 frameCache.add(frame);
                 synchronized (writeLock) {
                     writeLock.notifyAll();
@@ -343,28 +431,11 @@ public class ShopLiveMp4Muxer {
         }
     }
 
-    /**
-     * the search result for annexb.
-     */
-    private class SrsAnnexbSearch {
-        public int nb_start_code = 0;
-        public boolean match = false;
-    }
-
-    /**
-     * the demuxed tag frame.
-     */
-    private class SrsEsFrameBytes {
-        public ByteBuffer data;
-        public int size;
-    }
-
     /**
      * the AV frame.
      */
     private class SrsEsFrame {
-        public ByteBuffer bb;
-        public MediaCodec.BufferInfo bi;
+        public ShopLiveEncodedFramePool.Frame frame;
         public int track;
         public boolean isKeyFrame;
 
@@ -377,87 +448,6 @@ public class ShopLiveMp4Muxer {
         }
     }
 
-    /**
-     * the raw h.264 stream, in annexb.
-     */
-    private class ShopLiveRawH264Stream {
-        public boolean is_sps(SrsEsFrameBytes frame) {
-            if (frame.size < 1) {
-                return false;
-            }
-
-            return (frame.data.get(0) & 0x1f) == SrsAvcNaluType.SPS;
-        }
-
-        public boolean is_pps(SrsEsFrameBytes frame) {
-            if (frame.size < 1) {
-                return false;
-            }
-            return (frame.data.get(0) & 0x1f) == SrsAvcNaluType.PPS;
-        }
-
-        public SrsAnnexbSearch srs_avc_startswith_annexb(ByteBuffer bb, MediaCodec.BufferInfo bi) {
-            SrsAnnexbSearch as = new SrsAnnexbSearch();
-            as.match = false;
-
-            int pos = bb.position();
-            while (pos < bi.size - 3) {
-                // not match.
-                if (bb.get(pos) != 0x00 || bb.get(pos + 1) != 0x00) {
-                    break;
-                }
-
-                // match N[00] 00 00 01, where N>=0
-                if (bb.get(pos + 2) == 0x01) {
-                    as.match = true;
-                    as.nb_start_code = pos + 3 - bb.position();
-                    break;
-                }
-
-                pos++;
-            }
-
-            return as;
-        }
-
-        public SrsEsFrameBytes annexb_demux(ByteBuffer bb, MediaCodec.BufferInfo bi) {
-            SrsEsFrameBytes tbb = new SrsEsFrameBytes();
-
-            while (bb.position() < bi.size) {
-                // each frame must prefixed by annexb format.
-                // about annexb, @see H.264-AVC-ISO_IEC_14496-10.pdf, page 211.
-                SrsAnnexbSearch tbbsc = srs_avc_startswith_annexb(bb, bi);
-                if (!tbbsc.match || tbbsc.nb_start_code < 3) {
-                    Log.e(TAG, "annexb not match.");
-                    mHandler.notifyRecordIllegalArgumentException(new IllegalArgumentException(
-                        String.format("annexb not match for %dB, pos=%d", bi.size, bb.position())));
-                }
-
-                // the start codes.
-                ByteBuffer tbbs = bb.slice();
-                for (int i = 0; i < tbbsc.nb_start_code; i++) {
-                    bb.get();
-                }
-
-                // find out the frame size.
-                tbb.data = bb.slice();
-                int pos = bb.position();
-                while (bb.position() < bi.size) {
-                    SrsAnnexbSearch bsc = srs_avc_startswith_annexb(bb, bi);
-                    if (bsc.match) {
-                        break;
-                    }
-                    bb.get();
-                }
-
-                tbb.size = bb.position() - pos;
-                break;
-            }
-
-            return tbb;
-        }
-    }
-
     private class Sample {
         private long offset = 0;
         private long size = 0;
@@ -490,9 +480,18 @@ public class ShopLiveMp4Muxer {
         private int width;
         private float volume = 0;
         private ArrayList<Long> sampleDurations = new ArrayList<>();
+        // pts - dts of every sample, only written when the encoder reorders frames.
+        private ArrayList<Integer> compositionOffsets = new ArrayList<>();
+        private boolean hasCompositionOffsets = false;
         private boolean isAudio = false;
-        private long lastPresentationTimeUs = 0;
+        private long lastDecodeTimeUs = 0;
         private boolean first = true;
+        // the samples and data of the fragment being recorded, in fragmented recording.
+        private ArrayList<TrackRunBox.Entry> fragmentSamples = new ArrayList<>();
+        private ByteBuffer fragmentData = ByteBuffer.allocate(64 * 1024);
+        private long fragmentDecodeTime = 0;
+        private long lastDecodeTime = -1;
+        private boolean fragmentHasCompositionOffsets = false;
 
         public Track(int id, MediaFormat format, boolean audio) {
             trackId = id;
@@ -579,19 +578,26 @@ public class ShopLiveMp4Muxer {
             }
         }
 
-        public void addSample(long offset, MediaCodec.BufferInfo bi) {
-            long delta = bi.presentationTimeUs - lastPresentationTimeUs;
+        /**
+         * @param isSyncFrame whether the video sample is an IDR, ignored for audio.
+         */
+        public void addSample(long offset, int size, MediaCodec.BufferInfo bi, long dtsUs, boolean isSyncFrame) {
+            // samples are in decode order, the durations of the stts are decode time deltas.
+            long delta = dtsUs - lastDecodeTimeUs;
             if (delta < 0) {
                 return;
             }
-            boolean isSyncFrame = !isAudio && (bi.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
-            samples.add(new Sample(offset, bi.size));
+            isSyncFrame &= !isAudio;
+            samples.add(new Sample(offset, size));
             if (syncSamples != null && isSyncFrame) {
                 syncSamples.add(samples.size());
             }
+            int compositionOffset = (int) (((bi.presentationTimeUs - dtsUs) * timeScale + 500000L) / 1000000L);
+            compositionOffsets.add(compositionOffset);
+            hasCompositionOffsets |= compositionOffset != 0;
 
             delta = (delta * timeScale + 500000L) / 1000000L;
-            lastPresentationTimeUs = bi.presentationTimeUs;
+            lastDecodeTimeUs = dtsUs;
             if (!first) {
                 sampleDurations.add(sampleDurations.size() - 1, delta);
                 duration += delta;
@@ -599,11 +605,79 @@ public class ShopLiveMp4Muxer {
             first = false;
         }
 
+        /**
+         * add a sample to the fragment, the duration of the last one is the previous duration
+         * until the next sample comes.
+         *
+         * @param decodeTime  the decode time since the recording start, in the track timescale.
+         * @param isSyncFrame whether the video sample is an IDR, audio samples are always sync.
+         * @return false if the sample goes back in time and is dropped.
+         */
+        public boolean addFragmentSample(int size, MediaCodec.BufferInfo bi, long dtsUs, long decodeTime,
+                                         boolean isSyncFrame) {
+            if (lastDecodeTime >= 0 && decodeTime < lastDecodeTime) {
+                return false;
+            }
+            // the default duration for the first sample.
+            long delta = duration;
+            if (lastDecodeTime >= 0) {
+                delta = decodeTime - lastDecodeTime;
+                if (!fragmentSamples.isEmpty()) {
+                    fragmentSamples.get(fragmentSamples.size() - 1).setSampleDuration(delta);
+                }
+            }
+            if (fragmentSamples.isEmpty()) {
+                fragmentDecodeTime = decodeTime;
+            }
+            lastDecodeTime = decodeTime;
+
+            isSyncFrame |= isAudio;
+            int compositionOffset = (int) (((bi.presentationTimeUs - dtsUs) * timeScale + 500000L) / 1000000L);
+            fragmentHasCompositionOffsets |= compositionOffset != 0;
+            fragmentSamples.add(new TrackRunBox.Entry(delta, size,
+                    isSyncFrame ? SYNC_SAMPLE_FLAGS : NON_SYNC_SAMPLE_FLAGS, compositionOffset));
+            if (fragmentData.remaining() < size) {
+                int capacity = 2 * fragmentData.capacity();
+                while (capacity < fragmentData.position() + size) {
+                    capacity *= 2;
+                }
+                ByteBuffer data = ByteBuffer.allocate(capacity);
+                fragmentData.flip();
+                data.put(fragmentData);
+                fragmentData = data;
+            }
+            return true;
+        }
+
+        public void clearFragment() {
+            fragmentSamples.clear();
+            fragmentData.clear();
+            fragmentHasCompositionOffsets = false;
+        }
+
+        public ArrayList<TrackRunBox.Entry> getFragmentSamples() {
+            return fragmentSamples;
+        }
+
+        public ByteBuffer getFragmentData() {
+            return fragmentData;
+        }
+
+        public long getFragmentDecodeTime() {
+            return fragmentDecodeTime;
+        }
+
+        public boolean fragmentHasCompositionOffsets() {
+            return fragmentHasCompositionOffsets;
+        }
+
         public void clearSample() {
             first = true;
             samples.clear();
             syncSamples.clear();
             sampleDurations.clear();
+            compositionOffsets.clear();
+            hasCompositionOffsets = false;
         }
 
         public ArrayList<Sample> getSamples() {
@@ -611,7 +685,8 @@ public class ShopLiveMp4Muxer {
         }
 
         public long getDuration() {
-            return duration;
+            // the moov of a fragmented movie has no samples, the fragments add the duration.
+            return fragmented ? 0 : duration;
         }
 
         public String getHandler() {
@@ -661,6 +736,14 @@ public class ShopLiveMp4Muxer {
             return sampleDurations;
         }
 
+        public ArrayList<Integer> getCompositionOffsets() {
+            return compositionOffsets;
+        }
+
+        public boolean hasCompositionOffsets() {
+            return hasCompositionOffsets;
+        }
+
         public boolean isAudio() {
             return isAudio;
         }
@@ -682,9 +765,10 @@ public class ShopLiveMp4Muxer {
             return tracks;
         }
 
-        public void addSample(int trackIndex, long offset, MediaCodec.BufferInfo bi) {
+        public void addSample(int trackIndex, long offset, int size, MediaCodec.BufferInfo bi, long dtsUs,
+                              boolean isSyncFrame) {
             Track track = tracks.get(trackIndex);
-            track.addSample(offset, bi);
+            track.addSample(offset, size, bi, dtsUs, isSyncFrame);
         }
 
         public void addTrack(MediaFormat format, boolean isAudio) {
@@ -776,12 +860,22 @@ public class ShopLiveMp4Muxer {
     private volatile long flushBytes = 0;
     private HashMap<Track, long[]> track2SampleSizes = new HashMap<>();
 
+    // fragmented recording, a moof and mdat at the first keyframe after every fragment duration.
+    private boolean fragmented = false;
+    private long fragmentDurationUs = 0;
+    private long recordStartUs = -1;
+    private long fragmentStartUs = -1;
+    private long fragmentSequenceNumber = 0;
+
     private void createMovie(File outputFile) {
         try {
             fos = new FileOutputStream(outputFile);
             fc = fos.getChannel();
             mdat = new InterleaveChunkMdat();
             mdatOffset = 0;
+            recordStartUs = -1;
+            fragmentStartUs = -1;
+            fragmentSequenceNumber = 0;
 
             FileTypeBox fileTypeBox = createFileTypeBox();
             fileTypeBox.getBox(fc);
@@ -792,11 +886,15 @@ public class ShopLiveMp4Muxer {
         }
     }
 
-    private void writeSampleData(ByteBuffer byteBuf, MediaCodec.BufferInfo bi, boolean isAudio) {
+    private void writeSampleData(ShopLiveEncodedFramePool.Frame esFrame, boolean isAudio, boolean isSyncFrame) {
         int trackIndex = isAudio ? AUDIO_TRACK : VIDEO_TRACK;
         if (!mp4Movie.getTracks().containsKey(trackIndex)) {
             return;
         }
+        if (fragmented) {
+            writeFragmentSample(trackIndex, esFrame, isAudio, isSyncFrame);
+            return;
+        }
 
         try {
             if (mdat.first) {
@@ -807,17 +905,30 @@ public class ShopLiveMp4Muxer {
                 mdat.first = false;
             }
 
-            mp4Movie.addSample(trackIndex, recFileSize, bi);
-            byteBuf.position(bi.offset + (isAudio ? 0 : 4));
-            byteBuf.limit(bi.offset + bi.size);
-            if (!isAudio) {
-                ByteBuffer size = ByteBuffer.allocate(4);
-                size.position(0);
-                size.putInt(bi.size - 4);
-                size.position(0);
-                recFileSize += fc.write(size);
+            ByteBuffer byteBuf = esFrame.data();
+            MediaCodec.BufferInfo bi = esFrame.info();
+            int writeBytes = 0;
+            if (isAudio) {
+                mp4Movie.addSample(trackIndex, recFileSize, bi.size, bi, esFrame.decodeTimeUs(), false);
+                writeBytes += fc.write(byteBuf);
+            } else {
+                // each NAL unit is prefixed by its 4 bytes length instead of a start code.
+                ShopLiveNalSplitter nals = splitNalus(esFrame, writerAvc);
+                int sampleSize = sampleSize(nals);
+                mp4Movie.addSample(trackIndex, recFileSize, sampleSize, bi, esFrame.decodeTimeUs(), isSyncFrame);
+                for (int i = 0; i < nals.count(); i++) {
+                    if (!isSampleNalu(nals, i)) {
+                        continue;
+                    }
+                    nalLength.clear();
+                    nalLength.putInt(nals.length(i));
+                    nalLength.flip();
+                    writeBytes += fc.write(nalLength);
+                    byteBuf.limit(nals.offset(i) + nals.length(i));
+                    byteBuf.position(nals.offset(i));
+                    writeBytes += fc.write(byteBuf);
+                }
             }
-            int writeBytes = fc.write(byteBuf);
 
             recFileSize += writeBytes;
             flushBytes += writeBytes;
@@ -831,7 +942,171 @@ public class ShopLiveMp4Muxer {
         }
     }
 
+    // the sample size with each NAL unit prefixed by its 4 bytes length.
+    private static int sampleSize(ShopLiveNalSplitter nals) {
+        int sampleSize = 0;
+        for (int i = 0; i < nals.count(); i++) {
+            if (isSampleNalu(nals, i)) {
+                sampleSize += 4 + nals.length(i);
+            }
+        }
+        return sampleSize;
+    }
+
+    /**
+     * add the sample to the fragment of its track, the fragment is written first if the sample
+     * starts the next one.
+     */
+    private void writeFragmentSample(int trackIndex, ShopLiveEncodedFramePool.Frame esFrame, boolean isAudio,
+                                     boolean isSyncFrame) {
+        Track track = mp4Movie.getTracks().get(trackIndex);
+        ByteBuffer byteBuf = esFrame.data();
+        MediaCodec.BufferInfo bi = esFrame.info();
+        long dtsUs = esFrame.decodeTimeUs();
+        if (recordStartUs < 0) {
+            recordStartUs = dtsUs;
+        }
+
+        try {
+            // a fragment starts with an IDR, or with any audio sample if there is no video.
+            boolean startsFragment = isAudio ? !mp4Movie.getTracks().containsKey(VIDEO_TRACK) : isSyncFrame;
+            if (startsFragment && fragmentStartUs >= 0
+                    && dtsUs - fragmentStartUs >= fragmentDurationUs - FRAGMENT_DURATION_TOLERANCE_US) {
+                writeFragment();
+            }
+
+            ShopLiveNalSplitter nals = isAudio ? null : splitNalus(esFrame, writerAvc);
+            int sampleSize = isAudio ? bi.size : sampleSize(nals);
+            // all the tracks count from the first sample, which keeps them in sync.
+            long sinceStartUs = dtsUs > recordStartUs ? dtsUs - recordStartUs : 0;
+            long decodeTime = (sinceStartUs * track.getTimeScale() + 500000L) / 1000000L;
+            if (!track.addFragmentSample(sampleSize, bi, dtsUs, decodeTime, isSyncFrame)) {
+                return;
+            }
+            if (fragmentStartUs < 0) {
+                fragmentStartUs = dtsUs;
+            }
+
+            ByteBuffer data = track.getFragmentData();
+            if (isAudio) {
+                data.put(byteBuf);
+            } else {
+                for (int i = 0; i < nals.count(); i++) {
+                    if (!isSampleNalu(nals, i)) {
+                        continue;
+                    }
+                    data.putInt(nals.length(i));
+                    byteBuf.limit(nals.offset(i) + nals.length(i));
+                    byteBuf.position(nals.offset(i));
+                    data.put(byteBuf);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            mHandler.notifyRecordIOException(e);
+        }
+    }
+
+    /**
+     * write the moof and mdat of the samples added since the last fragment.
+     */
+    private void writeFragment() throws IOException {
+        MovieFragmentBox moof = new MovieFragmentBox();
+        MovieFragmentHeaderBox mfhd = new MovieFragmentHeaderBox();
+        mfhd.setSequenceNumber(++fragmentSequenceNumber);
+        moof.addBox(mfhd);
+
+        ArrayList<Track> tracks = new ArrayList<>();
+        ArrayList<TrackRunBox> truns = new ArrayList<>();
+        for (Track track : mp4Movie.getTracks().values()) {
+            if (track.getFragmentSamples().isEmpty()) {
+                continue;
+            }
+            TrackFragmentBox traf = new TrackFragmentBox();
+            TrackFragmentHeaderBox tfhd = new TrackFragmentHeaderBox();
+            // default-base-is-moof, the data offsets count from the moof.
+            tfhd.setFlags(0x20000);
+            tfhd.setTrackId(track.getTrackId() + 1);
+            traf.addBox(tfhd);
+
+            TrackFragmentBaseMediaDecodeTimeBox tfdt = new TrackFragmentBaseMediaDecodeTimeBox();
+            tfdt.setVersion(1);
+            tfdt.setBaseMediaDecodeTime(track.getFragmentDecodeTime());
+            traf.addBox(tfdt);
+
+            TrackRunBox trun = new TrackRunBox();
+            trun.setDataOffset(0);
+            trun.setSampleDurationPresent(true);
+            trun.setSampleSizePresent(true);
+            trun.setSampleFlagsPresent(true);
+            trun.setSampleCompositionTimeOffsetPresent(track.fragmentHasCompositionOffsets());
+            trun.setEntries(track.getFragmentSamples());
+            traf.addBox(trun);
+
+            moof.addBox(traf);
+            tracks.add(track);
+            truns.add(trun);
+        }
+        if (tracks.isEmpty()) {
+            return;
+        }
+
+        // the mdat follows the moof, with the samples of one track after the other.
+        long dataSize = 0;
+        for (int i = 0; i < tracks.size(); i++) {
+            truns.get(i).setDataOffset((int) (moof.getSize() + 8 + dataSize));
+            dataSize += tracks.get(i).getFragmentData().position();
+        }
+        moof.getBox(fc);
+
+        ByteBuffer header = ByteBuffer.allocate(8);
+        IsoTypeWriter.writeUInt32(header, 8 + dataSize);
+        header.put(IsoFile.fourCCtoBytes("mdat"));
+        header.flip();
+        fc.write(header);
+        for (Track track : tracks) {
+            ByteBuffer data = track.getFragmentData();
+            data.flip();
+            while (data.hasRemaining()) {
+                fc.write(data);
+            }
+            track.clearFragment();
+        }
+        recFileSize += moof.getSize() + 8 + dataSize;
+        fragmentStartUs = -1;
+    }
+
+    /**
+     * the moov of a fragmented recording only describes the tracks, it goes right after the ftyp.
+     */
+    private void writeFragmentedMovieBox() {
+        try {
+            Box moov = createMovieBox(mp4Movie);
+            moov.getBox(fc);
+            recFileSize += moov.getSize();
+        } catch (IOException e) {
+            e.printStackTrace();
+            mHandler.notifyRecordIOException(e);
+        }
+    }
+
+    private void finishFragmentedMovie() {
+        try {
+            writeFragment();
+            fc.close();
+            fos.close();
+            mp4Movie.getTracks().clear();
+            recFileSize = 0;
+        } catch (IOException e) {
+            mHandler.notifyRecordIOException(e);
+        }
+    }
+
     private void finishMovie() {
+        if (fragmented) {
+            finishFragmentedMovie();
+            return;
+        }
         try {
             if (flushBytes > 0) {
                 fos.flush();
@@ -876,6 +1151,10 @@ public class ShopLiveMp4Muxer {
         LinkedList<String> minorBrands = new LinkedList<>();
         minorBrands.add("isom");
         minorBrands.add("3gp4");
+        if (fragmented) {
+            // the brand of the tfdt box.
+            minorBrands.add("iso6");
+        }
         return new FileTypeBox("isom", 0, minorBrands);
     }
 
@@ -915,9 +1194,24 @@ public class ShopLiveMp4Muxer {
         for (Track track : movie.getTracks().values()) {
             movieBox.addBox(createTrackBox(track, movie));
         }
+        if (fragmented) {
+            movieBox.addBox(createMovieExtendsBox(movie));
+        }
         return movieBox;
     }
 
+    private MovieExtendsBox createMovieExtendsBox(Mp4Movie movie) {
+        MovieExtendsBox mvex = new MovieExtendsBox();
+        for (Track track : movie.getTracks().values()) {
+            TrackExtendsBox trex = new TrackExtendsBox();
+            trex.setTrackId(track.getTrackId() + 1);
+            trex.setDefaultSampleDescriptionIndex(1);
+            trex.setDefaultSampleFlags(new SampleFlags());
+            mvex.addBox(trex);
+        }
+        return mvex;
+    }
+
     private TrackBox createTrackBox(Track track, Mp4Movie movie) {
         TrackBox trackBox = new TrackBox();
         TrackHeaderBox tkhd = new TrackHeaderBox();
@@ -979,7 +1273,16 @@ public class ShopLiveMp4Muxer {
     private Box createStbl(Track track) {
         SampleTableBox stbl = new SampleTableBox();
         createStsd(track, stbl);
+        if (fragmented) {
+            // the samples are in the movie fragments.
+            stbl.addBox(new TimeToSampleBox());
+            stbl.addBox(new SampleToChunkBox());
+            stbl.addBox(new SampleSizeBox());
+            stbl.addBox(new StaticChunkOffsetBox());
+            return stbl;
+        }
         createStts(track, stbl);
+        createCtts(track, stbl);
         createStss(track, stbl);
         createStsc(track, stbl);
         createStsz(track, stbl);
@@ -1008,6 +1311,26 @@ public class ShopLiveMp4Muxer {
         stbl.addBox(stts);
     }
 
+    private void createCtts(Track track, SampleTableBox stbl) {
+        if (!track.hasCompositionOffsets()) {
+            return;
+        }
+
+        CompositionTimeToSample.Entry lastEntry = null;
+        List<CompositionTimeToSample.Entry> entries = new ArrayList<>();
+        for (int offset : track.getCompositionOffsets()) {
+            if (lastEntry != null && lastEntry.getOffset() == offset) {
+                lastEntry.setCount(lastEntry.getCount() + 1);
+            } else {
+                lastEntry = new CompositionTimeToSample.Entry(1, offset);
+                entries.add(lastEntry);
+            }
+        }
+        CompositionTimeToSample ctts = new CompositionTimeToSample();
+        ctts.setEntries(entries);
+        stbl.addBox(ctts);
+    }
+
     private void createStss(Track track, SampleTableBox stbl) {
         long[] syncSamples = track.getSyncSamples();
         if (syncSamples != null && syncSamples.length > 0) {
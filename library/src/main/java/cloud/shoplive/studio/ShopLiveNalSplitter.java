@@ -0,0 +1,139 @@
+package cloud.shoplive.studio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits an Annex B access unit into its NAL units in a single pass.
+ * <p>
+ * The scan reads the buffer a long at a time and only looks at single bytes in words holding a
+ * zero byte, which start codes always do, so most of a slice is skipped eight bytes per read.
+ * The descriptors are kept in arrays reused across calls, which only grow when an access unit has
+ * more NAL units than any before it. An instance is not thread-safe, the descriptors stay valid
+ * until the next {@link #split(ByteBuffer, int, int)}.
+ */
+public final class ShopLiveNalSplitter {
+
+    // H.264-AVC-ISO_IEC_14496-10-2012.pdf, Table 7-1.
+    public static final int NAL_NON_IDR = 1;
+    public static final int NAL_IDR = 5;
+    public static final int NAL_SEI = 6;
+    public static final int NAL_SPS = 7;
+    public static final int NAL_PPS = 8;
+    public static final int NAL_AUD = 9;
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    private int[] offsets = new int[8];
+    private int[] lengths = new int[8];
+    private int[] headers = new int[8];
+    private int count;
+
+    /**
+     * Find the next three bytes start code 00 00 01, which ends every four bytes one too.
+     *
+     * @return the index of its first byte in [from, to), or -1 if there is none.
+     */
+    public static int findStartCode(ByteBuffer bb, int from, int to) {
+        int i = from;
+        // a word without a zero byte cannot hold the first zero of a start code.
+        while (i + 8 <= to) {
+            long word = bb.getLong(i);
+            if (((word - ONES) & ~word & HIGHS) == 0) {
+                i += 8;
+                continue;
+            }
+            boolean last = i + 8 >= to - 2;
+            int end = last ? to - 2 : i + 8;
+            for (; i < end; i++) {
+                if (bb.get(i) == 0 && bb.get(i + 1) == 0 && bb.get(i + 2) == 1) {
+                    return i;
+                }
+            }
+            if (last) {
+                return -1;
+            }
+        }
+        for (; i + 2 < to; i++) {
+            if (bb.get(i) == 0 && bb.get(i + 1) == 0 && bb.get(i + 2) == 1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Split the access unit in {@code bb} from {@code offset}, the bytes before its first start
+     * code are ignored.
+     *
+     * @return the number of NAL units found.
+     */
+    public int split(ByteBuffer bb, int offset, int length) {
+        int to = offset + length;
+        count = 0;
+        int start = findStartCode(bb, offset, to);
+        while (start >= 0) {
+            int payload = start + 3;
+            int next = findStartCode(bb, payload, to);
+            int end = next < 0 ? to : next;
+            // trailing zeros belong to the next start code, a NAL unit never ends with one.
+            while (end > payload && bb.get(end - 1) == 0) {
+                end--;
+            }
+            if (end > payload) {
+                add(payload, end - payload, bb.get(payload));
+            }
+            start = next;
+        }
+        return count;
+    }
+
+    private void add(int offset, int length, int header) {
+        if (count == offsets.length) {
+            offsets = grow(offsets);
+            lengths = grow(lengths);
+            headers = grow(headers);
+        }
+        offsets[count] = offset;
+        lengths[count] = length;
+        headers[count] = header;
+        count++;
+    }
+
+    private int[] grow(int[] array) {
+        int[] grown = new int[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, count);
+        return grown;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    /**
+     * @return the index of the NAL unit header of the i-th NAL unit, after its start code.
+     */
+    public int offset(int i) {
+        return offsets[i];
+    }
+
+    public int length(int i) {
+        return lengths[i];
+    }
+
+    public int type(int i) {
+        return headers[i] & 0x1f;
+    }
+
+    /**
+     * @return the nal_ref_idc, 0 when no other picture references this one.
+     */
+    public int refIdc(int i) {
+        return (headers[i] >> 5) & 0x03;
+    }
+
+    public boolean isSlice(int i) {
+        int type = type(i);
+        return type == NAL_IDR || type == NAL_NON_IDR;
+    }
+}
@@ -61,6 +61,14 @@ public class ShopLivePublisher {
                     mEncoder.onGetRgbaFrame(data, width, height);
                 }
             }
+
+            @Override
+            public void onGetYuvFrame(byte[] data, int width, int height) {
+                calcSamplingFps();
+                if (!sendAudioOnly) {
+                    mEncoder.onGetYuvFrame(data, width, height);
+                }
+            }
         });
     }
 
@@ -232,6 +240,34 @@ public class ShopLivePublisher {
         }
     }
 
+    /**
+     * publish the same stream to one more RTMP server, started with its own url. Stopping the
+     * publish stops it as well.
+     *
+     * @see ShopLiveFlvMuxer#addDestination(RtmpHandler, boolean)
+     */
+    @Nullable
+    public ShopLiveFlvMuxer.Destination addPublishDestination(RtmpHandler handler, boolean nioTransport) {
+        return mFlvMuxer == null ? null : mFlvMuxer.addDestination(handler, nioTransport);
+    }
+
+    /**
+     * write the same stream to a sink of its own, a {@link ShopLiveFlvFileSink} records it to a
+     * local FLV file from the muxed tags.
+     *
+     * @see ShopLiveFlvMuxer#addDestination(ShopLiveFlvTagSink)
+     */
+    @Nullable
+    public ShopLiveFlvMuxer.Destination addPublishDestination(ShopLiveFlvTagSink sink) {
+        return mFlvMuxer == null ? null : mFlvMuxer.addDestination(sink);
+    }
+
+    public void removePublishDestination(ShopLiveFlvMuxer.Destination destination) {
+        if (mFlvMuxer != null) {
+            mFlvMuxer.removeDestination(destination);
+        }
+    }
+
     public void pausePublish() {
         if (mFlvMuxer != null) {
             mEncoder.pause();
@@ -243,6 +279,15 @@ public class ShopLivePublisher {
         return mMp4Muxer != null && mMp4Muxer.record(new File(recPath));
     }
 
+    /**
+     * record a fragmented MP4, which stays playable up to the last fragment if the app dies.
+     *
+     * @param fragmentDurationMs the least fragment duration, 0 for a fragment at every keyframe.
+     */
+    public boolean startFragmentedRecord(String recPath, int fragmentDurationMs) {
+        return mMp4Muxer != null && mMp4Muxer.recordFragmented(new File(recPath), fragmentDurationMs);
+    }
+
     public void stopRecord() {
         if (mMp4Muxer != null) {
             mMp4Muxer.stop();
@@ -325,6 +370,37 @@ public class ShopLivePublisher {
         mEncoder.setVideoSmoothMode();
     }
 
+    public void setAdaptiveBitrateEnabled(boolean enabled) {
+        mEncoder.setAdaptiveBitrateEnabled(enabled);
+    }
+
+    public void setSoftEncoderConfig(ShopLiveSoftEncoderConfig config) {
+        mEncoder.setSoftEncoderConfig(config);
+    }
+
+    public void setSurfaceInputEnabled(boolean enabled) {
+        mEncoder.setSurfaceInputEnabled(enabled);
+    }
+
+    public void setGpuYuvConversionEnabled(boolean enabled) {
+        mEncoder.setGpuYuvConversionEnabled(enabled);
+    }
+
+    public void setRtmpChunkSize(int chunkSize) {
+        if (mFlvMuxer != null) {
+            mFlvMuxer.setChunkSize(chunkSize);
+        }
+    }
+
+    /**
+     * @see ShopLiveFlvMuxer#setAutoReconnect(int, int)
+     */
+    public void setRtmpAutoReconnect(int maxAttempts, int bufferedGops) {
+        if (mFlvMuxer != null) {
+            mFlvMuxer.setAutoReconnect(maxAttempts, bufferedGops);
+        }
+    }
+
     public void setSendVideoOnly(boolean flag) {
         if (mic != null) {
             if (flag) {
@@ -371,7 +447,14 @@ public class ShopLivePublisher {
     }
 
     public void setRtmpHandler(RtmpHandler handler) {
-        mFlvMuxer = new ShopLiveFlvMuxer(handler);
+        setRtmpHandler(handler, false);
+    }
+
+    /**
+     * @param nioTransport publish on a non-blocking socket, see {@link ShopLiveFlvMuxer#ShopLiveFlvMuxer(RtmpHandler, boolean)}.
+     */
+    public void setRtmpHandler(RtmpHandler handler, boolean nioTransport) {
+        mFlvMuxer = new ShopLiveFlvMuxer(handler, nioTransport);
         if (mEncoder != null) {
             mEncoder.setFlvMuxer(mFlvMuxer);
         }
@@ -385,7 +468,13 @@ public class ShopLivePublisher {
     }
 
     public void setEncodeHandler(ShopLiveEncodeHandler handler) {
+        if (mEncoder != null) {
+            mEncoder.stop();
+            mEncoder.release();
+        }
         mEncoder = new SrsEncoder(handler);
+        cameraView.setSurfaceInput(mEncoder);
+        cameraView.setYuvInput(mEncoder);
         if (mFlvMuxer != null) {
             mEncoder.setFlvMuxer(mFlvMuxer);
         }
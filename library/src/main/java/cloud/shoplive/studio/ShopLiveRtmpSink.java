@@ -0,0 +1,93 @@
+package cloud.shoplive.studio;
+
+import com.github.faucamp.simplertmp.DefaultRtmpPublisher;
+import com.github.faucamp.simplertmp.RtmpHandler;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes the FLV tags to an RTMP server, as RTMP audio and video messages.
+ */
+public class ShopLiveRtmpSink implements ShopLiveFlvTagSink {
+
+    private final DefaultRtmpPublisher publisher;
+
+    /**
+     * @param handler      the rtmp event handler.
+     * @param nioTransport publish on a non-blocking socket served by one selector thread, so a
+     *                     stalled uplink queues in the publisher instead of blocking the worker.
+     */
+    public ShopLiveRtmpSink(RtmpHandler handler, boolean nioTransport) {
+        publisher = new DefaultRtmpPublisher(handler, nioTransport);
+    }
+
+    /**
+     * @return the publisher, for the RTMP settings and statistics.
+     */
+    public DefaultRtmpPublisher getPublisher() {
+        return publisher;
+    }
+
+    /**
+     * @param url the rtmp url, which is published as a live stream.
+     */
+    @Override
+    public boolean open(String url) {
+        return publisher.connect(url) && publisher.publish("live");
+    }
+
+    @Override
+    public void writeVideoTag(byte[] data, int size, int dts) {
+        publisher.publishVideoData(data, size, dts);
+    }
+
+    @Override
+    public void writeAudioTag(byte[] data, int size, int dts) {
+        publisher.publishAudioData(data, size, dts);
+    }
+
+    @Override
+    public void flush() {
+        publisher.flush();
+    }
+
+    @Override
+    public void close() {
+        publisher.close();
+    }
+
+    @Override
+    public AtomicInteger getVideoFrameCacheNumber() {
+        return publisher.getVideoFrameCacheNumber();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return publisher.getBytesSent();
+    }
+
+    @Override
+    public long getBytesInFlight() {
+        return publisher.getBytesInFlight();
+    }
+
+    @Override
+    public void setAutoReconnect(boolean autoReconnect) {
+        publisher.setAutoReconnect(autoReconnect);
+    }
+
+    @Override
+    public boolean isConnectionLost() {
+        return publisher.isConnectionLost();
+    }
+
+    @Override
+    public boolean reconnect() {
+        return publisher.reconnect();
+    }
+
+    @Override
+    public void abandonReconnect() {
+        publisher.abandonReconnect();
+    }
+}
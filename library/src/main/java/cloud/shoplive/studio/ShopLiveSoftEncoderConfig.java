@@ -0,0 +1,162 @@
+package cloud.shoplive.studio;
+
+/**
+ * Tuning of the x264 soft encoder, read by {@link net.ossrs.yasea.SrsEncoder} each time the soft
+ * encoder opens. The defaults are the historical ones: automatic frame threads, the zerolatency
+ * tune, ABR at the target bitrate and one second of VBV.
+ * <p>
+ * On devices without a usable hardware AVC encoder, sliced threads and a short or no lookahead are
+ * what keeps 720p real time on many cores, at the cost of some compression.
+ */
+public final class ShopLiveSoftEncoderConfig {
+
+    public static final int RATE_CONTROL_ABR = 0;
+    public static final int RATE_CONTROL_CRF = 1;
+
+    private int threads = 0;
+    private boolean slicedThreads = false;
+    private int lookahead = -1;
+    private int bFrames = 0;
+    private boolean zeroLatency = true;
+    private boolean intraRefresh = false;
+    private int rateControl = RATE_CONTROL_ABR;
+    private float crf = 23f;
+    private float vbvMaxRateFactor = 1f;
+    private float vbvBufferSeconds = 1f;
+
+    /**
+     * @param threads the number of encoding threads, 0 for one per core.
+     * @param sliced  split each frame between the threads instead of encoding several frames at
+     *                once, which adds no frame of latency. Some decoders, e.g. iOS hardware ones,
+     *                reject sliced streams.
+     */
+    public ShopLiveSoftEncoderConfig setThreads(int threads, boolean sliced) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("threads must not be negative");
+        }
+        this.threads = threads;
+        this.slicedThreads = sliced;
+        return this;
+    }
+
+    /**
+     * @param frames the rc-lookahead in frames, or -1 to keep the one of the preset and tune.
+     *               Each frame of lookahead delays the output by one frame.
+     */
+    public ShopLiveSoftEncoderConfig setLookahead(int frames) {
+        this.lookahead = Math.max(-1, frames);
+        return this;
+    }
+
+    /**
+     * @param count the number of consecutive B-frames, 0 for none. B-frames need the main profile
+     *              and delay the output by as many frames, the muxers then write decode and
+     *              composition times separately.
+     */
+    public ShopLiveSoftEncoderConfig setBFrames(int count) {
+        if (count < 0 || count > 16) {
+            throw new IllegalArgumentException(String.format("%d B-frames out of range", count));
+        }
+        this.bFrames = count;
+        return this;
+    }
+
+    /**
+     * @param enabled apply the x264 zerolatency tune: no lookahead and no frame threads, so
+     *                without B-frames every frame comes out as soon as it is encoded.
+     */
+    public ShopLiveSoftEncoderConfig setZeroLatency(boolean enabled) {
+        this.zeroLatency = enabled;
+        return this;
+    }
+
+    /**
+     * @param enabled replace the periodic IDR frames by a column of intra blocks sweeping the
+     *                frame once per GOP, which smooths the bitrate. The stream then has a single
+     *                IDR. The frame starting each sweep is flagged as a key frame, so the FLV muxer
+     *                still drops and caches whole GOPs and live players join there, but the first
+     *                picture after a join or a drop is only clean once the sweep completes. MP4
+     *                recordings keep the IDR as their only sync sample.
+     */
+    public ShopLiveSoftEncoderConfig setIntraRefresh(boolean enabled) {
+        this.intraRefresh = enabled;
+        return this;
+    }
+
+    /**
+     * Average bitrate, the target bitrate of the encoder and its adaptation.
+     */
+    public ShopLiveSoftEncoderConfig setAbr() {
+        this.rateControl = RATE_CONTROL_ABR;
+        return this;
+    }
+
+    /**
+     * Constant quality, the target bitrate only caps it through the VBV.
+     *
+     * @param crf the x264 rate factor, from 0 (lossless) to 51, 23 being the x264 default.
+     */
+    public ShopLiveSoftEncoderConfig setCrf(float crf) {
+        if (crf <= 0 || crf > 51) {
+            throw new IllegalArgumentException(String.format("crf %.1f out of range", crf));
+        }
+        this.rateControl = RATE_CONTROL_CRF;
+        this.crf = crf;
+        return this;
+    }
+
+    /**
+     * The VBV follows the target bitrate, so it still holds when the bitrate adapts to the uplink.
+     *
+     * @param maxRateFactor the VBV max rate relative to the target bitrate.
+     * @param bufferSeconds the VBV buffer size in seconds at the max rate.
+     */
+    public ShopLiveSoftEncoderConfig setVbv(float maxRateFactor, float bufferSeconds) {
+        if (maxRateFactor <= 0 || bufferSeconds <= 0) {
+            throw new IllegalArgumentException("the VBV must be positive");
+        }
+        this.vbvMaxRateFactor = maxRateFactor;
+        this.vbvBufferSeconds = bufferSeconds;
+        return this;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public boolean isSlicedThreads() {
+        return slicedThreads;
+    }
+
+    public int getLookahead() {
+        return lookahead;
+    }
+
+    public int getBFrames() {
+        return bFrames;
+    }
+
+    public boolean isZeroLatency() {
+        return zeroLatency;
+    }
+
+    public boolean isIntraRefresh() {
+        return intraRefresh;
+    }
+
+    public int getRateControl() {
+        return rateControl;
+    }
+
+    public float getCrf() {
+        return crf;
+    }
+
+    public float getVbvMaxRateFactor() {
+        return vbvMaxRateFactor;
+    }
+
+    public float getVbvBufferSeconds() {
+        return vbvBufferSeconds;
+    }
+}
@@ -0,0 +1,25 @@
+package cloud.shoplive.studio;
+
+import android.view.Surface;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Encoder input fed by the GL renderer through a surface instead of RGBA byte arrays.
+ */
+public interface ShopLiveSurfaceInput {
+
+    /**
+     * @return the encoder input surface, or null while the encoder takes byte buffers.
+     * The surface changes when the encoder is restarted.
+     */
+    @Nullable
+    Surface getInputSurface();
+
+    /**
+     * Called on the GL thread before a frame is drawn into the input surface.
+     *
+     * @return the presentation time of the frame in nanoseconds, or -1 to skip it.
+     */
+    long onSurfaceFrame();
+}
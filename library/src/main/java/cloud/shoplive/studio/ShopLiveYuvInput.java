@@ -0,0 +1,30 @@
+package cloud.shoplive.studio;
+
+/**
+ * Encoder input which takes YUV frames converted on the GPU instead of RGBA byte arrays.
+ * The GL renderer polls it on every frame, so the layout and size follow encoder restarts.
+ */
+public interface ShopLiveYuvInput {
+
+    /**
+     * @return {@link com.seu.magicfilter.utils.YuvConversion#I420} or
+     * {@link com.seu.magicfilter.utils.YuvConversion#NV12} for the layout of the encoder,
+     * or {@link com.seu.magicfilter.utils.YuvConversion#NONE} while it takes RGBA frames.
+     */
+    int getYuvLayout();
+
+    int getYuvWidth();
+
+    int getYuvHeight();
+
+    /**
+     * @return the clockwise rotation the encoder applies to RGBA readbacks, the GPU conversion
+     * applies the same so both paths give the same picture.
+     */
+    int getYuvRotation();
+
+    /**
+     * @return whether the rotated readback is mirrored horizontally.
+     */
+    boolean isYuvFlipped();
+}
@@ -2,6 +2,7 @@ package com.github.faucamp.simplertmp;
 
 import java.util.concurrent.atomic.AtomicInteger;
 
+import com.github.faucamp.simplertmp.io.NioRtmpConnection;
 import com.github.faucamp.simplertmp.io.RtmpConnection;
 
 /**
@@ -14,7 +15,15 @@ public class DefaultRtmpPublisher implements RtmpPublisher {
     private RtmpConnection rtmpConnection;
 
     public DefaultRtmpPublisher(RtmpHandler handler) {
-        rtmpConnection = new RtmpConnection(handler);
+        this(handler, false);
+    }
+
+    /**
+     * @param nioTransport use a non-blocking socket served by a single selector thread, see
+     *                     {@link NioRtmpConnection}, instead of blocking writes and a receive thread.
+     */
+    public DefaultRtmpPublisher(RtmpHandler handler, boolean nioTransport) {
+        rtmpConnection = nioTransport ? new NioRtmpConnection(handler) : new RtmpConnection(handler);
     }
 
     @Override
@@ -32,6 +41,26 @@ public class DefaultRtmpPublisher implements RtmpPublisher {
         rtmpConnection.close();
     }
 
+    @Override
+    public void setAutoReconnect(boolean autoReconnect) {
+        rtmpConnection.setAutoReconnect(autoReconnect);
+    }
+
+    @Override
+    public boolean isConnectionLost() {
+        return rtmpConnection.isConnectionLost();
+    }
+
+    @Override
+    public boolean reconnect() {
+        return rtmpConnection.reconnect();
+    }
+
+    @Override
+    public void abandonReconnect() {
+        rtmpConnection.abandonReconnect();
+    }
+
     @Override
     public void publishVideoData(byte[] data, int size, int dts) {
         rtmpConnection.publishVideoData(data, size, dts);
@@ -42,11 +71,41 @@ public class DefaultRtmpPublisher implements RtmpPublisher {
         rtmpConnection.publishAudioData(data, size, dts);
     }
 
+    @Override
+    public void flush() {
+        rtmpConnection.flush();
+    }
+
     @Override
     public AtomicInteger getVideoFrameCacheNumber() {
         return rtmpConnection.getVideoFrameCacheNumber();
     }
 
+    @Override
+    public long getBytesSent() {
+        return rtmpConnection.getBytesSent();
+    }
+
+    @Override
+    public long getBytesAcknowledged() {
+        return rtmpConnection.getBytesAcknowledged();
+    }
+
+    @Override
+    public long getBytesInFlight() {
+        return rtmpConnection.getBytesInFlight();
+    }
+
+    @Override
+    public long getAckRttMillis() {
+        return rtmpConnection.getAckRttMillis();
+    }
+
+    @Override
+    public long getWriteStallMillis() {
+        return rtmpConnection.getWriteStallMillis();
+    }
+
     @Override
     public final String getServerIpAddr() {
         return rtmpConnection.getServerIpAddr();
@@ -67,4 +126,9 @@ public class DefaultRtmpPublisher implements RtmpPublisher {
         rtmpConnection.setVideoResolution(width, height);
     }
 
+    @Override
+    public void setChunkSize(int chunkSize) {
+        rtmpConnection.setChunkSize(chunkSize);
+    }
+
 }
@@ -33,6 +33,30 @@ public interface RtmpPublisher {
      */
     void close();
 
+    /**
+     * Keep a connection lost while publishing for {@link #reconnect()}, instead of notifying its
+     * socket and io exceptions.
+     */
+    void setAutoReconnect(boolean autoReconnect);
+
+    /**
+     * @return true once the socket failed or the server closed it, until the next successful connection.
+     */
+    boolean isConnectionLost();
+
+    /**
+     * Connect to the last url again and publish with the last publish type, once the connection
+     * was lost. The failures of the attempt are not notified.
+     *
+     * @return If succeeded return true else return false
+     */
+    boolean reconnect();
+
+    /**
+     * Give up reconnecting and notify the exception which lost the connection.
+     */
+    void abandonReconnect();
+
     /**
      * publish a video content packet to server
      *
@@ -51,11 +75,42 @@ public interface RtmpPublisher {
      */
     void publishAudioData(byte[] data, int size, int dts);
 
+    /**
+     * Write the audio and video data published since the last flush. Their arrays are sent in
+     * place, so the caller must not reuse them before this returns.
+     */
+    void flush();
+
     /**
      * obtain video frame number cached in publisher
      */
     AtomicInteger getVideoFrameCacheNumber();
 
+    /**
+     * obtain the number of bytes written to the socket since connected
+     */
+    long getBytesSent();
+
+    /**
+     * obtain the number of bytes acknowledged by the peer, 0 if it never sends acknowledgements
+     */
+    long getBytesAcknowledged();
+
+    /**
+     * obtain the number of bytes written but not acknowledged by the peer yet, 0 until it acknowledges
+     */
+    long getBytesInFlight();
+
+    /**
+     * obtain the smoothed time from writing a byte to its acknowledgement, in milliseconds
+     */
+    long getAckRttMillis();
+
+    /**
+     * obtain the total time spent blocked in socket writes, in milliseconds
+     */
+    long getWriteStallMillis();
+
     /**
      * obtain the IP address of the peer if any
      */
@@ -79,4 +134,9 @@ public interface RtmpPublisher {
      */
     void setVideoResolution(int width, int height);
 
+    /**
+     * Set the outbound chunk size announced to the server on the next connection.
+     */
+    void setChunkSize(int chunkSize);
+
 }
@@ -23,6 +23,10 @@ public class Util {
         return ((in.read() & 0xff) << 24) | ((in.read() & 0xff) << 16) | ((in.read() & 0xff) << 8) | (in.read() & 0xff);
     }
 
+    public static int readUnsignedInt32LittleEndian(InputStream in) throws IOException {
+        return (in.read() & 0xff) | ((in.read() & 0xff) << 8) | ((in.read() & 0xff) << 16) | ((in.read() & 0xff) << 24);
+    }
+
     public static int readUnsignedInt24(InputStream in) throws IOException {
         return ((in.read() & 0xff) << 16) | ((in.read() & 0xff) << 8) | (in.read() & 0xff);
     }
@@ -84,17 +88,23 @@ public class Util {
      * Reads bytes from the specified inputstream into the specified target buffer until it is filled up     
      */
     public static void readBytesUntilFull(InputStream in, byte[] targetBuffer) throws IOException {
+        readBytesUntilFull(in, targetBuffer, 0, targetBuffer.length);
+    }
+
+    /**
+     * Reads exactly {@code length} bytes from the specified inputstream into the target buffer from {@code offset}
+     */
+    public static void readBytesUntilFull(InputStream in, byte[] targetBuffer, int offset, int length) throws IOException {
         int totalBytesRead = 0;
         int read;
-        final int targetBytes = targetBuffer.length;
-        do {
-            read = in.read(targetBuffer, totalBytesRead, (targetBytes - totalBytesRead));
+        while (totalBytesRead < length) {
+            read = in.read(targetBuffer, offset + totalBytesRead, (length - totalBytesRead));
             if (read != -1) {
                 totalBytesRead += read;
             } else {
                 throw new IOException("Unexpected EOF reached before read buffer was filled");
             }
-        } while (totalBytesRead < targetBytes);
+        }
     }    
 
     public static byte[] toByteArray(double d) {
@@ -1,9 +1,9 @@
 package com.github.faucamp.simplertmp.io;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 
 import com.github.faucamp.simplertmp.Util;
 import com.github.faucamp.simplertmp.packets.RtmpHeader;
@@ -21,71 +21,158 @@ public class ChunkStreamInfo {
     public static final byte RTMP_CID_OVER_STREAM = 0x05;
     public static final byte RTMP_CID_VIDEO = 0x06;
     public static final byte RTMP_CID_AUDIO = 0x07;
-    private RtmpHeader prevHeaderRx;
-    private RtmpHeader prevHeaderTx;
-    private static long sessionBeginTimestamp;
-    private long realLastTimestamp = System.nanoTime() / 1000000;  // Do not use wall time!
-    private ByteArrayOutputStream baos = new ByteArrayOutputStream(1024 * 128);
+    // header of the last packet sent, which the next packet header is compressed against.
+    private boolean hasTxHeader;
+    private int txAbsoluteTimestamp;
+    // -1 after a full header, whose delta a following type 3 header would be ambiguous about.
+    private int txTimestampDelta;
+    private int txPacketLength;
+    private RtmpHeader.MessageType txMessageType;
+    private int txMessageStreamId;
+    // header of the last chunk received, which the next chunk headers inherit from.
+    private RtmpHeader.ChunkType rxChunkType;
+    private int rxChunkStreamId;
+    private int rxAbsoluteTimestamp;
+    private int rxTimestampDelta;
+    private int rxPacketLength;
+    private RtmpHeader.MessageType rxMessageType;
+    private int rxMessageStreamId;
+    // reassembles a packet spanning several chunks, grown to the largest packet received.
+    private byte[] rxPacket = new byte[0];
+    private int rxStoredSize;
+    private final StoredPacketInputStream rxPacketStream = new StoredPacketInputStream();
 
-    /** @return the previous header that was received on this channel, or <code>null</code> if no previous header was received */
-    public RtmpHeader prevHeaderRx() {
-        return prevHeaderRx;
+    /** @return <code>true</code> once a chunk header has been received on this channel */
+    public boolean hasRxHeader() {
+        return rxChunkType != null;
     }
 
-    /** Sets the previous header that was received on this channel, or <code>null</code> if no previous header was sent */
-    public void setPrevHeaderRx(RtmpHeader previousHeader) {
-        this.prevHeaderRx = previousHeader;
+    /** Sets the header of the chunk received last on this channel */
+    public void setRxHeader(RtmpHeader.ChunkType chunkType, int chunkStreamId, int absoluteTimestamp, int timestampDelta,
+                            int packetLength, RtmpHeader.MessageType messageType, int messageStreamId) {
+        rxChunkType = chunkType;
+        rxChunkStreamId = chunkStreamId;
+        rxAbsoluteTimestamp = absoluteTimestamp;
+        rxTimestampDelta = timestampDelta;
+        rxPacketLength = packetLength;
+        rxMessageType = messageType;
+        rxMessageStreamId = messageStreamId;
     }
 
-    /** @return the previous header that was transmitted on this channel */
-    public RtmpHeader getPrevHeaderTx() {
-        return prevHeaderTx;
+    public int getRxAbsoluteTimestamp() {
+        return rxAbsoluteTimestamp;
+    }
+
+    public int getRxTimestampDelta() {
+        return rxTimestampDelta;
+    }
+
+    public int getRxPacketLength() {
+        return rxPacketLength;
+    }
+
+    public RtmpHeader.MessageType getRxMessageType() {
+        return rxMessageType;
+    }
+
+    public int getRxMessageStreamId() {
+        return rxMessageStreamId;
+    }
+
+    /** @return a header for the packet received last on this channel, created once the packet is complete */
+    public RtmpHeader createRxHeader() {
+        RtmpHeader header = new RtmpHeader(rxChunkType, rxChunkStreamId, rxMessageType);
+        header.setAbsoluteTimestamp(rxAbsoluteTimestamp);
+        header.setTimestampDelta(rxTimestampDelta);
+        header.setPacketLength(rxPacketLength);
+        header.setMessageStreamId(rxMessageStreamId);
+        return header;
+    }
+
+    /** @return <code>true</code> once a packet has been sent on this channel */
+    public boolean hasTxHeader() {
+        return hasTxHeader;
+    }
+
+    /** Forgets the header sent last, so the next packet on this channel gets a full header */
+    public void clearTxHeader() {
+        hasTxHeader = false;
     }
 
     public boolean canReusePrevHeaderTx(RtmpHeader.MessageType forMessageType) {
-        return (prevHeaderTx != null && prevHeaderTx.getMessageType() == forMessageType);
+        return (hasTxHeader && txMessageType == forMessageType);
+    }
+
+    /** Sets the header of the packet sent last on this channel, written with the given first chunk type */
+    public void setTxHeader(RtmpHeader header, RtmpHeader.ChunkType chunkType) {
+        hasTxHeader = true;
+        txAbsoluteTimestamp = header.getAbsoluteTimestamp();
+        txTimestampDelta = chunkType == RtmpHeader.ChunkType.TYPE_0_FULL ? -1 : header.getTimestampDelta();
+        txPacketLength = header.getPacketLength();
+        txMessageType = header.getMessageType();
+        txMessageStreamId = header.getMessageStreamId();
+    }
+
+    public int getTxAbsoluteTimestamp() {
+        return txAbsoluteTimestamp;
     }
 
-    /** Sets the previous header that was transmitted on this channel */
-    public void setPrevHeaderTx(RtmpHeader prevHeaderTx) {
-        this.prevHeaderTx = prevHeaderTx;
+    public int getTxTimestampDelta() {
+        return txTimestampDelta;
     }
 
-    /** Sets the session beginning timestamp for all chunks */
-    public static void markSessionTimestampTx() {
-        sessionBeginTimestamp = System.nanoTime() / 1000000;
+    public int getTxPacketLength() {
+        return txPacketLength;
     }
 
-    /** Utility method for calculating & synchronizing transmitted timestamps */
-    public long markAbsoluteTimestampTx() {
-        return System.nanoTime() / 1000000 - sessionBeginTimestamp;
+    public RtmpHeader.MessageType getTxMessageType() {
+        return txMessageType;
     }
 
-    /** Utility method for calculating & synchronizing transmitted timestamp deltas */
-    public long markDeltaTimestampTx() {
-        long currentTimestamp = System.nanoTime() / 1000000;
-        long diffTimestamp = currentTimestamp - realLastTimestamp;
-        realLastTimestamp = currentTimestamp;
-        return diffTimestamp;
+    public int getTxMessageStreamId() {
+        return txMessageStreamId;
     }
 
     /** @return <code>true</code> if all packet data has been stored, or <code>false</code> if not */
     public boolean storePacketChunk(InputStream in, int chunkSize) throws IOException {
-        final int remainingBytes = prevHeaderRx.getPacketLength() - baos.size();
-        byte[] chunk = new byte[Math.min(remainingBytes, chunkSize)];
-        Util.readBytesUntilFull(in, chunk);
-        baos.write(chunk);
-        return (baos.size() == prevHeaderRx.getPacketLength());
+        if (rxPacket.length < rxPacketLength) {
+            rxPacket = Arrays.copyOf(rxPacket, Math.max(rxPacketLength, rxPacket.length * 2));
+        }
+        final int chunkBytes = Math.min(rxPacketLength - rxStoredSize, chunkSize);
+        Util.readBytesUntilFull(in, rxPacket, rxStoredSize, chunkBytes);
+        rxStoredSize += chunkBytes;
+        return (rxStoredSize == rxPacketLength);
     }
 
-    public ByteArrayInputStream getStoredPacketInputStream() {
-        ByteArrayInputStream bis = new ByteArrayInputStream(baos.toByteArray());
-        baos.reset();
-        return bis;
+    /** @return the number of bytes stored of the packet being received */
+    public int getStoredPacketSize() {
+        return rxStoredSize;
+    }
+
+    /** @return the stored packet, read from the reassembly buffer, so it is only valid until the next chunk is stored */
+    public InputStream getStoredPacketInputStream() {
+        rxPacketStream.reset(rxPacket, rxStoredSize);
+        rxStoredSize = 0;
+        return rxPacketStream;
     }
     
     /** Clears all currently-stored packet chunks (used when an ABORT packet is received) */
     public void clearStoredChunks() {
-        baos.reset();
+        rxStoredSize = 0;
+    }
+
+    /** A byte array input stream which can be pointed at another array */
+    private static final class StoredPacketInputStream extends ByteArrayInputStream {
+
+        StoredPacketInputStream() {
+            super(new byte[0]);
+        }
+
+        void reset(byte[] data, int length) {
+            buf = data;
+            pos = 0;
+            count = length;
+            mark = 0;
+        }
     }
 }
@@ -0,0 +1,681 @@
+package com.github.faucamp.simplertmp.io;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.github.faucamp.simplertmp.RtmpHandler;
+import com.github.faucamp.simplertmp.packets.Audio;
+import com.github.faucamp.simplertmp.packets.Handshake;
+import com.github.faucamp.simplertmp.packets.RtmpPacket;
+import com.github.faucamp.simplertmp.packets.Video;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * RTMP connection on a non-blocking socket. One selector thread, shared by every connection,
+ * connects, reads and writes them.
+ * <p>
+ * Packets are copied into a write queue that the selector thread drains whenever the socket takes
+ * more, so a stalled uplink never blocks the muxer. A video packet keeps counting in
+ * {@link #getVideoFrameCacheNumber()} until its last byte is written, which lets the FLV muxer
+ * drop policy see the queue. Once more than {@link #MAX_QUEUED_BYTES} wait, the queued video is cut
+ * back to the newest key frame, or dropped up to the next one if none is queued. Every video packet
+ * starts with a full chunk header, so it can be cut without breaking the next one. The write stall
+ * is the time the socket spent refusing data.
+ */
+public class NioRtmpConnection extends RtmpConnection {
+
+    private static final String TAG = "NioRtmpConnection";
+    // covers the TCP connection and the handshake.
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    // time given to the queue to drain, e.g. the closeStream command, before the socket closes.
+    private static final int CLOSE_TIMEOUT_MS = 1000;
+    private static final int RX_BUFFER_SIZE = 16 * 1024;
+    // C0, C1 and C2 go through the write queue before the first chunk.
+    private static final int HANDSHAKE_BYTES = 1 + 2 * Handshake.HANDSHAKE_SIZE;
+    // about 4 seconds of a 8 Mbps stream.
+    public static final int MAX_QUEUED_BYTES = 4 * 1024 * 1024;
+
+    private static final int STATE_CONNECTING = 0;
+    private static final int STATE_HANDSHAKE_S0_S1 = 1;
+    private static final int STATE_HANDSHAKE_S2 = 2;
+    private static final int STATE_CONNECTED = 3;
+    private static final int STATE_CLOSED = 4;
+
+    @Nullable
+    private volatile Session session;
+    // media packets dropped since the queue last had room, with the write lock held.
+    private int droppedPackets;
+    // the decoder lost a reference, the video waits for the next key frame.
+    private boolean skipVideoUntilKeyFrame;
+
+    public NioRtmpConnection(RtmpHandler handler) {
+        super(handler);
+    }
+
+    @Override
+    protected boolean openTransport(SocketAddress socketAddress) {
+        Session s;
+        try {
+            s = new Session(socketAddress);
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (!onConnectionLost(e)) {
+                mHandler.notifyRtmpIOException(e);
+            }
+            return false;
+        }
+        session = s;
+        chunkWriter = new RtmpChunkWriter(s.queue);
+        droppedPackets = 0;
+        skipVideoUntilKeyFrame = false;
+        try {
+            SelectorLoop.register(s);
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeTransport();
+            if (!onConnectionLost(e)) {
+                mHandler.notifyRtmpIOException(e);
+            }
+            return false;
+        }
+        Log.d(TAG, "openTransport(): connecting and doing handshake...");
+        IOException failure = s.awaitConnected(CONNECT_TIMEOUT_MS);
+        if (failure != null) {
+            closeTransport();
+            if (!onConnectionLost(failure)) {
+                mHandler.notifyRtmpIOException(failure);
+            }
+            return false;
+        }
+        Log.d(TAG, "openTransport(): handshake done");
+        return true;
+    }
+
+    @Override
+    protected boolean isTransportOpen() {
+        return session != null;
+    }
+
+    @Override
+    protected void closeTransport() {
+        Session s = session;
+        session = null;
+        if (s != null) {
+            s.close();
+        }
+    }
+
+    @Override
+    protected void writePacket(RtmpPacket rtmpPacket, ChunkStreamInfo chunkStreamInfo) throws IOException {
+        Session s = session;
+        boolean isVideo = rtmpPacket instanceof Video;
+        if (s == null) {
+            if (isVideo) {
+                videoFrameCacheNumber.decrementAndGet();
+            }
+            throw new SocketException("Socket closed");
+        }
+        byte videoType = isVideo ? getVideoType((Video) rtmpPacket) : RtmpWriteQueue.VIDEO_INTER_FRAME;
+        if (isVideo || rtmpPacket instanceof Audio) {
+            if (!admitMediaPacket(s, isVideo, videoType)) {
+                droppedPackets++;
+                if (isVideo) {
+                    videoFrameCacheNumber.decrementAndGet();
+                }
+                return;
+            }
+            if (droppedPackets > 0 && !skipVideoUntilKeyFrame) {
+                Log.i(TAG, "writePacket(): write queue drained, " + droppedPackets + " packets dropped");
+                droppedPackets = 0;
+            }
+        }
+        long start = s.queue.getQueuedEnd() + chunkWriter.getPendingBytes();
+        if (isVideo) {
+            // a full header does not depend on the previous video packet, which may be cut.
+            chunkStreamInfo.clearTxHeader();
+        }
+        try {
+            super.writePacket(rtmpPacket, chunkStreamInfo);
+        } catch (IOException e) {
+            // the queue closed under the packet, it will never count down.
+            if (isVideo) {
+                videoFrameCacheNumber.decrementAndGet();
+            }
+            throw e;
+        }
+        if (isVideo) {
+            s.queue.markVideoPacket(start, chunkWriter.getPendingBytes(), videoType);
+        }
+    }
+
+    /**
+     * Decide whether an audio or video packet goes into the write queue. Once the queue is full the
+     * queued video is cut back to the newest key frame, or to nothing when none is queued, and the
+     * video then waits for the next key frame.
+     *
+     * @return false to drop the packet.
+     */
+    private boolean admitMediaPacket(Session s, boolean isVideo, byte videoType) throws IOException {
+        if (isVideo && skipVideoUntilKeyFrame) {
+            if (videoType == RtmpWriteQueue.VIDEO_INTER_FRAME) {
+                return false;
+            } else if (videoType == RtmpWriteQueue.VIDEO_KEY_FRAME) {
+                skipVideoUntilKeyFrame = false;
+                Log.i(TAG, "writePacket(): resume video at key frame, " + droppedPackets + " packets dropped");
+                droppedPackets = 0;
+            }
+        }
+        if (s.queue.getQueuedBytes() + chunkWriter.getPendingBytes() <= MAX_QUEUED_BYTES) {
+            return true;
+        }
+        // the batched chunks go into the queue first, so that every queued packet can be cut.
+        chunkWriter.flush();
+        int cut = s.queue.cutVideoToLastKeyFrame();
+        droppedPackets += cut;
+        if (!s.queue.hasUnsentKeyFrame()) {
+            skipVideoUntilKeyFrame = true;
+        }
+        Log.w(TAG, "writePacket(): write queue full, cut " + cut + " queued video packets, "
+                + s.queue.getQueuedBytes() + " bytes left");
+        if (isVideo && videoType == RtmpWriteQueue.VIDEO_INTER_FRAME && skipVideoUntilKeyFrame) {
+            return false;
+        }
+        if (s.queue.getQueuedBytes() <= MAX_QUEUED_BYTES || videoType == RtmpWriteQueue.VIDEO_SEQUENCE_HEADER) {
+            if (videoType == RtmpWriteQueue.VIDEO_KEY_FRAME) {
+                skipVideoUntilKeyFrame = false;
+            }
+            return true;
+        }
+        // still full of audio or of the GOP being sent, e.g. a dead uplink.
+        if (isVideo) {
+            skipVideoUntilKeyFrame = true;
+        }
+        return false;
+    }
+
+    /**
+     * @return how the packet may be dropped, from the FLV video tag header it carries.
+     */
+    private static byte getVideoType(Video video) {
+        byte[] data = video.array();
+        if (video.size() > 1 && data[1] == 0) {
+            // the AVC sequence header, which the decoder always needs.
+            return RtmpWriteQueue.VIDEO_SEQUENCE_HEADER;
+        }
+        return video.size() > 0 && (data[0] & 0xf0) == 0x10
+                ? RtmpWriteQueue.VIDEO_KEY_FRAME : RtmpWriteQueue.VIDEO_INTER_FRAME;
+    }
+
+    @Override
+    protected void flushTransport() throws IOException {
+        // the chunks only reach the queue here, the selector thread counts what the socket takes.
+        chunkWriter.flush();
+        Session s = session;
+        if (s != null) {
+            s.wakeup();
+        }
+    }
+
+    @Override
+    protected void onVideoPacketSent() {
+        // the write queue counts the packet down once it has been written.
+    }
+
+    @Override
+    protected void onVideoPacketDropped() {
+        // it never reached the write queue, which would have counted it down.
+        videoFrameCacheNumber.decrementAndGet();
+    }
+
+    @Override
+    protected void setSendBufferSize(int size) throws IOException {
+        Session s = session;
+        if (s != null) {
+            s.channel.socket().setSendBufferSize(size);
+        }
+    }
+
+    /**
+     * The selector thread shared by every connection. It starts with the first session and ends once
+     * the last one has closed, so an idle app keeps no thread.
+     */
+    private static final class SelectorLoop implements Runnable {
+
+        // guarded by the class lock, like the sessions waiting for registration.
+        @Nullable
+        private static SelectorLoop instance;
+
+        final Selector selector;
+        final Thread thread;
+        private final ArrayList<Session> registering = new ArrayList<>();
+        // selector thread only.
+        private final ArrayList<Session> sessions = new ArrayList<>();
+
+        private SelectorLoop() throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, TAG);
+        }
+
+        /**
+         * Hand a new session to the selector thread, starting it if needed.
+         */
+        static void register(Session session) throws IOException {
+            synchronized (SelectorLoop.class) {
+                if (instance == null) {
+                    instance = new SelectorLoop();
+                    instance.thread.start();
+                }
+                session.loop = instance;
+                instance.registering.add(session);
+                instance.selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    synchronized (SelectorLoop.class) {
+                        for (int i = 0; i < registering.size(); i++) {
+                            Session session = registering.get(i);
+                            if (session.register(selector)) {
+                                sessions.add(session);
+                            }
+                        }
+                        registering.clear();
+                        if (sessions.isEmpty()) {
+                            instance = null;
+                            return;
+                        }
+                    }
+                    boolean closing = false;
+                    for (int i = sessions.size() - 1; i >= 0; i--) {
+                        Session session = sessions.get(i);
+                        if (!session.prepare()) {
+                            sessions.remove(i);
+                        } else if (session.closing) {
+                            closing = true;
+                        }
+                    }
+                    if (sessions.isEmpty()) {
+                        continue;
+                    }
+                    // a closing connection polls its deadline.
+                    selector.select(closing ? 100 : 0);
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        ((Session) key.attachment()).onReady(key);
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "run(): selector failed", e);
+                synchronized (SelectorLoop.class) {
+                    sessions.addAll(registering);
+                    registering.clear();
+                    instance = null;
+                }
+                for (int i = 0; i < sessions.size(); i++) {
+                    sessions.get(i).onLoopException(e);
+                    sessions.get(i).finish();
+                }
+            } finally {
+                try {
+                    selector.close();
+                } catch (IOException ex) {
+                    Log.e(TAG, "run(): failed to close selector", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * One connection: its socket, write queue and receive buffer, served by the selector loop.
+     */
+    private final class Session {
+
+        final SocketChannel channel;
+        final RtmpWriteQueue queue = new RtmpWriteQueue(videoFrameCacheNumber);
+        @Nullable
+        private volatile SelectorLoop loop;
+        @Nullable
+        private SelectionKey key;
+        private final Object stateLock = new Object();
+        private volatile int state = STATE_CONNECTING;
+        private volatile boolean closing;
+        private volatile long closeDeadline;
+        // set by the selector thread once the connection failed, it closes on the next round.
+        private boolean failed;
+        @Nullable
+        private IOException failure;
+        @Nullable
+        private Handshake handshake = new Handshake();
+        private ByteBuffer rxBuffer = ByteBuffer.allocate(RX_BUFFER_SIZE);
+        private final ByteBufferInputStream rxStream = new ByteBufferInputStream();
+        private long stallBegin;
+
+        Session(SocketAddress socketAddress) throws IOException {
+            channel = SocketChannel.open();
+            try {
+                channel.configureBlocking(false);
+                if (channel.connect(socketAddress)) {
+                    onConnected();
+                }
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        void wakeup() {
+            SelectorLoop l = loop;
+            if (l != null) {
+                l.selector.wakeup();
+            }
+        }
+
+        /**
+         * @return null once the handshake is done, or why it failed.
+         */
+        @Nullable
+        IOException awaitConnected(long timeoutMs) {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            synchronized (stateLock) {
+                while (state < STATE_CONNECTED) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        break;
+                    }
+                    try {
+                        stateLock.wait(wait);
+                    } catch (InterruptedException ex) {
+                        break;
+                    }
+                }
+                if (state == STATE_CONNECTED) {
+                    return null;
+                }
+                return failure != null ? failure : new SocketTimeoutException("RTMP handshake timed out");
+            }
+        }
+
+        /**
+         * Let the queue drain for a while, then close the socket and wait for the selector thread.
+         */
+        void close() {
+            closeDeadline = System.nanoTime() + CLOSE_TIMEOUT_MS * 1000000L;
+            closing = true;
+            SelectorLoop l = loop;
+            if (l == null) {
+                finish();
+                return;
+            }
+            l.selector.wakeup();
+            if (l.thread == Thread.currentThread()) {
+                return;
+            }
+            long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MS * 2;
+            synchronized (stateLock) {
+                while (state != STATE_CLOSED) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        break;
+                    }
+                    try {
+                        stateLock.wait(wait);
+                    } catch (InterruptedException ex) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        private void setState(int state) {
+            synchronized (stateLock) {
+                this.state = state;
+                stateLock.notifyAll();
+            }
+        }
+
+        /**
+         * selector thread: register the channel.
+         *
+         * @return false if it closed meanwhile.
+         */
+        boolean register(Selector selector) {
+            try {
+                key = channel.register(selector, state == STATE_CONNECTING ? SelectionKey.OP_CONNECT : SelectionKey.OP_READ, this);
+                return true;
+            } catch (ClosedChannelException e) {
+                onLoopException(e);
+                finish();
+                return false;
+            }
+        }
+
+        /**
+         * selector thread: write what the socket takes and pick the events to wait for.
+         *
+         * @return false once the session has closed.
+         */
+        boolean prepare() {
+            if (failed || (closing && !(state == STATE_CONNECTED && queue.hasRemaining() && System.nanoTime() < closeDeadline))) {
+                finish();
+                return false;
+            }
+            if (state != STATE_CONNECTING) {
+                try {
+                    boolean drained = drain();
+                    key.interestOps(drained ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                } catch (IOException e) {
+                    onLoopException(e);
+                    finish();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * selector thread: handle the events of the channel.
+         */
+        void onReady(SelectionKey key) {
+            try {
+                if (key.isConnectable() && channel.finishConnect()) {
+                    onConnected();
+                }
+                if (key.isReadable()) {
+                    read();
+                }
+            } catch (IOException e) {
+                onLoopException(e);
+                failed = true;
+            } catch (RuntimeException e) {
+                // e.g. a malformed server reply, which must not take the other connections down.
+                Log.e(TAG, "run(): selector loop failed", e);
+                onLoopException(new IOException(e));
+                failed = true;
+            }
+        }
+
+        /**
+         * close the socket and the queue, and wake the threads waiting for the state.
+         */
+        void finish() {
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+                Log.d(TAG, "socket closed");
+            } catch (IOException ex) {
+                Log.e(TAG, "run(): failed to close socket", ex);
+            }
+            queue.close();
+            setState(STATE_CLOSED);
+        }
+
+        private void onConnected() throws IOException {
+            Log.d(TAG, "onConnected(): socket connection established, doing handshake...");
+            ByteArrayOutputStream out = new ByteArrayOutputStream(1 + Handshake.HANDSHAKE_SIZE);
+            handshake.writeC0(out);
+            handshake.writeC1(out); // Write C1 without waiting for S0
+            queue.write(ByteBuffer.wrap(out.toByteArray()));
+            state = STATE_HANDSHAKE_S0_S1;
+        }
+
+        private void onLoopException(IOException e) {
+            if (state < STATE_CONNECTED) {
+                // the connecting thread reports it.
+                failure = e;
+            } else if (closing) {
+                Log.d(TAG, "run(): " + e.getMessage() + " while closing");
+            } else if (onConnectionLost(e)) {
+                Log.i(TAG, "run(): connection lost, " + e.getMessage());
+            } else if (e instanceof EOFException) {
+                Log.i(TAG, "run(): connection closed by the server");
+            } else if (e instanceof SocketException) {
+                Log.e(TAG, "Caught SocketException in the selector loop, shutting down: " + e.getMessage());
+                mHandler.notifyRtmpSocketException((SocketException) e);
+            } else {
+                Log.e(TAG, "Caught IOException in the selector loop, shutting down: " + e.getMessage());
+                mHandler.notifyRtmpIOException(e);
+            }
+        }
+
+        /**
+         * @return true once the queue is empty, false when the socket is full.
+         */
+        private boolean drain() throws IOException {
+            if (queue.writeTo(channel) > 0) {
+                flowControl.onBytesWritten(queue.getWrittenBytes() - HANDSHAKE_BYTES);
+            }
+            if (!queue.hasRemaining()) {
+                if (stallBegin != 0) {
+                    writeStallNanos.addAndGet(System.nanoTime() - stallBegin);
+                    stallBegin = 0;
+                }
+                return true;
+            }
+            if (stallBegin == 0) {
+                stallBegin = System.nanoTime();
+            }
+            return false;
+        }
+
+        private void read() throws IOException {
+            if (channel.read(rxBuffer) < 0) {
+                throw new EOFException("Unexpected EOF while reading RTMP packet");
+            }
+            rxBuffer.flip();
+            try {
+                decode();
+            } finally {
+                rxBuffer.compact();
+            }
+        }
+
+        /**
+         * Consume the complete handshake packets and chunks at the head of the receive buffer.
+         */
+        private void decode() throws IOException {
+            rxStream.buffer = rxBuffer;
+            while (true) {
+                if (state == STATE_HANDSHAKE_S0_S1) {
+                    if (rxBuffer.remaining() < 1 + Handshake.HANDSHAKE_SIZE) {
+                        return;
+                    }
+                    handshake.readS0(rxStream);
+                    handshake.readS1(rxStream);
+                    ByteArrayOutputStream out = new ByteArrayOutputStream(Handshake.HANDSHAKE_SIZE);
+                    handshake.writeC2(out);
+                    queue.write(ByteBuffer.wrap(out.toByteArray()));
+                    state = STATE_HANDSHAKE_S2;
+                } else if (state == STATE_HANDSHAKE_S2) {
+                    if (rxBuffer.remaining() < Handshake.HANDSHAKE_SIZE) {
+                        return;
+                    }
+                    handshake.readS2(rxStream);
+                    handshake = null;
+                    setState(STATE_CONNECTED);
+                } else {
+                    int size = rtmpDecoder.peekChunkSize(rxBuffer);
+                    if (size < 0 || size > rxBuffer.remaining()) {
+                        if (size > rxBuffer.capacity()) {
+                            // the server raised its chunk size above the buffer.
+                            ByteBuffer grown = ByteBuffer.allocate(size);
+                            grown.put(rxBuffer);
+                            grown.flip();
+                            rxBuffer = grown;
+                        }
+                        return;
+                    }
+                    RtmpPacket rtmpPacket = rtmpDecoder.readPacket(rxStream);
+                    if (rtmpPacket != null) {
+                        handleRxPacket(rtmpPacket);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the receive buffer, which the selector thread fills with whole chunks beforehand.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+
+        ByteBuffer buffer;
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        // AMF objects look ahead for their end marker.
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            buffer.mark();
+        }
+
+        @Override
+        public synchronized void reset() {
+            buffer.reset();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.github.faucamp.simplertmp.io;
+
+import com.github.faucamp.simplertmp.packets.RtmpHeader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Batches RTMP chunks and writes them with gathering writes.
+ * <p>
+ * Chunk headers are serialized into one reusable buffer and the chunk payloads are referenced in
+ * place, so a packet body is never copied. The payloads must stay unchanged until the next
+ * {@link #flush()}, which the writer also does by itself once a batch holds too many buffers.
+ * Not thread-safe, the connection serializes its packets.
+ */
+public class RtmpChunkWriter {
+
+    // a batch holds at most this many headers and as many payload slices.
+    private static final int MAX_BATCH_CHUNKS = 256;
+    // bytes queued before the writer flushes by itself.
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+
+    private final GatheringByteChannel channel;
+    private final ByteBuffer headers = ByteBuffer.allocate(MAX_BATCH_CHUNKS * RtmpHeader.MAX_CHUNK_HEADER_SIZE);
+    // views on the header buffer, created once and repositioned for every chunk.
+    private final ByteBuffer[] headerViews = new ByteBuffer[MAX_BATCH_CHUNKS];
+    private final ByteBuffer[] buffers = new ByteBuffer[MAX_BATCH_CHUNKS * 2];
+    private int bufferCount;
+    private int headerCount;
+    private int pendingBytes;
+    private long bytesWritten;
+
+    public RtmpChunkWriter(GatheringByteChannel channel) {
+        this.channel = channel;
+    }
+
+    public void writeHeader(RtmpHeader header, RtmpHeader.ChunkType chunkType, ChunkStreamInfo chunkStreamInfo) throws IOException {
+        if (headerCount == MAX_BATCH_CHUNKS || bufferCount == buffers.length) {
+            flush();
+        }
+        int begin = headers.position();
+        header.writeTo(headers, chunkType, chunkStreamInfo);
+        ByteBuffer view = headerViews[headerCount];
+        if (view == null) {
+            view = headers.duplicate();
+            headerViews[headerCount] = view;
+        }
+        view.limit(headers.position());
+        view.position(begin);
+        headerCount++;
+        add(view);
+    }
+
+    public void writePayload(byte[] data, int offset, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        if (bufferCount == buffers.length) {
+            flush();
+        }
+        add(ByteBuffer.wrap(data, offset, length));
+        if (pendingBytes >= MAX_BATCH_BYTES) {
+            flush();
+        }
+    }
+
+    private void add(ByteBuffer buffer) {
+        buffers[bufferCount++] = buffer;
+        pendingBytes += buffer.remaining();
+    }
+
+    /**
+     * @return the number of bytes queued since the last flush.
+     */
+    public int getPendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * @return the number of bytes the channel has taken since the writer was created.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Write every queued chunk, blocking until the socket has taken them all.
+     */
+    public void flush() throws IOException {
+        int offset = 0;
+        try {
+            while (offset < bufferCount) {
+                bytesWritten += channel.write(buffers, offset, bufferCount - offset);
+                while (offset < bufferCount && !buffers[offset].hasRemaining()) {
+                    offset++;
+                }
+            }
+        } finally {
+            // drop the payload references, a failed batch is not retried.
+            for (int i = 0; i < bufferCount; i++) {
+                buffers[i] = null;
+            }
+            bufferCount = 0;
+            headerCount = 0;
+            pendingBytes = 0;
+            headers.clear();
+        }
+    }
+}
@@ -12,11 +12,13 @@ import com.github.faucamp.simplertmp.amf.AmfNumber;
 import com.github.faucamp.simplertmp.amf.AmfObject;
 import com.github.faucamp.simplertmp.amf.AmfString;
 import com.github.faucamp.simplertmp.packets.Abort;
+import com.github.faucamp.simplertmp.packets.Acknowledgement;
 import com.github.faucamp.simplertmp.packets.Audio;
 import com.github.faucamp.simplertmp.packets.Command;
 import com.github.faucamp.simplertmp.packets.Data;
 import com.github.faucamp.simplertmp.packets.Handshake;
 import com.github.faucamp.simplertmp.packets.RtmpPacket;
+import com.github.faucamp.simplertmp.packets.SetChunkSize;
 import com.github.faucamp.simplertmp.packets.SetPeerBandwidth;
 import com.github.faucamp.simplertmp.packets.UserControl;
 import com.github.faucamp.simplertmp.packets.Video;
@@ -32,10 +34,14 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -49,9 +55,15 @@ import java.util.regex.Pattern;
 public class RtmpConnection implements RtmpPublisher {
 
     private static final String TAG = "RtmpConnection";
+    // large enough for most audio and video packets to fit a single chunk.
+    public static final int DEFAULT_TX_CHUNK_SIZE = 4096;
+    // the server acknowledges every window, a small one keeps the bytes in flight up to date.
+    public static final int ACK_WINDOW_SIZE = 256 * 1024;
     private static final Pattern rtmpUrlPattern = Pattern.compile("^rtmp://([^/:]+)(:(\\d+))*/([^/]+)(/(.*))*$");
+    // shared by every connection, an idle rx thread times out instead of staying with its connection.
+    private static final ExecutorService rxExecutor = Executors.newCachedThreadPool();
 
-    private RtmpHandler mHandler;
+    protected final RtmpHandler mHandler;
     private int port;
     private String host;
     private String appName;
@@ -60,20 +72,34 @@ public class RtmpConnection implements RtmpPublisher {
     private String swfUrl;
     private String tcUrl;
     private String pageUrl;
+    // kept over a lost connection for reconnect().
+    private String url;
     private Socket socket;
     private String serverInfo = "";
     private String socketExceptionCause = "";
-    private RtmpSessionInfo rtmpSessionInfo;
-    private RtmpDecoder rtmpDecoder;
+    protected RtmpSessionInfo rtmpSessionInfo;
+    protected RtmpDecoder rtmpDecoder;
     private BufferedInputStream inputStream;
-    private BufferedOutputStream outputStream;
+    protected RtmpChunkWriter chunkWriter;
+    private final Object writeLock = new Object();
     @Nullable
     private Future<Void> rxPacketHandler;
     private volatile boolean connected = false;
     private volatile boolean publishPermitted = false;
+    private volatile boolean autoReconnect = false;
+    private volatile boolean reconnecting = false;
+    private volatile boolean connectionLost = false;
+    // a deliberate close is not a lost connection.
+    private volatile boolean closingTransport = false;
+    @Nullable
+    private volatile IOException lostCause;
     private final Object connectingLock = new Object();
     private final Object publishLock = new Object();
-    private final AtomicInteger videoFrameCacheNumber = new AtomicInteger(0);
+    protected final AtomicInteger videoFrameCacheNumber = new AtomicInteger(0);
+    // uplink counters sampled by the bitrate controller.
+    protected final RtmpFlowControl flowControl = new RtmpFlowControl();
+    protected final AtomicLong writeStallNanos = new AtomicLong(0);
+    private volatile int txChunkSize = DEFAULT_TX_CHUNK_SIZE;
     private int currentStreamId = 0;
     private int transactionIdCounter = 0;
     private AmfString serverIpAddr;
@@ -130,25 +156,43 @@ public class RtmpConnection implements RtmpPublisher {
 
         // socket connection
         Log.d(TAG, "connect() called. Host: " + host + ", port: " + port + ", appName: " + appName + ", publishPath: " + streamName);
+        this.url = url;
         rtmpSessionInfo = new RtmpSessionInfo();
         rtmpDecoder = new RtmpDecoder(rtmpSessionInfo);
-        socket = new Socket();
-        SocketAddress socketAddress = new InetSocketAddress(host, port);
+        closingTransport = false;
+        if (!openTransport(new InetSocketAddress(host, port))) {
+            return false;
+        }
+        return rtmpConnect();
+    }
+
+    /**
+     * Connect the socket and do the handshake, then hand every packet received to
+     * {@link #handleRxPacket(RtmpPacket)} until {@link #closeTransport()}.
+     *
+     * @return false if it failed, the handler has been notified.
+     */
+    protected boolean openTransport(SocketAddress socketAddress) {
         try {
+            // packets are written to the channel directly, the streams only serve the handshake and the rx loop.
+            SocketChannel socketChannel = SocketChannel.open();
+            socket = socketChannel.socket();
             socket.connect(socketAddress, 3000);
             inputStream = new BufferedInputStream(socket.getInputStream());
-            outputStream = new BufferedOutputStream(socket.getOutputStream());
             Log.d(TAG, "connect(): socket connection established, doing handhake...");
-            handshake(inputStream, outputStream);
+            handshake(inputStream, new BufferedOutputStream(socket.getOutputStream()));
+            chunkWriter = new RtmpChunkWriter(socketChannel);
             Log.d(TAG, "connect(): handshake done");
         } catch (IOException e) {
             e.printStackTrace();
-            mHandler.notifyRtmpIOException(e);
+            if (!onConnectionLost(e)) {
+                mHandler.notifyRtmpIOException(e);
+            }
             return false;
         }
 
         // Start the "main" handling thread
-        rxPacketHandler = Executors.newCachedThreadPool().submit((Callable<Void>) () -> {
+        rxPacketHandler = rxExecutor.submit((Callable<Void>) () -> {
             try {
                 Log.d(TAG, "starting main rx handler loop");
                 handleRxPacketLoop();
@@ -157,8 +201,14 @@ public class RtmpConnection implements RtmpPublisher {
             }
             return null;
         });
+        return true;
+    }
 
-        return rtmpConnect();
+    /**
+     * @return true from a successful {@link #openTransport(SocketAddress)} to the next {@link #closeTransport()}.
+     */
+    protected boolean isTransportOpen() {
+        return socket != null;
     }
 
     private boolean rtmpConnect() {
@@ -168,7 +218,7 @@ public class RtmpConnection implements RtmpPublisher {
         }
 
         // Mark session timestamp of all chunk stream information on connection.
-        ChunkStreamInfo.markSessionTimestampTx();
+        rtmpSessionInfo.markSessionTimestampTx();
 
         Log.d(TAG, "rtmpConnect(): Building 'connect' invoke packet");
         ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_OVER_CONNECTION);
@@ -314,7 +364,7 @@ public class RtmpConnection implements RtmpPublisher {
 
     @Override
     public void close() {
-        if (socket != null) {
+        if (isTransportOpen()) {
             closeStream();
         }
         shutdown();
@@ -343,37 +393,65 @@ public class RtmpConnection implements RtmpPublisher {
     }
 
     private void shutdown() {
-        if (socket != null) {
-            try {
-                // It will raise EOFException in handleRxPacketThread
-                socket.shutdownInput();
-                // It will raise SocketException in sendRtmpPacket
-                socket.shutdownOutput();
-            } catch (IOException ioe) {
-                ioe.printStackTrace();
+        if (isTransportOpen()) {
+            dropTransport();
+            if (!reconnecting) {
+                mHandler.notifyRtmpDisconnected();
             }
+        }
 
-            // shutdown rxPacketHandler
-            if (rxPacketHandler != null && !rxPacketHandler.isDone()) {
-                rxPacketHandler.cancel(true);
-                rxPacketHandler = null;
-            }
+        if (reconnecting) {
+            resetSession();
+        } else {
+            reset();
+        }
+    }
 
-            // shutdown socket as well as its input and output stream
-            try {
-                socket.close();
-                Log.d(TAG, "socket closed");
-            } catch (IOException ex) {
-                Log.e(TAG, "shutdown(): failed to close socket", ex);
-            }
+    private void dropTransport() {
+        closingTransport = true;
+        closeTransport();
+    }
+
+    protected void closeTransport() {
+        try {
+            // It will raise EOFException in handleRxPacketThread
+            socket.shutdownInput();
+            // It will raise SocketException in sendRtmpPacket
+            socket.shutdownOutput();
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
 
-            mHandler.notifyRtmpDisconnected();
+        // shutdown rxPacketHandler
+        if (rxPacketHandler != null) {
+            rxPacketHandler.cancel(true);
+            rxPacketHandler = null;
         }
 
-        reset();
+        // shutdown socket as well as its input and output stream
+        try {
+            socket.close();
+            Log.d(TAG, "socket closed");
+        } catch (IOException ex) {
+            Log.e(TAG, "shutdown(): failed to close socket", ex);
+        }
+        socket = null;
     }
 
     private void reset() {
+        resetSession();
+        url = null;
+        publishType = null;
+        videoFrameCacheNumber.set(0);
+        connectionLost = false;
+        lostCause = null;
+    }
+
+    /**
+     * Forget the session state but keep the url, the publish type and the queued video frames,
+     * which a reconnect resumes with.
+     */
+    private void resetSession() {
         connected = false;
         publishPermitted = false;
         tcUrl = null;
@@ -381,10 +459,10 @@ public class RtmpConnection implements RtmpPublisher {
         pageUrl = null;
         appName = null;
         streamName = null;
-        publishType = null;
         currentStreamId = 0;
         transactionIdCounter = 0;
-        videoFrameCacheNumber.set(0);
+        flowControl.reset();
+        writeStallNanos.set(0);
         socketExceptionCause = "";
         serverIpAddr = null;
         serverPid = null;
@@ -392,6 +470,10 @@ public class RtmpConnection implements RtmpPublisher {
         socket = null;
         rtmpSessionInfo = null;
         rtmpDecoder = null;
+        // a publisher may still be writing, it checks the writer under the same lock.
+        synchronized (writeLock) {
+            chunkWriter = null;
+        }
     }
 
     @Override
@@ -416,7 +498,7 @@ public class RtmpConnection implements RtmpPublisher {
         audio.setData(data, size);
         audio.getHeader().setAbsoluteTimestamp(dts);
         audio.getHeader().setMessageStreamId(currentStreamId);
-        sendRtmpPacket(audio);
+        sendRtmpPacket(audio, false);
         calcAudioBitrate(audio.getHeader().getPacketLength());
         mHandler.notifyRtmpAudioStreaming();
     }
@@ -443,12 +525,26 @@ public class RtmpConnection implements RtmpPublisher {
         video.setData(data, size);
         video.getHeader().setAbsoluteTimestamp(dts);
         video.getHeader().setMessageStreamId(currentStreamId);
-        sendRtmpPacket(video);
-        videoFrameCacheNumber.decrementAndGet();
+        sendRtmpPacket(video, false);
+        onVideoPacketSent();
         calcVideoFpsAndBitrate(video.getHeader().getPacketLength());
         mHandler.notifyRtmpVideoStreaming();
     }
 
+    /**
+     * The video packet left the publisher, it no longer counts in {@link #getVideoFrameCacheNumber()}.
+     */
+    protected void onVideoPacketSent() {
+        videoFrameCacheNumber.decrementAndGet();
+    }
+
+    /**
+     * The video packet was dropped before it reached the transport, {@link #onVideoPacketSent()}
+     * still follows. Only a transport counting the packets down itself has to count it here.
+     */
+    protected void onVideoPacketDropped() {
+    }
+
     private void calcVideoFpsAndBitrate(int length) {
         videoDataLength += length;
         if (videoFrameCount == 0) {
@@ -480,28 +576,92 @@ public class RtmpConnection implements RtmpPublisher {
         }
     }
 
-    private void sendRtmpPacket(RtmpPacket rtmpPacket) {
-        try {
-            ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(rtmpPacket.getHeader().getChunkStreamId());
-            chunkStreamInfo.setPrevHeaderTx(rtmpPacket.getHeader());
-            if (!(rtmpPacket instanceof Video || rtmpPacket instanceof Audio)) {
-                rtmpPacket.getHeader().setAbsoluteTimestamp((int) chunkStreamInfo.markAbsoluteTimestampTx());
+    protected void sendRtmpPacket(RtmpPacket rtmpPacket) {
+        sendRtmpPacket(rtmpPacket, true);
+    }
+
+    /**
+     * @param flush write the packet out right away, audio and video are batched until {@link #flush()}.
+     */
+    private void sendRtmpPacket(RtmpPacket rtmpPacket, boolean flush) {
+        // the rx loop answers the server while the publisher sends, chunks must not interleave.
+        synchronized (writeLock) {
+            if (chunkWriter == null) {
+                // the session was reset under us, the packet has nowhere to go.
+                if (rtmpPacket instanceof Video) {
+                    onVideoPacketDropped();
+                }
+                return;
             }
-            rtmpPacket.writeTo(outputStream, rtmpSessionInfo.getTxChunkSize(), chunkStreamInfo);
-            //Log.d(TAG, "wrote packet: " + rtmpPacket + ", size: " + rtmpPacket.getHeader().getPacketLength());
-            if (rtmpPacket instanceof Command) {
-                rtmpSessionInfo.addInvokedCommand(((Command) rtmpPacket).getTransactionId(), ((Command) rtmpPacket).getCommandName());
+            try {
+                ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(rtmpPacket.getHeader().getChunkStreamId());
+                if (!(rtmpPacket instanceof Video || rtmpPacket instanceof Audio)) {
+                    rtmpPacket.getHeader().setAbsoluteTimestamp((int) rtmpSessionInfo.markAbsoluteTimestampTx());
+                }
+                long writeBegin = System.nanoTime();
+                writePacket(rtmpPacket, chunkStreamInfo);
+                //Log.d(TAG, "wrote packet: " + rtmpPacket + ", size: " + rtmpPacket.getHeader().getPacketLength());
+                if (rtmpPacket instanceof Command) {
+                    rtmpSessionInfo.addInvokedCommand(((Command) rtmpPacket).getTransactionId(), ((Command) rtmpPacket).getCommandName());
+                } else if (rtmpPacket instanceof SetChunkSize) {
+                    // the peer reads every chunk after this packet with the new size.
+                    rtmpSessionInfo.setTxChunkSize(((SetChunkSize) rtmpPacket).getChunkSize());
+                }
+                if (flush) {
+                    flushTransport();
+                }
+                // the socket blocks once its send buffer is full, so the time spent here is the stall time.
+                writeStallNanos.addAndGet(System.nanoTime() - writeBegin);
+            } catch (IOException ioe) {
+                onWriteException(ioe);
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+        synchronized (writeLock) {
+            if (chunkWriter == null) {
+                return;
             }
-            outputStream.flush();
-        } catch (SocketException se) {
+            try {
+                long writeBegin = System.nanoTime();
+                flushTransport();
+                writeStallNanos.addAndGet(System.nanoTime() - writeBegin);
+            } catch (IOException ioe) {
+                onWriteException(ioe);
+            }
+        }
+    }
+
+    /**
+     * Queue the chunks of a packet, called with the write lock held.
+     */
+    protected void writePacket(RtmpPacket rtmpPacket, ChunkStreamInfo chunkStreamInfo) throws IOException {
+        rtmpPacket.writeTo(chunkWriter, rtmpSessionInfo.getTxChunkSize(), chunkStreamInfo);
+    }
+
+    /**
+     * Write the queued chunks out, called with the write lock held.
+     */
+    protected void flushTransport() throws IOException {
+        chunkWriter.flush();
+        flowControl.onBytesWritten(chunkWriter.getBytesWritten());
+    }
+
+    protected void onWriteException(IOException ioe) {
+        if (onConnectionLost(ioe)) {
+            return;
+        }
+        if (ioe instanceof SocketException) {
             // Since there are still remaining AV frame in the cache, we set a flag to guarantee the
             // socket exception only issue one time.
-            if (!socketExceptionCause.contentEquals(se.getMessage())) {
-                socketExceptionCause = se.getMessage();
-                Log.e(TAG, "Caught SocketException during write loop, shutting down: " + se.getMessage());
-                mHandler.notifyRtmpSocketException(se);
+            if (!socketExceptionCause.contentEquals(ioe.getMessage())) {
+                socketExceptionCause = ioe.getMessage();
+                Log.e(TAG, "Caught SocketException during write loop, shutting down: " + ioe.getMessage());
+                mHandler.notifyRtmpSocketException((SocketException) ioe);
             }
-        } catch (IOException ioe) {
+        } else {
             Log.e(TAG, "Caught IOException during write loop, shutting down: " + ioe.getMessage());
             mHandler.notifyRtmpIOException(ioe);
         }
@@ -509,74 +669,163 @@ public class RtmpConnection implements RtmpPublisher {
 
     private void handleRxPacketLoop() throws IOException {
         // Handle all queued received RTMP packets
-        while (rxPacketHandler != null && !rxPacketHandler.isDone()) {
+        // cancelling the handler interrupts this thread, which also closes the channel. the field is
+        // not checked, a reconnect may start this loop before the new handler is assigned.
+        while (!Thread.currentThread().isInterrupted()) {
             try {
                 // It will be blocked when no data in input stream buffer
                 RtmpPacket rtmpPacket = rtmpDecoder.readPacket(inputStream);
                 if (rtmpPacket != null) {
-                    //Log.d(TAG, "handleRxPacketLoop(): RTMP rx packet message type: " + rtmpPacket.getHeader().getMessageType());
-                    switch (rtmpPacket.getHeader().getMessageType()) {
-                        case ABORT:
-                            rtmpSessionInfo.getChunkStreamInfo(((Abort) rtmpPacket).getChunkStreamId()).clearStoredChunks();
-                            break;
-                        case USER_CONTROL_MESSAGE:
-                            UserControl user = (UserControl) rtmpPacket;
-                            switch (user.getType()) {
-                                case STREAM_BEGIN:
-                                    if (currentStreamId != user.getFirstEventData()) {
-                                        mHandler.notifyRtmpIllegalStateException(new IllegalStateException("Current stream ID error!"));
-                                    }
-                                    break;
-                                case PING_REQUEST:
-                                    ChunkStreamInfo channelInfo = rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL);
-                                    Log.d(TAG, "handleRxPacketLoop(): Sending PONG reply..");
-                                    UserControl pong = new UserControl(user, channelInfo);
-                                    sendRtmpPacket(pong);
-                                    break;
-                                case STREAM_EOF:
-                                    Log.i(TAG, "handleRxPacketLoop(): Stream EOF reached, closing RTMP writer...");
-                                    break;
-                                default:
-                                    // Ignore...
-                                    break;
-                            }
-                            break;
-                        case WINDOW_ACKNOWLEDGEMENT_SIZE:
-                            WindowAckSize windowAckSize = (WindowAckSize) rtmpPacket;
-                            int size = windowAckSize.getAcknowledgementWindowSize();
-                            Log.d(TAG, "handleRxPacketLoop(): Setting acknowledgement window size: " + size);
-                            rtmpSessionInfo.setAcknowledgmentWindowSize(size);
-                            break;
-                        case SET_PEER_BANDWIDTH:
-                            SetPeerBandwidth bw = (SetPeerBandwidth) rtmpPacket;
-                            rtmpSessionInfo.setAcknowledgmentWindowSize(bw.getAcknowledgementWindowSize());
-                            int acknowledgementWindowsize = rtmpSessionInfo.getAcknowledgementWindowSize();
-                            ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL);
-                            Log.d(TAG, "handleRxPacketLoop(): Send acknowledgement window size: " + acknowledgementWindowsize);
-                            sendRtmpPacket(new WindowAckSize(acknowledgementWindowsize, chunkStreamInfo));
-                            // Set socket option
-                            socket.setSendBufferSize(acknowledgementWindowsize);
-                            break;
-                        case COMMAND_AMF0:
-                            handleRxInvoke((Command) rtmpPacket);
-                            break;
-                        default:
-                            Log.w(TAG, "handleRxPacketLoop(): Not handling unimplemented/unknown packet of type: " + rtmpPacket.getHeader().getMessageType());
-                            break;
-                    }
+                    handleRxPacket(rtmpPacket);
                 }
-            } catch (EOFException eof) {
+            } catch (EOFException | AsynchronousCloseException eof) {
+                // the server closed the connection, or shutdown() closed the channel under the read.
+                onConnectionLost(eof);
                 Thread.currentThread().interrupt();
             } catch (SocketException se) {
-                Log.e(TAG, "Caught SocketException while reading/decoding packet, shutting down: " + se.getMessage());
-                mHandler.notifyRtmpSocketException(se);
+                if (!onConnectionLost(se)) {
+                    Log.e(TAG, "Caught SocketException while reading/decoding packet, shutting down: " + se.getMessage());
+                    mHandler.notifyRtmpSocketException(se);
+                }
             } catch (IOException ioe) {
-                Log.e(TAG, "Caught exception while reading/decoding packet, shutting down: " + ioe.getMessage());
-                mHandler.notifyRtmpIOException(ioe);
+                if (!onConnectionLost(ioe)) {
+                    Log.e(TAG, "Caught exception while reading/decoding packet, shutting down: " + ioe.getMessage());
+                    mHandler.notifyRtmpIOException(ioe);
+                }
             }
         }
     }
 
+    /**
+     * The socket failed or the server closed it. While publishing with auto reconnect, and while
+     * reconnecting, the failure is kept for {@link #abandonReconnect()} instead of notified.
+     *
+     * @return true if the caller must not notify the failure.
+     */
+    protected boolean onConnectionLost(IOException e) {
+        if (closingTransport) {
+            return true;
+        }
+        connectionLost = true;
+        if (!autoReconnect || !(publishPermitted || reconnecting)) {
+            return false;
+        }
+        if (lostCause == null) {
+            lostCause = e;
+            Log.w(TAG, "onConnectionLost(): " + e + ", waiting for reconnect");
+        }
+        return true;
+    }
+
+    @Override
+    public void setAutoReconnect(boolean autoReconnect) {
+        this.autoReconnect = autoReconnect;
+    }
+
+    @Override
+    public boolean isConnectionLost() {
+        return connectionLost;
+    }
+
+    @Override
+    public boolean reconnect() {
+        if (url == null || publishType == null) {
+            return false;
+        }
+        reconnecting = true;
+        try {
+            if (isTransportOpen()) {
+                dropTransport();
+            }
+            resetSession();
+            Log.i(TAG, "reconnect(): connecting to " + url);
+            if (connect(url) && publish(publishType)) {
+                connectionLost = false;
+                lostCause = null;
+                return true;
+            }
+            return false;
+        } finally {
+            reconnecting = false;
+        }
+    }
+
+    @Override
+    public void abandonReconnect() {
+        IOException cause = lostCause;
+        lostCause = null;
+        if (cause instanceof SocketException) {
+            mHandler.notifyRtmpSocketException((SocketException) cause);
+        } else if (cause != null) {
+            mHandler.notifyRtmpIOException(cause);
+        }
+    }
+
+    /**
+     * Handle a packet received from the server, on the thread receiving them.
+     */
+    protected void handleRxPacket(RtmpPacket rtmpPacket) throws IOException {
+        //Log.d(TAG, "handleRxPacketLoop(): RTMP rx packet message type: " + rtmpPacket.getHeader().getMessageType());
+        switch (rtmpPacket.getHeader().getMessageType()) {
+            case ABORT:
+                rtmpSessionInfo.getChunkStreamInfo(((Abort) rtmpPacket).getChunkStreamId()).clearStoredChunks();
+                break;
+            case ACKNOWLEDGEMENT:
+                flowControl.onAcknowledgement(((Acknowledgement) rtmpPacket).getSequenceNumber());
+                break;
+            case USER_CONTROL_MESSAGE:
+                UserControl user = (UserControl) rtmpPacket;
+                switch (user.getType()) {
+                    case STREAM_BEGIN:
+                        if (currentStreamId != user.getFirstEventData()) {
+                            mHandler.notifyRtmpIllegalStateException(new IllegalStateException("Current stream ID error!"));
+                        }
+                        break;
+                    case PING_REQUEST:
+                        ChunkStreamInfo channelInfo = rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL);
+                        Log.d(TAG, "handleRxPacketLoop(): Sending PONG reply..");
+                        UserControl pong = new UserControl(user, channelInfo);
+                        sendRtmpPacket(pong);
+                        break;
+                    case STREAM_EOF:
+                        Log.i(TAG, "handleRxPacketLoop(): Stream EOF reached, closing RTMP writer...");
+                        break;
+                    default:
+                        // Ignore...
+                        break;
+                }
+                break;
+            case WINDOW_ACKNOWLEDGEMENT_SIZE:
+                WindowAckSize windowAckSize = (WindowAckSize) rtmpPacket;
+                int size = windowAckSize.getAcknowledgementWindowSize();
+                Log.d(TAG, "handleRxPacketLoop(): Setting acknowledgement window size: " + size);
+                rtmpSessionInfo.setAcknowledgmentWindowSize(size);
+                break;
+            case SET_PEER_BANDWIDTH:
+                SetPeerBandwidth bw = (SetPeerBandwidth) rtmpPacket;
+                rtmpSessionInfo.setAcknowledgmentWindowSize(bw.getAcknowledgementWindowSize());
+                int acknowledgementWindowsize = rtmpSessionInfo.getAcknowledgementWindowSize();
+                ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL);
+                // our window sets how often the server acknowledges, which the flow control samples.
+                int ackWindowSize = Math.min(acknowledgementWindowsize, ACK_WINDOW_SIZE);
+                Log.d(TAG, "handleRxPacketLoop(): Send acknowledgement window size: " + ackWindowSize);
+                sendRtmpPacket(new WindowAckSize(ackWindowSize, chunkStreamInfo));
+                // Set socket option
+                setSendBufferSize(acknowledgementWindowsize);
+                break;
+            case COMMAND_AMF0:
+                handleRxInvoke((Command) rtmpPacket);
+                break;
+            default:
+                Log.w(TAG, "handleRxPacketLoop(): Not handling unimplemented/unknown packet of type: " + rtmpPacket.getHeader().getMessageType());
+                break;
+        }
+    }
+
+    protected void setSendBufferSize(int size) throws IOException {
+        socket.setSendBufferSize(size);
+    }
+
     private void handleRxInvoke(Command invoke) throws IOException {
         String commandName = invoke.getCommandName();
 
@@ -588,6 +837,11 @@ public class RtmpConnection implements RtmpPublisher {
             if ("connect".equals(method)) {
                 // Capture server ip/pid/id information if any
                 serverInfo = onSrsServerInfo(invoke);
+                // Announce our chunk size before createStream, so the media goes out in few chunks
+                if (txChunkSize != rtmpSessionInfo.getTxChunkSize()) {
+                    Log.d(TAG, "handleRxInvoke(): Setting tx chunk size to: " + txChunkSize);
+                    sendRtmpPacket(new SetChunkSize(txChunkSize));
+                }
                 // We can now send createStream commands
                 connected = true;
                 synchronized (connectingLock) {
@@ -648,6 +902,31 @@ public class RtmpConnection implements RtmpPublisher {
         return videoFrameCacheNumber;
     }
 
+    @Override
+    public long getBytesSent() {
+        return flowControl.getBytesWritten();
+    }
+
+    @Override
+    public long getBytesAcknowledged() {
+        return flowControl.getBytesAcknowledged();
+    }
+
+    @Override
+    public long getBytesInFlight() {
+        return flowControl.getBytesInFlight();
+    }
+
+    @Override
+    public long getAckRttMillis() {
+        return flowControl.getAckRttMillis();
+    }
+
+    @Override
+    public long getWriteStallMillis() {
+        return writeStallNanos.get() / 1000000;
+    }
+
     @Override
     public final String getServerIpAddr() {
         return serverIpAddr == null ? null : serverIpAddr.getValue();
@@ -663,6 +942,16 @@ public class RtmpConnection implements RtmpPublisher {
         return serverId == null ? 0 : Integer.parseInt(serverId.getValue());
     }
 
+    @Override
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < RtmpSessionInfo.DEFAULT_CHUNK_SIZE || chunkSize > RtmpSessionInfo.MAX_CHUNK_SIZE) {
+            mHandler.notifyRtmpIllegalArgumentException(new IllegalArgumentException(
+                    "Invalid chunk size " + chunkSize + ", must be between 128 and 65536"));
+            return;
+        }
+        txChunkSize = chunkSize;
+    }
+
     @Override
     public void setVideoResolution(int width, int height) {
         videoWidth = width;
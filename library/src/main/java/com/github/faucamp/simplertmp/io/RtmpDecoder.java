@@ -2,6 +2,7 @@ package com.github.faucamp.simplertmp.io;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import android.util.Log;
 
@@ -31,15 +32,57 @@ public class RtmpDecoder {
         this.rtmpSessionInfo = rtmpSessionInfo;
     }
 
-    public RtmpPacket readPacket(InputStream in) throws IOException {
+    /**
+     * Size the next chunk without consuming it, so a non-blocking reader only decodes whole chunks.
+     * Mirrors the header parsing of {@link RtmpHeader#readChunkHeader(InputStream, RtmpSessionInfo)}.
+     *
+     * @return the size of the chunk at the position of {@code buf}, header included, or -1 if its
+     * header is not complete yet.
+     */
+    public int peekChunkSize(ByteBuffer buf) {
+        int pos = buf.position();
+        int remaining = buf.remaining();
+        if (remaining < 1) {
+            return -1;
+        }
+        int basicHeader = buf.get(pos) & 0xff;
+        int chunkType = basicHeader >>> 6;
+        int headerSize = 1 + (chunkType == 0 ? 11 : chunkType == 1 ? 7 : chunkType == 2 ? 3 : 0);
+        if (remaining < headerSize) {
+            return -1;
+        }
+        ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(basicHeader & 0x3f);
+        int timestamp;
+        int packetLength;
+        if (chunkType == 3) {
+            timestamp = chunkStreamInfo.getRxTimestampDelta();
+        } else {
+            timestamp = readUnsignedInt24(buf, pos + 1);
+        }
+        if (chunkType <= 1) {
+            packetLength = readUnsignedInt24(buf, pos + 4);
+        } else {
+            packetLength = chunkStreamInfo.getRxPacketLength();
+        }
+        if (timestamp >= 0xffffff) {
+            headerSize += 4;
+        }
+        int rxChunkSize = rtmpSessionInfo.getRxChunkSize();
+        if (packetLength > rxChunkSize) {
+            packetLength = Math.min(packetLength - chunkStreamInfo.getStoredPacketSize(), rxChunkSize);
+        }
+        return headerSize + packetLength;
+    }
 
-        RtmpHeader header = RtmpHeader.readHeader(in, rtmpSessionInfo);
-        // Log.d(TAG, "readPacket(): header.messageType: " + header.getMessageType());
+    private static int readUnsignedInt24(ByteBuffer buf, int index) {
+        return ((buf.get(index) & 0xff) << 16) | ((buf.get(index + 1) & 0xff) << 8) | (buf.get(index + 2) & 0xff);
+    }
 
-        ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(header.getChunkStreamId());
-        chunkStreamInfo.setPrevHeaderRx(header);
+    public RtmpPacket readPacket(InputStream in) throws IOException {
 
-        if (header.getPacketLength() > rtmpSessionInfo.getRxChunkSize()) {
+        ChunkStreamInfo chunkStreamInfo = RtmpHeader.readChunkHeader(in, rtmpSessionInfo);
+
+        if (chunkStreamInfo.getRxPacketLength() > rtmpSessionInfo.getRxChunkSize()) {
             // If the packet consists of more than one chunk,
             // store the chunks in the chunk stream until everything is read
             if (!chunkStreamInfo.storePacketChunk(in, rtmpSessionInfo.getRxChunkSize())) {
@@ -51,6 +94,10 @@ public class RtmpDecoder {
             }
         }
 
+        // the header object is only created for complete packets.
+        RtmpHeader header = chunkStreamInfo.createRxHeader();
+        // Log.d(TAG, "readPacket(): header.messageType: " + header.getMessageType());
+
         RtmpPacket rtmpPacket;
         switch (header.getMessageType()) {
             case SET_CHUNK_SIZE:
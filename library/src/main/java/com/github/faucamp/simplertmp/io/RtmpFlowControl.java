@@ -0,0 +1,116 @@
+package com.github.faucamp.simplertmp.io;
+
+/**
+ * Counts the bytes written to the socket against the bytes the server acknowledges.
+ * <p>
+ * The server sends an Acknowledgement each time it has read a window of bytes, the window the
+ * client announced with WindowAckSize. The difference to the bytes written is what sits in the
+ * kernel buffers and on the network, which grows as soon as the uplink falls behind, long before
+ * the socket blocks. The time from writing a byte to its acknowledgement gives the ack RTT.
+ * <p>
+ * Only the bytes after the handshake are counted, like the servers do. The transport reports
+ * writes and the receiving thread reports the acknowledgements.
+ */
+public class RtmpFlowControl {
+
+    // write samples kept for matching acknowledgements, older bytes are acked first.
+    private static final int MAX_SAMPLES = 256;
+    // bytes between two samples, so the samples span a few ack windows.
+    private static final int SAMPLE_SPACING = 8 * 1024;
+
+    private volatile long bytesWritten;
+    private volatile long bytesAcknowledged;
+    private volatile boolean acknowledged;
+    private volatile long ackRttNanos;
+    // ring of (bytes written, time written) samples.
+    private final long[] sampleBytes = new long[MAX_SAMPLES];
+    private final long[] sampleNanos = new long[MAX_SAMPLES];
+    private int sampleHead;
+    private int sampleCount;
+    private long lastSampleBytes;
+
+    public synchronized void reset() {
+        bytesWritten = 0;
+        bytesAcknowledged = 0;
+        acknowledged = false;
+        ackRttNanos = 0;
+        sampleHead = 0;
+        sampleCount = 0;
+        lastSampleBytes = 0;
+    }
+
+    /**
+     * @param totalBytes the number of bytes written since the handshake.
+     */
+    public synchronized void onBytesWritten(long totalBytes) {
+        if (totalBytes <= bytesWritten) {
+            return;
+        }
+        bytesWritten = totalBytes;
+        // a full ring keeps its older samples, the acks reach them first.
+        if (totalBytes - lastSampleBytes >= SAMPLE_SPACING && sampleCount < MAX_SAMPLES) {
+            int tail = (sampleHead + sampleCount) % MAX_SAMPLES;
+            sampleBytes[tail] = totalBytes;
+            sampleNanos[tail] = System.nanoTime();
+            sampleCount++;
+            lastSampleBytes = totalBytes;
+        }
+    }
+
+    /**
+     * @param sequenceNumber the acknowledged byte count, which wraps around at 32 bits.
+     */
+    public synchronized void onAcknowledgement(int sequenceNumber) {
+        long acked = bytesAcknowledged;
+        long delta = ((sequenceNumber & 0xffffffffL) - acked) & 0xffffffffL;
+        acked += delta;
+        bytesAcknowledged = acked;
+        acknowledged = true;
+
+        // the first sample at or past the acked byte was taken right after that byte was written.
+        while (sampleCount > 0 && sampleBytes[sampleHead] < acked) {
+            sampleHead = (sampleHead + 1) % MAX_SAMPLES;
+            sampleCount--;
+        }
+        long writtenNanos = 0;
+        if (sampleCount > 0) {
+            writtenNanos = sampleNanos[sampleHead];
+            if (sampleBytes[sampleHead] == acked) {
+                sampleHead = (sampleHead + 1) % MAX_SAMPLES;
+                sampleCount--;
+            }
+        }
+        if (writtenNanos != 0) {
+            long rtt = System.nanoTime() - writtenNanos;
+            // smoothed like the TCP srtt.
+            ackRttNanos = ackRttNanos == 0 ? rtt : ackRttNanos + (rtt - ackRttNanos) / 8;
+        }
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public long getBytesAcknowledged() {
+        return bytesAcknowledged;
+    }
+
+    /**
+     * @return the bytes written but not acknowledged yet, 0 until the server sends its first
+     * acknowledgement since some servers never do.
+     */
+    public long getBytesInFlight() {
+        if (!acknowledged) {
+            return 0;
+        }
+        return Math.max(0, bytesWritten - bytesAcknowledged);
+    }
+
+    /**
+     * @return the smoothed time from writing a byte to its acknowledgement in milliseconds, 0
+     * before the first acknowledgement.
+     */
+    public long getAckRttMillis() {
+        return ackRttNanos / 1000000;
+    }
+}
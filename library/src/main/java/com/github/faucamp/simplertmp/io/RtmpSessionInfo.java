@@ -20,10 +20,14 @@ public class RtmpSessionInfo {
     private int totalBytesRead = 0;
     
     /** Default chunk size is 128 bytes */
-    private int rxChunkSize = 128;
-    private int txChunkSize = 128;
+    public static final int DEFAULT_CHUNK_SIZE = 128;
+    /** Largest outbound chunk size, what servers commonly accept */
+    public static final int MAX_CHUNK_SIZE = 65536;
+    private int rxChunkSize = DEFAULT_CHUNK_SIZE;
+    private int txChunkSize = DEFAULT_CHUNK_SIZE;
     private Map<Integer, ChunkStreamInfo> chunkChannels = new HashMap<Integer, ChunkStreamInfo>();
     private Map<Integer, String> invokedMethods = new ConcurrentHashMap<Integer, String>();
+    private long sessionBeginTimestamp = System.nanoTime() / 1000000;  // Do not use wall time!
 
     public ChunkStreamInfo getChunkStreamInfo(int chunkStreamId) {
         ChunkStreamInfo chunkStreamInfo = chunkChannels.get(chunkStreamId);
@@ -34,6 +38,16 @@ public class RtmpSessionInfo {
         return chunkStreamInfo;
     }
 
+    /** Sets the session beginning timestamp for all chunks */
+    public void markSessionTimestampTx() {
+        sessionBeginTimestamp = System.nanoTime() / 1000000;
+    }
+
+    /** Utility method for calculating & synchronizing transmitted timestamps */
+    public long markAbsoluteTimestampTx() {
+        return System.nanoTime() / 1000000 - sessionBeginTimestamp;
+    }
+
     public String takeInvokedCommand(int transactionId) {
         return invokedMethods.remove(transactionId);
     }
@@ -0,0 +1,298 @@
+package com.github.faucamp.simplertmp.io;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bytes waiting for the socket, in fixed size blocks recycled once written. The chunk writer
+ * copies its batches in here and the selector thread writes them out.
+ */
+final class RtmpWriteQueue implements GatheringByteChannel {
+
+    // how a queued video packet may be dropped.
+    static final byte VIDEO_INTER_FRAME = 0;
+    static final byte VIDEO_KEY_FRAME = 1;
+    static final byte VIDEO_SEQUENCE_HEADER = 2;
+
+    private static final int QUEUE_BLOCK_SIZE = 64 * 1024;
+    private static final int MAX_FREE_BLOCKS = 16;
+
+    // the publisher count of queued video packets, counted down once they are written or dropped.
+    private final AtomicInteger videoFrameCacheNumber;
+
+    private final ArrayDeque<ByteBuffer> blocks = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> freeBlocks = new ArrayDeque<>();
+    // the blocks keep filling from their position, the head one is written from here.
+    private int headOffset;
+    private long queuedBytes;
+    private long writtenBytes;
+    // positions in the byte stream where the queued video packets begin and end, and their type.
+    private long[] videoPacketStarts = new long[64];
+    private long[] videoPacketEnds = new long[64];
+    private byte[] videoPacketTypes = new byte[64];
+    private int videoPacketHead;
+    private int videoPacketCount;
+    private boolean open = true;
+
+    RtmpWriteQueue(AtomicInteger videoFrameCacheNumber) {
+        this.videoFrameCacheNumber = videoFrameCacheNumber;
+    }
+
+    synchronized long getQueuedBytes() {
+        return queuedBytes - writtenBytes;
+    }
+
+    synchronized long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    synchronized boolean hasRemaining() {
+        return queuedBytes != writtenBytes;
+    }
+
+    /**
+     * @return the position in the byte stream after the last queued byte.
+     */
+    synchronized long getQueuedEnd() {
+        return queuedBytes;
+    }
+
+    /**
+     * @param start        where the packet begins in the byte stream.
+     * @param pendingBytes the bytes the chunk writer still holds, the packet ends after them.
+     * @param type         how the packet may be dropped.
+     */
+    synchronized void markVideoPacket(long start, int pendingBytes, byte type) {
+        if (!open) {
+            // the packet was dropped with the queue.
+            videoFrameCacheNumber.decrementAndGet();
+            return;
+        }
+        if (videoPacketCount == videoPacketEnds.length) {
+            compactVideoPackets(videoPacketEnds.length * 2);
+        }
+        int i = (videoPacketHead + videoPacketCount) % videoPacketEnds.length;
+        videoPacketStarts[i] = start;
+        videoPacketEnds[i] = queuedBytes + pendingBytes;
+        videoPacketTypes[i] = type;
+        videoPacketCount++;
+    }
+
+    /**
+     * Move the queued video packets to the start of arrays of the given size.
+     */
+    private void compactVideoPackets(int size) {
+        long[] starts = new long[size];
+        long[] ends = new long[size];
+        byte[] types = new byte[size];
+        for (int i = 0; i < videoPacketCount; i++) {
+            int j = (videoPacketHead + i) % videoPacketEnds.length;
+            starts[i] = videoPacketStarts[j];
+            ends[i] = videoPacketEnds[j];
+            types[i] = videoPacketTypes[j];
+        }
+        videoPacketStarts = starts;
+        videoPacketEnds = ends;
+        videoPacketTypes = types;
+        videoPacketHead = 0;
+    }
+
+    /**
+     * @return true if a queued key frame has not started on the socket yet.
+     */
+    synchronized boolean hasUnsentKeyFrame() {
+        for (int i = 0; i < videoPacketCount; i++) {
+            int j = (videoPacketHead + i) % videoPacketEnds.length;
+            if (videoPacketTypes[j] == VIDEO_KEY_FRAME && videoPacketStarts[j] >= writtenBytes) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drop the queued video packets before the newest key frame, or all of them when none is
+     * queued. The sequence headers and the packet being written stay, and so does the audio.
+     *
+     * @return the number of video packets dropped.
+     */
+    synchronized int cutVideoToLastKeyFrame() {
+        compactVideoPackets(videoPacketEnds.length);
+        int first = 0;
+        while (first < videoPacketCount && videoPacketStarts[first] < writtenBytes) {
+            first++;
+        }
+        int last = videoPacketCount;
+        for (int i = videoPacketCount - 1; i >= first; i--) {
+            if (videoPacketTypes[i] == VIDEO_KEY_FRAME) {
+                last = i;
+                break;
+            }
+        }
+
+        // copy the kept bytes into fresh blocks, skipping the dropped packets.
+        ArrayDeque<ByteBuffer> old = new ArrayDeque<>(blocks);
+        blocks.clear();
+        queuedBytes = writtenBytes;
+        long position = writtenBytes;
+        int offset = headOffset;
+        headOffset = 0;
+        int next = nextDroppedPacket(first, last);
+        for (ByteBuffer block : old) {
+            int end = block.position();
+            while (offset < end) {
+                long dropStart = next < last ? videoPacketStarts[next] : Long.MAX_VALUE;
+                int count;
+                if (position >= dropStart) {
+                    count = (int) Math.min(end - offset, videoPacketEnds[next] - position);
+                    if (position + count == videoPacketEnds[next]) {
+                        next = nextDroppedPacket(next + 1, last);
+                    }
+                } else {
+                    count = (int) Math.min(end - offset, dropStart - position);
+                    ByteBuffer kept = block.duplicate();
+                    kept.limit(offset + count);
+                    kept.position(offset);
+                    append(kept);
+                }
+                offset += count;
+                position += count;
+            }
+            offset = 0;
+            block.clear();
+            if (freeBlocks.size() < MAX_FREE_BLOCKS) {
+                freeBlocks.add(block);
+            }
+        }
+
+        // the kept packets move up by the bytes dropped before them.
+        int kept = 0;
+        int dropped = 0;
+        long removed = 0;
+        for (int i = 0; i < videoPacketCount; i++) {
+            if (i >= first && i < last && videoPacketTypes[i] != VIDEO_SEQUENCE_HEADER) {
+                removed += videoPacketEnds[i] - videoPacketStarts[i];
+                dropped++;
+                continue;
+            }
+            videoPacketStarts[kept] = videoPacketStarts[i] - removed;
+            videoPacketEnds[kept] = videoPacketEnds[i] - removed;
+            videoPacketTypes[kept] = videoPacketTypes[i];
+            kept++;
+        }
+        videoPacketCount = kept;
+        videoFrameCacheNumber.addAndGet(-dropped);
+        return dropped;
+    }
+
+    /**
+     * @return the first packet to drop from {@code from}, or {@code last} when none is left.
+     */
+    private int nextDroppedPacket(int from, int last) {
+        while (from < last && videoPacketTypes[from] == VIDEO_SEQUENCE_HEADER) {
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * Write as much as the socket takes without blocking.
+     *
+     * @return the number of bytes written.
+     */
+    synchronized int writeTo(WritableByteChannel channel) throws IOException {
+        int total = 0;
+        ByteBuffer head;
+        while ((head = blocks.peek()) != null) {
+            int end = head.position();
+            head.limit(end);
+            head.position(headOffset);
+            int written;
+            try {
+                written = channel.write(head);
+            } finally {
+                headOffset = head.position();
+                head.limit(head.capacity());
+                head.position(end);
+            }
+            total += written;
+            if (headOffset == end) {
+                blocks.poll();
+                headOffset = 0;
+                head.clear();
+                if (freeBlocks.size() < MAX_FREE_BLOCKS) {
+                    freeBlocks.add(head);
+                }
+            } else if (written == 0) {
+                break;
+            }
+        }
+        writtenBytes += total;
+        while (videoPacketCount > 0 && videoPacketEnds[videoPacketHead] <= writtenBytes) {
+            videoPacketHead = (videoPacketHead + 1) % videoPacketEnds.length;
+            videoPacketCount--;
+            videoFrameCacheNumber.decrementAndGet();
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        if (!open) {
+            throw new SocketException("Socket closed");
+        }
+        return append(src);
+    }
+
+    private int append(ByteBuffer src) {
+        int length = src.remaining();
+        while (src.hasRemaining()) {
+            ByteBuffer tail = blocks.peekLast();
+            if (tail == null || !tail.hasRemaining()) {
+                tail = freeBlocks.isEmpty() ? ByteBuffer.allocateDirect(QUEUE_BLOCK_SIZE) : freeBlocks.poll();
+                blocks.add(tail);
+            }
+            int count = Math.min(tail.remaining(), src.remaining());
+            int limit = src.limit();
+            src.limit(src.position() + count);
+            tail.put(src);
+            src.limit(limit);
+        }
+        queuedBytes += length;
+        return length;
+    }
+
+    @Override
+    public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            total += write(srcs[i]);
+        }
+        return total;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() {
+        open = false;
+        blocks.clear();
+        freeBlocks.clear();
+        // the unwritten video packets leave the publisher count, a reconnect keeps counting.
+        videoFrameCacheNumber.addAndGet(-videoPacketCount);
+        videoPacketCount = 0;
+    }
+}
@@ -23,7 +23,7 @@ public final class Handshake {
     /** S1 as sent by the server */
     private byte[] s1;
     private static final int PROTOCOL_VERSION = 0x03;
-    private static final int HANDSHAKE_SIZE = 1536;
+    public static final int HANDSHAKE_SIZE = 1536;
     private static final int SHA256_DIGEST_SIZE = 32;
     
     private static final int DIGEST_OFFSET_INDICATOR_POS = 772; // should either be byte 772 or byte 8
@@ -7,9 +7,7 @@ package com.github.faucamp.simplertmp.packets;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
 
 import com.github.faucamp.simplertmp.Util;
 import com.github.faucamp.simplertmp.io.ChunkStreamInfo;
@@ -22,6 +20,8 @@ import com.github.faucamp.simplertmp.io.RtmpSessionInfo;
 public class RtmpHeader {
 
     private static final String TAG = "RtmpHeader";
+    /** A one byte basic header, the 11 bytes of a type 0 message header and an extended timestamp */
+    public static final int MAX_CHUNK_HEADER_SIZE = 16;
     /**
      * RTMP packet/message type definitions.
      * Note: docstrings are adapted from the official Adobe RTMP spec:
@@ -138,11 +138,12 @@ public class RtmpHeader {
          */
         AGGREGATE_MESSAGE(0x16);
         private byte value;
-        private static final Map<Byte, MessageType> quickLookupMap = new HashMap<Byte, MessageType>();
+        // indexed by the type id, the ids are dense enough for an array.
+        private static final MessageType[] quickLookup = new MessageType[AGGREGATE_MESSAGE.value + 1];
 
         static {
             for (MessageType messageTypId : MessageType.values()) {
-                quickLookupMap.put(messageTypId.getValue(), messageTypId);
+                quickLookup[messageTypId.getValue()] = messageTypId;
             }
         }
 
@@ -156,11 +157,12 @@ public class RtmpHeader {
         }
 
         public static MessageType valueOf(byte messageTypeId) {
-            if (quickLookupMap.containsKey(messageTypeId)) {
-                return quickLookupMap.get(messageTypeId);
-            } else {
+            int index = messageTypeId & 0xff;
+            MessageType messageType = index < quickLookup.length ? quickLookup[index] : null;
+            if (messageType == null) {
                 throw new IllegalArgumentException("Unknown message type byte: " + Util.toHexString(messageTypeId));
             }
+            return messageType;
         }
     }
 
@@ -176,14 +178,8 @@ public class RtmpHeader {
         TYPE_3_RELATIVE_SINGLE_BYTE(0x03);
         /** The byte value of this chunk header type */
         private byte value;
-        /** The full size (in bytes) of this RTMP header (including the basic header byte) */
-        private static final Map<Byte, ChunkType> quickLookupMap = new HashMap<Byte, ChunkType>();
-        
-        static {
-            for (ChunkType messageTypId : ChunkType.values()) {
-                quickLookupMap.put(messageTypId.getValue(), messageTypId);
-            }
-        }
+        /** The chunk types in the order of their byte values */
+        private static final ChunkType[] quickLookup = values();
 
         ChunkType(int byteValue) {
             this.value = (byte) byteValue;
@@ -195,8 +191,8 @@ public class RtmpHeader {
         }
 
         public static ChunkType valueOf(byte chunkHeaderType) {
-            if (quickLookupMap.containsKey(chunkHeaderType)) {
-                return quickLookupMap.get(chunkHeaderType);
+            if (chunkHeaderType >= 0 && chunkHeaderType < quickLookup.length) {
+                return quickLookup[chunkHeaderType];
             } else {
                 throw new IllegalArgumentException("Unknown chunk header type byte: " + Util.toHexString(chunkHeaderType));
             }
@@ -220,23 +216,34 @@ public class RtmpHeader {
         this.messageType = messageType;
     }
 
-    public static RtmpHeader readHeader(InputStream in, RtmpSessionInfo rtmpSessionInfo) throws IOException {
-        RtmpHeader rtmpHeader = new RtmpHeader();
-        rtmpHeader.readHeaderImpl(in, rtmpSessionInfo);
-        return rtmpHeader;
-    }
-
-    private void readHeaderImpl(InputStream in, RtmpSessionInfo rtmpSessionInfo) throws IOException {
-
+    /**
+     * Read a chunk header into the receive state of its chunk stream. The state is kept in
+     * primitive fields, so no header object is created per chunk: types 1 to 3 inherit what they
+     * omit from the previous chunk of the stream.
+     *
+     * @return the chunk stream of the chunk, whose payload follows in {@code in}.
+     */
+    public static ChunkStreamInfo readChunkHeader(InputStream in, RtmpSessionInfo rtmpSessionInfo) throws IOException {
         int basicHeaderByte = in.read();
         if (basicHeaderByte == -1) {
             throw new EOFException("Unexpected EOF while reading RTMP packet basic header");
         }
-        // Read byte 0: chunk type and chunk stream ID
-        parseBasicHeader((byte) basicHeaderByte);
+        // Read byte 0: 2 most significant bits define the chunk type, 6 least significant bits the chunk stream ID
+        ChunkType chunkType = ChunkType.valueOf((byte) (basicHeaderByte >>> 6));
+        int chunkStreamId = basicHeaderByte & 0x3F;
+        ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(chunkStreamId);
+        if (chunkType != ChunkType.TYPE_0_FULL && chunkType != ChunkType.TYPE_1_RELATIVE_LARGE && !chunkStreamInfo.hasRxHeader()) {
+            throw new IOException("No previous header for chunk type " + chunkType + " on chunk stream " + chunkStreamId);
+        }
 
+        int absoluteTimestamp;
+        int timestampDelta;
+        int packetLength;
+        MessageType messageType;
+        int messageStreamId;
+        int extendedTimestamp;
         switch (chunkType) {
-            case TYPE_0_FULL: { //  b00 = 12 byte header (full header) 
+            case TYPE_0_FULL: { //  b00 = 12 byte header (full header)
                 // Read bytes 1-3: Absolute timestamp
                 absoluteTimestamp = Util.readUnsignedInt24(in);
                 timestampDelta = 0;
@@ -245,9 +252,7 @@ public class RtmpHeader {
                 // Read byte 7: Message type ID
                 messageType = MessageType.valueOf((byte) in.read());
                 // Read bytes 8-11: Message stream ID (apparently little-endian order)
-                byte[] messageStreamIdBytes = new byte[4];
-                Util.readBytesUntilFull(in, messageStreamIdBytes);
-                messageStreamId = Util.toUnsignedInt32LittleEndian(messageStreamIdBytes);
+                messageStreamId = Util.readUnsignedInt32LittleEndian(in);
                 // Read bytes 1-4: Extended timestamp
                 extendedTimestamp = absoluteTimestamp >= 0xffffff ? Util.readUnsignedInt32(in) : 0;
                 if (extendedTimestamp != 0) {
@@ -264,10 +269,9 @@ public class RtmpHeader {
                 messageType = MessageType.valueOf((byte) in.read());
                 // Read bytes 1-4: Extended timestamp delta
                 extendedTimestamp = timestampDelta >= 0xffffff ? Util.readUnsignedInt32(in) : 0;
-                RtmpHeader prevHeader = rtmpSessionInfo.getChunkStreamInfo(chunkStreamId).prevHeaderRx();
-                if (prevHeader != null) {
-                    messageStreamId = prevHeader.messageStreamId;
-                    absoluteTimestamp = extendedTimestamp != 0 ? extendedTimestamp : prevHeader.absoluteTimestamp + timestampDelta;
+                if (chunkStreamInfo.hasRxHeader()) {
+                    messageStreamId = chunkStreamInfo.getRxMessageStreamId();
+                    absoluteTimestamp = extendedTimestamp != 0 ? extendedTimestamp : chunkStreamInfo.getRxAbsoluteTimestamp() + timestampDelta;
                 } else {
                     messageStreamId = 0;
                     absoluteTimestamp = extendedTimestamp != 0 ? extendedTimestamp : timestampDelta;
@@ -279,70 +283,90 @@ public class RtmpHeader {
                 timestampDelta = Util.readUnsignedInt24(in);
                 // Read bytes 1-4: Extended timestamp delta
                 extendedTimestamp = timestampDelta >= 0xffffff ? Util.readUnsignedInt32(in) : 0;
-                RtmpHeader prevHeader = rtmpSessionInfo.getChunkStreamInfo(chunkStreamId).prevHeaderRx();
-                packetLength = prevHeader.packetLength;
-                messageType = prevHeader.messageType;
-                messageStreamId = prevHeader.messageStreamId;
-                absoluteTimestamp = extendedTimestamp != 0 ? extendedTimestamp : prevHeader.absoluteTimestamp + timestampDelta;
+                packetLength = chunkStreamInfo.getRxPacketLength();
+                messageType = chunkStreamInfo.getRxMessageType();
+                messageStreamId = chunkStreamInfo.getRxMessageStreamId();
+                absoluteTimestamp = extendedTimestamp != 0 ? extendedTimestamp : chunkStreamInfo.getRxAbsoluteTimestamp() + timestampDelta;
                 break;
             }
-            case TYPE_3_RELATIVE_SINGLE_BYTE: { // b11 = 1 byte: basic header only 
-                RtmpHeader prevHeader = rtmpSessionInfo.getChunkStreamInfo(chunkStreamId).prevHeaderRx();
+            case TYPE_3_RELATIVE_SINGLE_BYTE: { // b11 = 1 byte: basic header only
                 // Read bytes 1-4: Extended timestamp
-                extendedTimestamp = prevHeader.timestampDelta >= 0xffffff ? Util.readUnsignedInt32(in) : 0;
-                timestampDelta = extendedTimestamp != 0 ? 0xffffff : prevHeader.timestampDelta;
-                packetLength = prevHeader.packetLength;
-                messageType = prevHeader.messageType;
-                messageStreamId = prevHeader.messageStreamId;
-                absoluteTimestamp = extendedTimestamp != 0 ? extendedTimestamp : prevHeader.absoluteTimestamp + timestampDelta;
+                extendedTimestamp = chunkStreamInfo.getRxTimestampDelta() >= 0xffffff ? Util.readUnsignedInt32(in) : 0;
+                timestampDelta = extendedTimestamp != 0 ? 0xffffff : chunkStreamInfo.getRxTimestampDelta();
+                packetLength = chunkStreamInfo.getRxPacketLength();
+                messageType = chunkStreamInfo.getRxMessageType();
+                messageStreamId = chunkStreamInfo.getRxMessageStreamId();
+                // a chunk continuing a packet keeps its timestamp, a new packet adds the delta again
+                int delta = chunkStreamInfo.getStoredPacketSize() > 0 ? 0 : timestampDelta;
+                absoluteTimestamp = extendedTimestamp != 0 ? extendedTimestamp : chunkStreamInfo.getRxAbsoluteTimestamp() + delta;
                 break;
             }
             default:
                 throw new IOException("Invalid chunk type; basic header byte was: " + Util.toHexString((byte) basicHeaderByte));
         }
+        chunkStreamInfo.setRxHeader(chunkType, chunkStreamId, absoluteTimestamp, timestampDelta, packetLength, messageType, messageStreamId);
+        return chunkStreamInfo;
+    }
+
+    /**
+     * Pick the smallest header for the first chunk of this packet, from the packet sent last on
+     * its chunk stream: type 1 drops the message stream ID, type 2 also the length and type, and
+     * type 3 also the timestamp delta. The deltas come from the packet timestamps, e.g. the media
+     * DTS, so the server reads back exactly what was sent. Timestamps going backwards or needing
+     * the extended field take a full header.
+     */
+    public ChunkType selectChunkType(final ChunkStreamInfo chunkStreamInfo) {
+        timestampDelta = 0;
+        if (!chunkStreamInfo.hasTxHeader() || messageStreamId != chunkStreamInfo.getTxMessageStreamId()
+                || absoluteTimestamp >= 0xffffff) {
+            return ChunkType.TYPE_0_FULL;
+        }
+        int delta = absoluteTimestamp - chunkStreamInfo.getTxAbsoluteTimestamp();
+        if (delta < 0) {
+            return ChunkType.TYPE_0_FULL;
+        }
+        timestampDelta = delta;
+        if (packetLength != chunkStreamInfo.getTxPacketLength() || messageType != chunkStreamInfo.getTxMessageType()) {
+            return ChunkType.TYPE_1_RELATIVE_LARGE;
+        }
+        if (delta != chunkStreamInfo.getTxTimestampDelta()) {
+            return ChunkType.TYPE_2_RELATIVE_TIMESTAMP_ONLY;
+        }
+        return ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE;
     }
 
-    public void writeTo(OutputStream out, ChunkType chunkType, final ChunkStreamInfo chunkStreamInfo) throws IOException {
+    /**
+     * Write the chunk header into {@code out}, which must have {@link #MAX_CHUNK_HEADER_SIZE}
+     * bytes remaining. Types 1 and 2 write the delta set by {@link #selectChunkType(ChunkStreamInfo)}.
+     */
+    public void writeTo(ByteBuffer out, ChunkType chunkType, final ChunkStreamInfo chunkStreamInfo) throws IOException {
         // Write basic header byte
-        out.write(((byte) (chunkType.getValue() << 6) | chunkStreamId));
+        out.put((byte) ((chunkType.getValue() << 6) | chunkStreamId));
         switch (chunkType) {
             case TYPE_0_FULL: { //  b00 = 12 byte header (full header)
-                chunkStreamInfo.markDeltaTimestampTx();
-                Util.writeUnsignedInt24(out, (absoluteTimestamp >= 0xffffff) ? 0xffffff : absoluteTimestamp);
-                Util.writeUnsignedInt24(out, packetLength);
-                out.write(messageType.getValue());
-                Util.writeUnsignedInt32LittleEndian(out, messageStreamId);
+                putUnsignedInt24(out, (absoluteTimestamp >= 0xffffff) ? 0xffffff : absoluteTimestamp);
+                putUnsignedInt24(out, packetLength);
+                out.put(messageType.getValue());
+                out.putInt(Integer.reverseBytes(messageStreamId));
                 if (absoluteTimestamp >= 0xffffff) {
                     extendedTimestamp = absoluteTimestamp;
-                    Util.writeUnsignedInt32(out, extendedTimestamp);
+                    out.putInt(extendedTimestamp);
                 }
                 break;
             }
             case TYPE_1_RELATIVE_LARGE: { // b01 = 8 bytes - like type 0. not including message ID (4 last bytes)
-                timestampDelta = (int) chunkStreamInfo.markDeltaTimestampTx();
-                absoluteTimestamp = chunkStreamInfo.getPrevHeaderTx().getAbsoluteTimestamp() + timestampDelta;
-                Util.writeUnsignedInt24(out, (absoluteTimestamp >= 0xffffff) ? 0xffffff : timestampDelta);
-                Util.writeUnsignedInt24(out, packetLength);
-                out.write(messageType.getValue());
-                if (absoluteTimestamp >= 0xffffff) {
-                    extendedTimestamp = absoluteTimestamp;
-                    Util.writeUnsignedInt32(out, absoluteTimestamp);
-                }
+                putUnsignedInt24(out, timestampDelta);
+                putUnsignedInt24(out, packetLength);
+                out.put(messageType.getValue());
                 break;
             }
             case TYPE_2_RELATIVE_TIMESTAMP_ONLY: { // b10 = 4 bytes - Basic Header and timestamp (3 bytes) are included
-                timestampDelta = (int) chunkStreamInfo.markDeltaTimestampTx();
-                absoluteTimestamp = chunkStreamInfo.getPrevHeaderTx().getAbsoluteTimestamp() + timestampDelta;
-                Util.writeUnsignedInt24(out, (absoluteTimestamp >= 0xffffff) ? 0xffffff : timestampDelta);
-                if (absoluteTimestamp >= 0xffffff) {
-                    extendedTimestamp = absoluteTimestamp;
-                    Util.writeUnsignedInt32(out, extendedTimestamp);
-                }
+                putUnsignedInt24(out, timestampDelta);
                 break;
             }
             case TYPE_3_RELATIVE_SINGLE_BYTE: { // b11 = 1 byte: basic header only
                 if (extendedTimestamp > 0) {
-                    Util.writeUnsignedInt32(out, extendedTimestamp);
+                    out.putInt(extendedTimestamp);
                 }
                 break;
             }
@@ -351,9 +375,10 @@ public class RtmpHeader {
         }
     }
 
-    private void parseBasicHeader(byte basicHeaderByte) {
-        chunkType = ChunkType.valueOf((byte) ((0xff & basicHeaderByte) >>> 6)); // 2 most significant bits define the chunk type
-        chunkStreamId = basicHeaderByte & 0x3F; // 6 least significant bits define chunk stream ID
+    private static void putUnsignedInt24(ByteBuffer out, int value) {
+        out.put((byte) (value >>> 16));
+        out.put((byte) (value >>> 8));
+        out.put((byte) value);
     }
 
     /** @return the RTMP chunk stream ID (channel ID) for this chunk */
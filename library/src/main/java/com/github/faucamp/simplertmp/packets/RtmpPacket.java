@@ -8,6 +8,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 
 import com.github.faucamp.simplertmp.io.ChunkStreamInfo;
+import com.github.faucamp.simplertmp.io.RtmpChunkWriter;
 
 /**
  *
@@ -33,23 +34,34 @@ public abstract class RtmpPacket {
 
     protected abstract int size();
 
-    public void writeTo(OutputStream out, final int chunkSize, final ChunkStreamInfo chunkStreamInfo) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        writeBody(baos);
-        byte[] body = this instanceof ContentData ? array() : baos.toByteArray();
-        int length = this instanceof ContentData ? size() : body.length;
+    public void writeTo(RtmpChunkWriter out, final int chunkSize, final ChunkStreamInfo chunkStreamInfo) throws IOException {
+        byte[] body;
+        int length;
+        if (this instanceof ContentData) {
+            // audio and video are chunked in place, the writer only references their data.
+            body = array();
+            length = size();
+        } else {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            writeBody(baos);
+            body = baos.toByteArray();
+            length = body.length;
+        }
         header.setPacketLength(length);
-        // Write header for first chunk
-        header.writeTo(out, RtmpHeader.ChunkType.TYPE_0_FULL, chunkStreamInfo);
+        // Write header for first chunk, compressed against the previous packet of the chunk stream
+        RtmpHeader.ChunkType chunkType = header.selectChunkType(chunkStreamInfo);
+        header.setChunkType(chunkType);
+        out.writeHeader(header, chunkType, chunkStreamInfo);
+        chunkStreamInfo.setTxHeader(header, chunkType);
         int pos = 0;
         while (length > chunkSize) {
             // Write packet for chunk
-            out.write(body, pos, chunkSize);
+            out.writePayload(body, pos, chunkSize);
             length -= chunkSize;
             pos += chunkSize;
             // Write header for remain chunk
-            header.writeTo(out, RtmpHeader.ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE, chunkStreamInfo);
+            out.writeHeader(header, RtmpHeader.ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE, chunkStreamInfo);
         }
-        out.write(body, pos, length);
+        out.writePayload(body, pos, length);
     }
 }
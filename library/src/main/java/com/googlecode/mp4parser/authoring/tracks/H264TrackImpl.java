@@ -9,7 +9,10 @@ import com.googlecode.mp4parser.h264.model.PictureParameterSet;
 import com.googlecode.mp4parser.h264.model.SeqParameterSet;
 import com.googlecode.mp4parser.h264.read.CAVLCReader;
 
+import cloud.shoplive.studio.ShopLiveNalSplitter;
+
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
@@ -29,7 +32,7 @@ public class H264TrackImpl extends AbstractTrack {
     TrackMetaData trackMetaData = new TrackMetaData();
     SampleDescriptionBox sampleDescriptionBox;
 
-    private ReaderWrapper reader;
+    private ByteBuffer stream;
     private List<ByteBuffer> samples;
     boolean readSamples = false;
 
@@ -47,8 +50,6 @@ public class H264TrackImpl extends AbstractTrack {
     private int height;
     private int timescale;
     private int frametick;
-    private int currentScSize;
-    private int prevScSize;
 
     private SEIMessage seiMessage;
     int frameNrInGop = 0;
@@ -77,7 +78,7 @@ public class H264TrackImpl extends AbstractTrack {
     }
 
     private void parse(InputStream inputStream) throws IOException {
-        this.reader = new ReaderWrapper(inputStream);
+        this.stream = readFully(inputStream);
         stts = new LinkedList<TimeToSampleBox.Entry>();
         ctts = new LinkedList<CompositionTimeToSample.Entry>();
         sdtp = new LinkedList<SampleDependencyTypeBox.Entry>();
@@ -196,27 +197,15 @@ public class H264TrackImpl extends AbstractTrack {
         return true;
     }
 
-    private boolean findNextStartcode() throws IOException {
-        byte[] test = new byte[]{-1, -1, -1, -1};
-
-        int c;
-        while ((c = reader.read()) != -1) {
-            test[0] = test[1];
-            test[1] = test[2];
-            test[2] = test[3];
-            test[3] = (byte) c;
-            if (test[0] == 0 && test[1] == 0 && test[2] == 0 && test[3] == 1) {
-                prevScSize = currentScSize;
-                currentScSize = 4;
-                return true;
-            }
-            if (test[0] == 0 && test[1] == 0 && test[2] == 1) {
-                prevScSize = currentScSize;
-                currentScSize = 3;
-                return true;
-            }
+    // every sample is kept in memory anyway, so the stream is split in one pass.
+    private static ByteBuffer readFully(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[64 * 1024];
+        int read;
+        while ((read = inputStream.read(chunk)) != -1) {
+            out.write(chunk, 0, read);
         }
-        return false;
+        return ByteBuffer.wrap(out.toByteArray());
     }
 
     private enum NALActions {
@@ -231,24 +220,21 @@ public class H264TrackImpl extends AbstractTrack {
         readSamples = true;
 
 
-        findNextStartcode();
-        reader.mark();
-        long pos = reader.getPos();
+        ShopLiveNalSplitter nals = new ShopLiveNalSplitter();
+        nals.split(stream, 0, stream.limit());
 
         ArrayList<byte[]> buffered = new ArrayList<byte[]>();
 
         int frameNr = 0;
 
-        while (findNextStartcode()) {
-            long newpos = reader.getPos();
-            int size = (int) (newpos - pos - prevScSize);
-            reader.reset();
-            byte[] data = new byte[size ];
-            reader.read(data);
-            int type = data[0];
-            int nal_ref_idc = (type >> 5) & 3;
-            int nal_unit_type = type & 0x1f;
-            LOG.fine("Found startcode at " + (pos -4)  + " Type: " + nal_unit_type + " ref idc: " + nal_ref_idc + " (size " + size + ")");
+        for (int i = 0; i < nals.count(); i++) {
+            int size = nals.length(i);
+            stream.position(nals.offset(i));
+            byte[] data = new byte[size];
+            stream.get(data);
+            int nal_ref_idc = nals.refIdc(i);
+            int nal_unit_type = nals.type(i);
+            LOG.fine("Found NAL unit at " + nals.offset(i) + " Type: " + nal_unit_type + " ref idc: " + nal_ref_idc + " (size " + size + ")");
             NALActions action = handleNALUnit(nal_ref_idc, nal_unit_type, data);
             switch (action) {
                 case IGNORE:
@@ -299,10 +285,8 @@ public class H264TrackImpl extends AbstractTrack {
 
 
             }
-            pos = newpos;
-            reader.seek(currentScSize);
-            reader.mark();
         }
+        stream = null;
         return true;
     }
 
@@ -510,54 +494,6 @@ public class H264TrackImpl extends AbstractTrack {
         }
     }
 
-    private class ReaderWrapper {
-        private InputStream inputStream;
-        private long pos = 0;
-
-        private long markPos = 0;
-
-
-        private ReaderWrapper(InputStream inputStream) {
-            this.inputStream = inputStream;
-        }
-
-        int read() throws IOException {
-            pos++;
-            return inputStream.read();
-        }
-
-        long read(byte[] data) throws IOException {
-            long read = inputStream.read(data);
-            pos += read;
-            return read;
-        }
-
-        long seek(int dist) throws IOException {
-            long seeked = inputStream.skip(dist);
-            pos += seeked;
-            return seeked;
-        }
-
-        public long getPos() {
-            return pos;
-        }
-
-        public void mark() {
-            int i = 1048576;
-            LOG.fine("Marking with " + i + " at " + pos);
-            inputStream.mark(i);
-            markPos = pos;
-        }
-
-
-        public void reset() throws IOException {
-            long diff = pos - markPos;
-            LOG.fine("Resetting to " + markPos + " (pos is " + pos + ") which makes the buffersize " + diff);
-            inputStream.reset();
-            pos = markPos;
-        }
-    }
-
     public class SEIMessage {
 
         int payloadType = 0;
@@ -29,7 +29,6 @@ import cloud.shoplive.studio.R;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
 import java.util.LinkedList;
 
 public class GPUImageFilter {
@@ -60,7 +59,9 @@ public class GPUImageFilter {
 
     private int[] mGLFboId;
     private int[] mGLFboTexId;
-    private IntBuffer mGLFboBuffer;
+    private GPUImageReadback mReadback;
+    private GPUImageReadback.Frame mReadbackFrame;
+    private boolean mReadbackEnabled = true;
 
     public GPUImageFilter() {
         this(MagicFilterType.NONE);
@@ -174,13 +175,14 @@ public class GPUImageFilter {
     }
 
     private void initFboTexture(int width, int height) {
-        if (mGLFboId != null && (mInputWidth != width || mInputHeight != height)) {
+        // the input size is already updated here, so always drop the old fbo and its readback.
+        if (mGLFboId != null) {
             destroyFboTexture();
         }
 
         mGLFboId = new int[1];
         mGLFboTexId = new int[1];
-        mGLFboBuffer = IntBuffer.allocate(width * height);
+        mReadback = new GPUImageReadback(width, height);
 
         GLES20.glGenFramebuffers(1, mGLFboId, 0);
         GLES20.glGenTextures(1, mGLFboTexId, 0);
@@ -205,6 +207,14 @@ public class GPUImageFilter {
             GLES20.glDeleteFramebuffers(1, mGLFboId, 0);
             mGLFboId = null;
         }
+        if (mReadbackFrame != null) {
+            mReadbackFrame.release();
+            mReadbackFrame = null;
+        }
+        if (mReadback != null) {
+            mReadback.destroy();
+            mReadback = null;
+        }
     }
 
     public int onDrawFrame(final int textureId, final FloatBuffer cubeBuffer, final FloatBuffer textureBuffer) {
@@ -270,7 +280,15 @@ public class GPUImageFilter {
         GLES20.glViewport(0, 0, mInputWidth, mInputHeight);
         GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mGLFboId[0]);
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
-        GLES20.glReadPixels(0, 0, mInputWidth, mInputHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mGLFboBuffer);
+        if (mReadbackEnabled) {
+            GPUImageReadback.Frame frame = mReadback.readPixels();
+            if (frame != null) {
+                if (mReadbackFrame != null) {
+                    mReadbackFrame.release();
+                }
+                mReadbackFrame = frame;
+            }
+        }
         GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
         GLES20.glViewport(0, 0, mOutputWidth, mOutputHeight);
 
@@ -302,8 +320,23 @@ public class GPUImageFilter {
         return mGLProgId;
     }
 
-    public IntBuffer getGLFboBuffer() {
-        return mGLFboBuffer;
+    /**
+     * @return the latest frame read back from the fbo, owned by the caller until it is released,
+     * or null if no new frame is ready yet.
+     */
+    public GPUImageReadback.Frame takeReadbackFrame() {
+        GPUImageReadback.Frame frame = mReadbackFrame;
+        mReadbackFrame = null;
+        return frame;
+    }
+
+    public int getGLFboTexture() {
+        return mGLFboTexId == null ? OpenGLUtils.NO_TEXTURE : mGLFboTexId[0];
+    }
+
+    // the pixels are only read back when the encoder takes RGBA frames.
+    public void setReadbackEnabled(boolean enabled) {
+        mReadbackEnabled = enabled;
     }
 
     protected Context getContext() {
@@ -0,0 +1,197 @@
+package com.seu.magicfilter.base.gpuimage;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Reads the pixels of the bound framebuffer back into pooled frames.
+ * <p>
+ * On GLES 3 the pixels go into a ring of pixel buffer objects guarded by fences, and a frame is
+ * only mapped once the GPU has finished writing it, a couple of frames later, so the GL thread
+ * does not wait for the readback. On GLES 2 it falls back to a synchronous glReadPixels.
+ * Either way each frame is a pooled copy owned by its consumer until released, so frames never
+ * alias each other. All methods except {@link Frame#release()} run on the GL thread.
+ */
+public class GPUImageReadback {
+
+    private static final String TAG = "GPUImageReadback";
+
+    private static final int PBO_COUNT = 3;
+    private static final int FRAME_POOL_SIZE = 4;
+    // only reached when the ring is full and the oldest readback is still running.
+    private static final long FENCE_TIMEOUT_NS = 10 * 1000 * 1000;
+
+    public static final class Frame {
+        private final GPUImageReadback owner;
+        private final int[] pixels;
+
+        private Frame(GPUImageReadback owner, int size) {
+            this.owner = owner;
+            this.pixels = new int[size];
+        }
+
+        /**
+         * @return the RGBA pixels, bottom row first, as read by glReadPixels.
+         */
+        public int[] pixels() {
+            return pixels;
+        }
+
+        public int width() {
+            return owner.width;
+        }
+
+        public int height() {
+            return owner.height;
+        }
+
+        /**
+         * give the frame back to its pool, may be called on any thread.
+         */
+        public void release() {
+            owner.freeFrames.offer(this);
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final ArrayBlockingQueue<Frame> freeFrames = new ArrayBlockingQueue<>(FRAME_POOL_SIZE);
+    private long droppedFrames;
+
+    // GLES 3 path.
+    private final boolean usePbo;
+    private int[] pboIds;
+    private final long[] fences = new long[PBO_COUNT];
+    private int writeIndex;
+    private int pendingCount;
+
+    // GLES 2 path.
+    private ByteBuffer readBuffer;
+
+    public GPUImageReadback(int width, int height) {
+        this.width = width;
+        this.height = height;
+        for (int i = 0; i < FRAME_POOL_SIZE; i++) {
+            freeFrames.offer(new Frame(this, width * height));
+        }
+
+        usePbo = isPboSupported();
+        if (usePbo) {
+            pboIds = new int[PBO_COUNT];
+            GLES20.glGenBuffers(PBO_COUNT, pboIds, 0);
+            for (int i = 0; i < PBO_COUNT; i++) {
+                GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pboIds[i]);
+                GLES20.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, width * height * 4, null, GLES30.GL_STREAM_READ);
+            }
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        } else {
+            readBuffer = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder());
+        }
+        Log.i(TAG, String.format("readback %dx%d using %s", width, height, usePbo ? "pbo" : "glReadPixels"));
+    }
+
+    private static boolean isPboSupported() {
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        return version != null && version.startsWith("OpenGL ES ") && !version.startsWith("OpenGL ES 2");
+    }
+
+    /**
+     * Start reading the bound framebuffer back.
+     *
+     * @return the oldest completed frame owned by the caller, or null if none is ready or the
+     * consumer still holds every pooled frame.
+     */
+    @Nullable
+    public Frame readPixels() {
+        if (!usePbo) {
+            readBuffer.clear();
+            GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, readBuffer);
+            return copyToFrame(readBuffer);
+        }
+
+        Frame frame = null;
+        // make room in the ring, waiting only when the oldest readback is still in flight.
+        if (pendingCount == PBO_COUNT) {
+            frame = collect(true);
+        }
+
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pboIds[writeIndex]);
+        GLES30.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        fences[writeIndex] = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        writeIndex = (writeIndex + 1) % PBO_COUNT;
+        pendingCount++;
+
+        if (frame == null) {
+            frame = collect(false);
+        }
+        return frame;
+    }
+
+    @Nullable
+    private Frame collect(boolean wait) {
+        if (pendingCount == 0) {
+            return null;
+        }
+        int index = (writeIndex - pendingCount + PBO_COUNT) % PBO_COUNT;
+        int status = GLES30.glClientWaitSync(fences[index], wait ? GLES30.GL_SYNC_FLUSH_COMMANDS_BIT : 0,
+                wait ? FENCE_TIMEOUT_NS : 0);
+        if (status != GLES30.GL_ALREADY_SIGNALED && status != GLES30.GL_CONDITION_SATISFIED) {
+            if (!wait) {
+                return null;
+            }
+            Log.w(TAG, String.format("readback fence not signaled: 0x%x", status));
+        }
+        GLES30.glDeleteSync(fences[index]);
+        fences[index] = 0;
+        pendingCount--;
+
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pboIds[index]);
+        ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0,
+                width * height * 4, GLES30.GL_MAP_READ_BIT);
+        Frame frame = null;
+        if (mapped != null) {
+            frame = copyToFrame(mapped.order(ByteOrder.nativeOrder()));
+            GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        return frame;
+    }
+
+    @Nullable
+    private Frame copyToFrame(ByteBuffer pixels) {
+        Frame frame = freeFrames.poll();
+        if (frame == null) {
+            if (++droppedFrames % 100 == 1) {
+                Log.w(TAG, String.format("consumer behind, %d frames dropped", droppedFrames));
+            }
+            return null;
+        }
+        IntBuffer src = pixels.asIntBuffer();
+        src.position(0);
+        src.get(frame.pixels, 0, Math.min(src.remaining(), frame.pixels.length));
+        return frame;
+    }
+
+    public void destroy() {
+        if (pboIds != null) {
+            for (int i = 0; i < PBO_COUNT; i++) {
+                if (fences[i] != 0) {
+                    GLES30.glDeleteSync(fences[i]);
+                    fences[i] = 0;
+                }
+            }
+            GLES20.glDeleteBuffers(PBO_COUNT, pboIds, 0);
+            pboIds = null;
+        }
+        pendingCount = 0;
+    }
+}
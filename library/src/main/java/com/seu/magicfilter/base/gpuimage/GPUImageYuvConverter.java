@@ -0,0 +1,173 @@
+package com.seu.magicfilter.base.gpuimage;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.seu.magicfilter.utils.OpenGLUtils;
+import com.seu.magicfilter.utils.YuvConversion;
+
+import cloud.shoplive.studio.R;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Converts the filter output to the YUV frame the encoder takes before it is read back.
+ * <p>
+ * The frame is rendered into an RGBA target a quarter of its width and one and a half times its
+ * height, every texel packing four bytes of the Y or chroma planes, so the readback moves 1.5
+ * bytes per pixel instead of 4 and the frame needs no conversion on the CPU. The pixels of a
+ * {@link GPUImageReadback.Frame} are the frame bytes in native int order. All methods run on the
+ * GL thread.
+ */
+public class GPUImageYuvConverter {
+
+    private static final String TAG = "GPUImageYuvConverter";
+
+    private static final float[] VEX_CUBE = {
+            -1.0f, -1.0f, // Bottom left.
+            1.0f, -1.0f, // Bottom right.
+            -1.0f, 1.0f, // Top left.
+            1.0f, 1.0f, // Top right.
+    };
+
+    private final Context mContext;
+    private final FloatBuffer mCubeBuffer;
+    private float[] mTransform = YuvConversion.transform(YuvConversion.DEFAULT_ROTATION, YuvConversion.DEFAULT_FLIP);
+
+    private int mProgram;
+    private int mPositionIndex;
+    private int mInputImageTextureIndex;
+    private int mTransformIndex;
+    private int mFrameSizeIndex;
+    private int mChromaLayoutIndex;
+
+    private int[] mFboId;
+    private int[] mFboTexId;
+    private GPUImageReadback mReadback;
+    private int mFrameWidth;
+    private int mFrameHeight;
+
+    public GPUImageYuvConverter(Context context) {
+        mContext = context;
+        mCubeBuffer = ByteBuffer.allocateDirect(VEX_CUBE.length * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        mCubeBuffer.put(VEX_CUBE).position(0);
+    }
+
+    /**
+     * @param rotation the clockwise rotation applied to the readback, as in libyuv.
+     * @param flip     mirror the rotated frame horizontally.
+     */
+    public void setTransform(int rotation, boolean flip) {
+        mTransform = YuvConversion.transform(rotation, flip);
+    }
+
+    /**
+     * Convert the texture and start reading the frame back.
+     *
+     * @param textureId the GL_TEXTURE_2D to convert, scaled to the frame size.
+     * @param layout    {@link YuvConversion#I420} or {@link YuvConversion#NV12}.
+     * @return the oldest completed frame owned by the caller, or null if none is ready.
+     */
+    @Nullable
+    public GPUImageReadback.Frame convert(int textureId, int layout, int width, int height) {
+        if (textureId == OpenGLUtils.NO_TEXTURE || !YuvConversion.isSupported(width, height)) {
+            return null;
+        }
+        if (mProgram == 0) {
+            loadProgram();
+        }
+        if (width != mFrameWidth || height != mFrameHeight) {
+            initTarget(width, height);
+        }
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFboId[0]);
+        GLES20.glViewport(0, 0, width / 4, height * 3 / 2);
+        GLES20.glUseProgram(mProgram);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+        GLES20.glEnableVertexAttribArray(mPositionIndex);
+        GLES20.glVertexAttribPointer(mPositionIndex, 2, GLES20.GL_FLOAT, false, 4 * 2, mCubeBuffer);
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+        GLES20.glUniform1i(mInputImageTextureIndex, 0);
+        GLES20.glUniformMatrix3fv(mTransformIndex, 1, false, mTransform, 0);
+        GLES20.glUniform2f(mFrameSizeIndex, width, height);
+        GLES20.glUniform1i(mChromaLayoutIndex, layout == YuvConversion.NV12 ? 1 : 0);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+
+        GPUImageReadback.Frame frame = mReadback.readPixels();
+
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glDisableVertexAttribArray(mPositionIndex);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        return frame;
+    }
+
+    private void loadProgram() {
+        mProgram = OpenGLUtils.loadProgram(OpenGLUtils.readShaderFromRawResource(mContext, R.raw.vertex_yuv),
+                OpenGLUtils.readShaderFromRawResource(mContext, R.raw.fragment_yuv));
+        mPositionIndex = GLES20.glGetAttribLocation(mProgram, "position");
+        mInputImageTextureIndex = GLES20.glGetUniformLocation(mProgram, "inputImageTexture");
+        mTransformIndex = GLES20.glGetUniformLocation(mProgram, "transform");
+        mFrameSizeIndex = GLES20.glGetUniformLocation(mProgram, "frameSize");
+        mChromaLayoutIndex = GLES20.glGetUniformLocation(mProgram, "chromaLayout");
+    }
+
+    private void initTarget(int width, int height) {
+        destroyTarget();
+        int targetWidth = width / 4;
+        int targetHeight = height * 3 / 2;
+
+        mFboId = new int[1];
+        mFboTexId = new int[1];
+        GLES20.glGenFramebuffers(1, mFboId, 0);
+        GLES20.glGenTextures(1, mFboTexId, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mFboTexId[0]);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, targetWidth, targetHeight, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFboId[0]);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, mFboTexId[0], 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+
+        mReadback = new GPUImageReadback(targetWidth, targetHeight);
+        mFrameWidth = width;
+        mFrameHeight = height;
+        Log.i(TAG, String.format("yuv target %dx%d for a %dx%d frame", targetWidth, targetHeight, width, height));
+    }
+
+    private void destroyTarget() {
+        if (mFboTexId != null) {
+            GLES20.glDeleteTextures(1, mFboTexId, 0);
+            mFboTexId = null;
+        }
+        if (mFboId != null) {
+            GLES20.glDeleteFramebuffers(1, mFboId, 0);
+            mFboId = null;
+        }
+        if (mReadback != null) {
+            mReadback.destroy();
+            mReadback = null;
+        }
+        mFrameWidth = 0;
+        mFrameHeight = 0;
+    }
+
+    public void destroy() {
+        destroyTarget();
+        if (mProgram != 0) {
+            GLES20.glDeleteProgram(mProgram);
+            mProgram = 0;
+        }
+    }
+}
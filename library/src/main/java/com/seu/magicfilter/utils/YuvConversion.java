@@ -0,0 +1,162 @@
+package com.seu.magicfilter.utils;
+
+/**
+ * The RGBA to YUV 4:2:0 conversion done on the GPU by
+ * {@link com.seu.magicfilter.base.gpuimage.GPUImageYuvConverter}, in plain Java.
+ * <p>
+ * It defines the frame layouts and the maths the fragment_yuv shader implements: BT.601 limited
+ * range with the libyuv coefficients, chroma averaged over 2x2 pixels, and the source sampled
+ * bilinearly like a GL_LINEAR texture. Without any GL dependency it is the reference the shader
+ * output can be checked against, GPUs may differ from it by one code value of rounding.
+ */
+public final class YuvConversion {
+
+    public static final int NONE = -1;
+    // Y plane, then the U plane, then the V plane, COLOR_FormatYUV420Planar.
+    public static final int I420 = 0;
+    // Y plane, then interleaved U and V, COLOR_FormatYUV420SemiPlanar.
+    public static final int NV12 = 1;
+
+    // the readback is bottom row first, rotated and mirrored back like the libyuv path of SrsEncoder.
+    public static final int DEFAULT_ROTATION = 180;
+    public static final boolean DEFAULT_FLIP = true;
+
+    private static final float Y_R = 0.2578125f, Y_G = 0.50390625f, Y_B = 0.09765625f;
+    private static final float U_R = -0.1484375f, U_G = -0.2890625f, U_B = 0.4375f;
+    private static final float V_R = 0.4375f, V_G = -0.3671875f, V_B = -0.0703125f;
+    private static final float Y_OFFSET = 16f / 255f;
+    private static final float C_OFFSET = 128f / 255f;
+
+    private YuvConversion() {
+    }
+
+    /**
+     * @return true if the GPU can pack a frame of this size, four bytes of every plane per texel.
+     */
+    public static boolean isSupported(int width, int height) {
+        return width > 0 && height > 0 && width % 8 == 0 && height % 4 == 0;
+    }
+
+    public static int frameSize(int width, int height) {
+        return width * height * 3 / 2;
+    }
+
+    /**
+     * Map the output frame to the source texture, undoing the clockwise rotation and then the
+     * horizontal mirror libyuv applies to the readback.
+     *
+     * @return a column-major 3x3 matrix taking (x, y, 1), normalized output coordinates with y
+     * growing from the first row of the frame, to (u, v, 1) in the source texture.
+     */
+    public static float[] transform(int rotation, boolean flip) {
+        // u = a * x + b * y + c, v = d * x + e * y + f
+        float a, b, c, d, e, f;
+        switch ((rotation % 360 + 360) % 360) {
+            case 90:
+                a = 0; b = 1; c = 0; d = -1; e = 0; f = 1;
+                break;
+            case 180:
+                a = -1; b = 0; c = 1; d = 0; e = -1; f = 1;
+                break;
+            case 270:
+                a = 0; b = -1; c = 1; d = 1; e = 0; f = 0;
+                break;
+            default:
+                a = 1; b = 0; c = 0; d = 0; e = 1; f = 0;
+                break;
+        }
+        if (flip) {
+            // the mirror comes last, so it is undone first: x becomes 1 - x.
+            c += a;
+            a = -a;
+            f += d;
+            d = -d;
+        }
+        return new float[]{a, d, 0, b, e, 0, c, f, 1};
+    }
+
+    /**
+     * Convert a readback frame on the CPU, as the shader does.
+     *
+     * @param src       RGBA bytes as written by glReadPixels, the first row at the bottom.
+     * @param dst       receives {@link #frameSize(int, int)} bytes of the frame.
+     * @param layout    {@link #I420} or {@link #NV12}.
+     */
+    public static void convert(byte[] src, int srcWidth, int srcHeight, byte[] dst, int dstWidth, int dstHeight,
+                               int layout, int rotation, boolean flip) {
+        if (!isSupported(dstWidth, dstHeight)) {
+            throw new IllegalArgumentException(String.format("unsupported frame size %dx%d", dstWidth, dstHeight));
+        }
+        float[] m = transform(rotation, flip);
+        float[] rgb = new float[3];
+        float[] sum = new float[3];
+
+        for (int y = 0; y < dstHeight; y++) {
+            for (int x = 0; x < dstWidth; x++) {
+                sample(src, srcWidth, srcHeight, m, (x + 0.5f) / dstWidth, (y + 0.5f) / dstHeight, rgb);
+                dst[y * dstWidth + x] = toByte(Y_R * rgb[0] + Y_G * rgb[1] + Y_B * rgb[2] + Y_OFFSET);
+            }
+        }
+
+        int ySize = dstWidth * dstHeight;
+        int chromaWidth = dstWidth / 2;
+        int chromaHeight = dstHeight / 2;
+        for (int cy = 0; cy < chromaHeight; cy++) {
+            for (int cx = 0; cx < chromaWidth; cx++) {
+                sum[0] = sum[1] = sum[2] = 0;
+                for (int i = 0; i < 4; i++) {
+                    float x = cx * 2 + (i & 1) + 0.5f;
+                    float y = cy * 2 + (i >> 1) + 0.5f;
+                    sample(src, srcWidth, srcHeight, m, x / dstWidth, y / dstHeight, rgb);
+                    sum[0] += rgb[0];
+                    sum[1] += rgb[1];
+                    sum[2] += rgb[2];
+                }
+                float r = sum[0] * 0.25f, g = sum[1] * 0.25f, b = sum[2] * 0.25f;
+                byte u = toByte(U_R * r + U_G * g + U_B * b + C_OFFSET);
+                byte v = toByte(V_R * r + V_G * g + V_B * b + C_OFFSET);
+                if (layout == NV12) {
+                    dst[ySize + cy * dstWidth + cx * 2] = u;
+                    dst[ySize + cy * dstWidth + cx * 2 + 1] = v;
+                } else {
+                    dst[ySize + cy * chromaWidth + cx] = u;
+                    dst[ySize + ySize / 4 + cy * chromaWidth + cx] = v;
+                }
+            }
+        }
+    }
+
+    // bilinear sample with clamp to edge, like texture2D on a GL_LINEAR texture.
+    private static void sample(byte[] src, int width, int height, float[] m, float x, float y, float[] rgb) {
+        float u = m[0] * x + m[3] * y + m[6];
+        float v = m[1] * x + m[4] * y + m[7];
+        float tx = u * width - 0.5f;
+        float ty = v * height - 0.5f;
+        int x0 = (int) Math.floor(tx);
+        int y0 = (int) Math.floor(ty);
+        float fx = tx - x0;
+        float fy = ty - y0;
+        int x1 = clamp(x0 + 1, width);
+        int y1 = clamp(y0 + 1, height);
+        x0 = clamp(x0, width);
+        y0 = clamp(y0, height);
+        for (int c = 0; c < 3; c++) {
+            float top = texel(src, width, x0, y0, c) * (1 - fx) + texel(src, width, x1, y0, c) * fx;
+            float bottom = texel(src, width, x0, y1, c) * (1 - fx) + texel(src, width, x1, y1, c) * fx;
+            rgb[c] = top * (1 - fy) + bottom * fy;
+        }
+    }
+
+    private static float texel(byte[] src, int width, int x, int y, int channel) {
+        return (src[(y * width + x) * 4 + channel] & 0xff) / 255f;
+    }
+
+    private static int clamp(int value, int size) {
+        return value < 0 ? 0 : (value >= size ? size - 1 : value);
+    }
+
+    private static byte toByte(float value) {
+        int v = (int) (value * 255f + 0.5f);
+        return (byte) (v < 0 ? 0 : (v > 255 ? 255 : v));
+    }
+}
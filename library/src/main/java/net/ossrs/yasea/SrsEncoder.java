@@ -10,23 +10,40 @@ import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
+import android.view.Surface;
 
 import androidx.annotation.Keep;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.seu.magicfilter.utils.YuvConversion;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import cloud.shoplive.studio.ShopLiveBitrateController;
 import cloud.shoplive.studio.ShopLiveEncodeHandler;
+import cloud.shoplive.studio.ShopLiveEncodedFramePool;
 import cloud.shoplive.studio.ShopLiveFlvMuxer;
 import cloud.shoplive.studio.ShopLiveMp4Muxer;
+import cloud.shoplive.studio.ShopLiveSoftEncoderConfig;
+import cloud.shoplive.studio.ShopLiveSurfaceInput;
+import cloud.shoplive.studio.ShopLiveYuvInput;
 
 /**
  * Created by Leo Ma on 4/1/2016.
  */
 @Keep
-public class SrsEncoder {
+public class SrsEncoder implements ShopLiveSurfaceInput, ShopLiveYuvInput {
     private static final String TAG = "SrsEncoder";
 
     public static final String VCODEC = "video/avc";
@@ -46,20 +63,74 @@ public class SrsEncoder {
     public static final int ASAMPLERATE = 44100;
     public static int aChannelConfig = AudioFormat.CHANNEL_IN_STEREO;
     public static final int ABITRATE = 64 * 1024;  // 64 kbps
+    // synchronous mode waits at most one frame interval for an input buffer, then drops the frame.
+    private static final long SYNC_INPUT_TIMEOUT_US = 1000000 / VFPS;
+    // the records RGBASoftEncodeDirect writes for each access unit, see libenc.cc.
+    private static final int SOFT_RECORD_HEADER = 32;
+    private static final int SOFT_FLAG_KEY_FRAME = 1;
+    private static final int SOFT_FLAG_CODEC_CONFIG = 2;
+    // the timeline starts this late with B-frames, so the decode times before the first pts stay positive.
+    private static final long B_FRAME_TIMELINE_OFFSET_US = 1000000;
 
     private ShopLiveEncodeHandler mHandler;
 
+    // libenc state of this encoder: the x264 encoder and its scratch frames, read by the natives.
+    private volatile long mNativeContext;
+
     private ShopLiveFlvMuxer flvMuxer;
     private ShopLiveMp4Muxer mp4Muxer;
 
+    // Each encoded frame is copied once out of the codec buffer and shared by all muxers.
+    private final ShopLiveEncodedFramePool videoFramePool = new ShopLiveEncodedFramePool(128 * 1024, VGOP, true);
+    private final ShopLiveEncodedFramePool audioFramePool = new ShopLiveEncodedFramePool(4 * 1024, VGOP);
+
     private MediaCodecInfo vmci;
-    private MediaCodec vencoder;
-    private MediaCodec aencoder;
+    private volatile MediaCodec vencoder;
+    private volatile MediaCodec aencoder;
+
+    // Async mode: the codecs call back on their own thread and the camera and audio threads only
+    // stage their input, so they never block on codec back-pressure. Handler-bound callbacks
+    // require API 23, older devices keep the synchronous mode with bounded waits.
+    private final boolean useAsyncCodec = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    private HandlerThread codecThread;
+    private volatile Handler codecHandler;
+    private final CodecInputQueue videoInput = new CodecInputQueue(3);
+    private final CodecInputQueue audioInput = new CodecInputQueue(8);
+    private final Runnable feedVideo = () -> feedCodec(vencoder, videoInput);
+    private final Runnable feedAudio = () -> feedCodec(aencoder, audioInput);
+    // Surface input: the GL renderer draws into the codec, which needs the async mode to drain it.
+    private boolean surfaceInputEnabled = false;
+    private volatile Surface mInputSurface;
+    // GPU conversion: the GL renderer reads back frames in the codec color format.
+    private boolean gpuYuvEnabled = false;
+    private volatile int vEncWidth;
+    private volatile int vEncHeight;
+    // The layout of the codec input buffers, which may pad the rows and the luma plane.
+    private volatile int vInputStride;
+    private volatile int vInputSliceHeight;
+    // Synchronous mode only, each is used by a single producer thread.
+    private final MediaCodec.BufferInfo vebi = new MediaCodec.BufferInfo();
+    private final MediaCodec.BufferInfo aebi = new MediaCodec.BufferInfo();
+    // Video producer thread: the input a frame is converted into.
+    private MediaCodec pendingVideoCodec;
+    private int pendingVideoIndex = -1;
+    private CodecInputQueue.Slot pendingVideoSlot;
+    // Soft encoder output, written by x264 and drained by the video producer thread.
+    private ByteBuffer softEncodeOutput;
+    private final MediaCodec.BufferInfo softEncodeInfo = new MediaCodec.BufferInfo();
 
     private boolean networkWeakTriggered = false;
+    private boolean adaptiveBitrateEnabled = true;
+    private ShopLiveBitrateController bitrateController;
+    private int mEncodeBitrate;
+    private int mResolutionLevel;
     private boolean mCameraFaceFront = true;
+    // the GL readback is bottom row first, libyuv and the GPU conversion both undo it with this.
+    private volatile int mReadbackRotation = YuvConversion.DEFAULT_ROTATION;
+    private volatile boolean mReadbackFlip = YuvConversion.DEFAULT_FLIP;
     private boolean useSoftEncoder = false;
     private boolean canSoftEncode = false;
+    private ShopLiveSoftEncoderConfig softEncoderConfig = new ShopLiveSoftEncoderConfig();
 
     private long mPresentTimeUs;
     private long mPausetime;
@@ -85,6 +156,23 @@ public class SrsEncoder {
     public SrsEncoder(ShopLiveEncodeHandler handler) {
         mHandler = handler;
         mVideoColorFormat = chooseVideoEncoder();
+        mNativeContext = createNativeContext();
+        if (mNativeContext == 0) {
+            throw new OutOfMemoryError("libenc context not allocated");
+        }
+    }
+
+    /**
+     * Free the native state, the encoder must be stopped and is not usable afterwards.
+     * Waits for native calls still in flight, so never call it from an encoder callback.
+     */
+    public synchronized void release() {
+        if (mNativeContext != 0) {
+            long context = mNativeContext;
+            // cleared first, so calls racing the release see it is gone.
+            mNativeContext = 0;
+            releaseNativeContext(context);
+        }
     }
 
     public void setFlvMuxer(ShopLiveFlvMuxer flvMuxer) {
@@ -102,6 +190,9 @@ public class SrsEncoder {
 
         // the referent PTS for video and audio encoder.
         mPresentTimeUs = System.nanoTime() / 1000;
+        if (useSoftEncoder && softEncoderConfig.getBFrames() > 0) {
+            mPresentTimeUs -= B_FRAME_TIMELINE_OFFSET_US;
+        }
 
         // Note: the stride of resolution must be set as 16x for hard encoding with some chip like MTK
         // Since Y component is quadruple size as U and V component, the stride must be set as 32x
@@ -111,7 +202,12 @@ public class SrsEncoder {
             }
         }
 
-        setEncoderResolution(vOutWidth, vOutHeight);
+        // the bitrate controller starts from the configured bitrate and may go down to a quarter of it.
+        bitrateController = new ShopLiveBitrateController(vBitrate / 4, vBitrate, VGOP / 4, VGOP / 16);
+        mEncodeBitrate = vBitrate;
+        mResolutionLevel = 0;
+
+        setConvertResolution(vOutWidth, vOutHeight);
         setEncoderFps(VFPS);
         setEncoderGop(VGOP);
         // Unfortunately for some android phone, the output fps is less than 10 limited by the
@@ -123,10 +219,22 @@ public class SrsEncoder {
         setEncoderPreset(x264Preset);
 
         if (useSoftEncoder) {
+            applySoftEncoderConfig();
             canSoftEncode = openSoftEncoder();
             if (!canSoftEncode) {
                 return false;
             }
+            // room for an uncompressed frame plus the records of the frame and the sequence headers.
+            int capacity = vOutWidth * vOutHeight * 3 / 2 + 4096;
+            if (softEncodeOutput == null || softEncodeOutput.capacity() < capacity) {
+                softEncodeOutput = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+            }
+        }
+
+        if (useAsyncCodec) {
+            codecThread = new HandlerThread("SrsEncoder");
+            codecThread.start();
+            codecHandler = new Handler(codecThread.getLooper());
         }
 
         // aencoder pcm to aac raw stream.
@@ -145,11 +253,23 @@ public class SrsEncoder {
         MediaFormat audioFormat = MediaFormat.createAudioFormat(ACODEC, ASAMPLERATE, ach);
         audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, ABITRATE);
         audioFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 0);
+        if (useAsyncCodec) {
+            aencoder.setCallback(new CodecCallback(false), codecHandler);
+        }
         aencoder.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         // add the audio tracker to muxer.
         audioFlvTrack = flvMuxer.addTrack(audioFormat);
         audioMp4Track = mp4Muxer.addTrack(audioFormat);
 
+        // start device and encoder.
+        if (!startVideoEncoder(vOutWidth, vOutHeight, vBitrate)) {
+            return false;
+        }
+        aencoder.start();
+        return true;
+    }
+
+    private boolean startVideoEncoder(int width, int height, int bitrate) {
         // vencoder yuv to 264 es stream.
         // requires sdk level 16+, Android 4.1, 4.1.1, the JELLY_BEAN
         try {
@@ -162,23 +282,52 @@ public class SrsEncoder {
 
         // setup the vencoder.
         // Note: landscape to portrait, 90 degree rotation, so we need to switch width and height in configuration
-        MediaFormat videoFormat = MediaFormat.createVideoFormat(VCODEC, vOutWidth, vOutHeight);
-        videoFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, mVideoColorFormat);
+        MediaFormat videoFormat = MediaFormat.createVideoFormat(VCODEC, width, height);
+        videoFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, isSurfaceInput() ?
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface : mVideoColorFormat);
         videoFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 0);
-        videoFormat.setInteger(MediaFormat.KEY_BIT_RATE, vBitrate);
+        videoFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
         videoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, VFPS);
         videoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, VGOP / VFPS);
+        if (useAsyncCodec) {
+            vencoder.setCallback(new CodecCallback(true), codecHandler);
+        }
         vencoder.configure(videoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        if (isSurfaceInput()) {
+            mInputSurface = vencoder.createInputSurface();
+        } else {
+            readInputLayout(vencoder, width, height);
+        }
         // add the video tracker to muxer.
         videoFlvTrack = flvMuxer.addTrack(videoFormat);
         videoMp4Track = mp4Muxer.addTrack(videoFormat);
 
-        // start device and encoder.
         vencoder.start();
-        aencoder.start();
+        vEncWidth = width;
+        vEncHeight = height;
         return true;
     }
 
+    // the frames are converted straight into the codec buffers, so they follow its stride and slice height.
+    private void readInputLayout(MediaCodec codec, int width, int height) {
+        int stride = width;
+        int sliceHeight = height;
+        try {
+            MediaFormat format = codec.getInputFormat();
+            if (format.containsKey(MediaFormat.KEY_STRIDE)) {
+                stride = Math.max(width, format.getInteger(MediaFormat.KEY_STRIDE));
+            }
+            if (format.containsKey(MediaFormat.KEY_SLICE_HEIGHT)) {
+                sliceHeight = Math.max(height, format.getInteger(MediaFormat.KEY_SLICE_HEIGHT));
+            }
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "codec input format unavailable: " + e.getMessage());
+        }
+        Log.i(TAG, String.format("vencoder input %dx%d, stride %d, slice height %d", width, height, stride, sliceHeight));
+        vInputStride = stride;
+        vInputSliceHeight = sliceHeight;
+    }
+
     public void pause(){
         mPausetime = System.nanoTime() / 1000;
     }
@@ -193,26 +342,40 @@ public class SrsEncoder {
             canSoftEncode = false;
         }
 
+        // clear the fields first, so late callbacks see the codec is gone.
         if (aencoder != null) {
             Log.i(TAG, "stop aencoder");
+            MediaCodec codec = aencoder;
+            aencoder = null;
             try {
-                aencoder.stop();
+                codec.stop();
             }catch (IllegalStateException e){
                 e.printStackTrace();
             }
-            aencoder.release();
-            aencoder = null;
+            codec.release();
         }
 
         if (vencoder != null) {
             Log.i(TAG, "stop vencoder");
+            MediaCodec codec = vencoder;
+            vencoder = null;
             try {
-                vencoder.stop();
+                codec.stop();
             }catch (IllegalStateException e){
                 e.printStackTrace();
             }
-            vencoder.release();
-            vencoder = null;
+            codec.release();
+        }
+        releaseInputSurface();
+
+        runOnCodecThread(() -> {
+            videoInput.clear();
+            audioInput.clear();
+        });
+        if (codecThread != null) {
+            codecThread.quitSafely();
+            codecThread = null;
+            codecHandler = null;
         }
     }
 
@@ -224,6 +387,15 @@ public class SrsEncoder {
         mCameraFaceFront = false;
     }
 
+    /**
+     * Set how RGBA readbacks are turned upright, for a renderer which reads them back another way.
+     * The GPU conversion polls it through {@link ShopLiveYuvInput} and follows on its next frame.
+     */
+    public void setReadbackTransform(int rotation, boolean flip) {
+        mReadbackRotation = rotation;
+        mReadbackFlip = flip;
+    }
+
     public void switchToSoftEncoder() {
         useSoftEncoder = true;
     }
@@ -236,6 +408,98 @@ public class SrsEncoder {
         return useSoftEncoder;
     }
 
+    /**
+     * let the GL renderer draw into a codec input surface, bypassing the RGBA readback and the
+     * libyuv conversion. Takes effect on the next start, hardware encoder on API 23+ only.
+     */
+    public void setSurfaceInputEnabled(boolean enabled) {
+        surfaceInputEnabled = enabled;
+    }
+
+    private boolean isSurfaceInput() {
+        return surfaceInputEnabled && useAsyncCodec && !useSoftEncoder;
+    }
+
+    @Nullable
+    @Override
+    public Surface getInputSurface() {
+        return mInputSurface;
+    }
+
+    @Override
+    public long onSurfaceFrame() {
+        if (mPausetime > 0 || mInputSurface == null) {
+            return -1;
+        }
+
+        adaptBitrate();
+
+        // same back-pressure as the RGBA path, a skipped frame is simply not drawn.
+        AtomicInteger videoFrameCacheNumber = flvMuxer.getVideoFrameCacheNumber();
+        if (videoFrameCacheNumber != null && videoFrameCacheNumber.get() < VGOP) {
+            if (networkWeakTriggered) {
+                networkWeakTriggered = false;
+                mHandler.notifyNetworkResume();
+            }
+            return (System.nanoTime() / 1000 - mPresentTimeUs) * 1000;
+        } else {
+            mHandler.notifyNetworkWeak();
+            networkWeakTriggered = true;
+            return -1;
+        }
+    }
+
+    /**
+     * let the GL renderer convert the frames to the codec color format before reading them back,
+     * instead of reading RGBA frames and converting them with libyuv. Hardware encoder only.
+     */
+    public void setGpuYuvConversionEnabled(boolean enabled) {
+        gpuYuvEnabled = enabled;
+    }
+
+    @Override
+    public int getYuvLayout() {
+        if (!gpuYuvEnabled || useSoftEncoder || vencoder == null) {
+            return YuvConversion.NONE;
+        }
+        switch (mVideoColorFormat) {
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar:
+                return YuvConversion.I420;
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar:
+                return YuvConversion.NV12;
+            default:
+                return YuvConversion.NONE;
+        }
+    }
+
+    @Override
+    public int getYuvWidth() {
+        return vEncWidth;
+    }
+
+    @Override
+    public int getYuvHeight() {
+        return vEncHeight;
+    }
+
+    @Override
+    public int getYuvRotation() {
+        return mReadbackRotation;
+    }
+
+    @Override
+    public boolean isYuvFlipped() {
+        return mReadbackFlip;
+    }
+
+    private void releaseInputSurface() {
+        Surface surface = mInputSurface;
+        mInputSurface = null;
+        if (surface != null) {
+            surface.release();
+        }
+    }
+
     public boolean canHardEncode() {
         return vencoder != null;
     }
@@ -281,6 +545,35 @@ public class SrsEncoder {
         x264Preset = "superfast";
     }
 
+    /**
+     * tune the x264 soft encoder, applied the next time it opens.
+     */
+    public void setSoftEncoderConfig(ShopLiveSoftEncoderConfig config) {
+        softEncoderConfig = config;
+    }
+
+    private void applySoftEncoderConfig() {
+        ShopLiveSoftEncoderConfig config = softEncoderConfig;
+        boolean crf = config.getRateControl() == ShopLiveSoftEncoderConfig.RATE_CONTROL_CRF;
+        setSoftEncoderConfig(config.getThreads(), config.isSlicedThreads(), config.getLookahead(),
+                config.getBFrames(), config.isZeroLatency(), config.isIntraRefresh(), crf ? config.getCrf() : 0,
+                config.getVbvMaxRateFactor(), config.getVbvBufferSeconds());
+    }
+
+    /**
+     * enable or disable the live bitrate and resolution adaptation to the uplink, enabled by default.
+     */
+    public void setAdaptiveBitrateEnabled(boolean enabled) {
+        adaptiveBitrateEnabled = enabled;
+    }
+
+    /**
+     * @return the video bitrate the encoder currently runs at.
+     */
+    public int getEncodeBitrate() {
+        return mEncodeBitrate;
+    }
+
     public int getPreviewWidth() {
         return vPrevWidth;
     }
@@ -314,54 +607,225 @@ public class SrsEncoder {
             }
         }
 
-        setEncoderResolution(vOutWidth, vOutHeight);
+        setConvertResolution(vOutWidth, vOutHeight);
+    }
+
+    // runs on the video thread, so the encoder is never reconfigured while it encodes a frame.
+    private void adaptBitrate() {
+        if (!adaptiveBitrateEnabled || bitrateController == null) {
+            return;
+        }
+        AtomicInteger videoFrameCacheNumber = flvMuxer.getVideoFrameCacheNumber();
+        if (videoFrameCacheNumber == null) {
+            return;
+        }
+
+        bitrateController.update(System.nanoTime() / 1000000, videoFrameCacheNumber.get(),
+                flvMuxer.getBytesSent(), flvMuxer.getBytesAcknowledged(), flvMuxer.getWriteStallMillis());
+        int bitrate = bitrateController.getTargetBitrate();
+        int level = bitrateController.getResolutionLevel();
+        // the mp4 track has a single sample description, keep the resolution while recording.
+        if (level != mResolutionLevel && !mp4Muxer.isRecording()) {
+            restartVideoEncoder(level, bitrate);
+        } else if (bitrate != mEncodeBitrate) {
+            applyEncoderBitrate(bitrate);
+        }
+    }
+
+    private void applyEncoderBitrate(int bitrate) {
+        if (useSoftEncoder) {
+            setEncoderBitrate(bitrate);
+        } else {
+            runOnCodecThread(() -> {
+                MediaCodec codec = vencoder;
+                if (codec != null) {
+                    Bundle params = new Bundle();
+                    params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+                    codec.setParameters(params);
+                }
+            });
+        }
+        mEncodeBitrate = bitrate;
+    }
+
+    // the codecs are only started, stopped and fed on the codec thread in async mode.
+    private void runOnCodecThread(Runnable r) {
+        Handler handler = codecHandler;
+        if (handler != null) {
+            handler.post(r);
+        } else {
+            r.run();
+        }
+    }
+
+    // level 0 is the configured resolution, each level scales it down by a quarter.
+    private void restartVideoEncoder(int level, int bitrate) {
+        int width = alignResolution(vOutWidth * (4 - level) / 4);
+        int height = alignResolution(vOutHeight * (4 - level) / 4);
+        Log.i(TAG, String.format("restart vencoder at %dx%d, %dbps", width, height, bitrate));
+
+        // the new encoder starts with an IDR and new SPS/PPS, so the flv muxer sends a new sequence header.
+        setConvertResolution(width, height);
+        setEncoderBitrate(bitrate);
+        if (useSoftEncoder) {
+            closeSoftEncoder();
+            applySoftEncoderConfig();
+            canSoftEncode = openSoftEncoder();
+        } else {
+            runOnCodecThread(() -> {
+                MediaCodec codec = vencoder;
+                vencoder = null;
+                if (codec != null) {
+                    try {
+                        codec.stop();
+                    } catch (IllegalStateException e) {
+                        e.printStackTrace();
+                    }
+                    codec.release();
+                }
+                releaseInputSurface();
+                // staged frames may have the previous size.
+                videoInput.clear();
+                if (!startVideoEncoder(width, height, bitrate)) {
+                    mHandler.notifyEncodeIllegalArgumentException(new IllegalArgumentException("vencoder restart failure"));
+                }
+            });
+        }
+        mEncodeBitrate = bitrate;
+        mResolutionLevel = level;
+    }
+
+    private static int alignResolution(int size) {
+        return (size + 8) & ~15;
+    }
+
+    // the native side scales the converted frames to this size.
+    private void setConvertResolution(int width, int height) {
+        setEncoderResolution(width, height);
+    }
+
+    // The next video input to convert a frame into without any allocation: a codec input buffer
+    // in the synchronous mode, a pooled direct staging buffer in the async mode.
+    @Nullable
+    private ByteBuffer beginVideoInput() {
+        if (useAsyncCodec) {
+            pendingVideoSlot = videoInput.obtain(vInputStride * vInputSliceHeight * 3 / 2);
+            return pendingVideoSlot == null ? null : pendingVideoSlot.direct;
+        }
+
+        MediaCodec codec = vencoder;
+        if (codec == null) {
+            return null;
+        }
+        int inBufferIndex = codec.dequeueInputBuffer(SYNC_INPUT_TIMEOUT_US);
+        if (inBufferIndex < 0) {
+            drainVideoOutput(codec);
+            return null;
+        }
+        pendingVideoCodec = codec;
+        pendingVideoIndex = inBufferIndex;
+        ByteBuffer bb = codec.getInputBuffer(inBufferIndex);
+        bb.clear();
+        return bb;
+    }
+
+    // size is negative when the conversion failed, the input is then given back empty.
+    private void endVideoInput(int size, long pts) {
+        if (useAsyncCodec) {
+            CodecInputQueue.Slot slot = pendingVideoSlot;
+            pendingVideoSlot = null;
+            if (size < 0) {
+                videoInput.discard(slot);
+                return;
+            }
+            videoInput.commit(slot, size, pts);
+            Handler handler = codecHandler;
+            if (handler != null) {
+                handler.post(feedVideo);
+            }
+            return;
+        }
+
+        MediaCodec codec = pendingVideoCodec;
+        pendingVideoCodec = null;
+        codec.queueInputBuffer(pendingVideoIndex, 0, Math.max(size, 0), pts, 0);
+        drainVideoOutput(codec);
     }
 
-    private void onProcessedYuvFrame(byte[] yuvFrame, long pts) {
-        ByteBuffer[] inBuffers = vencoder.getInputBuffers();
-        ByteBuffer[] outBuffers = vencoder.getOutputBuffers();
+    private void onProcessedYuvFrame(byte[] yuvFrame, int size, long pts) {
+        if (useAsyncCodec) {
+            videoInput.stage(yuvFrame, size, pts);
+            Handler handler = codecHandler;
+            if (handler != null) {
+                handler.post(feedVideo);
+            }
+            return;
+        }
 
-        int inBufferIndex = vencoder.dequeueInputBuffer(-1);
+        MediaCodec codec = vencoder;
+        if (codec == null) {
+            return;
+        }
+
+        int inBufferIndex = codec.dequeueInputBuffer(SYNC_INPUT_TIMEOUT_US);
         if (inBufferIndex >= 0) {
-            ByteBuffer bb = inBuffers[inBufferIndex];
+            ByteBuffer bb = codec.getInputBuffer(inBufferIndex);
             bb.clear();
-            bb.put(yuvFrame, 0, yuvFrame.length);
-            vencoder.queueInputBuffer(inBufferIndex, 0, yuvFrame.length, pts, 0);
+            bb.put(yuvFrame, 0, size);
+            codec.queueInputBuffer(inBufferIndex, 0, size, pts, 0);
         }
+        drainVideoOutput(codec);
+    }
 
+    private void drainVideoOutput(MediaCodec codec) {
         for (; ; ) {
-            MediaCodec.BufferInfo vebi = new MediaCodec.BufferInfo();
-            int outBufferIndex = vencoder.dequeueOutputBuffer(vebi, 0);
+            int outBufferIndex = codec.dequeueOutputBuffer(vebi, 0);
             if (outBufferIndex >= 0) {
-                ByteBuffer bb = outBuffers[outBufferIndex];
-                onEncodedAnnexbFrame(bb, vebi);
-                vencoder.releaseOutputBuffer(outBufferIndex, false);
+                onEncodedAnnexbFrame(codec.getOutputBuffer(outBufferIndex), vebi);
+                codec.releaseOutputBuffer(outBufferIndex, false);
             } else {
                 break;
             }
         }
     }
 
-    private void onSoftEncodedData(byte[] es, long pts, boolean isKeyFrame) {
-        ByteBuffer bb = ByteBuffer.wrap(es);
-        MediaCodec.BufferInfo vebi = new MediaCodec.BufferInfo();
-        vebi.offset = 0;
-        vebi.size = es.length;
-        vebi.presentationTimeUs = pts;
-        vebi.flags = isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
-        onEncodedAnnexbFrame(bb, vebi);
+    // codec thread, async mode only.
+    private void feedCodec(MediaCodec codec, CodecInputQueue input) {
+        if (codec == null) {
+            return;
+        }
+        try {
+            input.feed(codec);
+        } catch (IllegalStateException e) {
+            // the codec is being stopped.
+            Log.w(TAG, "feed codec failed: " + e.getMessage());
+        }
     }
 
-    // when got encoded h264 es stream.
+    // when got encoded h264 es stream, MediaCodec is never asked for B-frames so it decodes at pts.
     private void onEncodedAnnexbFrame(ByteBuffer es, MediaCodec.BufferInfo bi) {
-        mp4Muxer.writeSampleData(videoMp4Track, es.duplicate(), bi);
-        flvMuxer.writeSampleData(videoFlvTrack, es, bi);
+        onEncodedAnnexbFrame(es, bi, bi.presentationTimeUs);
+    }
+
+    private void onEncodedAnnexbFrame(ByteBuffer es, MediaCodec.BufferInfo bi, long dtsUs) {
+        ShopLiveEncodedFramePool.Frame frame = videoFramePool.obtain(es, bi, dtsUs);
+        try {
+            mp4Muxer.writeSampleData(videoMp4Track, frame);
+            flvMuxer.writeSampleData(videoFlvTrack, frame);
+        } finally {
+            frame.release();
+        }
     }
 
     // when got encoded aac raw stream.
     private void onEncodedAacFrame(ByteBuffer es, MediaCodec.BufferInfo bi) {
-        mp4Muxer.writeSampleData(audioMp4Track, es.duplicate(), bi);
-        flvMuxer.writeSampleData(audioFlvTrack, es, bi);
+        ShopLiveEncodedFramePool.Frame frame = audioFramePool.obtain(es, bi);
+        try {
+            mp4Muxer.writeSampleData(audioMp4Track, frame);
+            flvMuxer.writeSampleData(audioFlvTrack, frame);
+        } finally {
+            frame.release();
+        }
     }
 
     public void onGetPcmFrame(byte[] data, int size) {
@@ -370,32 +834,38 @@ public class SrsEncoder {
             return;
         }        
         
-        // Check video frame cache number to judge the networking situation.
-        // Just cache GOP / FPS seconds data according to latency.
-        AtomicInteger videoFrameCacheNumber = flvMuxer.getVideoFrameCacheNumber();
-        if (videoFrameCacheNumber != null && videoFrameCacheNumber.get() < VGOP / 2) {
-            ByteBuffer[] inBuffers = aencoder.getInputBuffers();
-            ByteBuffer[] outBuffers = aencoder.getOutputBuffers();
-
-            int inBufferIndex = aencoder.dequeueInputBuffer(-1);
-            if (inBufferIndex >= 0) {
-                ByteBuffer bb = inBuffers[inBufferIndex];
-                bb.clear();
-                bb.put(data, 0, size);
-                long pts = System.nanoTime() / 1000 - mPresentTimeUs;
-                aencoder.queueInputBuffer(inBufferIndex, 0, size, pts, 0);
-            }
-
-            for (; ; ) {
-                MediaCodec.BufferInfo aebi = new MediaCodec.BufferInfo();
-                int outBufferIndex = aencoder.dequeueOutputBuffer(aebi, 0);
-                if (outBufferIndex >= 0) {
-                    ByteBuffer bb = outBuffers[outBufferIndex];
-                    onEncodedAacFrame(bb, aebi);
-                    aencoder.releaseOutputBuffer(outBufferIndex, false);
-                } else {
-                    break;
-                }
+        // Audio is never dropped by the FLV muxer, so it is always encoded.
+        long pts = System.nanoTime() / 1000 - mPresentTimeUs;
+        if (useAsyncCodec) {
+            // the caller reuses its pcm buffer, so it is copied into the staging slot.
+            audioInput.stage(data, size, pts);
+            Handler handler = codecHandler;
+            if (handler != null) {
+                handler.post(feedAudio);
+            }
+            return;
+        }
+
+        MediaCodec codec = aencoder;
+        if (codec == null) {
+            return;
+        }
+
+        int inBufferIndex = codec.dequeueInputBuffer(SYNC_INPUT_TIMEOUT_US);
+        if (inBufferIndex >= 0) {
+            ByteBuffer bb = codec.getInputBuffer(inBufferIndex);
+            bb.clear();
+            bb.put(data, 0, size);
+            codec.queueInputBuffer(inBufferIndex, 0, size, pts, 0);
+        }
+
+        for (; ; ) {
+            int outBufferIndex = codec.dequeueOutputBuffer(aebi, 0);
+            if (outBufferIndex >= 0) {
+                onEncodedAacFrame(codec.getOutputBuffer(outBufferIndex), aebi);
+                codec.releaseOutputBuffer(outBufferIndex, false);
+            } else {
+                break;
             }
         }
     }
@@ -406,19 +876,23 @@ public class SrsEncoder {
             return;
         }                
         
-        // Check video frame cache number to judge the networking situation.
-        // Just cache GOP / FPS seconds data according to latency.
+        adaptBitrate();
+
+        // The FLV muxer drops disposable frames and whole GOPs under congestion,
+        // this only stops feeding the encoder when a full GOP is already queued.
         AtomicInteger videoFrameCacheNumber = flvMuxer.getVideoFrameCacheNumber();
-        if (videoFrameCacheNumber != null && videoFrameCacheNumber.get() < VGOP / 2) {
+        if (videoFrameCacheNumber != null && videoFrameCacheNumber.get() < VGOP) {
             long pts = System.nanoTime() / 1000 - mPresentTimeUs;
             if (useSoftEncoder) {
                 swRgbaFrame(data, width, height, pts);
             } else {
-                byte[] processedData = hwRgbaFrame(data, width, height);
-                if (processedData != null) {
-                    onProcessedYuvFrame(processedData, pts);
-                } else {
-                    mHandler.notifyEncodeIllegalArgumentException(new IllegalArgumentException("libyuv failure"));
+                ByteBuffer input = beginVideoInput();
+                if (input != null) {
+                    int size = hwRgbaFrame(data, width, height, input);
+                    endVideoInput(size, pts);
+                    if (size < 0) {
+                        mHandler.notifyEncodeIllegalArgumentException(new IllegalArgumentException("libyuv failure"));
+                    }
                 }
             }
 
@@ -432,21 +906,52 @@ public class SrsEncoder {
         }
     }
 
+    public void onGetYuvFrame(byte[] data, int width, int height) {
+        if (mPausetime > 0) {
+            return;
+        }
+        // converted for the previous encoder, before a restart.
+        if (width != vEncWidth || height != vEncHeight) {
+            return;
+        }
+
+        adaptBitrate();
+
+        AtomicInteger videoFrameCacheNumber = flvMuxer.getVideoFrameCacheNumber();
+        if (videoFrameCacheNumber != null && videoFrameCacheNumber.get() < VGOP) {
+            long pts = System.nanoTime() / 1000 - mPresentTimeUs;
+            // the frame is already in the codec color format, only copied into the codec.
+            onProcessedYuvFrame(data, YuvConversion.frameSize(width, height), pts);
+
+            if (networkWeakTriggered) {
+                networkWeakTriggered = false;
+                mHandler.notifyNetworkResume();
+            }
+        } else {
+            mHandler.notifyNetworkWeak();
+            networkWeakTriggered = true;
+        }
+    }
+
     public void onGetYuvNV21Frame(byte[] data, int width, int height, Rect boundingBox) {
-        // Check video frame cache number to judge the networking situation.
-        // Just cache GOP / FPS seconds data according to latency.
+        adaptBitrate();
+
+        // The FLV muxer drops disposable frames and whole GOPs under congestion,
+        // this only stops feeding the encoder when a full GOP is already queued.
         AtomicInteger videoFrameCacheNumber = flvMuxer.getVideoFrameCacheNumber();
-        if (videoFrameCacheNumber != null && videoFrameCacheNumber.get() < VGOP / 2) {
+        if (videoFrameCacheNumber != null && videoFrameCacheNumber.get() < VGOP) {
             long pts = System.nanoTime() / 1000 - mPresentTimeUs;
             if (useSoftEncoder) {
                 throw new UnsupportedOperationException("Not implemented");
                 //swRgbaFrame(data, width, height, pts);
             } else {
-                byte[] processedData = hwYUVNV21FrameScaled(data, width, height, boundingBox);
-                if (processedData != null) {
-                    onProcessedYuvFrame(processedData, pts);
-                } else {
-                    mHandler.notifyEncodeIllegalArgumentException(new IllegalArgumentException("libyuv failure"));
+                ByteBuffer input = beginVideoInput();
+                if (input != null) {
+                    int size = hwYUVNV21FrameScaled(data, width, height, boundingBox, input);
+                    endVideoInput(size, pts);
+                    if (size < 0) {
+                        mHandler.notifyEncodeIllegalArgumentException(new IllegalArgumentException("libyuv failure"));
+                    }
                 }
             }
 
@@ -461,20 +966,24 @@ public class SrsEncoder {
     }
 
     public void onGetArgbFrame(int[] data, int width, int height, Rect boundingBox) {
-        // Check video frame cache number to judge the networking situation.
-        // Just cache GOP / FPS seconds data according to latency.
+        adaptBitrate();
+
+        // The FLV muxer drops disposable frames and whole GOPs under congestion,
+        // this only stops feeding the encoder when a full GOP is already queued.
         AtomicInteger videoFrameCacheNumber = flvMuxer.getVideoFrameCacheNumber();
-        if (videoFrameCacheNumber != null && videoFrameCacheNumber.get() < VGOP / 2) {
+        if (videoFrameCacheNumber != null && videoFrameCacheNumber.get() < VGOP) {
             long pts = System.nanoTime() / 1000 - mPresentTimeUs;
             if (useSoftEncoder) {
                 throw new UnsupportedOperationException("Not implemented");
                 //swArgbFrame(data, width, height, pts);
             } else {
-                byte[] processedData = hwArgbFrameScaled(data, width, height, boundingBox);
-                if (processedData != null) {
-                    onProcessedYuvFrame(processedData, pts);
-                } else {
-                    mHandler.notifyEncodeIllegalArgumentException(new IllegalArgumentException("libyuv failure"));
+                ByteBuffer input = beginVideoInput();
+                if (input != null) {
+                    int size = hwArgbFrameScaled(data, width, height, boundingBox, input);
+                    endVideoInput(size, pts);
+                    if (size < 0) {
+                        mHandler.notifyEncodeIllegalArgumentException(new IllegalArgumentException("libyuv failure"));
+                    }
                 }
             }
 
@@ -489,20 +998,24 @@ public class SrsEncoder {
     }
 
     public void onGetArgbFrame(int[] data, int width, int height) {
-        // Check video frame cache number to judge the networking situation.
-        // Just cache GOP / FPS seconds data according to latency.
+        adaptBitrate();
+
+        // The FLV muxer drops disposable frames and whole GOPs under congestion,
+        // this only stops feeding the encoder when a full GOP is already queued.
         AtomicInteger videoFrameCacheNumber = flvMuxer.getVideoFrameCacheNumber();
-        if (videoFrameCacheNumber != null && videoFrameCacheNumber.get() < VGOP / 2) {
+        if (videoFrameCacheNumber != null && videoFrameCacheNumber.get() < VGOP) {
             long pts = System.nanoTime() / 1000 - mPresentTimeUs;
             if (useSoftEncoder) {
                 throw new UnsupportedOperationException("Not implemented");
                 //swArgbFrame(data, width, height, pts);
             } else {
-                byte[] processedData = hwArgbFrame(data, width, height);
-                if (processedData != null) {
-                    onProcessedYuvFrame(processedData, pts);
-                } else {
-                    mHandler.notifyEncodeIllegalArgumentException(new IllegalArgumentException("libyuv failure"));
+                ByteBuffer input = beginVideoInput();
+                if (input != null) {
+                    int size = hwArgbFrame(data, width, height, input);
+                    endVideoInput(size, pts);
+                    if (size < 0) {
+                        mHandler.notifyEncodeIllegalArgumentException(new IllegalArgumentException("libyuv failure"));
+                    }
                 }
             }
 
@@ -516,52 +1029,82 @@ public class SrsEncoder {
         }
     }
 
-    private byte[] hwRgbaFrame(byte[] data, int width, int height) {
+    private int hwRgbaFrame(byte[] data, int width, int height, ByteBuffer dst) {
         switch (mVideoColorFormat) {
             case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar:
-                return RGBAToI420(data, width, height, true, 180);
+                return RGBAToI420Direct(data, width, height, width * 4, mReadbackFlip, mReadbackRotation, dst, vInputStride, vInputSliceHeight);
             case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar:
-                return RGBAToNV12(data, width, height, true, 180);
+                return RGBAToNV12Direct(data, width, height, width * 4, mReadbackFlip, mReadbackRotation, dst, vInputStride, vInputSliceHeight);
             default:
                 throw new IllegalStateException("Unsupported color format!");
         }
     }
 
-    private byte[] hwYUVNV21FrameScaled(byte[] data, int width, int height, Rect boundingBox) {
+    private int hwYUVNV21FrameScaled(byte[] data, int width, int height, Rect boundingBox, ByteBuffer dst) {
         switch (mVideoColorFormat) {
             case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar:
-                return NV21ToI420Scaled(data, width, height, true, 180, boundingBox.left, boundingBox.top, boundingBox.width(), boundingBox.height());
+                return NV21ToI420ScaledDirect(data, width, height, width, true, 180, boundingBox.left, boundingBox.top, boundingBox.width(), boundingBox.height(), dst, vInputStride, vInputSliceHeight);
             case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar:
-                return NV21ToNV12Scaled(data, width, height, true, 180, boundingBox.left, boundingBox.top, boundingBox.width(), boundingBox.height());
+                return NV21ToNV12ScaledDirect(data, width, height, width, true, 180, boundingBox.left, boundingBox.top, boundingBox.width(), boundingBox.height(), dst, vInputStride, vInputSliceHeight);
             default:
                 throw new IllegalStateException("Unsupported color format!");
         }
     }
 
-    private byte[] hwArgbFrameScaled(int[] data, int width, int height, Rect boundingBox) {
+    private int hwArgbFrameScaled(int[] data, int width, int height, Rect boundingBox, ByteBuffer dst) {
         switch (mVideoColorFormat) {
             case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar:
-                return ARGBToI420Scaled(data, width, height, false, 0, boundingBox.left, boundingBox.top, boundingBox.width(), boundingBox.height());
+                return ARGBToI420ScaledDirect(data, width, height, width * 4, false, 0, boundingBox.left, boundingBox.top, boundingBox.width(), boundingBox.height(), dst, vInputStride, vInputSliceHeight);
             case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar:
-                return ARGBToNV12Scaled(data, width, height, false, 0, boundingBox.left, boundingBox.top, boundingBox.width(), boundingBox.height());
+                return ARGBToNV12ScaledDirect(data, width, height, width * 4, false, 0, boundingBox.left, boundingBox.top, boundingBox.width(), boundingBox.height(), dst, vInputStride, vInputSliceHeight);
             default:
                 throw new IllegalStateException("Unsupported color format!");
         }
     }
 
-    private byte[] hwArgbFrame(int[] data, int inputWidth, int inputHeight) {
+    private int hwArgbFrame(int[] data, int inputWidth, int inputHeight, ByteBuffer dst) {
         switch (mVideoColorFormat) {
             case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar:
-                return ARGBToI420(data, inputWidth, inputHeight, false, 0);
+                return ARGBToI420Direct(data, inputWidth, inputHeight, inputWidth * 4, false, 0, dst, vInputStride, vInputSliceHeight);
             case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar:
-                return ARGBToNV12(data, inputWidth, inputHeight, false, 0);
+                return ARGBToNV12Direct(data, inputWidth, inputHeight, inputWidth * 4, false, 0, dst, vInputStride, vInputSliceHeight);
             default:
                 throw new IllegalStateException("Unsupported color format!");
         }
     }
 
     private void swRgbaFrame(byte[] data, int width, int height, long pts) {
-        RGBASoftEncode(data, width, height, true, 180, pts);
+        if (mNativeContext == 0) {
+            return;
+        }
+        int count = RGBASoftEncodeDirect(data, width, height, mReadbackFlip, mReadbackRotation, pts, softEncodeOutput);
+        if (count < 0) {
+            mHandler.notifyEncodeIllegalArgumentException(new IllegalArgumentException("x264 failure"));
+            return;
+        }
+
+        ByteBuffer out = softEncodeOutput;
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            int recordSize = out.getInt(position);
+            int flags = out.getInt(position + 4);
+            long recordPts = out.getLong(position + 8);
+            long recordDts = out.getLong(position + 16);
+            int size = out.getInt(position + 24);
+            int nalCount = out.getInt(position + 28);
+            int payload = position + SOFT_RECORD_HEADER + nalCount * 4;
+
+            int bufferFlags = 0;
+            if ((flags & SOFT_FLAG_KEY_FRAME) != 0) {
+                bufferFlags |= MediaCodec.BUFFER_FLAG_KEY_FRAME;
+            }
+            if ((flags & SOFT_FLAG_CODEC_CONFIG) != 0) {
+                bufferFlags |= MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+            }
+            softEncodeInfo.set(payload, size, recordPts, bufferFlags);
+            onEncodedAnnexbFrame(out, softEncodeInfo, recordDts);
+            position += recordSize;
+        }
     }
 
     @SuppressLint("MissingPermission")
@@ -650,20 +1193,219 @@ public class SrsEncoder {
         return matchedColorFormat;
     }
 
+    // Receives the codec events on the codec thread in async mode.
+    private final class CodecCallback extends MediaCodec.Callback {
+        private final boolean isVideo;
+
+        CodecCallback(boolean isVideo) {
+            this.isVideo = isVideo;
+        }
+
+        private boolean isCurrent(MediaCodec codec) {
+            return codec == (isVideo ? vencoder : aencoder);
+        }
+
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            if (isCurrent(codec)) {
+                CodecInputQueue input = isVideo ? videoInput : audioInput;
+                input.addInputBuffer(index);
+                feedCodec(codec, input);
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+            if (!isCurrent(codec)) {
+                return;
+            }
+            try {
+                ByteBuffer bb = codec.getOutputBuffer(index);
+                if (isVideo) {
+                    onEncodedAnnexbFrame(bb, info);
+                } else {
+                    onEncodedAacFrame(bb, info);
+                }
+                codec.releaseOutputBuffer(index, false);
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "drain codec failed: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            Log.e(TAG, String.format("%s codec error: %s", isVideo ? "video" : "audio", e.getMessage()));
+            // a codec already replaced or stopped is of no concern, nor an error the codec retries itself.
+            if (codec != (isVideo ? vencoder : aencoder) || e.isTransient()) {
+                return;
+            }
+            mHandler.notifyEncodeIllegalArgumentException(new IllegalArgumentException(
+                    String.format("%s codec failure", isVideo ? "video" : "audio"), e));
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            Log.i(TAG, String.format("%s codec output format: %s", isVideo ? "video" : "audio", format));
+        }
+    }
+
+    // Small staging queue between a producer thread and the codec thread. When the codec falls
+    // behind the oldest staged input is dropped, the producer never waits.
+    private static final class CodecInputQueue {
+        private static final class Slot {
+            byte[] data;
+            // a frame converted in place, the buffer is kept with the slot.
+            ByteBuffer direct;
+            boolean isDirect;
+            int size;
+            long pts;
+        }
+
+        private final ArrayBlockingQueue<Slot> staged;
+        private final ArrayBlockingQueue<Slot> free;
+        // codec thread only.
+        private final ArrayDeque<Integer> inputBuffers = new ArrayDeque<>();
+        private final AtomicInteger dropped = new AtomicInteger(0);
+
+        CodecInputQueue(int capacity) {
+            staged = new ArrayBlockingQueue<>(capacity);
+            free = new ArrayBlockingQueue<>(capacity);
+            for (int i = 0; i < capacity; i++) {
+                free.offer(new Slot());
+            }
+        }
+
+        // producer thread. the frame is copied, the caller reuses its buffer.
+        void stage(byte[] data, int size, long pts) {
+            Slot slot = takeSlot();
+            if (slot == null) {
+                return;
+            }
+            slot.isDirect = false;
+            if (slot.data == null || slot.data.length < size) {
+                slot.data = new byte[size];
+            }
+            System.arraycopy(data, 0, slot.data, 0, size);
+            slot.size = size;
+            slot.pts = pts;
+            staged.offer(slot);
+        }
+
+        // producer thread. a slot with a direct buffer of at least size bytes to convert a frame
+        // into, handed back with commit or discard.
+        @Nullable
+        Slot obtain(int size) {
+            Slot slot = takeSlot();
+            if (slot == null) {
+                return null;
+            }
+            if (slot.direct == null || slot.direct.capacity() < size) {
+                slot.direct = ByteBuffer.allocateDirect(size);
+            }
+            slot.direct.clear();
+            slot.isDirect = true;
+            return slot;
+        }
+
+        void commit(Slot slot, int size, long pts) {
+            slot.size = size;
+            slot.pts = pts;
+            staged.offer(slot);
+        }
+
+        void discard(Slot slot) {
+            recycle(slot);
+        }
+
+        @Nullable
+        private Slot takeSlot() {
+            Slot slot = free.poll();
+            if (slot == null) {
+                slot = staged.poll();
+                if (slot == null) {
+                    // every slot is being fed right now.
+                    dropped.incrementAndGet();
+                    return null;
+                }
+                if (dropped.incrementAndGet() % 100 == 1) {
+                    Log.w(TAG, String.format("codec behind, %d staged inputs dropped", dropped.get()));
+                }
+            }
+            return slot;
+        }
+
+        // codec thread.
+        void addInputBuffer(int index) {
+            inputBuffers.add(index);
+        }
+
+        // codec thread, queue staged inputs into the available input buffers.
+        void feed(MediaCodec codec) {
+            while (!inputBuffers.isEmpty()) {
+                Slot slot = staged.poll();
+                if (slot == null) {
+                    return;
+                }
+                int index = inputBuffers.poll();
+                ByteBuffer bb = codec.getInputBuffer(index);
+                if (bb == null || bb.capacity() < slot.size) {
+                    // a frame staged for another resolution, give the buffer back empty.
+                    codec.queueInputBuffer(index, 0, 0, slot.pts, 0);
+                } else {
+                    bb.clear();
+                    if (slot.isDirect) {
+                        slot.direct.limit(slot.size);
+                        slot.direct.position(0);
+                        bb.put(slot.direct);
+                    } else {
+                        bb.put(slot.data, 0, slot.size);
+                    }
+                    codec.queueInputBuffer(index, 0, slot.size, slot.pts, 0);
+                }
+                recycle(slot);
+            }
+        }
+
+        private void recycle(Slot slot) {
+            free.offer(slot);
+        }
+
+        // codec thread.
+        void clear() {
+            inputBuffers.clear();
+            Slot slot;
+            while ((slot = staged.poll()) != null) {
+                recycle(slot);
+            }
+        }
+    }
+
+    private native long createNativeContext();
+    private native void releaseNativeContext(long context);
     private native void setEncoderResolution(int outWidth, int outHeight);
     private native void setEncoderFps(int fps);
     private native void setEncoderGop(int gop);
     private native void setEncoderBitrate(int bitrate);
     private native void setEncoderPreset(String preset);
-    private native byte[] RGBAToI420(byte[] frame, int width, int height, boolean flip, int rotate);
-    private native byte[] RGBAToNV12(byte[] frame, int width, int height, boolean flip, int rotate);
-    private native byte[] ARGBToI420Scaled(int[] frame, int width, int height, boolean flip, int rotate, int crop_x, int crop_y,int crop_width, int crop_height);
-    private native byte[] ARGBToNV12Scaled(int[] frame, int width, int height, boolean flip, int rotate, int crop_x, int crop_y,int crop_width, int crop_height);
-    private native byte[] ARGBToI420(int[] frame, int width, int height, boolean flip, int rotate);
-    private native byte[] ARGBToNV12(int[] frame, int width, int height, boolean flip, int rotate);
-    private native byte[] NV21ToNV12Scaled(byte[] frame, int width, int height, boolean flip, int rotate, int crop_x, int crop_y,int crop_width, int crop_height);
-    private native byte[] NV21ToI420Scaled(byte[] frame, int width, int height, boolean flip, int rotate, int crop_x, int crop_y,int crop_width, int crop_height);
-    private native int RGBASoftEncode(byte[] frame, int width, int height, boolean flip, int rotate, long pts);
+    // crf 0 selects ABR.
+    private native void setSoftEncoderConfig(int threads, boolean slicedThreads, int lookahead, int bFrames, boolean zeroLatency, boolean intraRefresh, float crf, float vbvMaxRateFactor, float vbvBufferSeconds);
+    // Allocation-free conversions: the frame is read in place and converted into a direct buffer,
+    // e.g. a codec input buffer, of the given stride and slice height. Strides are in bytes.
+    // They return the size of the converted frame, or a negative value on failure.
+    private native int RGBAToI420Direct(byte[] frame, int width, int height, int stride, boolean flip, int rotate, ByteBuffer dst, int dstStride, int dstSliceHeight);
+    private native int RGBAToI420Direct(ByteBuffer frame, int width, int height, int stride, boolean flip, int rotate, ByteBuffer dst, int dstStride, int dstSliceHeight);
+    private native int RGBAToNV12Direct(byte[] frame, int width, int height, int stride, boolean flip, int rotate, ByteBuffer dst, int dstStride, int dstSliceHeight);
+    private native int RGBAToNV12Direct(ByteBuffer frame, int width, int height, int stride, boolean flip, int rotate, ByteBuffer dst, int dstStride, int dstSliceHeight);
+    private native int ARGBToI420Direct(int[] frame, int width, int height, int stride, boolean flip, int rotate, ByteBuffer dst, int dstStride, int dstSliceHeight);
+    private native int ARGBToNV12Direct(int[] frame, int width, int height, int stride, boolean flip, int rotate, ByteBuffer dst, int dstStride, int dstSliceHeight);
+    private native int ARGBToI420ScaledDirect(int[] frame, int width, int height, int stride, boolean flip, int rotate, int crop_x, int crop_y, int crop_width, int crop_height, ByteBuffer dst, int dstStride, int dstSliceHeight);
+    private native int ARGBToNV12ScaledDirect(int[] frame, int width, int height, int stride, boolean flip, int rotate, int crop_x, int crop_y, int crop_width, int crop_height, ByteBuffer dst, int dstStride, int dstSliceHeight);
+    private native int NV21ToI420ScaledDirect(byte[] frame, int width, int height, int stride, boolean flip, int rotate, int crop_x, int crop_y, int crop_width, int crop_height, ByteBuffer dst, int dstStride, int dstSliceHeight);
+    private native int NV21ToI420ScaledDirect(ByteBuffer frame, int width, int height, int stride, boolean flip, int rotate, int crop_x, int crop_y, int crop_width, int crop_height, ByteBuffer dst, int dstStride, int dstSliceHeight);
+    private native int NV21ToNV12ScaledDirect(byte[] frame, int width, int height, int stride, boolean flip, int rotate, int crop_x, int crop_y, int crop_width, int crop_height, ByteBuffer dst, int dstStride, int dstSliceHeight);
+    private native int NV21ToNV12ScaledDirect(ByteBuffer frame, int width, int height, int stride, boolean flip, int rotate, int crop_x, int crop_y, int crop_width, int crop_height, ByteBuffer dst, int dstStride, int dstSliceHeight);
+    // Encodes into out and returns the number of access unit records written, or a negative value.
+    private native int RGBASoftEncodeDirect(byte[] frame, int width, int height, boolean flip, int rotate, long pts, ByteBuffer out);
     private native boolean openSoftEncoder();
     private native void closeSoftEncoder();
 
@@ -0,0 +1,72 @@
+#ifdef GL_FRAGMENT_PRECISION_HIGH
+precision highp float;
+#else
+precision mediump float;
+#endif
+
+// Packs a YUV 4:2:0 frame into an RGBA target a quarter of its width and one and a half times its
+// height: every texel holds four consecutive bytes, so the readback is the frame itself.
+// YuvConversion.convert is the Java reference of this shader.
+
+uniform sampler2D inputImageTexture;
+// normalized frame coordinates, y growing from the first row, to input texture coordinates.
+uniform mat3 transform;
+uniform vec2 frameSize;
+// 0 for I420, 1 for NV12.
+uniform int chromaLayout;
+
+const vec3 Y_COEFF = vec3(0.2578125, 0.50390625, 0.09765625);
+const vec3 U_COEFF = vec3(-0.1484375, -0.2890625, 0.4375);
+const vec3 V_COEFF = vec3(0.4375, -0.3671875, -0.0703125);
+const float Y_OFFSET = 16.0 / 255.0;
+const float C_OFFSET = 128.0 / 255.0;
+
+vec3 sampleRgb(vec2 pixel) {
+    vec3 uv = transform * vec3(pixel / frameSize, 1.0);
+    return texture2D(inputImageTexture, uv.xy).rgb;
+}
+
+float luma(float x, float y) {
+    return dot(sampleRgb(vec2(x + 0.5, y + 0.5)), Y_COEFF) + Y_OFFSET;
+}
+
+// the average of the 2x2 pixels under a chroma sample.
+vec3 chromaRgb(float cx, float cy) {
+    vec2 p = vec2(cx, cy) * 2.0;
+    return (sampleRgb(p + vec2(0.5, 0.5)) + sampleRgb(p + vec2(1.5, 0.5))
+            + sampleRgb(p + vec2(0.5, 1.5)) + sampleRgb(p + vec2(1.5, 1.5))) * 0.25;
+}
+
+void main() {
+    // the frame column of the first byte of this texel, and the frame row.
+    float x = floor(gl_FragCoord.x) * 4.0;
+    float row = floor(gl_FragCoord.y);
+    float width = frameSize.x;
+    float height = frameSize.y;
+
+    if (row < height) {
+        gl_FragColor = vec4(luma(x, row), luma(x + 1.0, row), luma(x + 2.0, row), luma(x + 3.0, row));
+    } else if (chromaLayout == 1) {
+        // one row of interleaved U and V per chroma row, two samples per texel.
+        float cy = row - height;
+        vec3 c0 = chromaRgb(x * 0.5, cy);
+        vec3 c1 = chromaRgb(x * 0.5 + 1.0, cy);
+        gl_FragColor = vec4(dot(c0, U_COEFF), dot(c0, V_COEFF), dot(c1, U_COEFF), dot(c1, V_COEFF)) + C_OFFSET;
+    } else {
+        // the U plane then the V plane, two chroma rows per row, four samples per texel.
+        float m = row - height;
+        vec3 coeff = U_COEFF;
+        if (m >= height * 0.25) {
+            m -= height * 0.25;
+            coeff = V_COEFF;
+        }
+        float cx = x;
+        float cy = m * 2.0;
+        if (cx >= width * 0.5) {
+            cx -= width * 0.5;
+            cy += 1.0;
+        }
+        gl_FragColor = vec4(dot(chromaRgb(cx, cy), coeff), dot(chromaRgb(cx + 1.0, cy), coeff),
+                dot(chromaRgb(cx + 2.0, cy), coeff), dot(chromaRgb(cx + 3.0, cy), coeff)) + C_OFFSET;
+    }
+}
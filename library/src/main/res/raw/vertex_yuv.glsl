@@ -0,0 +1,5 @@
+attribute vec4 position;
+
+void main() {
+    gl_Position = position;
+}
@@ -0,0 +1,172 @@
+package cloud.shoplive.studio;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ShopLiveBitrateControllerTest {
+
+    private static final int MIN_BITRATE = 500000;
+    private static final int MAX_BITRATE = 2000000;
+    private static final int HIGH_WATER = 12;
+    private static final int LOW_WATER = 3;
+
+    private final List<String> messages = new ArrayList<>();
+    private ShopLiveBitrateController controller;
+
+    // the simulated uplink counters, advanced one second per sample.
+    private long nowMs;
+    private long bytesSent;
+    private long bytesAcked;
+    private long stallMs;
+
+    @Before
+    public void setUp() {
+        ShopLiveBitrateController.Logger logger = new ShopLiveBitrateController.Logger() {
+            @Override
+            public void info(String message) {
+                messages.add(message);
+            }
+
+            @Override
+            public void warn(String message) {
+                messages.add(message);
+            }
+        };
+        controller = new ShopLiveBitrateController(MIN_BITRATE, MAX_BITRATE, HIGH_WATER, LOW_WATER, logger);
+        nowMs = 10000;
+        assertFalse(controller.update(nowMs, 0, 0, 0, 0));
+    }
+
+    private boolean sample(int queuedVideoFrames, long sentBytes, long ackedBytes, long stalledMs) {
+        nowMs += 1000;
+        bytesSent += sentBytes;
+        bytesAcked += ackedBytes;
+        stallMs += stalledMs;
+        return controller.update(nowMs, queuedVideoFrames, bytesSent, bytesAcked, stallMs);
+    }
+
+    private boolean congested() {
+        // the socket blocks most of the second while the server acknowledges 100kB.
+        return sample(0, 250000, 100000, 800);
+    }
+
+    private boolean clear() {
+        return sample(0, 250000, 250000, 0);
+    }
+
+    @Test
+    public void backsOffTowardsTheAcknowledgedThroughput() {
+        assertTrue(congested());
+        assertEquals(800000, controller.getThroughput(), 1);
+        // below the 0.75 back off, so the headroom under the throughput wins.
+        assertEquals(680000, controller.getTargetBitrate());
+        assertEquals(0, controller.getResolutionLevel());
+        assertEquals(1, messages.size());
+    }
+
+    @Test
+    public void measuresSentBytesWithoutAcknowledgements() {
+        assertTrue(sample(0, 100000, 0, 800));
+        assertEquals(800000, controller.getThroughput(), 1);
+        assertEquals(680000, controller.getTargetBitrate());
+    }
+
+    @Test
+    public void queuedFramesAloneMeanCongestion() {
+        assertTrue(sample(HIGH_WATER + 1, 250000, 250000, 0));
+        assertEquals(1500000, controller.getTargetBitrate());
+    }
+
+    @Test
+    public void ignoresSamplesWithinAnInterval() {
+        nowMs -= 500;
+        assertFalse(sample(HIGH_WATER + 1, 250000, 100000, 500));
+        assertEquals(MAX_BITRATE, controller.getTargetBitrate());
+    }
+
+    @Test
+    public void restartsMeasuringOnANewConnection() {
+        assertFalse(clear());
+        // the counters of the new connection start from zero.
+        bytesSent = 0;
+        bytesAcked = 0;
+        stallMs = 0;
+        assertFalse(sample(HIGH_WATER + 1, 1000, 0, 1000));
+        assertEquals(MAX_BITRATE, controller.getTargetBitrate());
+    }
+
+    @Test
+    public void holdsBeforeProbingUp() {
+        assertTrue(congested());
+        int backedOff = controller.getTargetBitrate();
+        for (int i = 0; i < 4; i++) {
+            assertFalse(clear());
+        }
+        // five clear intervals, and the hold after the back off is over.
+        assertTrue(clear());
+        assertEquals((int) (backedOff * 1.10), controller.getTargetBitrate());
+    }
+
+    @Test
+    public void mixedIntervalsHoldTheBitrate() {
+        assertTrue(congested());
+        int backedOff = controller.getTargetBitrate();
+        for (int i = 0; i < 20; i++) {
+            // neither congested nor clear: a few frames queued and some stalls.
+            assertFalse(sample(LOW_WATER + 1, 250000, 250000, 300));
+        }
+        assertEquals(backedOff, controller.getTargetBitrate());
+    }
+
+    @Test
+    public void stepsResolutionDownAtTheFloor() {
+        while (controller.getTargetBitrate() > MIN_BITRATE) {
+            assertTrue(congested());
+        }
+        // congested all along, so the first interval at the floor already steps down.
+        assertTrue(congested());
+        assertEquals(1, controller.getResolutionLevel());
+        assertEquals(MIN_BITRATE, controller.getTargetBitrate());
+        assertFalse(congested());
+        assertFalse(congested());
+        assertTrue(congested());
+        assertEquals(ShopLiveBitrateController.MAX_RESOLUTION_LEVEL, controller.getResolutionLevel());
+        assertFalse(congested());
+    }
+
+    @Test
+    public void stepsResolutionUpAtTheCurrentBitrate() {
+        while (controller.getResolutionLevel() == 0) {
+            congested();
+        }
+        // probe back up to the ceiling at the lower resolution.
+        while (controller.getTargetBitrate() < MAX_BITRATE) {
+            clear();
+        }
+        assertEquals(1, controller.getResolutionLevel());
+        for (int i = 0; i < 9; i++) {
+            assertFalse(clear());
+        }
+        assertTrue(clear());
+        assertEquals(0, controller.getResolutionLevel());
+        // the step up keeps the bitrate the uplink carried, rather than dropping to the floor.
+        assertEquals(MAX_BITRATE, controller.getTargetBitrate());
+    }
+
+    @Test
+    public void resetRestoresTheConfiguredBitrate() {
+        assertTrue(congested());
+        controller.reset();
+        assertEquals(MAX_BITRATE, controller.getTargetBitrate());
+        assertEquals(0, controller.getResolutionLevel());
+        // the next sample only starts measuring again.
+        assertFalse(sample(HIGH_WATER + 1, 250000, 100000, 800));
+    }
+}
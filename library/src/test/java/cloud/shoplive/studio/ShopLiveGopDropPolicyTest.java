@@ -0,0 +1,50 @@
+package cloud.shoplive.studio;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ShopLiveGopDropPolicyTest {
+
+    private static final int DISPOSABLE_THRESHOLD = 6;
+    private static final int GOP_THRESHOLD = 12;
+    private static final long MAX_BYTES_IN_FLIGHT = 1024 * 1024;
+
+    private final ShopLiveGopDropPolicy policy =
+            new ShopLiveGopDropPolicy(DISPOSABLE_THRESHOLD, GOP_THRESHOLD, MAX_BYTES_IN_FLIGHT);
+
+    @Test
+    public void keepsFramesOnAClearUplink() {
+        assertEquals(ShopLiveFlvDropPolicy.KEEP, policy.onVideoFrame(false, true, DISPOSABLE_THRESHOLD, 0));
+        assertEquals(ShopLiveFlvDropPolicy.KEEP, policy.onVideoFrame(false, false, 1, MAX_BYTES_IN_FLIGHT));
+    }
+
+    @Test
+    public void dropsDisposableFramesFirst() {
+        assertEquals(ShopLiveFlvDropPolicy.DROP_DISPOSABLE, policy.onVideoFrame(false, true, DISPOSABLE_THRESHOLD + 1, 0));
+        assertEquals(ShopLiveFlvDropPolicy.DROP_DISPOSABLE, policy.onVideoFrame(false, true, 0, MAX_BYTES_IN_FLIGHT + 1));
+        // a reference picture is kept until the GOP threshold.
+        assertEquals(ShopLiveFlvDropPolicy.KEEP, policy.onVideoFrame(false, false, GOP_THRESHOLD, MAX_BYTES_IN_FLIGHT + 1));
+    }
+
+    @Test
+    public void dropsTheGopWhenTheQueueKeepsGrowing() {
+        assertEquals(ShopLiveFlvDropPolicy.DROP_GOP, policy.onVideoFrame(false, false, GOP_THRESHOLD + 1, 0));
+        assertEquals(ShopLiveFlvDropPolicy.DROP_GOP, policy.onVideoFrame(false, false, 0, MAX_BYTES_IN_FLIGHT * 2 + 2));
+    }
+
+    @Test
+    public void alwaysKeepsKeyFrames() {
+        // dropping queued frames does not lower the bytes in flight, so this holds across key frames.
+        for (int i = 0; i < 10; i++) {
+            assertEquals(ShopLiveFlvDropPolicy.KEEP, policy.onVideoFrame(true, false, GOP_THRESHOLD * 4, MAX_BYTES_IN_FLIGHT * 3));
+            assertEquals(ShopLiveFlvDropPolicy.DROP_GOP, policy.onVideoFrame(false, false, GOP_THRESHOLD * 4, MAX_BYTES_IN_FLIGHT * 3));
+        }
+    }
+
+    @Test
+    public void ignoresBytesInFlightWithoutALimit() {
+        ShopLiveGopDropPolicy unlimited = new ShopLiveGopDropPolicy(DISPOSABLE_THRESHOLD, GOP_THRESHOLD);
+        assertEquals(ShopLiveFlvDropPolicy.KEEP, unlimited.onVideoFrame(false, true, 0, Long.MAX_VALUE / 2));
+    }
+}
@@ -0,0 +1,208 @@
+package com.github.faucamp.simplertmp.io;
+
+import com.github.faucamp.simplertmp.packets.Audio;
+import com.github.faucamp.simplertmp.packets.ContentData;
+import com.github.faucamp.simplertmp.packets.Video;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Serializes a synthetic 1080p FLV sequence through RtmpPacket.writeTo and counts what reaches the
+ * socket at the default and at the announced chunk size.
+ */
+public class RtmpChunkWriterTest {
+
+    private static final int SECONDS = 10;
+    // 1080p at 4.5 Mbps and 30 fps, a 100 kB key frame every 2 seconds.
+    private static final int FPS = 30;
+    private static final int GOP = 2 * FPS;
+    private static final int VIDEO_BITRATE = 4500000;
+    private static final int KEY_FRAME_SIZE = 100000;
+    private static final int INTER_FRAME_SIZE = (VIDEO_BITRATE / 8 * GOP / FPS - KEY_FRAME_SIZE) / (GOP - 1);
+    // AAC at 128 kbps, 1024 samples of 44.1 kHz per frame.
+    private static final int AUDIO_FPS = 43;
+    private static final int AUDIO_FRAME_SIZE = 128000 / 8 / AUDIO_FPS;
+    // basic header and type 0 header, what the first chunk of a fresh chunk stream takes.
+    private static final int FULL_HEADER_SIZE = 12;
+
+    private static final int SMALL_CHUNK_SIZE = RtmpSessionInfo.DEFAULT_CHUNK_SIZE;
+    private static final int LARGE_CHUNK_SIZE = 4096;
+    // sequences serialized to warm up, then to time each chunk size.
+    private static final int WARM_UP_RUNS = 500;
+    private static final int RUNS = 500;
+
+    private final byte[] keyFrame = frame(KEY_FRAME_SIZE, 0x17);
+    private final byte[] interFrame = frame(INTER_FRAME_SIZE, 0x27);
+    private final byte[] audioFrame = frame(AUDIO_FRAME_SIZE, 0xaf);
+
+    @Test
+    public void chunksAKeyFrameAtTheTxChunkSize() throws IOException {
+        CountingChannel small = new CountingChannel();
+        RtmpChunkWriter chunkWriter = new RtmpChunkWriter(small);
+        writeVideo(chunkWriter, SMALL_CHUNK_SIZE, new ChunkStreamInfo(), keyFrame, 0);
+        chunkWriter.flush();
+        // 782 chunks, the 781 after the first take a one byte type 3 header.
+        assertEquals(782, small.chunks());
+        assertEquals(KEY_FRAME_SIZE + FULL_HEADER_SIZE + 781, small.bytes);
+
+        CountingChannel large = new CountingChannel();
+        chunkWriter = new RtmpChunkWriter(large);
+        writeVideo(chunkWriter, LARGE_CHUNK_SIZE, new ChunkStreamInfo(), keyFrame, 0);
+        chunkWriter.flush();
+        assertEquals(25, large.chunks());
+        assertEquals(KEY_FRAME_SIZE + FULL_HEADER_SIZE + 24, large.bytes);
+    }
+
+    @Test
+    public void largeChunksCutTheHeadersOf1080p() throws IOException {
+        CountingChannel small = stream(SMALL_CHUNK_SIZE);
+        CountingChannel large = stream(LARGE_CHUNK_SIZE);
+
+        // every chunk after the first of a packet costs one byte, the first chunks are the same.
+        assertEquals(small.expectedChunks, small.chunks());
+        assertEquals(large.expectedChunks, large.chunks());
+        assertEquals(small.chunks() - large.chunks(), small.bytes - large.bytes);
+        assertEquals(large.payloadBytes, small.payloadBytes);
+        assertTrue(large.writes < small.writes);
+
+        long[] nanos = measureNanos();
+        report(SMALL_CHUNK_SIZE, small, nanos[0]);
+        report(LARGE_CHUNK_SIZE, large, nanos[1]);
+    }
+
+    private CountingChannel stream(int chunkSize) throws IOException {
+        CountingChannel channel = new CountingChannel();
+        RtmpChunkWriter chunkWriter = new RtmpChunkWriter(channel);
+        ChunkStreamInfo videoStream = new ChunkStreamInfo();
+        ChunkStreamInfo audioStream = new ChunkStreamInfo();
+        int audioFrames = 0;
+        for (int i = 0; i < SECONDS * FPS; i++) {
+            int dts = i * 1000 / FPS;
+            while (audioFrames * 1000 / AUDIO_FPS <= dts) {
+                write(chunkWriter, chunkSize, audioStream, new Audio(), audioFrame, audioFrames * 1000 / AUDIO_FPS);
+                channel.expect(audioFrame.length, chunkSize);
+                audioFrames++;
+            }
+            byte[] frame = i % GOP == 0 ? keyFrame : interFrame;
+            writeVideo(chunkWriter, chunkSize, videoStream, frame, dts);
+            channel.expect(frame.length, chunkSize);
+            // the publisher flushes once per frame.
+            chunkWriter.flush();
+        }
+        return channel;
+    }
+
+    /**
+     * @return the time to serialize the whole sequence at the small and at the large chunk size,
+     * averaged over many runs since one is short. The sizes alternate so that both run the same
+     * compiled code.
+     */
+    private long[] measureNanos() throws IOException {
+        long[] nanos = new long[2];
+        for (int i = 0; i < WARM_UP_RUNS + RUNS; i++) {
+            long begin = System.nanoTime();
+            stream(SMALL_CHUNK_SIZE);
+            long middle = System.nanoTime();
+            stream(LARGE_CHUNK_SIZE);
+            if (i >= WARM_UP_RUNS) {
+                nanos[0] += middle - begin;
+                nanos[1] += System.nanoTime() - middle;
+            }
+        }
+        nanos[0] /= RUNS;
+        nanos[1] /= RUNS;
+        return nanos;
+    }
+
+    private static void report(int chunkSize, CountingChannel channel, long nanos) {
+        System.out.println(String.format("chunk size %d: %d bytes/s, %d chunks/s, %d writes/s, %d us cpu/s",
+                chunkSize, channel.bytes / SECONDS, channel.chunks() / SECONDS, channel.writes / SECONDS,
+                nanos / 1000 / SECONDS));
+    }
+
+    private static void writeVideo(RtmpChunkWriter chunkWriter, int chunkSize, ChunkStreamInfo chunkStreamInfo,
+                                   byte[] data, int dts) throws IOException {
+        write(chunkWriter, chunkSize, chunkStreamInfo, new Video(), data, dts);
+    }
+
+    private static void write(RtmpChunkWriter chunkWriter, int chunkSize, ChunkStreamInfo chunkStreamInfo,
+                              ContentData packet, byte[] data, int dts) throws IOException {
+        packet.setData(data, data.length);
+        packet.getHeader().setAbsoluteTimestamp(dts);
+        packet.getHeader().setMessageStreamId(1);
+        packet.writeTo(chunkWriter, chunkSize, chunkStreamInfo);
+    }
+
+    private static byte[] frame(int size, int tag) {
+        byte[] data = new byte[size];
+        data[0] = (byte) tag;
+        data[1] = 1;
+        return data;
+    }
+
+    /**
+     * Takes everything, counting the bytes, the gathering writes and the buffers they carried.
+     */
+    private static final class CountingChannel implements GatheringByteChannel {
+
+        long bytes;
+        long writes;
+        long buffers;
+        // what the packets written should take, from their lengths alone.
+        long payloadBytes;
+        long expectedChunks;
+
+        void expect(int length, int chunkSize) {
+            payloadBytes += length;
+            expectedChunks += (length + chunkSize - 1) / chunkSize;
+        }
+
+        /**
+         * @return the chunks written, each one a header buffer and a payload buffer.
+         */
+        long chunks() {
+            return buffers / 2;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            writes++;
+            long total = 0;
+            for (int i = offset; i < offset + length; i++) {
+                if (srcs[i].hasRemaining()) {
+                    buffers++;
+                    total += srcs[i].remaining();
+                    srcs[i].position(srcs[i].limit());
+                }
+            }
+            bytes += total;
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return (int) write(new ByteBuffer[]{src}, 0, 1);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
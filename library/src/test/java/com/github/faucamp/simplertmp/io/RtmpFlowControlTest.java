@@ -0,0 +1,207 @@
+package com.github.faucamp.simplertmp.io;
+
+import com.github.faucamp.simplertmp.packets.Video;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+import cloud.shoplive.studio.ShopLiveBitrateController;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Streams video through the chunk writer into a reader draining at a limited rate, which
+ * acknowledges every window like a server does. The bitrate controller only sees the flow control
+ * counters and the time spent blocked in writes. The link runs on a simulated clock, so a minute
+ * of streaming takes milliseconds and the result does not depend on the machine.
+ */
+public class RtmpFlowControlTest {
+
+    private static final int MIN_BITRATE = 500000;
+    private static final int MAX_BITRATE = 2000000;
+    private static final int FPS = 30;
+    private static final long FRAME_NANOS = 1000000000L / FPS;
+    private static final long SAMPLE_NANOS = 1000000000L;
+    private static final int GOP = 2 * FPS;
+    private static final int CHUNK_SIZE = 4096;
+    // the socket and kernel buffers in front of the reader.
+    private static final int SEND_BUFFER_SIZE = 128 * 1024;
+
+    private final RtmpFlowControl flowControl = new RtmpFlowControl();
+    private final RateLimitedReader reader = new RateLimitedReader();
+    private final RtmpChunkWriter chunkWriter = new RtmpChunkWriter(reader);
+    private final ChunkStreamInfo chunkStreamInfo = new ChunkStreamInfo();
+    private final byte[] frame = new byte[MAX_BITRATE / 8 / FPS];
+    private ShopLiveBitrateController controller;
+
+    // the simulated clock, advanced by the frame timer and by writes blocking on the reader.
+    private long nowNanos;
+    private long stallNanos;
+    private long nextFrameNanos;
+    private long nextSampleNanos;
+    private int frameCount;
+
+    @Before
+    public void setUp() {
+        ShopLiveBitrateController.Logger logger = new ShopLiveBitrateController.Logger() {
+            @Override
+            public void info(String message) {
+            }
+
+            @Override
+            public void warn(String message) {
+            }
+        };
+        controller = new ShopLiveBitrateController(MIN_BITRATE, MAX_BITRATE, GOP / 4, GOP / 16, logger);
+    }
+
+    @Test
+    public void keepsTheBitrateOnAFastReader() throws Exception {
+        reader.rateBps = 4000000;
+        stream(30);
+        assertEquals(MAX_BITRATE, controller.getTargetBitrate());
+        assertTrue(flowControl.getBytesAcknowledged() > 0);
+    }
+
+    @Test
+    public void backsOffAndRecoversWithTheReader() throws Exception {
+        reader.rateBps = 4000000;
+        stream(10);
+        assertEquals(MAX_BITRATE, controller.getTargetBitrate());
+
+        // the uplink falls to half the configured bitrate.
+        reader.rateBps = 1000000;
+        stream(10);
+        assertTrue(controller.getTargetBitrate() < reader.rateBps);
+        int lowest = controller.getTargetBitrate();
+        int highest = 0;
+        long sum = 0;
+        for (int i = 0; i < 60; i++) {
+            stream(1);
+            lowest = Math.min(lowest, controller.getTargetBitrate());
+            highest = Math.max(highest, controller.getTargetBitrate());
+            sum += controller.getTargetBitrate();
+        }
+        // it probes past the reader rate and backs off again, staying below it on average.
+        assertTrue("lowest " + lowest, lowest > MIN_BITRATE);
+        assertTrue("highest " + highest, highest > reader.rateBps && highest < reader.rateBps * 1.5);
+        assertTrue("mean " + sum / 60, sum / 60 < reader.rateBps);
+        assertEquals(0, controller.getResolutionLevel());
+
+        // and probes back up once the uplink recovers.
+        reader.rateBps = 4000000;
+        stream(90);
+        assertEquals(MAX_BITRATE, controller.getTargetBitrate());
+        assertTrue(stalledFrames() <= GOP / 16);
+    }
+
+    /**
+     * Send a frame every frame interval at the target bitrate, sampling the controller every second
+     * like the encoder does.
+     */
+    private void stream(int seconds) throws Exception {
+        long endNanos = nextFrameNanos + seconds * SAMPLE_NANOS;
+        while (nextFrameNanos < endNanos) {
+            if (nowNanos < nextFrameNanos) {
+                reader.advanceTo(nextFrameNanos);
+            }
+            if (nowNanos >= nextSampleNanos) {
+                controller.update(nowNanos / 1000000, stalledFrames(), flowControl.getBytesWritten(),
+                        flowControl.getBytesAcknowledged(), stallNanos / 1000000);
+                nextSampleNanos += SAMPLE_NANOS;
+            }
+            sendFrame(controller.getTargetBitrate() / 8 / FPS);
+            nextFrameNanos += FRAME_NANOS;
+        }
+    }
+
+    /**
+     * @return the frames due while the writes were blocked, which the publisher would have queued.
+     */
+    private int stalledFrames() {
+        return (int) Math.max(0, (nowNanos - nextFrameNanos) / FRAME_NANOS);
+    }
+
+    private void sendFrame(int size) throws Exception {
+        frame[0] = (byte) (frameCount % GOP == 0 ? 0x17 : 0x27);
+        frame[1] = 1;
+        Video video = new Video();
+        video.setData(frame, size);
+        video.getHeader().setAbsoluteTimestamp((int) (frameCount * 1000L / FPS));
+        video.getHeader().setMessageStreamId(1);
+        frameCount++;
+
+        // timed like the blocking connection times its writes.
+        long writeBegin = nowNanos;
+        video.writeTo(chunkWriter, CHUNK_SIZE, chunkStreamInfo);
+        chunkWriter.flush();
+        stallNanos += nowNanos - writeBegin;
+        flowControl.onBytesWritten(chunkWriter.getBytesWritten());
+    }
+
+    /**
+     * A blocking socket in front of a reader taking {@code rateBps}. A write blocks, advancing the
+     * clock, until the send buffer has room, and the reader acknowledges each window it has read.
+     */
+    private final class RateLimitedReader implements GatheringByteChannel {
+
+        long rateBps;
+        private long writtenBytes;
+        private double readBytes;
+        private long nextAck = RtmpConnection.ACK_WINDOW_SIZE;
+
+        void advanceTo(long nanos) {
+            readBytes = Math.min(writtenBytes, readBytes + (nanos - nowNanos) * rateBps / 8e9);
+            nowNanos = nanos;
+            while (readBytes >= nextAck) {
+                flowControl.onAcknowledgement((int) nextAck);
+                nextAck += RtmpConnection.ACK_WINDOW_SIZE;
+            }
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            while (src.hasRemaining()) {
+                long space = SEND_BUFFER_SIZE - (writtenBytes - (long) readBytes);
+                if (space <= 0) {
+                    // block until the reader has taken another slice of the buffer.
+                    long need = Math.min(src.remaining(), SEND_BUFFER_SIZE / 8);
+                    advanceTo(nowNanos + (long) Math.ceil(need * 8e9 / rateBps));
+                    continue;
+                }
+                int count = (int) Math.min(space, src.remaining());
+                src.position(src.position() + count);
+                writtenBytes += count;
+            }
+            return length;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long total = 0;
+            for (int i = offset; i < offset + length; i++) {
+                total += write(srcs[i]);
+            }
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
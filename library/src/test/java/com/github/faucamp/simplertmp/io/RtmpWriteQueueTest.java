@@ -0,0 +1,185 @@
+package com.github.faucamp.simplertmp.io;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RtmpWriteQueueTest {
+
+    // larger than half a queue block, so the packets straddle the block boundaries.
+    private static final int PACKET_SIZE = 40000;
+
+    private final AtomicInteger videoFrameCacheNumber = new AtomicInteger();
+    private final RtmpWriteQueue queue = new RtmpWriteQueue(videoFrameCacheNumber);
+    private final Socket socket = new Socket();
+
+    @Test
+    public void cutKeepsThePacketOnTheWire() throws IOException {
+        byte[] first = queueVideo('a', RtmpWriteQueue.VIDEO_INTER_FRAME);
+        queueVideo('b', RtmpWriteQueue.VIDEO_INTER_FRAME);
+        byte[] key = queueVideo('c', RtmpWriteQueue.VIDEO_KEY_FRAME);
+        byte[] last = queueVideo('d', RtmpWriteQueue.VIDEO_INTER_FRAME);
+
+        // the socket takes half of the first packet.
+        socket.limit = PACKET_SIZE / 2;
+        assertEquals(PACKET_SIZE / 2, queue.writeTo(socket));
+        assertEquals(4, videoFrameCacheNumber.get());
+
+        assertEquals(1, queue.cutVideoToLastKeyFrame());
+        assertEquals(3, videoFrameCacheNumber.get());
+        assertEquals(PACKET_SIZE * 5 / 2, queue.getQueuedBytes());
+        assertTrue(queue.hasUnsentKeyFrame());
+
+        drain();
+        assertArrayEquals(concat(first, key, last), socket.written.toByteArray());
+        assertEquals(0, videoFrameCacheNumber.get());
+    }
+
+    @Test
+    public void cutWithoutAKeyFrameKeepsSequenceHeadersAndAudio() throws IOException {
+        byte[] header = queueVideo('h', RtmpWriteQueue.VIDEO_SEQUENCE_HEADER);
+        queueVideo('a', RtmpWriteQueue.VIDEO_INTER_FRAME);
+        byte[] audio = queue('x');
+        queueVideo('b', RtmpWriteQueue.VIDEO_INTER_FRAME);
+
+        assertEquals(2, queue.cutVideoToLastKeyFrame());
+        assertEquals(1, videoFrameCacheNumber.get());
+        assertFalse(queue.hasUnsentKeyFrame());
+
+        // the packets queued after the cut follow the kept bytes.
+        byte[] key = queueVideo('c', RtmpWriteQueue.VIDEO_KEY_FRAME);
+        drain();
+        assertArrayEquals(concat(header, audio, key), socket.written.toByteArray());
+        assertEquals(0, videoFrameCacheNumber.get());
+    }
+
+    @Test
+    public void cutKeepsTheNewestKeyFrame() throws IOException {
+        queueVideo('a', RtmpWriteQueue.VIDEO_KEY_FRAME);
+        queueVideo('b', RtmpWriteQueue.VIDEO_INTER_FRAME);
+        byte[] key = queueVideo('c', RtmpWriteQueue.VIDEO_KEY_FRAME);
+
+        assertEquals(2, queue.cutVideoToLastKeyFrame());
+        // nothing left before the key frame, a second cut drops nothing.
+        assertEquals(0, queue.cutVideoToLastKeyFrame());
+        assertEquals(1, videoFrameCacheNumber.get());
+        drain();
+        assertArrayEquals(key, socket.written.toByteArray());
+    }
+
+    @Test
+    public void writtenPacketsCountDown() throws IOException {
+        queueVideo('a', RtmpWriteQueue.VIDEO_KEY_FRAME);
+        queueVideo('b', RtmpWriteQueue.VIDEO_INTER_FRAME);
+
+        // a packet counts down only once its last byte is written.
+        socket.limit = PACKET_SIZE - 1;
+        queue.writeTo(socket);
+        assertEquals(2, videoFrameCacheNumber.get());
+        socket.limit = 1;
+        queue.writeTo(socket);
+        assertEquals(1, videoFrameCacheNumber.get());
+        assertEquals(PACKET_SIZE, queue.getWrittenBytes());
+    }
+
+    @Test
+    public void closeCountsDownTheUnwrittenPackets() throws IOException {
+        queueVideo('a', RtmpWriteQueue.VIDEO_KEY_FRAME);
+        queueVideo('b', RtmpWriteQueue.VIDEO_INTER_FRAME);
+        queueVideo('c', RtmpWriteQueue.VIDEO_INTER_FRAME);
+        socket.limit = PACKET_SIZE * 3 / 2;
+        queue.writeTo(socket);
+        assertEquals(2, videoFrameCacheNumber.get());
+
+        queue.close();
+        assertEquals(0, videoFrameCacheNumber.get());
+        assertFalse(queue.isOpen());
+
+        // a packet marked after the close was dropped with the queue.
+        videoFrameCacheNumber.incrementAndGet();
+        queue.markVideoPacket(queue.getQueuedEnd(), 0, RtmpWriteQueue.VIDEO_INTER_FRAME);
+        assertEquals(0, videoFrameCacheNumber.get());
+        try {
+            queue.write(ByteBuffer.wrap(packet('d')));
+            fail();
+        } catch (SocketException e) {
+            // expected, the queue is closed.
+        }
+    }
+
+    private byte[] queueVideo(char fill, byte type) throws IOException {
+        // the publisher counts the packet before sending it.
+        videoFrameCacheNumber.incrementAndGet();
+        long start = queue.getQueuedEnd();
+        byte[] data = queue(fill);
+        queue.markVideoPacket(start, 0, type);
+        return data;
+    }
+
+    private byte[] queue(char fill) throws IOException {
+        byte[] data = packet(fill);
+        queue.write(ByteBuffer.wrap(data));
+        return data;
+    }
+
+    private void drain() throws IOException {
+        socket.limit = Integer.MAX_VALUE;
+        while (queue.hasRemaining()) {
+            queue.writeTo(socket);
+        }
+    }
+
+    private static byte[] packet(char fill) {
+        byte[] data = new byte[PACKET_SIZE];
+        Arrays.fill(data, (byte) fill);
+        return data;
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] array : arrays) {
+            out.write(array, 0, array.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * A non-blocking socket taking up to {@code limit} bytes until the test raises it again.
+     */
+    private static final class Socket implements WritableByteChannel {
+
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        int limit;
+
+        @Override
+        public int write(ByteBuffer src) {
+            int count = Math.min(limit, src.remaining());
+            byte[] data = new byte[count];
+            src.get(data);
+            written.write(data, 0, count);
+            limit -= count;
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.seu.magicfilter.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class YuvConversionTest {
+
+    private static final int WIDTH = 8;
+    private static final int HEIGHT = 4;
+
+    // BT.601 limited range with the libyuv coefficients: Y, U, V of white, red, green and blue.
+    private static final int[] WHITE = {235, 128, 128};
+    private static final int[] RED = {82, 90, 240};
+    private static final int[] GREEN = {144, 54, 34};
+    private static final int[] BLUE = {41, 240, 110};
+
+    @Test
+    public void convertsSolidColorsToI420() {
+        assertSolid(rgba(255, 255, 255), YuvConversion.I420, WHITE);
+        assertSolid(rgba(255, 0, 0), YuvConversion.I420, RED);
+        assertSolid(rgba(0, 255, 0), YuvConversion.I420, GREEN);
+        assertSolid(rgba(0, 0, 255), YuvConversion.I420, BLUE);
+    }
+
+    @Test
+    public void packsI420Planes() {
+        byte[] dst = convert(solid(rgba(0, 0, 255)), YuvConversion.I420, 0, false);
+        int ySize = WIDTH * HEIGHT;
+        for (int i = 0; i < ySize / 4; i++) {
+            assertEquals(BLUE[1], dst[ySize + i] & 0xff);
+            assertEquals(BLUE[2], dst[ySize + ySize / 4 + i] & 0xff);
+        }
+    }
+
+    @Test
+    public void interleavesNv12Chroma() {
+        byte[] dst = convert(solid(rgba(0, 0, 255)), YuvConversion.NV12, 0, false);
+        int ySize = WIDTH * HEIGHT;
+        for (int i = 0; i < ySize / 4; i++) {
+            assertEquals(BLUE[1], dst[ySize + i * 2] & 0xff);
+            assertEquals(BLUE[2], dst[ySize + i * 2 + 1] & 0xff);
+        }
+    }
+
+    @Test
+    public void defaultTransformTurnsTheReadbackUpright() {
+        // the readback has its first row at the bottom: red rows there, blue rows on top.
+        byte[] src = new byte[WIDTH * HEIGHT * 4];
+        for (int y = 0; y < HEIGHT; y++) {
+            byte[] color = y < HEIGHT / 2 ? rgba(255, 0, 0) : rgba(0, 0, 255);
+            for (int x = 0; x < WIDTH; x++) {
+                System.arraycopy(color, 0, src, (y * WIDTH + x) * 4, 4);
+            }
+        }
+
+        byte[] dst = convert(src, YuvConversion.I420, YuvConversion.DEFAULT_ROTATION, YuvConversion.DEFAULT_FLIP);
+        for (int y = 0; y < HEIGHT; y++) {
+            int expected = y < HEIGHT / 2 ? BLUE[0] : RED[0];
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals("row " + y, expected, dst[y * WIDTH + x] & 0xff);
+            }
+        }
+        int ySize = WIDTH * HEIGHT;
+        assertEquals(BLUE[1], dst[ySize] & 0xff);
+        assertEquals(RED[1], dst[ySize + ySize / 4 - 1] & 0xff);
+    }
+
+    @Test
+    public void transformMirrorsAfterTheRotation() {
+        // identity, then 90 degrees taking the output origin to the bottom left of the source.
+        assertArrayEquals(new float[]{1, 0, 0, 0, 1, 0, 0, 0, 1}, YuvConversion.transform(0, false), 0f);
+        assertArrayEquals(new float[]{0, -1, 0, 1, 0, 0, 0, 1, 1}, YuvConversion.transform(90, false), 0f);
+        // 180 degrees and a mirror is a vertical flip.
+        assertArrayEquals(new float[]{1, 0, 0, 0, -1, 0, 0, 1, 1}, YuvConversion.transform(180, true), 0f);
+        assertArrayEquals(YuvConversion.transform(270, false), YuvConversion.transform(-90, false), 0f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnsupportedSizes() {
+        YuvConversion.convert(new byte[6 * 4 * 4], 6, 4, new byte[36], 6, 4, YuvConversion.I420, 0, false);
+    }
+
+    private static void assertSolid(byte[] color, int layout, int[] yuv) {
+        byte[] dst = convert(solid(color), layout, 0, false);
+        int ySize = WIDTH * HEIGHT;
+        for (int i = 0; i < ySize; i++) {
+            assertEquals(yuv[0], dst[i] & 0xff);
+        }
+        assertEquals(yuv[1], dst[ySize] & 0xff);
+        assertEquals(yuv[2], dst[ySize + ySize / 4] & 0xff);
+    }
+
+    private static byte[] convert(byte[] src, int layout, int rotation, boolean flip) {
+        byte[] dst = new byte[YuvConversion.frameSize(WIDTH, HEIGHT)];
+        YuvConversion.convert(src, WIDTH, HEIGHT, dst, WIDTH, HEIGHT, layout, rotation, flip);
+        return dst;
+    }
+
+    private static byte[] solid(byte[] color) {
+        byte[] src = new byte[WIDTH * HEIGHT * 4];
+        for (int i = 0; i < src.length; i += 4) {
+            System.arraycopy(color, 0, src, i, 4);
+        }
+        return src;
+    }
+
+    private static byte[] rgba(int r, int g, int b) {
+        return new byte[]{(byte) r, (byte) g, (byte) b, (byte) 255};
+    }
+}